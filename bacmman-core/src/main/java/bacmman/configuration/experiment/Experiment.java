@@ -132,6 +132,7 @@ public class Experiment extends ContainerParameterImpl<Experiment> {
         res.put("importMethod", importCond.toJSONEntry());
         res.put("bestFocusPlane", bestFocusPlane.toJSONEntry());
         res.put("note", note.toJSONEntry());
+        res.put("imageDAOType", imageDAOType.name());
         return res;
     }
 
@@ -159,6 +160,7 @@ public class Experiment extends ContainerParameterImpl<Experiment> {
         else importMethod.initFromJSONEntry(jsonO.get("importMethod")); // RETRO COMPATIBILITY
         bestFocusPlane.initFromJSONEntry(jsonO.get("bestFocusPlane"));
         if (jsonO.containsKey("note")) note.initFromJSONEntry(jsonO.get("note"));
+        if (jsonO.containsKey("imageDAOType")) imageDAOType = ImageDAOFactory.ImageDAOTypes.valueOf((String)jsonO.get("imageDAOType"));
     }
     public Experiment(){
         this("");
@@ -219,8 +221,12 @@ public class Experiment extends ContainerParameterImpl<Experiment> {
         this.imageDAOType=type;
     }
 
+    public ImageDAOFactory.ImageDAOTypes getImageDAOType() {
+        return imageDAOType;
+    }
+
     public ImageDAO getImageDAO() {
-        return ImageDAOFactory.getLocalTIFImageDAO(getOutputImageDirectory());
+        return ImageDAOFactory.getImageDAO(imageDAOType, getOutputImageDirectory());
     }
     public boolean noPreProcessing() {
         for (Position p : this.getPositions()) {
@@ -24,6 +24,9 @@ import bacmman.data_structure.SegmentedObject;
 import bacmman.data_structure.SegmentedObjectUtils;
 import bacmman.data_structure.dao.DBMapMasterDAO;
 import bacmman.data_structure.dao.DBMapObjectDAO;
+import bacmman.data_structure.dao.DBMapSelectionDAO;
+import bacmman.data_structure.dao.ImageDAO;
+import bacmman.data_structure.dao.ImageDAOFactory;
 import bacmman.data_structure.dao.MasterDAO;
 import bacmman.data_structure.MasterDAOFactory;
 import bacmman.data_structure.dao.ObjectDAO;
@@ -32,7 +35,12 @@ import bacmman.data_structure.dao.SelectionDAO;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import bacmman.image.Image;
+import bacmman.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -87,4 +95,135 @@ public class DbConverter {
         }
         
     }
+
+    /**
+     * Converts the object store of each position of a dataset from one file layout to another (e.g. {@link MasterDAOFactory.DAOType#DBMap} to {@link MasterDAOFactory.DAOType#Binary} or the opposite).
+     * Measurements and selections are shared by both layouts and are not modified.
+     * @param dbName dataset name
+     * @param dir dataset directory
+     * @param sourceType layout of the stored objects
+     * @param destType layout objects are converted to
+     * @param deleteSource whether files of source layout should be deleted after conversion
+     * @return false if the dataset or one of the positions could not be locked
+     */
+    public static boolean convertObjectStore(String dbName, String dir, MasterDAOFactory.DAOType sourceType, MasterDAOFactory.DAOType destType, boolean deleteSource) {
+        if (sourceType.equals(destType)) return true;
+        MasterDAO source = MasterDAOFactory.createDAO(dbName, dir, sourceType);
+        MasterDAO dest = MasterDAOFactory.createDAO(dbName, dir, destType);
+        if (!(source instanceof DBMapMasterDAO) || !(dest instanceof DBMapMasterDAO)) throw new IllegalArgumentException("Only file-based object stores can be converted");
+        if (!dest.setConfigurationReadOnly(false)) {
+            logger.error("Could not lock dataset: {}", dbName);
+            return false;
+        }
+        boolean success = true;
+        for (String position : dest.getExperiment().getPositionsAsString()) {
+            if (!dest.lockPositions(position)) {
+                logger.error("Could not lock position: {}, position is not converted", position);
+                dest.unlockPositions(position);
+                success = false;
+                continue;
+            }
+            long t0 = System.currentTimeMillis();
+            DBMapObjectDAO sourceDAO = (DBMapObjectDAO)source.getDao(position);
+            ObjectDAO destDAO = dest.getDao(position);
+            // retrieve all objects before storing them as storing sets the dao of objects
+            List<SegmentedObject> roots = sourceDAO.getRoots();
+            Map<Integer, List<SegmentedObject>> objects = new HashMap<>();
+            int objectCount = roots.size();
+            for (int sIdx = 0; sIdx<source.getExperiment().getStructureCount(); ++sIdx) {
+                List<SegmentedObject> toWrite = new ArrayList<>();
+                for (List<SegmentedObject> list : SegmentedObjectUtils.getAllTracks(roots, sIdx).values()) toWrite.addAll(list);
+                objects.put(sIdx, toWrite);
+                objectCount+=toWrite.size();
+            }
+            destDAO.store(roots);
+            for (int sIdx = 0; sIdx<source.getExperiment().getStructureCount(); ++sIdx) destDAO.store(objects.get(sIdx));
+            List<File> sourceFiles = sourceDAO.getObjectStoreFiles();
+            source.clearCache(position);
+            dest.unlockPositions(position);
+            if (deleteSource) for (File f : sourceFiles) Utils.deleteDirectory(f);
+            long t1 = System.currentTimeMillis();
+            logger.debug("position: {} converted from {} to {}: #{} objects in {}ms", position, sourceType, destType, objectCount, t1-t0);
+        }
+        source.clearCache();
+        dest.unlockConfiguration();
+        return success;
+    }
+
+    /**
+     * Converts the measurement files of each position of a dataset to the binary encoding, or back to the JSON encoding that can be read by previous versions (see {@link DBMapObjectDAO#convertMeasurements(boolean)}).
+     * Measurement files are never converted implicitly: files written by previous versions keep the JSON encoding until this method is called.
+     * @param db dataset
+     * @param toBinary target encoding
+     * @return false if one of the positions could not be locked
+     */
+    public static boolean convertMeasurementStore(MasterDAO db, boolean toBinary) {
+        if (!(db instanceof DBMapMasterDAO)) throw new IllegalArgumentException("Only file-based measurement stores can be converted");
+        boolean success = true;
+        for (String position : db.getExperiment().getPositionsAsString()) {
+            if (!db.lockPositions(position)) {
+                logger.error("Could not lock position: {}, measurements are not converted", position);
+                db.unlockPositions(position);
+                success = false;
+                continue;
+            }
+            long t0 = System.currentTimeMillis();
+            int count = ((DBMapObjectDAO)db.getDao(position)).convertMeasurements(toBinary);
+            db.unlockPositions(position);
+            long t1 = System.currentTimeMillis();
+            logger.debug("position: {}: #{} measurements converted to {} encoding in {}ms", position, count, toBinary ? "binary" : "JSON", t1-t0);
+        }
+        return success;
+    }
+
+    /**
+     * Rewrites the selections of a dataset with packed elements, or with elements in JSON entries that can be read by previous versions (see {@link DBMapSelectionDAO#convertElements(boolean)})
+     * @param db dataset
+     * @param packed target format
+     * @return false if selections could not be written
+     */
+    public static boolean convertSelectionStore(MasterDAO db, boolean packed) {
+        SelectionDAO selDAO = db.getSelectionDAO();
+        if (!(selDAO instanceof DBMapSelectionDAO)) throw new IllegalArgumentException("Only file-based selection stores can be converted");
+        return ((DBMapSelectionDAO)selDAO).convertElements(packed);
+    }
+
+    /**
+     * Copies pre-processed images of each position of a dataset to another image store (e.g. {@link ImageDAOFactory.ImageDAOTypes#LocalTIF} to {@link ImageDAOFactory.ImageDAOTypes#LocalChunked}), and sets the image store type of the dataset
+     * @param db dataset
+     * @param destType type of image store images are copied to
+     * @param deleteSource whether images of the source store should be deleted after conversion
+     * @return false if the configuration of the dataset could not be locked
+     */
+    public static boolean convertPreProcessedImages(MasterDAO db, ImageDAOFactory.ImageDAOTypes destType, boolean deleteSource) {
+        Experiment xp = db.getExperiment();
+        if (xp.getImageDAOType().equals(destType)) return true;
+        if (!db.setConfigurationReadOnly(false)) {
+            logger.error("Could not lock dataset: {}", db.getDBName());
+            return false;
+        }
+        ImageDAO source = xp.getImageDAO();
+        ImageDAO dest = ImageDAOFactory.getImageDAO(destType, xp.getOutputImageDirectory());
+        int channels = xp.getChannelImageCount(true);
+        for (String position : xp.getPositionsAsString()) {
+            long t0 = System.currentTimeMillis();
+            int frames = xp.getPosition(position).getFrameNumber(false);
+            int count = 0;
+            for (int c = 0; c<channels; ++c) {
+                for (int f = 0; f<frames; ++f) {
+                    Image im = source.openPreProcessedImage(c, f, position);
+                    if (im==null) continue;
+                    dest.writePreProcessedImage(im, c, f, position);
+                    if (deleteSource) source.deletePreProcessedImage(c, f, position);
+                    ++count;
+                }
+            }
+            long t1 = System.currentTimeMillis();
+            logger.debug("position: {}: #{} pre-processed images converted from {} to {} in {}ms", position, count, xp.getImageDAOType(), destType, t1-t0);
+        }
+        xp.setImageDAOType(destType);
+        db.updateExperiment();
+        db.unlockConfiguration();
+        return true;
+    }
 }
@@ -0,0 +1,107 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Runs tasks (one per position) on a bounded number of threads. A task is started only if the sum of its estimated memory footprint and the footprint of running tasks is lower than the memory limit, or if no other task is running (so that a task exceeding the limit runs alone).
+ * Tasks are started in the order of the input list.
+ * @author Jean Ollion
+ */
+class PositionScheduler {
+    public static final Logger logger = LoggerFactory.getLogger(PositionScheduler.class);
+    final int parallelism;
+    final long memoryLimit;
+    private long admittedMemory;
+    private int running;
+
+    /**
+     *
+     * @param parallelism maximal number of tasks running concurrently
+     * @param memoryLimit maximal sum of footprints of running tasks
+     */
+    PositionScheduler(int parallelism, long memoryLimit) {
+        this.parallelism = Math.max(1, parallelism);
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Runs {@param task} on each element of {@param items} and waits until all tasks have ended
+     * @param items
+     * @param memoryFootprint estimated memory footprint of an element, computed on the calling thread before the element is admitted
+     * @param task called on an executor thread with the element and its estimated footprint. Errors thrown by the task are logged
+     * @param <T>
+     * @throws InterruptedException if the calling thread is interrupted while waiting: elements that were not started are skipped, running tasks are not interrupted
+     */
+    <T> void run(List<T> items, ToLongFunction<T> memoryFootprint, BiConsumer<T, Long> task) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            for (T item : items) {
+                long memory = memoryFootprint.applyAsLong(item);
+                synchronized (this) {
+                    while (running>0 && (running>=parallelism || admittedMemory+memory>memoryLimit)) wait();
+                    admittedMemory+=memory;
+                    ++running;
+                }
+                executor.submit(() -> {
+                    try {
+                        task.accept(item, memory);
+                    } catch (Throwable e) {
+                        logger.error("Error while processing: "+item, e);
+                    } finally {
+                        synchronized (this) {
+                            admittedMemory-=memory;
+                            --running;
+                            notifyAll();
+                        }
+                    }
+                });
+            }
+            synchronized (this) {
+                while (running>0) wait();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     *
+     * @return number of tasks being run
+     */
+    synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     *
+     * @return sum of the estimated footprints of tasks being run
+     */
+    synchronized long getAdmittedMemory() {
+        return admittedMemory;
+    }
+}
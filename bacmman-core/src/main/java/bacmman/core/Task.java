@@ -18,14 +18,20 @@
  */
 package bacmman.core;
 
+import bacmman.configuration.experiment.Position;
 import bacmman.configuration.experiment.PreProcessingChain;
 import bacmman.configuration.parameters.PluginParameter;
 import bacmman.data_structure.Processor;
 import bacmman.data_structure.SegmentedObject;
+import bacmman.data_structure.SegmentedObjectAccessor;
 import bacmman.data_structure.Selection;
 import bacmman.data_structure.dao.MasterDAO;
+import bacmman.data_structure.dao.CachedImageDAO;
+import bacmman.data_structure.input_image.InputImagesImpl;
 import bacmman.data_structure.MasterDAOFactory;
+import bacmman.image.BlankMask;
 import bacmman.image.BoundingBox;
+import bacmman.image.Image;
 import bacmman.image.SimpleBoundingBox;
 import bacmman.measurement.MeasurementExtractor;
 import bacmman.measurement.MeasurementKeyObject;
@@ -67,10 +73,16 @@ public class Task implements ProgressCallback{
         String dbName, dir;
         boolean preProcess, segmentAndTrack, trackOnly, measurements, generateTrackImages, exportPreProcessedImages, exportTrackImages, exportObjects, exportSelections, exportConfig;
         MEASUREMENT_MODE measurementMode = MEASUREMENT_MODE.ERASE_ALL;
+        boolean streamCommit, resume;
+        int positionParallelism = 1;
+        long frameCacheSize;
+        int prefetchFrames, prefetchThreads = 2;
+        int decodedRegionCacheSize;
+        final List<PositionProgressCallback> runningPositions = new ArrayList<>();
         boolean exportData;
         List<Integer> positions;
         int[] structures;
-        List<Pair<String, int[]>> extractMeasurementDir = new ArrayList<>();
+        List<Triplet<String, int[], MeasurementExtractor.ExportFormat>> extractMeasurementDir = new ArrayList<>();
         MultipleException errors = new MultipleException();
         MasterDAO db;
         final boolean keepDB;
@@ -96,6 +108,15 @@ public class Task implements ProgressCallback{
             if (preProcess) res.put("preProcess", preProcess);
             if (segmentAndTrack) res.put("segmentAndTrack", segmentAndTrack);
             if (trackOnly) res.put("trackOnly", trackOnly);
+            if (streamCommit) res.put("streamCommit", streamCommit);
+            if (resume) res.put("resume", resume);
+            if (positionParallelism>1) res.put("positionParallelism", positionParallelism);
+            if (frameCacheSize>0) res.put("frameCacheSize", frameCacheSize);
+            if (prefetchFrames>0) {
+                res.put("prefetchFrames", prefetchFrames);
+                res.put("prefetchThreads", prefetchThreads);
+            }
+            if (decodedRegionCacheSize>0) res.put("decodedRegionCacheSize", decodedRegionCacheSize);
             if (measurements) {
                 res.put("measurements", measurements);
                 res.put("measurementMode", measurementMode.toString());
@@ -110,10 +131,11 @@ public class Task implements ProgressCallback{
             if (structures!=null) res.put("structures", JSONUtils.toJSONArray(structures));
             if (selectionName!=null) res.put("selection", selectionName);
             JSONArray ex = new JSONArray();
-            for (Pair<String, int[]> p : extractMeasurementDir) {
+            for (Triplet<String, int[], MeasurementExtractor.ExportFormat> p : extractMeasurementDir) {
                 JSONObject o = new JSONObject();
-                o.put("dir", p.key);
-                o.put("s", JSONUtils.toJSONArray(p.value));
+                o.put("dir", p.v1);
+                o.put("s", JSONUtils.toJSONArray(p.v2));
+                if (!MeasurementExtractor.ExportFormat.CSV.equals(p.v3)) o.put("format", p.v3.toString());
                 ex.add(o);
             }
             if (!ex.isEmpty()) res.put("extractMeasurementDir", ex);
@@ -164,6 +186,13 @@ public class Task implements ProgressCallback{
             this.preProcess = (Boolean)data.getOrDefault("preProcess", false);
             this.segmentAndTrack = (Boolean)data.getOrDefault("segmentAndTrack", false);
             this.trackOnly = (Boolean)data.getOrDefault("trackOnly", false);
+            this.streamCommit = (Boolean)data.getOrDefault("streamCommit", false);
+            this.resume = (Boolean)data.getOrDefault("resume", false);
+            this.positionParallelism = ((Number)data.getOrDefault("positionParallelism", 1)).intValue();
+            this.frameCacheSize = ((Number)data.getOrDefault("frameCacheSize", 0)).longValue();
+            this.prefetchFrames = ((Number)data.getOrDefault("prefetchFrames", 0)).intValue();
+            this.prefetchThreads = ((Number)data.getOrDefault("prefetchThreads", 2)).intValue();
+            this.decodedRegionCacheSize = ((Number)data.getOrDefault("decodedRegionCacheSize", 0)).intValue();
             this.measurements = (Boolean)data.getOrDefault("measurements", false);
             this.measurementMode = MEASUREMENT_MODE.valueOf((String)data.getOrDefault("measurementMode", MEASUREMENT_MODE.ERASE_ALL.toString()));
             this.generateTrackImages = (Boolean)data.getOrDefault("generateTrackImages", false);
@@ -181,7 +210,7 @@ public class Task implements ProgressCallback{
                 JSONArray ex = (JSONArray)data.get("extractMeasurementDir");
                 for (Object o : ex) {
                     JSONObject jo = (JSONObject)(o);
-                    extractMeasurementDir.add(new Pair(jo.get("dir"), JSONUtils.fromIntArray((JSONArray)jo.get("s"))));
+                    extractMeasurementDir.add(new Triplet<>((String)jo.get("dir"), JSONUtils.fromIntArray((JSONArray)jo.get("s")), MeasurementExtractor.ExportFormat.valueOf((String)jo.getOrDefault("format", MeasurementExtractor.ExportFormat.CSV.toString()))));
                 }
             }
             if (data.containsKey("extractDataset")) {
@@ -401,6 +430,73 @@ public class Task implements ProgressCallback{
         this.measurements=measurements;
         return this;
     }
+    /**
+     *
+     * @param streamCommit if true, during segmentation and tracking, objects are stored and released from memory as soon as each parent track is processed
+     * @param resume if true (implies {@param streamCommit}), existing objects are not erased, and parent tracks already processed by an interrupted streamed run are skipped
+     * @return this task
+     */
+    public Task setStreamCommit(boolean streamCommit, boolean resume) {
+        this.streamCommit=streamCommit || resume;
+        this.resume=resume;
+        return this;
+    }
+    public boolean isStreamCommit() {
+        return streamCommit;
+    }
+    public boolean isResume() {
+        return resume;
+    }
+    /**
+     *
+     * @param positionParallelism maximal number of positions processed concurrently. A position is started only if its estimated memory footprint fits in the memory limit given to {@link #runTask(double)}
+     * @return this task
+     */
+    public Task setPositionParallelism(int positionParallelism) {
+        this.positionParallelism = Math.max(1, positionParallelism);
+        return this;
+    }
+    public int getPositionParallelism() {
+        return positionParallelism;
+    }
+    /**
+     *
+     * @param bytes maximal size in bytes of pre-processed frames kept in memory during processing, so that a frame used by several parent tracks or by measurements is read only once. 0 disables the cache
+     * @return this task
+     */
+    public Task setFrameCacheSize(long bytes) {
+        this.frameCacheSize = Math.max(0, bytes);
+        return this;
+    }
+    public long getFrameCacheSize() {
+        return frameCacheSize;
+    }
+    /**
+     *
+     * @param frames number of pre-processed frames of a parent track read in advance during segmentation and tracking, so that reading overlaps with processing. 0 disables prefetching
+     * @param threads number of threads used to read frames in advance
+     * @return this task
+     */
+    public Task setPrefetch(int frames, int threads) {
+        this.prefetchFrames = Math.max(0, frames);
+        this.prefetchThreads = Math.max(1, threads);
+        return this;
+    }
+    public int getPrefetchFrames() {
+        return prefetchFrames;
+    }
+    /**
+     *
+     * @param decodedRegionCacheSize if strictly positive, regions of objects read from the database are decoded at first access and at most {@param decodedRegionCacheSize} decoded regions are kept in memory during processing (see {@link SegmentedObjectAccessor#setLazyRegionDecoding(boolean, int)}). 0 disables lazy region decoding
+     * @return this task
+     */
+    public Task setLazyRegionDecoding(int decodedRegionCacheSize) {
+        this.decodedRegionCacheSize = Math.max(0, decodedRegionCacheSize);
+        return this;
+    }
+    public int getDecodedRegionCacheSize() {
+        return decodedRegionCacheSize;
+    }
     public Task setMeasurementMode(MEASUREMENT_MODE mode) {
         this.measurementMode=mode;
         return this;
@@ -493,10 +589,20 @@ public class Task implements ProgressCallback{
     }
 
     public Task addExtractMeasurementDir(String dir, int... extractStructures) {
+        return addExtractMeasurementDir(dir, MeasurementExtractor.ExportFormat.CSV, extractStructures);
+    }
+    /**
+     *
+     * @param dir output directory, null for the directory of the dataset
+     * @param format semicolon-separated text or binary columnar file
+     * @param extractStructures object classes to extract, all object classes if empty
+     * @return this task
+     */
+    public Task addExtractMeasurementDir(String dir, MeasurementExtractor.ExportFormat format, int... extractStructures) {
         if (extractStructures==null || extractStructures.length==0) {
             ensurePositionAndStructures(false, true);
-            for (int s : structures) this.extractMeasurementDir.add(new Pair(dir, new int[]{s}));
-        } else  this.extractMeasurementDir.add(new Pair(dir, extractStructures));
+            for (int s : structures) this.extractMeasurementDir.add(new Triplet<>(dir, new int[]{s}, format));
+        } else  this.extractMeasurementDir.add(new Triplet<>(dir, extractStructures, format));
         return this;
     }
     private void ensurePositionAndStructures(boolean positions, boolean structures) {
@@ -544,12 +650,12 @@ public class Task implements ProgressCallback{
             }
         }
         // check files
-        for (Pair<String, int[]> e : extractMeasurementDir) {
-            String exDir = e.key==null? db.getDir().toFile().getAbsolutePath() : e.key;
+        for (Triplet<String, int[], MeasurementExtractor.ExportFormat> e : extractMeasurementDir) {
+            String exDir = e.v1==null? db.getDir().toFile().getAbsolutePath() : e.v1;
             File f= new File(exDir);
             if (!f.exists()) errors.addExceptions(new Pair(dbName, new Exception("File: "+ exDir+ " not found")));
             else if (!f.isDirectory()) errors.addExceptions(new Pair(dbName, new Exception("File: "+ exDir+ " is not a directory")));
-            else if (e.value!=null) checkArray(e.value, db.getExperiment().getStructureCount(), "Extract structure for dir: "+e.value+": Invalid structure: ");
+            else if (e.v2!=null) checkArray(e.v2, db.getExperiment().getStructureCount(), "Extract structure for dir: "+e.v2+": Invalid structure: ");
         }
         if (!measurements && !preProcess && !segmentAndTrack && ! trackOnly && extractMeasurementDir.isEmpty() &&!generateTrackImages && !exportData && extractDSFile==null && extractRawDSFile==null) errors.addExceptions(new Pair(dbName, new Exception("No action to run!")));
         // check parametrization
@@ -676,7 +782,7 @@ public class Task implements ProgressCallback{
             positionsToProcess.removeAll(readOnlyPos);
         }
         logger.debug("locked positions: {} / {}", positionsToProcess.size() - readOnlyPos.size(), positionsToProcess.size());
-        boolean needToDeleteObjects = preProcess || segmentAndTrack;
+        boolean needToDeleteObjects = preProcess || (segmentAndTrack && !resume);
         boolean deleteAll =  needToDeleteObjects && selection==null && structures.length==db.getExperiment().getStructureCount() && positionsToProcess.size()==db.getExperiment().getPositionCount();
         if (deleteAll) {
             publish("deleting objects...");
@@ -687,10 +793,23 @@ public class Task implements ProgressCallback{
         if (this.taskCounter==null) this.taskCounter = new int[]{0, this.countSubtasks()};
         publish("number of subtasks: "+countSubtasks());
         if (preProcess || segmentAndTrack || trackOnly || generateTrackImages || measurements) {
+            CachedImageDAO frameCache = (frameCacheSize>0 || prefetchFrames>0) && db.getExperiment().getImageDAO() instanceof CachedImageDAO ? (CachedImageDAO)db.getExperiment().getImageDAO() : null;
+            long previousFrameCacheSize = frameCache==null ? 0 : frameCache.getCacheSize();
+            int previousPrefetchDepth = frameCache==null ? 0 : frameCache.getPrefetchDepth();
+            int previousPrefetchThreads = frameCache==null ? 0 : frameCache.getPrefetchThreads();
+            if (frameCache!=null) {
+                frameCache.setCacheSize(frameCacheSize);
+                frameCache.setPrefetch(prefetchFrames, prefetchThreads);
+            }
+            SegmentedObjectAccessor accessor = db.getAccess();
+            boolean previousLazyRegionDecoding = accessor.isLazyRegionDecoding();
+            int previousDecodedRegionCacheSize = accessor.getDecodedRegionCacheSize();
+            if (decodedRegionCacheSize>0) accessor.setLazyRegionDecoding(true, decodedRegionCacheSize);
             try {
-                for (String position : positionsToProcess) {
+                if (positionParallelism>1 && positionsToProcess.size()>1) processConcurrently(positionsToProcess, deleteAllField, selection, preProcessingMemoryThreshold);
+                else for (String position : positionsToProcess) {
                     try {
-                        process(position, deleteAllField, selection, preProcessingMemoryThreshold);
+                        process(position, deleteAllField, selection, preProcessingMemoryThreshold, this);
                     } catch (MultipleException e) {
                         errors.addExceptions(e.getExceptions());
                     } catch (Throwable e) {
@@ -698,6 +817,7 @@ public class Task implements ProgressCallback{
                     } finally {
                         db.getExperiment().getPosition(position).flushImages(true, true);
                         db.clearCache(position);
+                        clearFrameCache(position, this);
                         if (!db.isConfigurationReadOnly() && db.getSelectionDAO() != null)
                             db.getSelectionDAO().clearCache();
                         Core.freeDisplayMemory();
@@ -710,13 +830,18 @@ public class Task implements ProgressCallback{
                 publishError(t);
                 publishErrors();
             } finally {
+                if (frameCache!=null) {
+                    frameCache.setCacheSize(previousFrameCacheSize);
+                    frameCache.setPrefetch(previousPrefetchDepth, previousPrefetchThreads);
+                }
+                if (decodedRegionCacheSize>0) accessor.setLazyRegionDecoding(previousLazyRegionDecoding, previousDecodedRegionCacheSize);
                 logger.debug("closing engines...");
                 db.getExperiment().getDLengineProvider().closeAllEngines();
                 logger.debug("engines closed!");
             }
         }
         logger.debug("extracting meas...");
-        for (Pair<String, int[]> e  : this.extractMeasurementDir) extractMeasurements(e.key==null?db.getDir().toFile().getAbsolutePath():e.key, e.value, positionsToProcess);
+        for (Triplet<String, int[], MeasurementExtractor.ExportFormat> e  : this.extractMeasurementDir) extractMeasurements(e.v1==null?db.getDir().toFile().getAbsolutePath():e.v1, e.v2, positionsToProcess, e.v3);
         if (exportData) exportData();
 
         // extract dataset
@@ -765,76 +890,207 @@ public class Task implements ProgressCallback{
         }
     }
 
-    private void process(String position, boolean deleteAllField, Selection selection, double preProcessingMemoryThreshold) {
-        publish("Position: "+position);
+    private void process(String position, boolean deleteAllField, Selection selection, double preProcessingMemoryThreshold, ProgressCallback pcb) {
+        pcb.log("Position: "+position);
         if (deleteAllField) db.getDao(position).deleteAllObjects();
         if (preProcess) {
-            publish("Pre-Processing: DB: "+dbName+", Position: "+position);
+            pcb.log("Pre-Processing: DB: "+dbName+", Position: "+position);
             logger.info("Pre-Processing: DB: {}, Position: {}", dbName, position);
-            Processor.preProcessImages(db.getExperiment().getPosition(position), db.getDao(position), true, preProcessingMemoryThreshold, this);
+            Processor.preProcessImages(db.getExperiment().getPosition(position), db.getDao(position), true, preProcessingMemoryThreshold, pcb);
             boolean createRoot = segmentAndTrack || trackOnly || generateTrackImages;
             if (createRoot) Processor.getOrCreateRootTrack(db.getDao(position)); // will set opened pre-processed images to root -> no need to open them once again in further steps
             db.getExperiment().getPosition(position).flushImages(true, true); 
             System.gc();
-            incrementProgress();
-            publishMemoryUsage("After PreProcessing:");
+            pcb.incrementProgress();
+            pcb.log("After PreProcessing:"+Utils.getMemoryUsage());
         }
         
         if ((segmentAndTrack || trackOnly)) {
             logger.info("Processing: DB: {}, Position: {}", dbName, position);
-            if (selection==null) deleteObjects(db.getDao(position), structures);
+            if (selection==null && !resume) deleteObjects(db.getDao(position), structures);
             List<SegmentedObject> root = getOrCreateRootTrack(db.getDao(position));
             for (int s : structures) { // TODO take code from processor
-                publish("Processing structure: "+s);
+                pcb.log("Processing structure: "+s);
                 try {
-                    executeProcessingScheme(root, s, trackOnly, selection!=null, selection, this);
+                    executeProcessingScheme(root, s, trackOnly, selection!=null, selection, pcb, streamCommit, resume);
                 } catch (MultipleException e) {
-                    errors.addExceptions(e.getExceptions());
+                    synchronized(errors) {errors.addExceptions(e.getExceptions());}
                 } catch (Throwable e) {
-                    errors.addExceptions(new Pair("Error while processing: db: "+db.getDBName()+" pos: "+position+" structure: "+s, e));
+                    synchronized(errors) {errors.addExceptions(new Pair("Error while processing: db: "+db.getDBName()+" pos: "+position+" structure: "+s, e));}
                 }
-                incrementProgress();
+                pcb.incrementProgress();
                 if (generateTrackImages && !db.getExperiment().experimentStructure.getAllDirectChildStructures(s).isEmpty()) {
-                    publish("Generating Track Images for Structure: "+s);
-                    Processor.generateTrackImages(db.getDao(position), s, this);
-                    incrementProgress();
+                    pcb.log("Generating Track Images for Structure: "+s);
+                    Processor.generateTrackImages(db.getDao(position), s, pcb);
+                    pcb.incrementProgress();
                 }
                 //db.getDao(position).applyOnAllOpenedObjects(o->{if (o.hasRegion()) o.getRegion().clearVoxels();}); // possible memory leak at this stage : list of voxels of big objects -> no necessary for further processing. 
                 // TODO : when no more processing with direct parent as root: get all images of direct root children & remove images from root
                 System.gc();
-                publishMemoryUsage("After Processing structure:"+s);
+                pcb.log("After Processing structure:"+s+Utils.getMemoryUsage());
             }
-            publishMemoryUsage("After Processing:");
+            pcb.log("After Processing:"+Utils.getMemoryUsage());
         } else if (generateTrackImages) {
-            publish("Generating Track Images...");
+            pcb.log("Generating Track Images...");
             // generate track images for all selected structure that has direct children
             for (int s : structures) {
                 if (db.getExperiment().experimentStructure.getAllDirectChildStructures(s).isEmpty()) continue;
-                Processor.generateTrackImages(db.getDao(position), s, this);
-                incrementProgress();
+                Processor.generateTrackImages(db.getDao(position), s, pcb);
+                pcb.incrementProgress();
             }
             //publishMemoryUsage("After Generate Track Images:");
         }
         
         if (measurements) {
-            publish("Measurements...");
+            pcb.log("Measurements...");
             logger.info("Measurements: DB: {}, Position: {}", dbName, position);
-            Processor.performMeasurements(db.getDao(position), measurementMode, selection, this);
+            Processor.performMeasurements(db.getDao(position), measurementMode, selection, pcb);
             // process is incremented by method
             //publishMemoryUsage("After Measurements");
         }
     }
+    /**
+     * Releases pre-processed frames of {@param position} kept in memory (cached or prefetched) and logs frame cache statistics
+     * @param position
+     * @param pcb
+     */
+    private void clearFrameCache(String position, ProgressCallback pcb) {
+        if ((frameCacheSize==0 && prefetchFrames==0) || !(db.getExperiment().getImageDAO() instanceof CachedImageDAO)) return;
+        CachedImageDAO.CacheStatistics stats = ((CachedImageDAO)db.getExperiment().getImageDAO()).clearCache(position);
+        if (stats!=null) pcb.log("Frame cache: "+stats);
+    }
+    /**
+     * Processes positions concurrently, using at most {@link #positionParallelism} threads. A position is started only if the sum of its estimated memory footprint and the footprint of positions being processed is lower than {@param preProcessingMemoryThreshold} x max memory, or if no other position is being processed
+     * @param positions positions to process, in processing order
+     * @param deleteAllField
+     * @param selection
+     * @param preProcessingMemoryThreshold
+     */
+    private void processConcurrently(List<String> positions, boolean deleteAllField, Selection selection, double preProcessingMemoryThreshold) {
+        PositionScheduler scheduler = new PositionScheduler(positionParallelism, (long)(preProcessingMemoryThreshold * Runtime.getRuntime().maxMemory()));
+        db.getExperiment().getDLengineProvider().retainEngines(); // engines are shared by positions
+        try {
+            scheduler.run(positions, this::estimateMemoryFootprint, (position, memory) -> {
+                PositionProgressCallback pcb = new PositionProgressCallback(position);
+                publish("Starting position: "+position+" estimated memory: "+(memory/1000000)/1000d+"GB, positions running: "+scheduler.getRunning());
+                synchronized (runningPositions) {runningPositions.add(pcb);}
+                try {
+                    process(position, deleteAllField, selection, preProcessingMemoryThreshold, pcb);
+                } catch (MultipleException e) {
+                    synchronized(errors) {errors.addExceptions(e.getExceptions());}
+                } catch (Throwable e) {
+                    synchronized(errors) {errors.addExceptions(new Pair("Error while processing: db: " + db.getDBName() + " pos: " + position, e));}
+                } finally {
+                    synchronized (runningPositions) {runningPositions.remove(pcb);}
+                    db.getExperiment().getPosition(position).flushImages(true, true);
+                    db.clearCache(position);
+                    clearFrameCache(position, pcb);
+                    pcb.log("Position processed."+Utils.getMemoryUsage());
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            synchronized(errors) {errors.addExceptions(new Pair("Position processing interrupted: db: " + db.getDBName(), e));}
+        } finally {
+            db.getExperiment().getDLengineProvider().releaseEngines();
+            if (!db.isConfigurationReadOnly() && db.getSelectionDAO() != null) db.getSelectionDAO().clearCache();
+            Core.freeDisplayMemory();
+            System.gc();
+            publishMemoryUsage("After clearing cache");
+        }
+    }
+
+    /**
+     *
+     * @param position
+     * @return estimation of the memory needed to hold all the images of {@param position}: frames x channels x image size (pre-processed images are considered as 32-bit images)
+     */
+    private long estimateMemoryFootprint(String position) {
+        Position pos = db.getExperiment().getPosition(position);
+        int frames = pos.getFrameNumber(false);
+        long res = 0;
+        for (int c = 0; c<db.getExperiment().getChannelImageCount(true); ++c) {
+            int channelFrames = pos.singleFrameChannel(c) ? 1 : frames;
+            BlankMask props = db.getExperiment().getImageDAO().getPreProcessedImageProperties(c, position);
+            if (props!=null && !preProcess) res += (long)props.sizeX() * props.sizeY() * props.sizeZ() * 4 * channelFrames;
+            else { // pre-processed images are not available: use size of input image
+                InputImagesImpl images = pos.getInputImages();
+                if (images==null) continue;
+                Image image = images.getImage(c, images.getDefaultTimePoint());
+                if (image==null) continue;
+                res += (long)image.sizeX() * image.sizeY() * image.sizeZ() * Math.max(4, image.getBitDepth()/8) * channelFrames;
+                images.flush(c, images.getDefaultTimePoint());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Progress of a position processed concurrently with other positions: progress is reported to the task, messages are prefixed with the position name
+     */
+    private class PositionProgressCallback implements ProgressCallback {
+        final String position;
+        double subtaskNumber, subtaskCount;
+        PositionProgressCallback(String position) {
+            this.position=position;
+        }
+        @Override
+        public void incrementTaskNumber(int subtask) {
+            Task.this.incrementTaskNumber(subtask);
+        }
+        @Override
+        public void setSubtaskNumber(int number) {
+            synchronized (Task.this) {
+                subtaskNumber = number;
+                subtaskCount = 0;
+            }
+        }
+        @Override
+        public void incrementSubTask() {
+            synchronized (Task.this) {
+                ++subtaskCount;
+                publishConcurrentProgress();
+            }
+        }
+        @Override
+        public void incrementProgress() {
+            synchronized (Task.this) {
+                subtaskNumber = 0;
+                subtaskCount = 0;
+                ++taskCounter[0];
+                publishConcurrentProgress();
+            }
+        }
+        @Override
+        public void log(String message) {
+            publish("["+position+"] "+message);
+        }
+        double getSubtaskProgress() {
+            return subtaskNumber>0 ? Math.min(1, subtaskCount / subtaskNumber) : 0;
+        }
+    }
+    private synchronized void publishConcurrentProgress() {
+        if (ui==null || taskCounter==null) return;
+        double subtaskProgress;
+        synchronized (runningPositions) {
+            subtaskProgress = runningPositions.stream().mapToDouble(PositionProgressCallback::getSubtaskProgress).sum();
+        }
+        ui.setProgress((int)(100*(taskCounter[0] + subtaskProgress)/taskCounter[1] + 0.5));
+    }
     public void publishMemoryUsage(String message) {
         publish(message+Utils.getMemoryUsage());
     }
     public void extractMeasurements(String dir, int[] structures, List<String > positions) {
-        String file = Paths.get(dir, db.getDBName()+Utils.toStringArray(structures, "_", "", "_")+".csv").toString();
+        extractMeasurements(dir, structures, positions, MeasurementExtractor.ExportFormat.CSV);
+    }
+    public void extractMeasurements(String dir, int[] structures, List<String > positions, MeasurementExtractor.ExportFormat format) {
+        String file = Paths.get(dir, db.getDBName()+Utils.toStringArray(structures, "_", "", "_")+"."+format.getExtension()).toString();
         publish("extracting measurements from object class: "+Utils.toStringArray(structures));
         publish("measurements will be extracted to: "+ file);
         Map<Integer, String[]> keys = db.getExperiment().getAllMeasurementNamesByStructureIdx(MeasurementKeyObject.class, structures);
         logger.debug("keys: {}", Utils.toStringList(keys.entrySet()));
         logger.debug("extract read only positions: {}", getPositions().stream().filter(p -> db.getDao(p).isReadOnly()).toArray());
-        MeasurementExtractor.extractMeasurementObjects(db, file, positions, keys);
+        MeasurementExtractor.extractMeasurementObjects(db, file, positions, keys, format);
         incrementProgress();
     }
     public void exportData() {
@@ -891,7 +1147,10 @@ public class Task implements ProgressCallback{
         if (!extractMeasurementDir.isEmpty()) {
             addSep.run();
             sb.append("Extract: ");
-            for (Pair<String, int[]> p : this.extractMeasurementDir) sb.append((p.key==null?dir:p.key)).append('=').append(p.value==null ? "all" : ArrayUtil.toString(p.value));
+            for (Triplet<String, int[], MeasurementExtractor.ExportFormat> p : this.extractMeasurementDir) {
+                sb.append((p.v1==null?dir:p.v1)).append('=').append(p.v2==null ? "all" : ArrayUtil.toString(p.v2));
+                if (!MeasurementExtractor.ExportFormat.CSV.equals(p.v3)) sb.append('[').append(p.v3.toString()).append(']');
+            }
         }
         if (exportData) {
             if (exportPreProcessedImages) {
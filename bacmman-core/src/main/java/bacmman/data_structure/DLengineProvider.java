@@ -16,6 +16,7 @@ import java.util.stream.IntStream;
 public class DLengineProvider {
     Logger logger = LoggerFactory.getLogger(DLengineProvider.class);
     List<DLengine> engines = new ArrayList<>();
+    int retainCount = 0;
     //private boolean loadTFFijiAttempt = false;
     public synchronized <T extends DLengine> T getEngine(T defaultEngine) {
         /*if (!loadTFFijiAttempt) { // using reflexion here because we don't want to add a dependency
@@ -39,7 +40,24 @@ public class DLengineProvider {
         return (T)engine;
     }
 
-    public void closeAllEngines() {
+    /**
+     * While engines are retained, calls to {@link #closeAllEngines()} have no effect. Used when several processes share opened engines.
+     * Each call must be followed by a call to {@link #releaseEngines()}
+     */
+    public synchronized void retainEngines() {
+        ++retainCount;
+    }
+
+    /**
+     * Releases engines retained by {@link #retainEngines()}, and closes them if they are no more retained
+     */
+    public synchronized void releaseEngines() {
+        if (retainCount>0) --retainCount;
+        closeAllEngines();
+    }
+
+    public synchronized void closeAllEngines() {
+        if (retainCount>0) return;
         for (DLengine e : engines) {
             logger.debug("closing dlengine: {}->{}", e.getClass(), e.getParameters());
             e.close();
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure;
+
+import bacmman.data_structure.dao.CachedImageDAO;
+import bacmman.data_structure.dao.ImageDAO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Reads in background the pre-processed frames of a parent track ahead of processing: each time frame t is requested from the image DAO, the next frames of the parent track (up to the prefetch depth of the {@link CachedImageDAO}) are read on the I/O threads of the DAO.
+ * Frames whose root object already has an opened image are not prefetched.
+ * @author Jean Ollion
+ */
+public class FramePrefetcher implements AutoCloseable {
+    public static final Logger logger = LoggerFactory.getLogger(FramePrefetcher.class);
+    final CachedImageDAO dao;
+    final String position;
+    final int channelIdx;
+    final int depth;
+    final int[] frames; // frames to read, in processing order
+    final Map<Integer, Integer> frameIndex = new HashMap<>();
+
+    /**
+     *
+     * @param parentTrack parent track that will be processed
+     * @param structureIdx object class that will be segmented / tracked
+     * @return a prefetcher for the frames of {@param parentTrack}, or null if prefetching is disabled for the image DAO of the experiment
+     */
+    public static FramePrefetcher create(List<SegmentedObject> parentTrack, int structureIdx) {
+        if (parentTrack.isEmpty()) return null;
+        ImageDAO dao = parentTrack.get(0).getExperiment().getImageDAO();
+        if (!(dao instanceof CachedImageDAO) || ((CachedImageDAO)dao).getPrefetchDepth()<=0) return null;
+        SegmentedObject first = parentTrack.get(0);
+        String position = first.getPositionName();
+        int channelIdx = first.getExperiment().getChannelImageIdx(structureIdx);
+        boolean singleFrame = first.getExperiment().getPosition(position).singleFrame(structureIdx);
+        int[] frames = parentTrack.stream()
+                .filter(p -> p.getRoot().rawImagesC.get(channelIdx)==null)
+                .mapToInt(p -> singleFrame ? 0 : p.getFrame())
+                .distinct().toArray();
+        if (frames.length<=1) return null;
+        FramePrefetcher res = new FramePrefetcher((CachedImageDAO)dao, position, channelIdx, frames);
+        res.start();
+        return res;
+    }
+
+    /**
+     *
+     * @param dao
+     * @param position
+     * @param channelIdx
+     * @param frames frames to read, in processing order
+     */
+    FramePrefetcher(CachedImageDAO dao, String position, int channelIdx, int[] frames) {
+        this.dao = dao;
+        this.position = position;
+        this.channelIdx = channelIdx;
+        this.depth = dao.getPrefetchDepth();
+        this.frames = frames;
+        for (int i = 0; i<frames.length; ++i) frameIndex.put(frames[i], i);
+    }
+
+    void start() {
+        dao.setFrameRequestListener(position, this::frameRequested);
+        for (int i = 0; i<Math.min(depth, frames.length); ++i) dao.prefetch(position, channelIdx, frames[i]);
+        logger.debug("prefetching frames of position: {} channel: {} #{} frames, depth: {}", position, channelIdx, frames.length, depth);
+    }
+
+    void frameRequested(int channelIdx, int frame) {
+        if (channelIdx!=this.channelIdx) return;
+        Integer idx = frameIndex.get(frame);
+        if (idx==null) return;
+        for (int i = idx + 1; i<=Math.min(idx + depth, frames.length - 1); ++i) dao.prefetch(position, channelIdx, frames[i]);
+    }
+
+    /**
+     * Stops prefetching and releases frames that were prefetched but not requested
+     */
+    @Override
+    public void close() {
+        dao.setFrameRequestListener(position, null);
+        dao.clearPrefetch(position);
+    }
+}
@@ -0,0 +1,510 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import static bacmman.utils.VarIntUtils.readVarInt;
+import static bacmman.utils.VarIntUtils.writeVarInt;
+
+/**
+ * Set of index paths (see {@link SegmentedObjectUtils#getIndexTree(SegmentedObject)}), used by {@link Selection} to store the elements of one position.
+ * Paths are grouped by prefix (indices of the parent objects), and the last indices of each group are stored in a {@link Group}: membership tests are constant-time or logarithmic and set operations are performed word-wise.
+ * Not thread-safe.
+ * @author Jean Ollion
+ */
+public class IndexPathSet {
+    final Map<Prefix, Group> groups;
+    int size;
+
+    public IndexPathSet() {
+        groups = new HashMap<>();
+    }
+
+    private IndexPathSet(int groupCount) {
+        groups = new HashMap<>(Math.max(16, groupCount * 4 / 3 + 1));
+    }
+
+    /**
+     * Indices of the parent objects, with cached hash
+     */
+    static final class Prefix implements Comparable<Prefix> {
+        final int[] indices;
+        final int hash;
+        Prefix(int[] path, int length) {
+            this.indices = Arrays.copyOf(path, length);
+            this.hash = Arrays.hashCode(indices);
+        }
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Prefix && ((Prefix)o).hash==hash && Arrays.equals(((Prefix)o).indices, indices);
+        }
+        @Override
+        public int compareTo(Prefix o) {
+            int n = Math.min(indices.length, o.indices.length);
+            for (int i = 0; i<n; ++i) if (indices[i]!=o.indices[i]) return Integer.compare(indices[i], o.indices[i]);
+            return Integer.compare(indices.length, o.indices.length);
+        }
+    }
+
+    /**
+     * Last indices of the paths of a group. Sparse groups (few indices compared to the largest index, e.g. one object among many) are stored as a sorted array of indices,
+     * other groups as a {@link BitSet}: the memory used by a group is proportional to its number of indices rather than to its largest index.
+     * The representation is changed when a modification makes the other one significantly smaller.
+     */
+    public static final class Group {
+        int[] ids; // sorted, first count values are used. null if dense
+        BitSet bits; // null if sparse
+        int count;
+
+        Group() {
+            ids = new int[2];
+        }
+
+        Group(BitSet bits) {
+            setBits(bits);
+        }
+
+        /**
+         * @param count number of indices
+         * @param maxIdx largest index
+         * @return whether a bitset takes less memory than twice an array of indices
+         */
+        static boolean dense(int count, int maxIdx) {
+            return (maxIdx >> 6) + 1 <= count; // 8 bytes per word vs 4 bytes per index
+        }
+
+        public boolean isDense() {
+            return bits!=null;
+        }
+
+        public boolean get(int idx) {
+            if (idx<0) return false;
+            if (bits!=null) return bits.get(idx);
+            return Arrays.binarySearch(ids, 0, count, idx)>=0;
+        }
+
+        public int cardinality() {
+            return count;
+        }
+
+        public boolean isEmpty() {
+            return count==0;
+        }
+
+        int max() {
+            if (count==0) return -1;
+            return bits!=null ? bits.length()-1 : ids[count-1];
+        }
+
+        boolean set(int idx) {
+            if (bits!=null) {
+                if (bits.get(idx)) return false;
+                bits.set(idx);
+                ++count;
+                if (!dense(count * 2, max())) toSparse(); // hysteresis: avoids switching at each modification
+                return true;
+            }
+            int i = Arrays.binarySearch(ids, 0, count, idx);
+            if (i>=0) return false;
+            i = -i-1;
+            if (count==ids.length) ids = Arrays.copyOf(ids, Math.max(2, count + (count >> 1)));
+            System.arraycopy(ids, i, ids, i+1, count-i);
+            ids[i] = idx;
+            ++count;
+            if (dense(count, max())) toDense();
+            return true;
+        }
+
+        boolean clear(int idx) {
+            if (bits!=null) {
+                if (!bits.get(idx)) return false;
+                bits.clear(idx);
+                --count;
+                if (!dense(count * 2, max())) toSparse();
+                return true;
+            }
+            int i = Arrays.binarySearch(ids, 0, count, idx);
+            if (i<0) return false;
+            System.arraycopy(ids, i+1, ids, i, count-i-1);
+            --count;
+            return true;
+        }
+
+        public void forEach(IntConsumer action) {
+            if (bits!=null) for (int i = bits.nextSetBit(0); i>=0; i = bits.nextSetBit(i+1)) action.accept(i);
+            else for (int i = 0; i<count; ++i) action.accept(ids[i]);
+        }
+
+        /**
+         * @return indices as a new bitset
+         */
+        public BitSet toBitSet() {
+            if (bits!=null) return (BitSet)bits.clone();
+            BitSet res = new BitSet(count==0 ? 0 : ids[count-1]+1);
+            for (int i = 0; i<count; ++i) res.set(ids[i]);
+            return res;
+        }
+
+        private void setBits(BitSet bits) {
+            this.count = bits.cardinality();
+            if (dense(count, bits.length()-1)) {
+                this.bits = bits;
+                this.ids = null;
+            } else {
+                this.bits = null;
+                this.ids = bits.stream().toArray();
+            }
+        }
+
+        private void toSparse() {
+            int[] res = new int[count];
+            int j = 0;
+            for (int i = bits.nextSetBit(0); i>=0; i = bits.nextSetBit(i+1)) res[j++] = i;
+            ids = res;
+            bits = null;
+        }
+
+        private void toDense() {
+            bits = toBitSet();
+            ids = null;
+        }
+
+        void or(Group other) {
+            BitSet b = toBitSet();
+            if (other.bits!=null) b.or(other.bits);
+            else for (int i = 0; i<other.count; ++i) b.set(other.ids[i]);
+            setBits(b);
+        }
+
+        void and(Group other) {
+            if (bits==null) { // filter the indices
+                int j = 0;
+                for (int i = 0; i<count; ++i) if (other.get(ids[i])) ids[j++] = ids[i];
+                count = j;
+                return;
+            }
+            BitSet b = bits;
+            b.and(other.bits!=null ? other.bits : other.toBitSet());
+            setBits(b);
+        }
+
+        void andNot(Group other) {
+            if (bits==null) {
+                int j = 0;
+                for (int i = 0; i<count; ++i) if (!other.get(ids[i])) ids[j++] = ids[i];
+                count = j;
+                return;
+            }
+            BitSet b = bits;
+            b.andNot(other.bits!=null ? other.bits : other.toBitSet());
+            setBits(b);
+        }
+
+        Group duplicate() {
+            Group res = new Group();
+            res.count = count;
+            if (bits!=null) {
+                res.bits = (BitSet)bits.clone();
+                res.ids = null;
+            } else res.ids = Arrays.copyOf(ids, Math.max(2, count));
+            return res;
+        }
+
+        /**
+         * @return approximate number of bytes used to store the indices
+         */
+        public long getMemoryFootprint() {
+            return bits!=null ? 16 + ((bits.size() >> 6) * 8 + 16) : 16 + ids.length * 4L;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Group)) return false;
+            Group g = (Group)o;
+            if (g.count!=count) return false;
+            if (bits==null && g.bits==null) {
+                for (int i = 0; i<count; ++i) if (ids[i]!=g.ids[i]) return false;
+                return true;
+            }
+            return toBitSet().equals(g.toBitSet());
+        }
+
+        @Override
+        public int hashCode() {
+            int h = 1;
+            if (bits!=null) for (int i = bits.nextSetBit(0); i>=0; i = bits.nextSetBit(i+1)) h = 31 * h + i;
+            else for (int i = 0; i<count; ++i) h = 31 * h + ids[i];
+            return h;
+        }
+    }
+
+    private static Prefix prefix(int[] path) {
+        if (path.length==0) throw new IllegalArgumentException("Empty index path");
+        if (path[path.length-1]<0) throw new IllegalArgumentException("Negative index: "+Arrays.toString(path));
+        return new Prefix(path, path.length-1);
+    }
+
+    public boolean add(int[] path) {
+        Prefix p = prefix(path);
+        Group group = groups.get(p);
+        if (group==null) {
+            group = new Group();
+            groups.put(p, group);
+        }
+        if (!group.set(path[path.length-1])) return false;
+        ++size;
+        return true;
+    }
+
+    public boolean add(String path) {
+        return add(Selection.parseIndices(path));
+    }
+
+    public boolean remove(int[] path) {
+        Prefix p = prefix(path);
+        Group group = groups.get(p);
+        if (group==null || !group.clear(path[path.length-1])) return false;
+        if (group.isEmpty()) groups.remove(p);
+        --size;
+        return true;
+    }
+
+    public boolean remove(String path) {
+        return remove(Selection.parseIndices(path));
+    }
+
+    public boolean contains(int[] path) {
+        if (path.length==0 || path[path.length-1]<0) return false;
+        Group group = groups.get(new Prefix(path, path.length-1));
+        return group!=null && group.get(path[path.length-1]);
+    }
+
+    public boolean contains(String path) {
+        return contains(Selection.parseIndices(path));
+    }
+
+    /**
+     * Removes all paths that have {@param parentPath} as prefix and one more index
+     * @param parentPath index path of a parent object
+     * @return number of removed paths
+     */
+    public int removeChildren(int[] parentPath) {
+        Group group = groups.remove(new Prefix(parentPath, parentPath.length));
+        if (group==null) return 0;
+        size -= group.cardinality();
+        return group.cardinality();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size==0;
+    }
+
+    public void clear() {
+        groups.clear();
+        size = 0;
+    }
+
+    /**
+     * @return approximate number of bytes used by this set
+     */
+    public long getMemoryFootprint() {
+        long res = 48;
+        for (Map.Entry<Prefix, Group> e : groups.entrySet()) res += 32 + 40 + e.getKey().indices.length * 4L + e.getValue().getMemoryFootprint(); // map entry + prefix + group
+        return res;
+    }
+
+    public IndexPathSet duplicate() {
+        IndexPathSet res = new IndexPathSet(groups.size());
+        groups.forEach((p, g) -> res.groups.put(p, g.duplicate()));
+        res.size = size;
+        return res;
+    }
+
+    /**
+     * Union
+     * @param other
+     * @return this set
+     */
+    public IndexPathSet addAll(IndexPathSet other) {
+        for (Map.Entry<Prefix, Group> e : other.groups.entrySet()) {
+            Group group = groups.get(e.getKey());
+            if (group==null) {
+                group = e.getValue().duplicate();
+                groups.put(e.getKey(), group);
+                size += group.cardinality();
+            } else {
+                size -= group.cardinality();
+                group.or(e.getValue());
+                size += group.cardinality();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Intersection
+     * @param other
+     * @return this set
+     */
+    public IndexPathSet retainAll(IndexPathSet other) {
+        Iterator<Map.Entry<Prefix, Group>> it = groups.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Prefix, Group> e = it.next();
+            Group group = e.getValue();
+            size -= group.cardinality();
+            Group o = other.groups.get(e.getKey());
+            if (o!=null) group.and(o);
+            if (o==null || group.isEmpty()) it.remove();
+            else size += group.cardinality();
+        }
+        return this;
+    }
+
+    /**
+     * Difference
+     * @param other
+     * @return this set
+     */
+    public IndexPathSet removeAll(IndexPathSet other) {
+        for (Map.Entry<Prefix, Group> e : other.groups.entrySet()) {
+            Group group = groups.get(e.getKey());
+            if (group==null) continue;
+            size -= group.cardinality();
+            group.andNot(e.getValue());
+            if (group.isEmpty()) groups.remove(e.getKey());
+            else size += group.cardinality();
+        }
+        return this;
+    }
+
+    /**
+     * Calls {@param action} for each group of paths with the same prefix, in lexicographic order of prefix
+     * @param action receives the prefix (indices of the parent object) and the last indices of the paths of the group. Arguments must not be modified
+     */
+    public void forEachGroup(BiConsumer<int[], Group> action) {
+        List<Prefix> prefixes = new ArrayList<>(groups.keySet());
+        Collections.sort(prefixes);
+        for (Prefix p : prefixes) action.accept(p.indices, groups.get(p));
+    }
+
+    /**
+     * Calls {@param action} for each path, in lexicographic order
+     * @param action the array passed to action is re-used between calls
+     */
+    public void forEach(Consumer<int[]> action) {
+        forEachGroup((prefix, group) -> {
+            int[] path = Arrays.copyOf(prefix, prefix.length+1);
+            group.forEach(i -> {
+                path[prefix.length] = i;
+                action.accept(path);
+            });
+        });
+    }
+
+    public List<String> toStringList() {
+        List<String> res = new ArrayList<>(size);
+        forEach(path -> res.add(Selection.indicesToString(path)));
+        return res;
+    }
+
+    /**
+     * Packed encoding: number of groups, then for each group: prefix length, prefix indices, then either the number of words and words of the bitset (dense groups),
+     * or minus the number of indices followed by the differences between consecutive indices (sparse groups). Integers are variable-length encoded
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException {
+        writeVarInt(out, groups.size());
+        IOException[] ex = new IOException[1];
+        forEachGroup((prefix, group) -> {
+            if (ex[0]!=null) return;
+            try {
+                writeVarInt(out, prefix.length);
+                for (int i : prefix) writeVarInt(out, i);
+                if (group.isDense()) {
+                    long[] words = group.bits.toLongArray();
+                    writeVarInt(out, words.length);
+                    for (long w : words) out.writeLong(w);
+                } else {
+                    writeVarInt(out, -group.count);
+                    int last = 0;
+                    for (int i = 0; i<group.count; ++i) {
+                        writeVarInt(out, group.ids[i] - last);
+                        last = group.ids[i];
+                    }
+                }
+            } catch (IOException e) {
+                ex[0] = e;
+            }
+        });
+        if (ex[0]!=null) throw ex[0];
+    }
+
+    public static IndexPathSet read(DataInput in) throws IOException {
+        int n = readVarInt(in);
+        IndexPathSet res = new IndexPathSet(n);
+        for (int g = 0; g<n; ++g) {
+            int[] prefix = new int[readVarInt(in)];
+            for (int i = 0; i<prefix.length; ++i) prefix[i] = readVarInt(in);
+            int length = readVarInt(in);
+            Group group;
+            if (length>=0) {
+                long[] words = new long[length];
+                for (int i = 0; i<words.length; ++i) words[i] = in.readLong();
+                group = new Group(BitSet.valueOf(words));
+            } else {
+                group = new Group();
+                int last = 0;
+                for (int i = 0; i<-length; ++i) {
+                    last += readVarInt(in);
+                    group.set(last);
+                }
+            }
+            if (group.isEmpty()) continue;
+            res.groups.put(new Prefix(prefix, prefix.length), group);
+            res.size += group.cardinality();
+        }
+        return res;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof IndexPathSet && ((IndexPathSet)o).size==size && ((IndexPathSet)o).groups.equals(groups);
+    }
+
+    @Override
+    public int hashCode() {
+        return groups.hashCode();
+    }
+}
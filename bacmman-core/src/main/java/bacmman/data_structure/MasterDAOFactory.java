@@ -20,6 +20,7 @@ package bacmman.data_structure;
 
 
 import bacmman.data_structure.dao.BasicMasterDAO;
+import bacmman.data_structure.dao.BinaryMasterDAO;
 import bacmman.data_structure.dao.DBMapMasterDAO;
 import bacmman.data_structure.dao.MasterDAO;
 
@@ -28,7 +29,7 @@ import bacmman.data_structure.dao.MasterDAO;
  * @author Jean Ollion
  */
 public class MasterDAOFactory {
-    public enum DAOType {DBMap, Basic};
+    public enum DAOType {DBMap, Binary, Basic};
     private static DAOType currentType = DAOType.DBMap;
 
     public static DAOType getCurrentType() {
@@ -43,6 +44,8 @@ public class MasterDAOFactory {
         switch (daoType) {
             case DBMap:
                 return new DBMapMasterDAO(dir, dbName, new SegmentedObjectAccessor());
+            case Binary:
+                return new BinaryMasterDAO(dir, dbName, new SegmentedObjectAccessor());
             case Basic:
                 return new BasicMasterDAO(new SegmentedObjectAccessor());
             default:
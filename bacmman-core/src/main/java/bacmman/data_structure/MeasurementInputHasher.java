@@ -0,0 +1,119 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure;
+
+import bacmman.configuration.parameters.Parameter;
+import bacmman.data_structure.dao.ImageDAO;
+import bacmman.data_structure.dao.ObjectDAO;
+import bacmman.plugins.Measurement;
+import bacmman.utils.HashUtils;
+import bacmman.utils.JSONUtils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Computes the hash of the inputs of measurements called on an object, stored with {@link Measurements#setInputHash(long)} to detect objects that need to be measured again.
+ * The input hash of an object combines the content hashes ({@link SegmentedObject#getContentHash()}) of the object, of its parent, of its siblings (so that measurements involving neighbors are updated), of the contained objects of the classes in which measurements are stored, the versions of the pre-processed images of its frame, and the parameters of the measurements (see {@link #getParameterHash(List)}).
+ * Content hashes and image versions are cached, so an instance should only be used during one measurement session.
+ * @author Jean Ollion
+ */
+class MeasurementInputHasher {
+    final Map<SegmentedObject, Long> contentHashes = new ConcurrentHashMap<>();
+    final Map<Integer, Long> imageVersions = new ConcurrentHashMap<>();
+    final ImageDAO imageDAO;
+    final String position;
+    final int channelCount;
+
+    MeasurementInputHasher(ObjectDAO dao) {
+        this.imageDAO = dao.getExperiment().getImageDAO();
+        this.position = dao.getPositionName();
+        this.channelCount = dao.getExperiment().getChannelImageCount(true);
+    }
+
+    long getContentHash(SegmentedObject o) {
+        Long h = contentHashes.get(o);
+        if (h==null) { // not computeIfAbsent: computation may load children of other objects
+            h = o.getContentHash();
+            contentHashes.put(o, h);
+        }
+        return h;
+    }
+
+    long getImageVersion(int frame) {
+        Long v = imageVersions.get(frame);
+        if (v==null) {
+            long h = 0;
+            for (int c = 0; c<channelCount; ++c) h = HashUtils.combine(h, imageDAO.getPreProcessedImageVersion(c, frame, position));
+            v = h;
+            imageVersions.put(frame, v);
+        }
+        return v;
+    }
+
+    /**
+     *
+     * @param measurements measurements called on a same object class
+     * @return order-independent hash of the classes and parameters of {@param measurements}
+     */
+    static long getParameterHash(List<Measurement> measurements) {
+        long h = 0;
+        for (Measurement m : measurements) {
+            long mh = HashUtils.hash(m.getClass().getName());
+            Parameter[] parameters = m.getParameters();
+            if (parameters!=null) mh = HashUtils.combine(mh, HashUtils.hash(JSONUtils.toJSONArrayMap(Arrays.asList(parameters)).toJSONString()));
+            h += mh;
+        }
+        return h;
+    }
+
+    /**
+     *
+     * @param o object on which measurements are called
+     * @param storeClasses object classes in which measurement values are stored
+     * @param parameterHash hash of the measurements called on {@param o} (see {@link #getParameterHash(List)})
+     * @return hash of the inputs of the measurements on {@param o}
+     */
+    long getInputHash(SegmentedObject o, int[] storeClasses, long parameterHash) {
+        long h = HashUtils.combine(parameterHash, getContentHash(o));
+        h = HashUtils.combine(h, getImageVersion(o.getFrame()));
+        if (!o.isRoot()) {
+            SegmentedObject parent = o.getParent();
+            h = HashUtils.combine(h, getContentHash(parent));
+            List<SegmentedObject> siblings = parent.getDirectChildren(o.getStructureIdx());
+            if (siblings!=null) h = HashUtils.combine(h, sum(siblings.stream()));
+        }
+        for (int oc : storeClasses) {
+            if (oc<0 || oc==o.getStructureIdx()) continue;
+            Stream<SegmentedObject> children = o.getChildren(oc);
+            if (children!=null) h = HashUtils.combine(h, sum(children));
+        }
+        return h;
+    }
+
+    /**
+     * @return order-independent combination of content hashes
+     */
+    private long sum(Stream<SegmentedObject> objects) {
+        return objects.mapToLong(this::getContentHash).sum();
+    }
+}
@@ -44,6 +44,7 @@ public class Measurements implements Comparable<Measurements>, JSONSerializable{
     boolean isTrackHead;
     protected int[] indices;
     protected Map<String, Object> values;
+    protected long inputHash; // 0 = unknown
     public boolean modifications=false;
     final public static String NA_STRING = "NA";
     public Measurements(SegmentedObject o) {
@@ -69,6 +70,7 @@ public class Measurements implements Comparable<Measurements>, JSONSerializable{
         calibratedTimePoint = ((Number)json.get("timePointCal")).doubleValue();
         isTrackHead = (Boolean)json.get("isTh");
         indices = JSONUtils.fromIntArray((JSONArray)json.get("indices"));
+        if (json.containsKey("inputHash")) inputHash = ((Number)json.get("inputHash")).longValue();
         //values = JSONUtils.toValueMap((Map)json.get("values"));
         values = (Map<String, Object>)json.get("values"); // arrays are lazily converted
         values.entrySet().removeIf(e->{
@@ -87,10 +89,36 @@ public class Measurements implements Comparable<Measurements>, JSONSerializable{
         obj1.put("timePointCal", calibratedTimePoint);
         obj1.put("isTh", isTrackHead);
         obj1.put("indices", JSONUtils.toJSONArray(indices));
+        if (inputHash!=0) obj1.put("inputHash", inputHash);
         obj1.put("values", JSONUtils.toJSONObject(values));
         return obj1;
     }
-    
+
+    /**
+     *
+     * @return copy of this object. List and array values are copied so that later modifications of this object do not modify the copy
+     */
+    public Measurements duplicate() {
+        Measurements res = new Measurements(positionName, frame, structureIdx, indices==null ? null : indices.clone());
+        res.id = id;
+        res.calibratedTimePoint = calibratedTimePoint;
+        res.isTrackHead = isTrackHead;
+        res.inputHash = inputHash;
+        res.values = new ConcurrentHashMap<>();
+        if (values!=null) for (Map.Entry<String, Object> e : values.entrySet()) {
+            Object v = e.getValue();
+            if (v instanceof List) v = new ArrayList<>((List)v);
+            else if (v.getClass().isArray()) { // values converted by getValue
+                Object copy = java.lang.reflect.Array.newInstance(v.getClass().getComponentType(), java.lang.reflect.Array.getLength(v));
+                System.arraycopy(v, 0, copy, 0, java.lang.reflect.Array.getLength(v));
+                v = copy;
+            }
+            res.values.put(e.getKey(), v);
+        }
+        res.modifications = modifications;
+        return res;
+    }
+
     public boolean modified() {return modifications;}
     
     public String getId() {
@@ -116,6 +144,20 @@ public class Measurements implements Comparable<Measurements>, JSONSerializable{
     public int[] getIndices() {
         return indices;
     }
+
+    /**
+     *
+     * @return hash of the inputs of the measurements at the time they were performed (see {@link SegmentedObject#getContentHash()}), 0 if unknown
+     */
+    public long getInputHash() {
+        return inputHash;
+    }
+
+    public void setInputHash(long inputHash) {
+        if (this.inputHash==inputHash) return;
+        this.inputHash = inputHash;
+        modifications=true;
+    }
         
     static String[] getBaseFields() {
         return new String[]{"time_point", "structure_idx", "indices", "is_track_head", "calibrated_time_point"};
@@ -197,6 +239,19 @@ public class Measurements implements Comparable<Measurements>, JSONSerializable{
         modifications=true;
     }
     
+    /**
+     * Sets several values at once. Null and NaN values remove the corresponding key, as in {@link #setValue(String, Number)}
+     * @param values values mapped by key. Supported types are the ones of the other setters
+     */
+    public void setValues(Map<String, Object> values) {
+        if (values!=null) for (Map.Entry<String, Object> e : values.entrySet()) {
+            Object v = e.getValue();
+            if (v == null || (v instanceof Number && isNA((Number)v))) this.values.remove(e.getKey());
+            else this.values.put(e.getKey(), v);
+        }
+        modifications=true;
+    }
+    
     public void setArrayValue(String key, double[] value) {
         if (value == null) values.remove(key);
         else this.values.put(key, Arrays.asList(value));
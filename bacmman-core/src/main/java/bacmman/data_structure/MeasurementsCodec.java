@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static bacmman.utils.VarIntUtils.readVarInt;
+import static bacmman.utils.VarIntUtils.writeVarInt;
+
+/**
+ * Compact binary encoding of {@link Measurements}, used by the measurement store instead of JSON strings.
+ * Measurement names are replaced by integer codes of a {@link KeyDictionary} shared by all objects of an object class, numbers are stored as primitive values.
+ * Layout: version, frame, object class, calibrated time point, track head flag, input hash (since version 2), indices, number of values, then for each value: key code, type tag, payload. The id is not encoded as it is the key of the entry.
+ * Strings are encoded in UTF-8 prefixed by their length in bytes (since version 3, before they were limited to 64KB).
+ * Decoded values have the same types as values of measurements parsed from JSON: integral numbers are {@link Long}, floating point numbers are {@link Double}, numeric arrays are double[] or list of {@link Long}, other arrays are lists
+ * @author Jean Ollion
+ */
+public class MeasurementsCodec {
+    public static final byte VERSION = 3;
+    static final byte DOUBLE = 1, LONG = 2, BOOLEAN = 3, STRING = 4, DOUBLE_ARRAY = 5, LONG_ARRAY = 6, BOOLEAN_ARRAY = 7, STRING_ARRAY = 8;
+
+    /**
+     * Bijection between measurement names and integer codes. Codes are attributed in order of first use.
+     */
+    public static class KeyDictionary {
+        final Map<String, Integer> codes = new ConcurrentHashMap<>();
+        final Map<Integer, String> keys = new ConcurrentHashMap<>();
+        final List<Integer> added = new ArrayList<>();
+
+        public KeyDictionary() {}
+
+        /**
+         * @param keys measurement names indexed by their code
+         */
+        public KeyDictionary(Map<Integer, String> keys) {
+            for (Map.Entry<Integer, String> e : keys.entrySet()) {
+                this.keys.put(e.getKey(), e.getValue());
+                this.codes.put(e.getValue(), e.getKey());
+            }
+        }
+
+        public int getCode(String key) {
+            Integer code = codes.get(key);
+            if (code!=null) return code;
+            synchronized (added) {
+                code = codes.get(key);
+                if (code!=null) return code;
+                code = keys.size();
+                keys.put(code, key);
+                codes.put(key, code);
+                added.add(code);
+                return code;
+            }
+        }
+
+        public String getKey(int code) {
+            String key = keys.get(code);
+            if (key==null) throw new IllegalArgumentException("Unknown measurement key code: "+code);
+            return key;
+        }
+
+        public int size() {
+            return keys.size();
+        }
+
+        /**
+         * @return entries created since last call, so that they can be persisted
+         */
+        public Map<Integer, String> pollAddedEntries() {
+            synchronized (added) {
+                if (added.isEmpty()) return Collections.emptyMap();
+                Map<Integer, String> res = new HashMap<>(added.size());
+                for (int c : added) res.put(c, keys.get(c));
+                added.clear();
+                return res;
+            }
+        }
+    }
+
+    public static byte[] encode(Measurements m, KeyDictionary dict) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64 + 12 * m.values.size());
+        DataOutputStream out = new DataOutputStream(bos);
+        try {
+            out.writeByte(VERSION);
+            writeVarInt(out, m.frame);
+            writeVarInt(out, m.structureIdx);
+            out.writeDouble(m.calibratedTimePoint);
+            out.writeBoolean(m.isTrackHead);
+            out.writeLong(m.inputHash);
+            int[] indices = m.indices==null ? new int[0] : m.indices;
+            writeVarInt(out, indices.length);
+            for (int i : indices) writeVarInt(out, i);
+            List<Map.Entry<String, Object>> entries = new ArrayList<>(m.values.entrySet());
+            writeVarInt(out, entries.size());
+            for (Map.Entry<String, Object> e : entries) {
+                writeVarInt(out, dict.getCode(e.getKey()));
+                writeValue(out, e.getValue());
+            }
+            out.flush();
+        } catch (IOException e) { // should not happen with a byte array stream
+            throw new UncheckedIOException(e);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Reads only the frame of an encoded entry
+     * @param data entry encoded by {@link #encode(Measurements, KeyDictionary)}
+     * @return frame of the entry
+     */
+    public static int decodeFrame(byte[] data) {
+        try {
+            return readVarInt(data, 1); // first byte is the version
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Corrupted measurement entry", e);
+        }
+    }
+
+    public static Measurements decode(byte[] data, String id, String positionName, KeyDictionary dict) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            byte version = in.readByte();
+            if (version<1 || version>VERSION) throw new IllegalArgumentException("Unsupported measurement encoding version: "+version);
+            int frame = readVarInt(in);
+            int structureIdx = readVarInt(in);
+            double calibratedTimePoint = in.readDouble();
+            boolean isTrackHead = in.readBoolean();
+            long inputHash = version>=2 ? in.readLong() : 0;
+            int[] indices = new int[readVarInt(in)];
+            for (int i = 0; i<indices.length; ++i) indices[i] = readVarInt(in);
+            Measurements res = new Measurements(positionName, frame, structureIdx, indices);
+            res.id = id;
+            res.calibratedTimePoint = calibratedTimePoint;
+            res.isTrackHead = isTrackHead;
+            res.inputHash = inputHash;
+            int n = readVarInt(in);
+            res.values = new ConcurrentHashMap<>(Math.max(16, n * 2));
+            for (int i = 0; i<n; ++i) {
+                String key = dict.getKey(readVarInt(in));
+                res.values.put(key, readValue(in, version));
+            }
+            return res;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupted measurement entry: "+id, e);
+        }
+    }
+
+    /**
+     * Encodes a map of values that are not measurements (e.g. attributes of objects) with the value types of measurements. Keys are written as strings and null values are skipped
+     * @param values
+     * @return encoded values
+     */
+    public static byte[] encodeValues(Map<String, Object> values) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(16 + 16 * values.size());
+        DataOutputStream out = new DataOutputStream(bos);
+        try {
+            out.writeByte(VERSION);
+            List<Map.Entry<String, Object>> entries = new ArrayList<>(values.size());
+            for (Map.Entry<String, Object> e : values.entrySet()) if (e.getValue()!=null) entries.add(e);
+            writeVarInt(out, entries.size());
+            for (Map.Entry<String, Object> e : entries) {
+                writeString(out, e.getKey());
+                writeValue(out, e.getValue());
+            }
+            out.flush();
+        } catch (IOException e) { // should not happen with a byte array stream
+            throw new UncheckedIOException(e);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     *
+     * @param data values encoded by {@link #encodeValues(Map)}
+     * @return decoded values, with the same types as values parsed from JSON: numeric arrays are lists
+     */
+    public static Map<String, Object> decodeValues(byte[] data) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            byte version = in.readByte();
+            if (version<1 || version>VERSION) throw new IllegalArgumentException("Unsupported value encoding version: "+version);
+            int n = readVarInt(in);
+            Map<String, Object> res = new HashMap<>(Math.max(4, n * 2));
+            for (int i = 0; i<n; ++i) {
+                String key = readString(in, version);
+                Object value = readValue(in, version);
+                if (value instanceof double[]) {
+                    double[] a = (double[])value;
+                    List<Double> list = new ArrayList<>(a.length);
+                    for (double d : a) list.add(d);
+                    value = list;
+                }
+                res.put(key, value);
+            }
+            return res;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupted encoded values", e);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object v) throws IOException {
+        if (v instanceof Double || v instanceof Float) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Number)v).doubleValue());
+        } else if (v instanceof Number) {
+            out.writeByte(LONG);
+            out.writeLong(((Number)v).longValue());
+        } else if (v instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean)v);
+        } else if (v instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String)v);
+        } else if (v instanceof double[]) {
+            double[] a = (double[])v;
+            out.writeByte(DOUBLE_ARRAY);
+            writeVarInt(out, a.length);
+            for (double d : a) out.writeDouble(d);
+        } else if (v instanceof float[]) {
+            float[] a = (float[])v;
+            out.writeByte(DOUBLE_ARRAY);
+            writeVarInt(out, a.length);
+            for (float d : a) out.writeDouble(d);
+        } else if (v instanceof long[]) {
+            long[] a = (long[])v;
+            out.writeByte(LONG_ARRAY);
+            writeVarInt(out, a.length);
+            for (long d : a) out.writeLong(d);
+        } else if (v instanceof int[]) {
+            int[] a = (int[])v;
+            out.writeByte(LONG_ARRAY);
+            writeVarInt(out, a.length);
+            for (int d : a) out.writeLong(d);
+        } else if (v instanceof boolean[]) {
+            boolean[] a = (boolean[])v;
+            out.writeByte(BOOLEAN_ARRAY);
+            writeVarInt(out, a.length);
+            for (boolean d : a) out.writeBoolean(d);
+        } else if (v instanceof String[]) {
+            String[] a = (String[])v;
+            out.writeByte(STRING_ARRAY);
+            writeVarInt(out, a.length);
+            for (String d : a) writeString(out, String.valueOf(d));
+        } else if (v instanceof List) {
+            List l = (List)v;
+            if (l.size()==1 && l.get(0)!=null && l.get(0).getClass().isArray()) { // Arrays.asList on a primitive array
+                writeValue(out, l.get(0));
+                return;
+            }
+            byte type = getListType(l);
+            out.writeByte(type);
+            writeVarInt(out, l.size());
+            for (Object o : l) {
+                switch (type) {
+                    case DOUBLE_ARRAY:
+                        out.writeDouble(o==null ? Double.NaN : ((Number)o).doubleValue());
+                        break;
+                    case LONG_ARRAY:
+                        out.writeLong(((Number)o).longValue());
+                        break;
+                    case BOOLEAN_ARRAY:
+                        out.writeBoolean((Boolean)o);
+                        break;
+                    default:
+                        writeString(out, String.valueOf(o));
+                }
+            }
+        } else throw new IllegalArgumentException("Unsupported measurement value type: "+(v==null ? "null" : v.getClass()));
+    }
+
+    private static byte getListType(List l) {
+        boolean allIntegral = true, allNumber = true, allBoolean = true;
+        for (Object o : l) {
+            if (o instanceof Number) {
+                allBoolean = false;
+                if (o instanceof Double || o instanceof Float) allIntegral = false;
+            } else if (o instanceof Boolean) {
+                allNumber = false;
+                allIntegral = false;
+            } else if (o==null) { // null in a numeric list is converted to NaN, as in JSON conversion
+                allBoolean = false;
+                allIntegral = false;
+            } else return STRING_ARRAY;
+        }
+        if (l.isEmpty() || (allNumber && !allIntegral)) return DOUBLE_ARRAY;
+        if (allIntegral) return LONG_ARRAY;
+        if (allBoolean) return BOOLEAN_ARRAY;
+        return STRING_ARRAY;
+    }
+
+    private static Object readValue(DataInputStream in, byte version) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case DOUBLE:
+                return in.readDouble();
+            case LONG:
+                return in.readLong();
+            case BOOLEAN:
+                return in.readBoolean();
+            case STRING:
+                return readString(in, version);
+            case DOUBLE_ARRAY: {
+                double[] res = new double[readVarInt(in)];
+                for (int i = 0; i<res.length; ++i) res[i] = in.readDouble();
+                return res;
+            }
+            case LONG_ARRAY: { // list, lazily converted by Measurements.getValue as when parsed from JSON
+                int n = readVarInt(in);
+                List<Long> res = new ArrayList<>(n);
+                for (int i = 0; i<n; ++i) res.add(in.readLong());
+                return res;
+            }
+            case BOOLEAN_ARRAY: {
+                int n = readVarInt(in);
+                List<Boolean> res = new ArrayList<>(n);
+                for (int i = 0; i<n; ++i) res.add(in.readBoolean());
+                return res;
+            }
+            case STRING_ARRAY: {
+                int n = readVarInt(in);
+                List<String> res = new ArrayList<>(n);
+                for (int i = 0; i<n; ++i) res.add(readString(in, version));
+                return res;
+            }
+            default:
+                throw new IOException("Unknown measurement value type: "+type);
+        }
+    }
+
+    private static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in, byte version) throws IOException {
+        if (version<3) return in.readUTF();
+        int length = readVarInt(in);
+        if (length<0) throw new IOException("Negative string length");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
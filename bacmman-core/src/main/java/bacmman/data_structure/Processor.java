@@ -33,12 +33,15 @@ import bacmman.image.Histogram;
 import bacmman.image.HistogramFactory;
 import bacmman.image.Image;
 import bacmman.image.io.KymographFactory;
+import bacmman.measurement.MeasurementBatch;
 import bacmman.measurement.MeasurementKey;
+import bacmman.plugins.FrameIndependentMeasurement;
 import bacmman.plugins.HistogramScaler;
 import bacmman.plugins.plugins.processing_pipeline.SegmentOnly;
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import bacmman.plugins.ConfigurableTransformation;
 import org.slf4j.Logger;
@@ -53,10 +56,12 @@ import bacmman.utils.ThreadRunner;
 import bacmman.utils.Utils;
 
 import java.util.function.Function;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import bacmman.plugins.ProcessingPipeline;
 
 import java.util.function.BiPredicate;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import static bacmman.plugins.ProcessingPipeline.parentTrackMode;
@@ -209,6 +214,21 @@ public class Processor {
     }
     
     public static void executeProcessingScheme(List<SegmentedObject> parentTrack, final int structureIdx, final boolean trackOnly, final boolean deleteChildren, final Selection selection, ProgressCallback pcb) {
+        executeProcessingScheme(parentTrack, structureIdx, trackOnly, deleteChildren, selection, pcb, false, false);
+    }
+
+    /**
+     *
+     * @param parentTrack
+     * @param structureIdx
+     * @param trackOnly
+     * @param deleteChildren
+     * @param selection
+     * @param pcb
+     * @param streamCommit if true, children of each parent track are stored as soon as the parent track is processed, and released from memory. Not supported when {@param selection} is not null
+     * @param resume if true (implies {@param streamCommit}): parent tracks committed by a previous streamed run (recorded by the DAO, see {@link ObjectDAO#getProcessedParentTracks(int)}) are not processed again
+     */
+    public static void executeProcessingScheme(List<SegmentedObject> parentTrack, final int structureIdx, final boolean trackOnly, final boolean deleteChildren, final Selection selection, ProgressCallback pcb, boolean streamCommit, boolean resume) {
         if (parentTrack.isEmpty()) return;
         final ObjectDAO dao = parentTrack.get(0).getDAO();
         Experiment xp = parentTrack.get(0).getExperiment();
@@ -264,14 +284,34 @@ public class Processor {
             allParentTracks.entrySet().removeIf(e->e.getValue().isEmpty());
             logger.debug("after remove selection: parent tracks: #{} mode: {}", allParentTracks.size(), mode);
         }
+        // parent tracks whose children have been committed by a streamed run are recorded by the DAO
+        final boolean stream = (streamCommit || resume) && selection==null;
+        if (resume && selection==null) {
+            Set<String> processed = dao.getProcessedParentTracks(structureIdx);
+            List<List<SegmentedObject>> committed = allParentTracks.entrySet().stream().filter(e -> processed.contains(e.getKey().getId())).map(Entry::getValue).collect(Collectors.toList());
+            allParentTracks.entrySet().removeIf(e -> processed.contains(e.getKey().getId()));
+            committed.forEach(pt -> dao.clearCache(pt, structureIdx));
+            if (pcb!=null && !committed.isEmpty()) pcb.log("Resume: #"+committed.size()+" parent tracks already processed for structure: "+structureIdx);
+            logger.debug("resume: skipping #{} committed parent tracks, remaining: #{}", committed.size(), allParentTracks.size());
+        } else if (selection==null) dao.clearProcessedParentTracks(structureIdx); // processed parent tracks of a previous run are obsolete
         if (pcb !=null) pcb.setSubtaskNumber(allParentTracks.size());
-        logger.debug("ex ps: structure: {}, allParentTracks: {}", structureIdx, allParentTracks.size());
+        logger.debug("ex ps: structure: {}, allParentTracks: {}, stream commit: {}", structureIdx, allParentTracks.size(), stream);
 
         ensureScalerConfiguration(dao, structureIdx);
         MultipleException me=null;
         try { // execute sequentially, store what has been processed, and throw exception in the end
             ThreadRunner.executeAndThrowErrors(allParentTracks.values().stream(), pt -> {
-                execute(xp.getStructure(structureIdx).getProcessingScheme(), structureIdx, pt, trackOnly, deleteChildren, dao);
+                try {
+                    execute(xp.getStructure(structureIdx).getProcessingScheme(), structureIdx, pt, trackOnly, deleteChildren || (resume && stream), dao); // when resuming, objects of a track that was not flagged may have been partially stored
+                } finally {
+                    if (stream) { // store and release. as in non-stream mode, objects are stored even if processing failed
+                        List<SegmentedObject> children = getChildren(pt, structureIdx);
+                        dao.store(children);
+                        dao.clearCache(pt, structureIdx);
+                        logger.debug("parent track: {} committed #{} objects of structure: {}", pt.get(0), children.size(), structureIdx);
+                    }
+                }
+                if (stream) dao.setProcessedParentTracks(structureIdx, Collections.singletonList(pt.get(0).getId()), true); // only once children are stored, and only if processing succeeded
                 if (pcb !=null) pcb.incrementSubTask();
             });
         } catch (MultipleException e) {
@@ -281,14 +321,11 @@ public class Processor {
         }
         
         // store in DAO
-        List<SegmentedObject> children = new ArrayList<>();
-        parentTrack.stream().flatMap(p->{
-            Stream<SegmentedObject> s = p.getChildren(structureIdx);
-            if (s==null) return Stream.empty();
-            else return s;
-        }).forEachOrdered(children::add);
-        dao.store(children);
-        logger.debug("total objects: {}, dao type: {}", children.size(), dao.getClass().getSimpleName());
+        if (!stream) {
+            List<SegmentedObject> children = getChildren(parentTrack, structureIdx);
+            dao.store(children);
+            logger.debug("total objects: {}, dao type: {}", children.size(), dao.getClass().getSimpleName());
+        }
         
         // create error selection
         /*
@@ -310,6 +347,15 @@ public class Processor {
         */
         if (me!=null) throw me;
     }
+    private static List<SegmentedObject> getChildren(List<SegmentedObject> parentTrack, int structureIdx) {
+        List<SegmentedObject> children = new ArrayList<>();
+        parentTrack.stream().flatMap(p->{
+            Stream<SegmentedObject> s = p.getChildren(structureIdx);
+            if (s==null) return Stream.empty();
+            else return s;
+        }).forEachOrdered(children::add);
+        return children;
+    }
     public static void ensureScalerConfiguration(ObjectDAO dao, int objectClassIdx) {
         dao.getExperiment().getStructure(objectClassIdx).ensureScalerConfiguration(dao.getPositionName());
         HistogramScaler scaler = dao.getExperiment().getStructure(objectClassIdx).getScalerForPosition(dao.getPositionName());
@@ -366,6 +412,14 @@ public class Processor {
     private static void execute(ProcessingPipeline ps, int structureIdx, List<SegmentedObject> parentTrack, boolean trackOnly, boolean deleteChildren, ObjectDAO dao) {
         if (!trackOnly && deleteChildren) dao.deleteChildren(parentTrack, structureIdx);
         if (ps==null) return;
+        FramePrefetcher prefetcher = FramePrefetcher.create(parentTrack, structureIdx); // reads next frames in background while current frames are processed
+        try {
+            execute(ps, structureIdx, parentTrack, trackOnly);
+        } finally {
+            if (prefetcher!=null) prefetcher.close();
+        }
+    }
+    private static void execute(ProcessingPipeline ps, int structureIdx, List<SegmentedObject> parentTrack, boolean trackOnly) {
         if (trackOnly) ps.trackOnly(structureIdx, parentTrack, new SegmentedObjectFactory(structureIdx), new TrackLinkEditor(structureIdx));
         else {
             try {
@@ -390,7 +444,13 @@ public class Processor {
     }
     
     // measurement-related methods
-    public enum MEASUREMENT_MODE {ERASE_ALL, OVERWRITE, ONLY_NEW}
+    /**
+     * ERASE_ALL: all measurements are deleted and computed again
+     * OVERWRITE: all measurements are computed again
+     * ONLY_NEW: measurements are computed only if at least one of their values is missing
+     * INCREMENTAL: measurements are computed only on objects (or tracks) whose inputs changed since the previous measurement session (see {@link Measurements#getInputHash()}), or if at least one of their values is missing
+     */
+    public enum MEASUREMENT_MODE {ERASE_ALL, OVERWRITE, ONLY_NEW, INCREMENTAL}
     
     public static void performMeasurements(MasterDAO db, MEASUREMENT_MODE mode, Selection selection, ProgressCallback pcb) {
         Experiment xp = db.getExperiment();
@@ -404,6 +464,66 @@ public class Processor {
         }
     }
     
+    /**
+     * Performs {@link FrameIndependentMeasurement}s: tracks are set up in parallel, then all (measurement, frame) pairs are processed in parallel in the common pool, as the other measurements, so that all threads are used even when there are fewer tracks than threads.
+     * Values are written once per object and per measurement through a {@link MeasurementBatch}
+     * @param measurements pairs of measurement and track head
+     * @param tracks tracks mapped by track head
+     * @param pcb
+     * @throws MultipleException
+     */
+    static void performFrameIndependentMeasurements(List<Pair<Measurement, SegmentedObject>> measurements, Map<SegmentedObject, List<SegmentedObject>> tracks, ProgressCallback pcb) throws MultipleException {
+        MultipleException errors = new MultipleException();
+        int n = measurements.size();
+        Object[] contexts = new Object[n];
+        boolean[] setUp = new boolean[n];
+        try {
+            ThreadRunner.executeAndThrowErrors(IntStream.range(0, n).parallel().boxed(), i -> {
+                Pair<Measurement, SegmentedObject> p = measurements.get(i);
+                contexts[i] = ((FrameIndependentMeasurement)p.key).setUpTrack(tracks.get(p.value));
+                setUp[i] = true;
+            });
+        } catch (MultipleException me) {
+            errors.addExceptions(me.getExceptions());
+        }
+        AtomicInteger[] remainingFrames = new AtomicInteger[n];
+        List<Pair<Integer, SegmentedObject>> tasks = new ArrayList<>();
+        for (int i = 0; i<n; ++i) {
+            if (!setUp[i]) {
+                if (pcb!=null) pcb.incrementSubTask();
+                continue;
+            }
+            List<SegmentedObject> track = tracks.get(measurements.get(i).value);
+            remainingFrames[i] = new AtomicInteger(track.size());
+            for (SegmentedObject o : track) tasks.add(new Pair<>(i, o));
+        }
+        try {
+            ThreadRunner.executeAndThrowErrors(tasks.parallelStream(), t -> {
+                try {
+                    MeasurementBatch batch = new MeasurementBatch();
+                    ((FrameIndependentMeasurement)measurements.get(t.key).key).performMeasurementOnFrame(t.value, contexts[t.key], batch);
+                    batch.flush();
+                } finally {
+                    if (remainingFrames[t.key].decrementAndGet()==0 && pcb!=null) pcb.incrementSubTask();
+                }
+            });
+        } catch (MultipleException me) {
+            errors.addExceptions(me.getExceptions());
+        }
+        if (!errors.isEmpty()) throw errors;
+    }
+
+    /**
+     * Selection of objects to measure in INCREMENTAL mode
+     * @param inputHashes current input hashes of call objects
+     * @param parentTracks tracks of call objects by track head
+     * @return predicate true when the input hash of the call object (or of an object of its track for measurements called on track heads) differs from the one recorded at the previous measurement session
+     */
+    static BiPredicate<SegmentedObject, Measurement> inputChanged(Map<SegmentedObject, Long> inputHashes, Map<SegmentedObject, List<SegmentedObject>> parentTracks) {
+        Predicate<SegmentedObject> changed = o -> inputHashes.get(o)!=o.getMeasurements().getInputHash();
+        return (callObject, m) -> m.callOnlyOnTrackHeads() ? parentTracks.get(callObject).stream().anyMatch(changed) : changed.test(callObject);
+    }
+
     public static void performMeasurements(final ObjectDAO dao, MEASUREMENT_MODE mode, Selection selection, ProgressCallback pcb) {
         long t0 = System.currentTimeMillis();
         List<SegmentedObject> roots = dao.getRoots();
@@ -412,19 +532,22 @@ public class Processor {
         if (roots.isEmpty()) throw new RuntimeException("no root");
         Map<SegmentedObject, List<SegmentedObject>> rootTrack = new HashMap<>(1); rootTrack.put(roots.get(0), roots);
         boolean containsObjects=false;
-        BiPredicate<SegmentedObject, Measurement> measurementMissing = (SegmentedObject callObject, Measurement m) -> {
-            return mode!=MEASUREMENT_MODE.ONLY_NEW || m.getMeasurementKeys().stream().anyMatch(k -> callObject.getChildren(k.getStoreStructureIdx()).anyMatch(o -> !o.getMeasurements().getKeys().contains(k.getKey())));
+        BiPredicate<SegmentedObject, Measurement> keyMissing = (SegmentedObject callObject, Measurement m) -> {
+            return m.getMeasurementKeys().stream().anyMatch(k -> callObject.getChildren(k.getStoreStructureIdx()).anyMatch(o -> !o.getMeasurements().getKeys().contains(k.getKey())));
         };
         if (mode!=MEASUREMENT_MODE.ERASE_ALL) { // retrieve measurements for all objects
             Set<Integer> targetStructures = Utils.flattenMap(measurements).stream()
                     .flatMap(m->m.getMeasurementKeys().stream().map(MeasurementKey::getStoreStructureIdx))
                     .collect(Collectors.toSet());
+            if (mode==MEASUREMENT_MODE.INCREMENTAL) targetStructures.addAll(measurements.keySet()); // input hashes are stored in measurements of call objects
             dao.retrieveMeasurements(targetStructures.stream().mapToInt(i->i).toArray());
         } else {
             dao.deleteAllMeasurements();
             // TODO if selection not null -> erase only corresponding measurements!
         }
         MultipleException globE = new MultipleException();
+        MeasurementInputHasher hasher = mode==MEASUREMENT_MODE.ONLY_NEW ? null : new MeasurementInputHasher(dao); // in ONLY_NEW mode measurements are not updated so input hashes are not recorded
+        Set<SegmentedObject> hashModifiedObjects = new HashSet<>();
         Set<SegmentedObject> selectionTH = selection==null ? null : selection.getElements(dao.getPositionName()).stream().map(SegmentedObject::getTrackHead).collect(Collectors.toSet());
         for(Entry<Integer, List<Measurement>> e : measurements.entrySet()) { // measurements by call structure idx
             Map<SegmentedObject, List<SegmentedObject>> allParentTracks;
@@ -446,6 +569,24 @@ public class Processor {
                 }
             }
             if (pcb!=null) pcb.log("Executing #"+e.getValue().size()+" measurement"+(e.getValue().size()>1?"s":"")+" on Structure: "+e.getKey()+" (#"+allParentTracks.size()+" tracks): "+Utils.toStringList(e.getValue(), m->m.getClass().getSimpleName()));
+            Map<SegmentedObject, Long> inputHashes;
+            if (hasher!=null) {
+                int[] storeClasses = getOutputStructures(e.getValue()).stream().mapToInt(i->i).toArray();
+                long parameterHash = MeasurementInputHasher.getParameterHash(e.getValue());
+                inputHashes = allParentTracks.values().parallelStream().flatMap(List::stream).collect(Collectors.toConcurrentMap(o->o, o->hasher.getInputHash(o, storeClasses, parameterHash)));
+            } else inputHashes = null;
+            final BiPredicate<SegmentedObject, Measurement> measurementMissing;
+            switch (mode) {
+                case ONLY_NEW:
+                    measurementMissing = keyMissing;
+                    break;
+                case INCREMENTAL:
+                    measurementMissing = inputChanged(inputHashes, allParentTracks).or(keyMissing);
+                    break;
+                default:
+                    measurementMissing = (callObject, m) -> true;
+            }
+            MultipleException classE = new MultipleException();
             logger.debug("Executing: #{} measurements from parent: {} (#{} parentTracks) : {}", e.getValue().size(), e.getKey(), allParentTracks.size(), Utils.toStringList(e.getValue(), m->m.getClass().getSimpleName()));
             // measurement are run separately depending on their characteristics to optimize parallelle processing
             // start with non parallel measurements on tracks -> give 1 CPU to the measurement and perform track by track
@@ -495,7 +636,18 @@ public class Processor {
                                 oc.forEach(idx -> track.forEach(o -> o.getChildren(idx).forEach(SegmentedObject::getMeasurements)));
                             }
                         }); // retrieve all measurement objects to avoid thread idle at measurement creation
-                pcb.log("Executing: #"+nonParallelTrackMeasurements.size()+" non-multithreaded track measurements");
+                // frame-independent measurements: frames of all tracks are distributed among all threads
+                List<Pair<Measurement, SegmentedObject>> frameIndependentTrackMeasurements = nonParallelTrackMeasurements.stream().filter(p -> p.key instanceof FrameIndependentMeasurement).collect(Collectors.toList());
+                if (!frameIndependentTrackMeasurements.isEmpty()) {
+                    nonParallelTrackMeasurements.removeAll(frameIndependentTrackMeasurements);
+                    if (pcb!=null) pcb.log("Executing: #"+frameIndependentTrackMeasurements.size()+" frame-independent track measurements");
+                    try {
+                        performFrameIndependentMeasurements(frameIndependentTrackMeasurements, allParentTracks, pcb);
+                    } catch (MultipleException me) {
+                        classE.addExceptions(me.getExceptions());
+                    }
+                }
+                if (pcb!=null) pcb.log("Executing: #"+nonParallelTrackMeasurements.size()+" non-multithreaded track measurements");
                 try {
                     ThreadRunner.executeAndThrowErrors(nonParallelTrackMeasurements.parallelStream(), p -> {
                         //pcb.log("performing: "+p.key+"@"+p.value);
@@ -503,7 +655,7 @@ public class Processor {
                         if (pcb != null) pcb.incrementSubTask();
                     });
                 } catch (MultipleException me) {
-                    globE.addExceptions(me.getExceptions());
+                    classE.addExceptions(me.getExceptions());
                 } finally {
                     //if (pcb!=null && !actionPool.isEmpty()) pcb.incrementProgress();
                 }
@@ -523,7 +675,7 @@ public class Processor {
                         if (pcb != null) pcb.incrementSubTask();
                     });
                 } catch (MultipleException me) {
-                    globE.addExceptions(me.getExceptions());
+                    classE.addExceptions(me.getExceptions());
                 } finally {
                     //if (pcb!=null && parallelMeasCount>0) pcb.incrementProgress();
                 }
@@ -538,15 +690,24 @@ public class Processor {
                     //callObjectStream.sequential().filter(o->measurementMissing.test(o, m)).forEach(o->m.performMeasurement(o));
                     ThreadRunner.executeAndThrowErrors(callObjectStream.filter(o->measurementMissing.test(o, m)), o->m.performMeasurement(o));
                 } catch(MultipleException me) {
-                    globE.addExceptions(me.getExceptions());
+                    classE.addExceptions(me.getExceptions());
                 } catch (Throwable t) {
-                    globE.addExceptions(new Pair(dao.getPositionName()+"/objectClassIdx:"+e.getKey()+"/measurement"+m.getClass().getSimpleName(), t));
+                    classE.addExceptions(new Pair(dao.getPositionName()+"/objectClassIdx:"+e.getKey()+"/measurement"+m.getClass().getSimpleName(), t));
                 } finally {
                     if (pcb!=null) pcb.incrementSubTask();
                 }
             });
             //f (pcb!=null && !measObj.isEmpty()) pcb.incrementProgress();
             if (!containsObjects && allObCount>0) containsObjects = e.getValue().stream().filter(m->!m.callOnlyOnTrackHeads()).findAny().orElse(null)!=null;
+            if (inputHashes!=null && classE.isEmpty()) { // record inputs only if all measurements were performed
+                inputHashes.forEach((o, h) -> {
+                    if (o.getMeasurements().getInputHash()!=h) {
+                        o.getMeasurements().setInputHash(h);
+                        hashModifiedObjects.add(o);
+                    }
+                });
+            }
+            globE.addExceptions(classE.getExceptions());
             if (pcb!=null) pcb.incrementProgress();
         }
         long t1 = System.currentTimeMillis();
@@ -558,6 +719,7 @@ public class Processor {
                 }
             }
         }
+        allModifiedObjects.addAll(hashModifiedObjects);
         logger.debug("measurements on field: {}: computation time: {}, #modified objects: {}", dao.getPositionName(), t1-t0, allModifiedObjects.size());
         if (pcb!=null) pcb.log("Measurements performed, saving "+allModifiedObjects.size()+" objects...");
         long t2 = System.currentTimeMillis();
@@ -566,7 +728,7 @@ public class Processor {
         logger.debug("upsert time: {}", t3-t2);
         if (pcb!=null) pcb.incrementProgress();
         if (!globE.isEmpty()) throw globE;
-        if (containsObjects && allModifiedObjects.isEmpty()) throw new RuntimeException("No Measurement preformed");
+        if (containsObjects && allModifiedObjects.isEmpty() && mode!=MEASUREMENT_MODE.INCREMENTAL) throw new RuntimeException("No Measurement preformed"); // in incremental mode, no modification means all measurements are up-to-date
     }
     
     
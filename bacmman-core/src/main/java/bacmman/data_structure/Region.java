@@ -26,6 +26,7 @@ import static bacmman.data_structure.region_container.RegionContainer.MAX_VOX_2D
 import bacmman.data_structure.region_container.RegionContainerBlankMask;
 import bacmman.data_structure.region_container.RegionContainerIjRoi;
 import bacmman.data_structure.region_container.RegionContainerVoxels;
+import bacmman.image.BitMask;
 import bacmman.image.BlankMask;
 import bacmman.image.BoundingBox;
 import bacmman.image.BoundingBox.LoopFunction;
@@ -44,6 +45,7 @@ import bacmman.image.SimpleBoundingBox;
 import bacmman.image.SimpleImageProperties;
 import bacmman.image.SimpleOffset;
 import bacmman.image.TypeConverter;
+import bacmman.utils.HashUtils;
 
 import java.util.*;
 
@@ -367,7 +369,8 @@ public class Region {
     protected void createVoxels() {
         //logger.debug("create voxels: mask offset: {}", mask.getBoundingBox());
         HashSet<Voxel> voxels_=new HashSet<>();
-        ImageMask.loopWithOffset(mask, (x, y, z)->voxels_.add(new Voxel(x, y, z)));
+        if (mask instanceof BitMask) ((BitMask)mask).loop((x, y, z)->voxels_.add(new Voxel(x, y, z)), true);
+        else ImageMask.loopWithOffset(mask, (x, y, z)->voxels_.add(new Voxel(x, y, z)));
         voxels=voxels_;
     }
     
@@ -424,7 +427,22 @@ public class Region {
     public void loop(LoopFunction fun) {
         if (voxelsCreated()) {
             for (Voxel v : getVoxels()) fun.loop(v.x, v.y, v.z);
-        } else ImageMask.loopWithOffset(getMask(), fun);
+        } else if (getMask() instanceof BitMask) ((BitMask)getMask()).loop(fun, true);
+        else ImageMask.loopWithOffset(getMask(), fun);
+    }
+
+    /**
+     * Hash of the voxels of this region, independent of the voxel representation (set or mask) and of the order of the voxels
+     * @return hash that changes when a voxel is added or removed
+     */
+    public long getContentHash() {
+        long[] sumAndCount = new long[2];
+        loop((x, y, z) -> {
+            sumAndCount[0] += HashUtils.mix(((long)(x & 0x1FFFFF)<<42) | ((long)(y & 0x1FFFFF)<<21) | (z & 0x1FFFFF));
+            ++sumAndCount[1];
+        });
+        long h = HashUtils.combine(sumAndCount[0], sumAndCount[1]);
+        return HashUtils.combine(h, (absoluteLandmark ? 1 : 0) | (is2D ? 2 : 0));
     }
 
     public DoubleStream getValues(Image image) {
@@ -693,6 +711,13 @@ public class Region {
                 s1.retainAll(s2);
                 return Sets.newHashSet(Utils.transform(s1, v->((Voxel2D)v).toVoxel()));
             }
+        } else if (!voxelsCreated() && !other.voxelsCreated()) { // loop over both masks within intersection of bounds: only voxels of the intersection are created
+            ImageMask mask = getMask(), otherMask = other.getMask();
+            Set<Voxel> res = new HashSet<>();
+            BoundingBox.loop(BoundingBox.getIntersection(getBounds(), other.getBounds()), (x, y, z) -> {
+                if (mask.insideMaskWithOffset(x, y, z) && otherMask.insideMaskWithOffset(x, y, z)) res.add(new Voxel(x, y, z));
+            });
+            return res;
         } else return Sets.intersection(Sets.newHashSet(getVoxels()), Sets.newHashSet(other.getVoxels()));
     }
 
@@ -722,8 +747,19 @@ public class Region {
             if (!BoundingBox.intersect(thisBounds, otherBounds)) return 0;
         }
         
-        final ImageMask mask = is2D() && !other.is2D() ? new ImageMask2D(getMask()) : getMask();
-        final ImageMask otherMask = other.is2D() && !is2D() ? new ImageMask2D(other.getMask()) : other.getMask();
+        if (is2D()==other.is2D() && getMask() instanceof BitMask && other.getMask() instanceof BitMask) { // word-wise intersection of packed masks
+            BitMask m = (BitMask)getMask(), otherM = (BitMask)other.getMask();
+            if (!is2D() || (m.sizeZ()==1 && otherM.sizeZ()==1)) {
+                // translation of other mask relatively to this mask. z is not taken into account for 2D regions
+                int dX = otherBounds.xMin() - otherM.xMin() - thisBounds.xMin() + m.xMin();
+                int dY = otherBounds.yMin() - otherM.yMin() - thisBounds.yMin() + m.yMin();
+                int dZ = is2D() ? m.zMin() - otherM.zMin() : otherBounds.zMin() - otherM.zMin() - thisBounds.zMin() + m.zMin();
+                return m.intersectionCount(otherM, dX, dY, dZ);
+            }
+        }
+        // z is not taken into account for 2D regions, as in the word-wise intersection
+        final ImageMask mask = is2D() ? new ImageMask2D(getMask()) : getMask();
+        final ImageMask otherMask = other.is2D() ? new ImageMask2D(other.getMask()) : other.getMask();
         BoundingBox inter = inter2D ? (!is2D() ? getIntersection2D(thisBounds, otherBounds):getIntersection2D(otherBounds, thisBounds)) : BoundingBox.getIntersection(thisBounds, otherBounds);
         //logger.debug("off: {}, otherOff: {}, is2D: {} other Is2D: {}, inter: {}", thisBounds, otherBounds, is2D(), other.is2D(), inter);
         final int count[] = new int[1];
@@ -771,10 +807,16 @@ public class Region {
         return currentParent;
     }
     
-    public void merge(Region other) { //TODO do with masks only
-        /*if ((voxels==null||other.voxels==null)) {
-            if (other.getBounds().isIncluded(getBounds()))
-        }*/
+    public void merge(Region other) {
+        if (!voxelsCreated() && !other.voxelsCreated()) { // union of masks, no voxel is created
+            MutableBoundingBox union = new MutableBoundingBox(getBounds()).union(other.getBounds());
+            synchronized(this) {
+                this.mask = new BitMask(union, scaleXY, scaleZ).or(getMask()).or(other.getMask());
+                this.bounds = null;
+                regionModified = true;
+            }
+            return;
+        }
         this.getVoxels().addAll(other.getVoxels()); 
         //logger.debug("merge:  {} + {}, nb voxel avant: {}, nb voxels après: {}", this.getLabel(), other.getLabel(), nb,getVoxels().size() );
         this.mask=null; // reset mask
@@ -792,10 +834,8 @@ public class Region {
         Region ref = it.next();
         MutableBoundingBox bounds = new MutableBoundingBox(ref.getBounds());
         while (it.hasNext()) bounds.union(it.next().getBounds());
-        ImageByte mask = new ImageByte("", new SimpleImageProperties(bounds, ref.getScaleXY(), ref.getScaleZ()));
-        for (Region r : regions) {
-            ImageMask.loopWithOffset(r.getMask(), (x, y, z)-> mask.setPixelWithOffset(x, y, z, 1));
-        }
+        BitMask mask = new BitMask(bounds, ref.getScaleXY(), ref.getScaleZ());
+        for (Region r : regions) mask.or(r.getMask());
         return new Region(mask, 1, ref.is2D).setIsAbsoluteLandmark(ref.isAbsoluteLandMark());
     }
     
@@ -913,6 +953,7 @@ public class Region {
         int limit =  (!is2D() ? MAX_VOX_3D :MAX_VOX_2D);
         if (mask==null) return voxels.size()>limit;
         if (mask instanceof BlankMask) return true;
+        if (mask instanceof BitMask) return mask.count()>=limit;
         int count =0;
         for (int z = 0; z < mask.sizeZ(); ++z) {
             for (int xy = 0; xy < mask.sizeXY(); ++xy) {
@@ -83,15 +83,11 @@ public class RegionPopulation {
      * @param image          image with values >0 within segmented objects
      * @param isLabeledImage if true, the image is considered as a labeled
      *                       image, one value per object, if false, the image will be labeled (and
-     *                       thus modified) by Connected Components Labeling
+     *                       thus modified, unless the number of labels exceeds its maximal value) by Connected Components Labeling
      */
     public RegionPopulation(ImageInteger image, boolean isLabeledImage) {
         this.properties = image.getProperties();
-        labelImage = image;
-        if (!isLabeledImage) {
-            objects = ImageLabeller.labelImageList(image);
-            relabel(false); // in order to have consistent labels between image & object list
-        }
+        labelImage = isLabeledImage ? image : ImageLabeller.labelMap(image, image, false); // objects are created lazily from the label image
     }
 
     public RegionPopulation(ImageMask mask) {
@@ -25,6 +25,7 @@ import bacmman.data_structure.dao.BasicObjectDAO;
 import bacmman.data_structure.region_container.RegionContainer;
 import bacmman.image.*;
 
+import java.lang.ref.SoftReference;
 import java.util.*;
 import java.util.Map.Entry;
 
@@ -70,6 +71,10 @@ public class SegmentedObject implements Comparable<SegmentedObject>, JSONSeriali
     // object- and images-related attributes
     private transient Region region;
     protected RegionContainer regionContainer;
+    protected Long regionHash; // content hash of the region, computed when the region container is created or updated and stored with the object
+    private transient Object serializedRegionContainer; // lazy region decoding: region container is kept serialized (JSON string or binary encoding, see RegionContainer#toBinary()) until first access
+    private transient SoftReference<Region> releasedRegion;
+    private transient boolean lazyRegion; // region is decoded lazily and can be released
     protected transient SmallArray<Image> rawImagesC=new SmallArray<>();
     protected transient SmallArray<Image> preFilteredImagesS=new SmallArray<>();
     protected transient SmallArray<Image> trackImagesC=new SmallArray<>();
@@ -82,6 +87,17 @@ public class SegmentedObject implements Comparable<SegmentedObject>, JSONSeriali
         this.initFromJSONEntry(json);
     }
 
+    /**
+     * Constructor for stored objects whose properties are not serialized as JSON (see {@link SegmentedObjectAccessor#createFromColumns})
+     */
+    SegmentedObject(String id, String parentId, int structureIdx, int idx, int timePoint) {
+        this.id = id;
+        this.parentId = parentId;
+        this.structureIdx = structureIdx;
+        this.idx = idx;
+        this.timePoint = timePoint;
+    }
+
     public SegmentedObject(int timePoint, int structureIdx, int idx, Region region, SegmentedObject parent) {
         this.id= Id.get().toHexString();
         this.timePoint = timePoint;
@@ -561,6 +577,22 @@ public class SegmentedObject implements Comparable<SegmentedObject>, JSONSeriali
         else if (next && Boolean.TRUE.equals(getAttribute(TRACK_ERROR_NEXT))) return true;
         else return false;
     }
+    /**
+     * Hash of the properties of this object that measurements depend on: region, index, track links and link errors.
+     * The hash of the region is stored with the object, so that the region is not decoded, unless it was modified since it was stored or the object was stored before the hash was recorded
+     * @return hash that changes when the object is modified
+     */
+    public long getContentHash() {
+        long h = HashUtils.combine(structureIdx, timePoint);
+        h = HashUtils.combine(h, idx);
+        h = HashUtils.combine(h, isTrackHead ? 1 : 0);
+        h = HashUtils.combine(h, HashUtils.hash(getTrackHeadId()));
+        h = HashUtils.combine(h, HashUtils.hash(previous!=null ? previous.id : previousId));
+        h = HashUtils.combine(h, HashUtils.hash(next!=null ? next.id : nextId));
+        h = HashUtils.combine(h, (hasTrackLinkError(true, false) ? 1 : 0) | (hasTrackLinkError(false, true) ? 2 : 0));
+        if (!isRoot()) h = HashUtils.combine(h, getRegionHash()); // region of root is the whole image
+        return h;
+    }
     /**
      * Whether this element is the first of the track it is contain in
      * @return
@@ -625,7 +657,7 @@ public class SegmentedObject implements Comparable<SegmentedObject>, JSONSeriali
         if (other.getRegion()==null) logger.debug("merge: {}+{}, other object==null", this, other);
         getRegion().merge(other.getRegion());
         flushImages();
-        regionContainer = null;
+        resetRegionContainer();
         // update links
         SegmentedObject prev = other.getPrevious();
         if (prev !=null && prev.getNext()!=null && prev.next==other) prev.setNext(this);
@@ -665,7 +697,7 @@ public class SegmentedObject implements Comparable<SegmentedObject>, JSONSeriali
         }
         // first object returned by splitter is updated to current structureObject
         this.region =pop.getRegions().get(0).setLabel(idx+1);
-        this.regionContainer = null;
+        resetRegionContainer();
         flushImages();
         // second object is added to parent and returned
         if (pop.getRegions().size()>2) pop.mergeWithConnected(pop.getRegions().subList(2, pop.getRegions().size()));
@@ -676,6 +708,90 @@ public class SegmentedObject implements Comparable<SegmentedObject>, JSONSeriali
         return res;
     }
     public boolean hasRegion() {return region !=null;}
+    /**
+     *
+     * @param serializedRegionContainer JSON string or binary encoding (see {@link RegionContainer#toBinary()}) of the region container
+     */
+    void setSerializedRegionContainer(Object serializedRegionContainer) {
+        synchronized(this) {
+            this.serializedRegionContainer = serializedRegionContainer;
+            this.lazyRegion = serializedRegionContainer!=null;
+        }
+    }
+    long getRegionHash() {
+        Long rh;
+        Region r;
+        synchronized(this) {
+            rh = regionHash;
+            r = region;
+        }
+        if (r!=null && r.regionModified) return r.getContentHash();
+        if (rh!=null) return rh;
+        rh = getRegion().getContentHash();
+        synchronized(this) {
+            if (region==null || !region.regionModified) regionHash = rh;
+        }
+        return rh;
+    }
+    private void resetRegionContainer() {
+        regionContainer = null;
+        regionHash = null;
+        serializedRegionContainer = null;
+        releasedRegion = null;
+        lazyRegion = false;
+    }
+
+    /**
+     * Decodes the serialized region container. The serialized form is then dropped
+     * @return true if the region container was decoded by this call
+     */
+    private boolean decodeRegionContainerIfNecessary() {
+        if (regionContainer==null && serializedRegionContainer!=null) {
+            synchronized(this) {
+                if (regionContainer==null && serializedRegionContainer!=null) {
+                    regionContainer = deserializeRegionContainer(serializedRegionContainer);
+                    serializedRegionContainer = null;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private RegionContainer deserializeRegionContainer(Object serialized) {
+        if (serialized instanceof byte[]) return RegionContainer.createFromBinary(this, (byte[])serialized);
+        else return RegionContainer.createFromJSON(this, JSONUtils.parse((String)serialized));
+    }
+
+    /**
+     *
+     * @return binary encoding of the up-to-date region container (see {@link RegionContainer#toBinary()}), or null if there is no region. A region container kept in binary form is not decoded
+     */
+    byte[] getEncodedRegionContainer() {
+        updateRegionContainer();
+        synchronized(this) {
+            if (regionContainer==null && serializedRegionContainer instanceof byte[]) return (byte[])serializedRegionContainer;
+        }
+        RegionContainer rc = getRegionContainer();
+        return rc==null ? null : rc.toBinary();
+    }
+
+    /**
+     * In lazy region decoding mode, releases the decoded region (it remains softly referenced) and region container if the region was not modified: only the serialized form of the region container is kept, and they will be decoded again at next access.
+     * @return true if region was released
+     */
+    boolean releaseDecodedRegion() {
+        synchronized(this) {
+            if (!lazyRegion || (region!=null && region.regionModified)) return false;
+            if (regionContainer!=null) {
+                serializedRegionContainer = regionContainer.toBinary();
+                regionContainer = null;
+            }
+            if (region!=null) releasedRegion = new SoftReference<>(region);
+            region = null;
+            return true;
+        }
+    }
     // object- and image-related methods
 
     /**
@@ -684,9 +800,16 @@ public class SegmentedObject implements Comparable<SegmentedObject>, JSONSeriali
      */
     public Region getRegion() {
         if (region ==null) {
-            if (regionContainer==null) return null;
+            if (regionContainer==null && serializedRegionContainer==null) return null;
+            boolean decoded;
+            Region res;
             synchronized(this) {
+                if (region==null && releasedRegion!=null) {
+                    region = releasedRegion.get();
+                    releasedRegion = null;
+                }
                 if (region ==null) {
+                    decodeRegionContainerIfNecessary();
                     region =regionContainer.getRegion().setIsAbsoluteLandmark(true);
                     //logger.debug("Region: {} attributes: {}", this, attributes);
                     if (attributes!=null) {
@@ -694,13 +817,20 @@ public class SegmentedObject implements Comparable<SegmentedObject>, JSONSeriali
                         if (!(region instanceof Spot) && attributes.containsKey("Center")) region.setCenter(new Point(JSONUtils.fromFloatArray((List)attributes.get("Center"))));
                     }
                 }
+                res = region;
+                decoded = lazyRegion;
             }
+            if (decoded) onRegionDecoded(); // outside synchronized block as it may release regions of other objects
+            return res;
         }
         return region;
     }
+    private void onRegionDecoded() {
+        if (dao!=null && dao.getMasterDAO()!=null) dao.getMasterDAO().getAccess().regionDecoded(this);
+    }
     void setRegion(Region o) {
         synchronized(this) {
-            regionContainer=null;
+            resetRegionContainer();
             region =o;
             region.label=idx+1;
             flushImages();
@@ -731,21 +861,40 @@ public class SegmentedObject implements Comparable<SegmentedObject>, JSONSeriali
     }
     public ImageMask getMask() {return getRegion().getMask();}
     public BoundingBox getBounds() {
-        if (region==null && regionContainer!=null) return regionContainer.getBounds();
+        if (region==null) {
+            boolean decoded;
+            RegionContainer rc;
+            synchronized(this) {
+                decoded = region==null && decodeRegionContainerIfNecessary();
+                rc = region==null ? regionContainer : null;
+            }
+            if (decoded) onRegionDecoded(); // decoded region container can be released
+            if (rc!=null) return rc.getBounds();
+        }
         return getRegion().getBounds();
     }
     protected void createRegionContainer() {
         this.regionContainer= region.createRegionContainer(this);
+        this.regionHash = region.getContentHash();
         region.regionModified=false;
     }
     boolean hasRegionContainer() {
-        return regionContainer!=null;
+        return regionContainer!=null || serializedRegionContainer!=null;
     }
     RegionContainer getRegionContainer() {
         updateRegionContainer();
-        return regionContainer;
+        boolean decoded;
+        RegionContainer res;
+        synchronized(this) {
+            decoded = decodeRegionContainerIfNecessary();
+            res = regionContainer;
+        }
+        if (decoded) onRegionDecoded();
+        return res;
     }
     void updateRegionContainer(){
+        if (regionContainer==null && serializedRegionContainer!=null && (region==null || !region.regionModified)) return; // serialized region container is up to date
+        decodeRegionContainerIfNecessary();
         if (regionContainer==null) {
             if (region!=null && region.regionModified) setRegionAttributesToAttributes();
             createRegionContainer();
@@ -753,6 +902,7 @@ public class SegmentedObject implements Comparable<SegmentedObject>, JSONSeriali
             if (region!=null && region.regionModified) {
                 setRegionAttributesToAttributes();
                 regionContainer.update();
+                regionHash = region.getContentHash();
                 region.regionModified=false;
             }
         }
@@ -1076,7 +1226,16 @@ public class SegmentedObject implements Comparable<SegmentedObject>, JSONSeriali
         if (trackHeadId!=null) obj1.put("thId", trackHeadId);
         obj1.put("isTh", isTrackHead);
         if (attributes!=null && !attributes.isEmpty()) obj1.put("attributes", JSONUtils.toJSONObject(attributes));
-        if (regionContainer!=null) obj1.put("object", regionContainer.toJSON());
+        RegionContainer rc;
+        Object serializedRc;
+        synchronized(this) {
+            rc = regionContainer;
+            serializedRc = serializedRegionContainer;
+        }
+        if (rc!=null) obj1.put("object", rc.toJSON());
+        else if (serializedRc instanceof String) obj1.put("object", JSONUtils.parse((String)serializedRc)); // region container is not decoded
+        else if (serializedRc!=null) obj1.put("object", deserializeRegionContainer(serializedRc).toJSON());
+        if (regionHash!=null && (rc!=null || serializedRc!=null)) obj1.put("regionHash", regionHash);
         return obj1;
     }
     @Override
@@ -1106,6 +1265,8 @@ public class SegmentedObject implements Comparable<SegmentedObject>, JSONSeriali
             Map objectJ = (Map)json.get("object");
             regionContainer = RegionContainer.createFromJSON(this, objectJ);
         }
+        Object rh = json.get("regionHash");
+        if (rh!=null) regionHash = ((Number)rh).longValue();
     }
 
 
@@ -7,22 +7,129 @@ import bacmman.image.BlankMask;
 import bacmman.image.Image;
 import bacmman.plugins.Measurement;
 import bacmman.utils.JSONUtils;
+import bacmman.utils.Pair;
 import org.json.simple.JSONObject;
 
-import java.util.Collection;
-import java.util.List;
+import java.util.*;
 
 public class SegmentedObjectAccessor {
+    boolean lazyRegionDecoding = false;
+    int decodedRegionCacheSize;
+    final LinkedHashMap<SegmentedObject, Boolean> decodedRegions = new LinkedHashMap<>(16, 0.75f, true);
     SegmentedObjectAccessor() {
 
     }
 
+    /**
+     * When lazy region decoding is enabled, the region of objects created from their serialized form is not decoded at creation but at first call to {@link SegmentedObject#getRegion()}.
+     * The most recently decoded regions that have not been modified are kept in a cache of bounded size. Regions evicted from this cache are only softly referenced and will be decoded again if they have been garbage-collected.
+     * Useful for workflows that only need frame, links or measurements.
+     * @param lazy whether lazy region decoding is enabled
+     * @param decodedRegionCacheSize maximal number of decoded regions kept in cache
+     */
+    public void setLazyRegionDecoding(boolean lazy, int decodedRegionCacheSize) {
+        this.lazyRegionDecoding = lazy;
+        this.decodedRegionCacheSize = decodedRegionCacheSize;
+        if (!lazy) clearDecodedRegions();
+    }
+
+    public boolean isLazyRegionDecoding() {
+        return lazyRegionDecoding;
+    }
+
+    public int getDecodedRegionCacheSize() {
+        return decodedRegionCacheSize;
+    }
+
+    /**
+     * Removes all objects from the decoded region cache
+     */
+    public void clearDecodedRegions() {
+        synchronized (decodedRegions) {
+            decodedRegions.clear();
+        }
+    }
+
+    void regionDecoded(SegmentedObject o) {
+        if (!lazyRegionDecoding) return;
+        List<SegmentedObject> evicted = null;
+        synchronized (decodedRegions) {
+            decodedRegions.put(o, true);
+            if (decodedRegions.size()>decodedRegionCacheSize) {
+                evicted = new ArrayList<>(decodedRegions.size() - decodedRegionCacheSize);
+                Iterator<SegmentedObject> it = decodedRegions.keySet().iterator();
+                while (decodedRegions.size()>decodedRegionCacheSize && it.hasNext()) {
+                    evicted.add(it.next());
+                    it.remove();
+                }
+            }
+        }
+        if (evicted!=null) evicted.forEach(SegmentedObject::releaseDecodedRegion); // outside synchronized block: releasing locks the object
+    }
+
     // constructor
 
     public SegmentedObject createFromJSON(String s) {
+        if (lazyRegionDecoding) {
+            Pair<String, String> jsonAndRegion = JSONUtils.extractEntry(s, "object");
+            return createFromJSONEntry(JSONUtils.parse(jsonAndRegion.key), jsonAndRegion.value);
+        }
         JSONObject jo = JSONUtils.parse(s);
         return new SegmentedObject(jo);
     }
+    public SegmentedObject createFromJSONEntry(Map json) {
+        return new SegmentedObject(json);
+    }
+
+    /**
+     *
+     * @param json JSON entry of the object, without the region container
+     * @param serializedRegionContainer serialized region container, decoded at first access to the region
+     * @return segmented object
+     */
+    public SegmentedObject createFromJSONEntry(Map json, String serializedRegionContainer) {
+        SegmentedObject res = new SegmentedObject(json);
+        if (serializedRegionContainer!=null) res.setSerializedRegionContainer(serializedRegionContainer);
+        return res;
+    }
+
+    /**
+     *
+     * @param json JSON entry of the object, without the region container
+     * @param encodedRegionContainer binary encoding of the region container (see {@link RegionContainer#toBinary()}). In lazy region decoding mode, it is decoded at first access to the region
+     * @return segmented object
+     */
+    public SegmentedObject createFromJSONEntry(Map json, byte[] encodedRegionContainer) {
+        SegmentedObject res = new SegmentedObject(json);
+        setEncodedRegionContainer(res, encodedRegionContainer);
+        return res;
+    }
+
+    /**
+     * Creates an object from properties stored as separate values, without building a JSON entry
+     * @param attributes decoded attributes, can be null
+     * @param regionHash content hash of the region, can be null
+     * @param encodedRegionContainer binary encoding of the region container (see {@link RegionContainer#toBinary()}), can be null. In lazy region decoding mode, it is decoded at first access to the region
+     * @return segmented object
+     */
+    public SegmentedObject createFromColumns(String id, String parentId, int structureIdx, int idx, int frame, String previousId, String nextId, String parentTrackHeadId, String trackHeadId, boolean isTrackHead, Map<String, Object> attributes, Long regionHash, byte[] encodedRegionContainer) {
+        SegmentedObject res = new SegmentedObject(id, parentId, structureIdx, idx, frame);
+        res.previousId = previousId;
+        res.nextId = nextId;
+        res.parentTrackHeadId = parentTrackHeadId;
+        res.trackHeadId = trackHeadId;
+        res.isTrackHead = isTrackHead;
+        res.attributes = attributes;
+        res.regionHash = regionHash;
+        setEncodedRegionContainer(res, encodedRegionContainer);
+        return res;
+    }
+
+    private void setEncodedRegionContainer(SegmentedObject o, byte[] encodedRegionContainer) {
+        if (encodedRegionContainer==null) return;
+        if (lazyRegionDecoding) o.setSerializedRegionContainer(encodedRegionContainer);
+        else o.regionContainer = RegionContainer.createFromBinary(o, encodedRegionContainer);
+    }
 
     public SegmentedObject duplicate(SegmentedObject o) {
         return o.duplicate();
@@ -46,6 +153,32 @@ public class SegmentedObjectAccessor {
         return o.trackHeadId;
     }
 
+    public String parentTrackHeadId(SegmentedObject o) {
+        return o.parentTrackHeadId;
+    }
+
+    /**
+     *
+     * @param o segmented object
+     * @return binary encoding of the up-to-date region container of {@param o} or null if it has no region
+     */
+    public byte[] encodeRegionContainer(SegmentedObject o) {
+        return o.getEncodedRegionContainer();
+    }
+
+    /**
+     *
+     * @param o segmented object
+     * @return content hash of the region of {@param o} or null if it has no region
+     */
+    public Long getRegionHash(SegmentedObject o) {
+        return o.hasRegionContainer() ? o.getRegionHash() : null;
+    }
+
+    public Map<String, Object> getAttributes(SegmentedObject o) {
+        return o.attributes;
+    }
+
     public ObjectDAO getDAO(SegmentedObject o) {
         return o.getDAO();
     }
@@ -22,6 +22,7 @@ import bacmman.data_structure.dao.ObjectDAO;
 import bacmman.data_structure.dao.MasterDAO;
 
 import java.awt.Color;
+import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -34,7 +35,6 @@ import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import org.eclipse.collections.impl.factory.Sets;
 import org.json.simple.JSONObject;
 import bacmman.utils.JSONSerializable;
 import bacmman.utils.JSONUtils;
@@ -67,7 +67,7 @@ public class Selection implements Comparable<Selection>, JSONSerializable {
 
     String name;
     int structureIdx;
-    Map<String, List<String>> elements; // stored as list for simplicity
+    Map<String, IndexPathSet> elements;
     String color="Green";
     // volatile state
     boolean displayingTracks=false;
@@ -78,7 +78,7 @@ public class Selection implements Comparable<Selection>, JSONSerializable {
 
     public Selection duplicate(String name) {
         Selection dup = new Selection(name, structureIdx, mDAO);
-        elements.forEach(dup::addElements);
+        elements.forEach((p, e) -> dup.elements.put(p, e.duplicate()));
         return dup;
     }
 
@@ -91,6 +91,7 @@ public class Selection implements Comparable<Selection>, JSONSerializable {
         addObjects = other.addObjects;
     }
     public final static String indexSeparator ="-";
+    static final byte ELEMENTS_ENCODING_VERSION = 2; // 2: sparse groups
     Map<String, Set<SegmentedObject>> retrievedElements= new HashMap<>();
     MasterDAO mDAO;
     
@@ -181,29 +182,99 @@ public class Selection implements Comparable<Selection>, JSONSerializable {
         return structureIdx;
     }
     public boolean contains(SegmentedObject o) {
-        if (elements.containsKey(o.getPositionName())) return elements.get(o.getPositionName()).contains(indicesString(o));
-        else return false;
+        IndexPathSet els = elements.get(o.getPositionName());
+        return els!=null && els.contains(SegmentedObjectUtils.getIndexTree(o));
+    }
+    public boolean contains(String position, int[] indices) {
+        IndexPathSet els = elements.get(position);
+        return els!=null && els.contains(indices);
     }
     public Set<String> getElementStrings(String position) {
-        if (elements.containsKey(position)) return new HashSet(this.elements.get(position));
+        if (elements.containsKey(position)) return new HashSet<>(this.elements.get(position).toStringList());
         else return Collections.EMPTY_SET;
     }
+
+    /**
+     *
+     * @param position
+     * @return index paths of the elements of {@param position}, or null if there are none. Modifications of the returned set are not propagated to the retrieved elements
+     */
+    public IndexPathSet getIndexPaths(String position) {
+        return elements.get(position);
+    }
     public boolean hasElementsAt(String position) {
         return elements.containsKey(position) && !elements.get(position).isEmpty();
     }
-    public void removeAll(String position, Collection<String> toRemove) {
-        if (elements.containsKey(position)) {
-            elements.get(position).removeAll(toRemove);
-            if (elements.get(position).isEmpty()) elements.remove(position);
+    public synchronized void removeAll(String position, Collection<String> toRemove) {
+        IndexPathSet els = elements.get(position);
+        if (els!=null) {
+            for (String idx : toRemove) els.remove(idx);
+            if (els.isEmpty()) elements.remove(position);
+            retrievedElements.remove(position);
         }
     }
     public Set<String> getElementStrings(Collection<String> positions) {
         Set<String> res = new HashSet<>();
-        for (String f : positions) if (elements.containsKey(f)) res.addAll(elements.get(f));
+        for (String f : positions) if (elements.containsKey(f)) res.addAll(elements.get(f).toStringList());
         return res;
     }
     public Set<String> getAllElementStrings() {
-        return Utils.flattenMapSet(elements);
+        Set<String> res = new HashSet<>();
+        for (IndexPathSet els : elements.values()) res.addAll(els.toStringList());
+        return res;
+    }
+
+    /**
+     * Union: adds all elements of {@param other} to this selection
+     * @param other selection of same object class
+     * @return this selection
+     */
+    public synchronized Selection addAll(Selection other) {
+        if (!checkObjectClass(other)) return this;
+        other.elements.forEach((p, e) -> {
+            IndexPathSet els = elements.get(p);
+            if (els==null) elements.put(p, e.duplicate());
+            else els.addAll(e);
+            retrievedElements.remove(p);
+        });
+        return this;
+    }
+
+    /**
+     * Intersection: keeps only elements also contained in {@param other}
+     * @param other selection of same object class
+     * @return this selection
+     */
+    public synchronized Selection retainAll(Selection other) {
+        if (!checkObjectClass(other)) return this;
+        for (String p : new ArrayList<>(elements.keySet())) {
+            IndexPathSet o = other.elements.get(p);
+            if (o==null) elements.remove(p);
+            else if (elements.get(p).retainAll(o).isEmpty()) elements.remove(p);
+            retrievedElements.remove(p);
+        }
+        return this;
+    }
+
+    /**
+     * Difference: removes all elements contained in {@param other}
+     * @param other selection of same object class
+     * @return this selection
+     */
+    public synchronized Selection removeAll(Selection other) {
+        if (!checkObjectClass(other)) return this;
+        other.elements.forEach((p, e) -> {
+            IndexPathSet els = elements.get(p);
+            if (els==null) return;
+            if (els.removeAll(e).isEmpty()) elements.remove(p);
+            retrievedElements.remove(p);
+        });
+        return this;
+    }
+
+    private boolean checkObjectClass(Selection other) {
+        if (structureIdx==-2) structureIdx = other.structureIdx;
+        return other.structureIdx==structureIdx;
     }
     
     public Set<SegmentedObject> getAllElements() {
@@ -232,78 +303,66 @@ public class Selection implements Comparable<Selection>, JSONSerializable {
         return res;
     }
         
-    protected Collection<String> get(String fieldName, boolean createIfNull) {
-        Object indiciesList = elements.get(fieldName);
-        if (indiciesList==null) {
-            if (createIfNull) {
-                synchronized(elements) {
-                    indiciesList = elements.get(fieldName);
-                    if (indiciesList==null) {
-                        indiciesList = new ArrayList<String>();
-                        elements.put(fieldName, (List)indiciesList);
-                    }
+    protected IndexPathSet get(String position, boolean createIfNull) {
+        IndexPathSet els = elements.get(position);
+        if (els==null && createIfNull) {
+            synchronized(elements) {
+                els = elements.get(position);
+                if (els==null) {
+                    els = new IndexPathSet();
+                    elements.put(position, els);
                 }
-            } else return null;
-        }
-        else if (indiciesList instanceof Set) { // retro-compatibility
-            indiciesList = new ArrayList<String>((Set)indiciesList);
-            elements.put(fieldName, (List)indiciesList);
-        } else if (indiciesList instanceof String) { // case of one single object stored by R
-            ArrayList<String> l = new ArrayList<String>();
-            l.add((String)indiciesList);
-            elements.put(fieldName, l);
-            return l;
+            }
         }
-        return (Collection<String>)indiciesList;
+        return els;
     }
+
+    /**
+     * Resolves elements group by group: each parent object is retrieved once and its children are filtered by the bitset of the group
+     * @param position
+     * @return elements of {@param position}
+     */
     protected synchronized Set<SegmentedObject> retrieveElements(String position) {
         if (position==null) throw new IllegalArgumentException("Position cannot be null");
-        Collection<String> indiciesList = get(position, false);
-        if (indiciesList==null) {
+        IndexPathSet indexPaths = get(position, false);
+        if (indexPaths==null) {
             SegmentedObject.logger.debug("position: {} absent from sel: {}", position, name);
             return Collections.EMPTY_SET;
         }
         ObjectDAO dao = mDAO.getDao(position);
         int[] pathToRoot = mDAO.getExperiment().experimentStructure.getPathToRoot(structureIdx);
-        Set<SegmentedObject> res = new HashSet<>(indiciesList.size());
+        Set<SegmentedObject> res = new HashSet<>(indexPaths.size());
         retrievedElements.put(position, res);
         List<SegmentedObject> roots = dao.getRoots();
         long t0 = System.currentTimeMillis();
-        List<int[]> notFound = SegmentedObject.logger.isWarnEnabled() ? new ArrayList<>() : null;
-        List<int[]> indices = new ArrayList<>(indiciesList.size());
-        
-        for (String s : indiciesList) {
-            int[] indicies = parseIndices(s);
-            if (indicies.length-1!=pathToRoot.length) {
-                SegmentedObject.logger.warn("Selection: Object: {} has wrong number of indicies (expected: {})", indicies, pathToRoot.length);
-                continue;
+        int[] notFound = new int[1];
+        indexPaths.forEachGroup((prefix, bits) -> {
+            if (prefix.length!=pathToRoot.length) {
+                SegmentedObject.logger.warn("Selection: {} objects with parent: {} have wrong number of indices (expected: {})", bits.cardinality(), prefix, pathToRoot.length+1);
+                return;
             }
-            SegmentedObject elem = getObject(indicies, pathToRoot, roots);
-            if (elem!=null) res.add(elem);
-            else if (notFound!=null) notFound.add(indicies); 
-            indices.add(indicies);
-        }
-        /*
-        Map<Integer, List<int[]>> iByFrame = indices.stream().collect(Collectors.groupingBy(i -> i[0]));
-        Map<StructureObject, List<int[]>> iByParent = new HashMap<>(iByFrame.size());
-        for (Entry<Integer, List<int[]>> e : iByFrame.entrySet()) {
-            if (roots==null || roots.size()<=e.getKey()) continue;
-            StructureObject root = roots.get(e.getKey());
-            iByParent.put(root, e.getValue());
-        }
-        for (int i = 1; i<pathToRoot.length; i++) iByParent = nextChildren(iByParent, pathToRoot, i);
-        int i = pathToRoot.length;
-        for (Entry<StructureObject, List<int[]>> e : iByParent.entrySet()) {
-            List<StructureObject> candidates = e.getKey().getChildren(pathToRoot[i-1]);
-            for (int[] idx : e.getValue()) {
-                StructureObject o = getChild(candidates, idx[i]);
-                if (o!=null) res.add(o);
-                else if (notFound!=null) notFound.add(idx);
+            Stream<SegmentedObject> candidates;
+            if (prefix.length==0) candidates = roots==null ? Stream.empty() : roots.stream().filter(r -> bits.get(r.getFrame()));
+            else {
+                SegmentedObject parent = getObject(prefix, pathToRoot, roots);
+                if (parent==null) {
+                    notFound[0] += bits.cardinality();
+                    return;
+                }
+                candidates = parent.getChildren(pathToRoot[prefix.length-1]);
+                if (candidates==null) {
+                    notFound[0] += bits.cardinality();
+                    return;
+                }
+                candidates = candidates.filter(o -> bits.get(o.getIdx()));
             }
-        }*/
+            int before = res.size();
+            candidates.forEach(res::add);
+            notFound[0] += bits.cardinality() - (res.size() - before);
+        });
         long t2 = System.currentTimeMillis();
         SegmentedObject.logger.debug("Selection: {}, position: {}, #{} elements retrieved in: {}", this.name, position, res.size(), t2-t0);
-        if (notFound!=null && !notFound.isEmpty()) SegmentedObject.logger.debug("Selection: {} objects not found: {}", getName(), Utils.toStringList(notFound, array -> Utils.toStringArray(array)));
+        if (notFound[0]>0) SegmentedObject.logger.debug("Selection: {} #{} objects not found", getName(), notFound[0]);
         return res;
     }
     private static Map<SegmentedObject, List<int[]>> nextChildren(Map<SegmentedObject, List<int[]>> iByParent, int[] pathToRoot, int idx) {
@@ -365,9 +424,9 @@ public class Selection implements Comparable<Selection>, JSONSerializable {
             elements.remove(fieldName);
             return;
         }
-        Collection<String> indiciesList = get(fieldName, true);
-        indiciesList.clear();
-        for (SegmentedObject o : objectList) indiciesList.add(indicesString(o));
+        IndexPathSet els = get(fieldName, true);
+        els.clear();
+        for (SegmentedObject o : objectList) els.add(SegmentedObjectUtils.getIndexTree(o));
     }
     
     public void addElement(SegmentedObject elementToAdd) {
@@ -377,18 +436,21 @@ public class Selection implements Comparable<Selection>, JSONSerializable {
             Set<SegmentedObject> list = getElements(elementToAdd.getPositionName());
             if (!list.contains(elementToAdd)) {
                 list.add(elementToAdd);
-                // update DB refs
-                Collection<String> els = get(elementToAdd.getPositionName(), true);
-                els.add(indicesString(elementToAdd));
-                if (false && els.size()!=list.size()) {
-                    SegmentedObject.logger.error("unconsitancy in selection: {}, {} vs: {}", this.toString(), list.size(), els.size());
-                }
+                get(elementToAdd.getPositionName(), true).add(SegmentedObjectUtils.getIndexTree(elementToAdd)); // update DB refs
             }
-        } else this.addElement(elementToAdd.getPositionName(), indicesString(elementToAdd));
+        } else get(elementToAdd.getPositionName(), true).add(SegmentedObjectUtils.getIndexTree(elementToAdd));
     }
     public void addElement(String positionName, String el) {
-        Collection<String> els = get(positionName, true);
-        if (!els.contains(el)) els.add(el);
+        get(positionName, true).add(el);
+    }
+
+    /**
+     *
+     * @param positionName
+     * @param indices index path of the element (see {@link SegmentedObjectUtils#getIndexTree(SegmentedObject)})
+     */
+    public synchronized void addElement(String positionName, int[] indices) {
+        if (get(positionName, true).add(indices)) retrievedElements.remove(positionName);
     }
     public synchronized Selection addElements(Collection<SegmentedObject> elementsToAdd) {
         if (elementsToAdd==null || elementsToAdd.isEmpty()) return this;
@@ -402,27 +464,29 @@ public class Selection implements Comparable<Selection>, JSONSerializable {
         } 
         Map<String, List<SegmentedObject>> elByPos = SegmentedObjectUtils.splitByPosition(elementsToAdd);
         for (String pos : elByPos.keySet()) {
-            if (this.retrievedElements.containsKey(pos)) for (SegmentedObject o : elementsToAdd) addElement(o);
-            addElements(pos, Utils.transform(elByPos.get(pos), Selection::indicesString));
+            Set<SegmentedObject> retrieved = retrievedElements.get(pos);
+            if (retrieved!=null) retrieved.addAll(elByPos.get(pos));
+            IndexPathSet els = get(pos, true);
+            for (SegmentedObject o : elByPos.get(pos)) els.add(SegmentedObjectUtils.getIndexTree(o));
         }
         return this;
     }
     
     public synchronized Selection addElements(String position, Collection<String> elementsToAdd) {
         if (elementsToAdd==null || elementsToAdd.isEmpty()) return this;
-        List<String> els = this.elements.get(position);
-        if (els==null) elements.put(position, new ArrayList<>(elementsToAdd));
-        else {
-            els.addAll(elementsToAdd);
-            Utils.removeDuplicates(els, false);
-        }
+        IndexPathSet els = get(position, true);
+        for (String el : elementsToAdd) els.add(el);
+        retrievedElements.remove(position);
         return this;
     }
     
     public synchronized Selection removeElements(String position, Collection<String> elementsToRemove) {
         if (elementsToRemove==null || elementsToRemove.isEmpty()) return this;
-        List<String> els = this.elements.get(position);
-        if (els!=null) els.removeAll(elementsToRemove);
+        IndexPathSet els = this.elements.get(position);
+        if (els!=null) {
+            for (String el : elementsToRemove) els.remove(el);
+            retrievedElements.remove(position);
+        }
         return this;
     }    
   
@@ -430,8 +494,8 @@ public class Selection implements Comparable<Selection>, JSONSerializable {
         Set<SegmentedObject> list = getElements(elementToRemove.getPositionName());
         if (list!=null) {
             list.remove(elementToRemove);
-            Collection<String> els = get(elementToRemove.getPositionName(), false);
-            if (els!=null) els.remove(indicesString(elementToRemove));
+            IndexPathSet els = get(elementToRemove.getPositionName(), false);
+            if (els!=null) els.remove(SegmentedObjectUtils.getIndexTree(elementToRemove));
         }
         return false;
     }
@@ -441,21 +505,17 @@ public class Selection implements Comparable<Selection>, JSONSerializable {
     }
     public synchronized void removeChildrenOf(List<SegmentedObject> parents) { // currently supports only direct children
         if (structureIdx==-2) return;
+        int parentSIdx = this.mDAO.getExperiment().getStructure(structureIdx).getParentStructure();
         Map<String, List<SegmentedObject>> parentsByPosition = SegmentedObjectUtils.splitByPosition(parents);
         for (String position : parentsByPosition.keySet()) {
-            Set<String> elements = getElementStrings(position);
-            Map<String, List<String>> parentToChildrenMap = elements.stream().collect(Collectors.groupingBy(s->Selection.getParent(s)));
-            int parentSIdx = this.mDAO.getExperiment().getStructure(structureIdx).getParentStructure();
-            List<SegmentedObject> posParents = parentsByPosition.get(position);
-            Map<Integer, List<SegmentedObject>> parentsBySIdx = SegmentedObjectUtils.splitByStructureIdx(posParents);
-            if (!parentsBySIdx.containsKey(parentSIdx)) continue;
-            Set<String> curParents = new HashSet<>(Utils.transform(parentsBySIdx.get(parentSIdx), p->Selection.indicesString(p)));
-            Set<String> intersectParents = Sets.intersect(curParents, parentToChildrenMap.keySet());
-            if (intersectParents.isEmpty()) continue;
-            List<String> toRemove = new ArrayList<>();
-            for (String p : intersectParents) toRemove.addAll(parentToChildrenMap.get(p));
-            this.removeElements(position, toRemove);
-            SegmentedObject.logger.debug("removed {} children from {} parent in position: {}", toRemove.size(), intersectParents.size(), position);
+            IndexPathSet els = elements.get(position);
+            if (els==null) continue;
+            int count = 0;
+            for (SegmentedObject p : parentsByPosition.get(position)) {
+                if (p.getStructureIdx()==parentSIdx) count+=els.removeChildren(SegmentedObjectUtils.getIndexTree(p));
+            }
+            if (count>0) retrievedElements.remove(position);
+            SegmentedObject.logger.debug("removed {} children in position: {}", count, position);
         }
     }
     /*public synchronized void removeChildrenOf(List<StructureObject> parents) {
@@ -491,16 +551,17 @@ public class Selection implements Comparable<Selection>, JSONSerializable {
         return sb.toString();
     }
     public boolean isEmpty() {
-        for (List l : elements.values()) if (!l.isEmpty()) return false;
+        for (IndexPathSet l : elements.values()) if (!l.isEmpty()) return false;
         return true;
     }
     public int count() {
         int c = 0;
-        for (String k : elements.keySet()) c+=get(k, true).size();
+        for (IndexPathSet l : elements.values()) c+=l.size();
         return c;
     }
     public int count(String position) {
-        return get(position, true).size();
+        IndexPathSet els = elements.get(position);
+        return els==null ? 0 : els.size();
     }
     public String getName() {
         return name;
@@ -529,7 +590,8 @@ public class Selection implements Comparable<Selection>, JSONSerializable {
         if (name==null) name="current";
         res.name=name;
         res.structureIdx=structureIdx;
-        res.elements=elements;
+        res.elements=new HashMap<>(elements.size());
+        res.setElements(elements);
         return res;
     }
     public static String getParent(String idx) {
@@ -556,10 +618,75 @@ public class Selection implements Comparable<Selection>, JSONSerializable {
         }
     }
 
+    /**
+     * Adds elements encoded as index strings
+     * @param elements index strings mapped by position. values can be a collection of strings or a single string
+     */
+    private void setElements(Map<String, ?> elements) {
+        for (Entry<String, ?> e : elements.entrySet()) {
+            IndexPathSet els = get(e.getKey(), true);
+            if (e.getValue() instanceof String) els.add((String)e.getValue()); // case of one single object stored by R
+            else for (Object idx : (Collection)e.getValue()) els.add((String)idx);
+        }
+    }
+
+    /**
+     * Packed binary encoding of the elements (see {@link IndexPathSet#write(java.io.DataOutput)})
+     * @return encoded elements
+     */
+    public synchronized byte[] encodeElements() {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        try {
+            out.writeByte(ELEMENTS_ENCODING_VERSION);
+            out.writeInt(elements.size());
+            for (Entry<String, IndexPathSet> e : elements.entrySet()) {
+                out.writeUTF(e.getKey());
+                e.getValue().write(out);
+            }
+            out.flush();
+        } catch (IOException e) { // should not happen with a byte array stream
+            throw new UncheckedIOException(e);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Replaces the elements by elements encoded by {@link #encodeElements()}
+     * @param data
+     */
+    public synchronized void decodeElements(byte[] data) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            byte version = in.readByte();
+            if (version<1 || version>ELEMENTS_ENCODING_VERSION) throw new IllegalArgumentException("Unsupported selection encoding version: "+version);
+            int n = in.readInt();
+            Map<String, IndexPathSet> els = new HashMap<>(Math.max(16, n * 2));
+            for (int i = 0; i<n; ++i) els.put(in.readUTF(), IndexPathSet.read(in));
+            elements = els;
+            retrievedElements.clear();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupted elements for selection: "+name, e);
+        }
+    }
+
     @Override
     public Object toJSONEntry() {
+        return toJSONEntry(true);
+    }
+
+    /**
+     *
+     * @param includeElements if false, elements are not included (see {@link #encodeElements()})
+     * @return JSON representation of this selection
+     */
+    public JSONObject toJSONEntry(boolean includeElements) {
         JSONObject res= new JSONObject();
-        res.put("objects", JSONUtils.toJSONObject(elements));
+        if (includeElements) {
+            JSONObject objects = new JSONObject();
+            elements.forEach((p, e) -> objects.put(p, JSONUtils.toJSONList(e.toStringList())));
+            res.put("objects", objects);
+        }
         res.put("name", name);
         res.put("structureIdx", structureIdx);
         res.put("color", color);
@@ -572,8 +699,9 @@ public class Selection implements Comparable<Selection>, JSONSerializable {
     @Override
     public void initFromJSONEntry(Object jsonEntry) {
         JSONObject jo = (JSONObject)jsonEntry;
-        if (!jo.containsKey("objects")) elements = (Map<String, List<String>>)jo.get("elements");
-        else elements = (Map<String, List<String>>)jo.get("objects");
+        elements = new HashMap<>();
+        Map<String, ?> objects = (Map<String, ?>)jo.get(jo.containsKey("objects") ? "objects" : "elements");
+        if (objects!=null) setElements(objects);
         if (!jo.containsKey("name")) name = (String)jo.get("_id"); 
         else name = (String)jo.get("name");
         if (!jo.containsKey("structureIdx")) structureIdx = ((Number)jo.get("structure_idx")).intValue();
@@ -32,10 +32,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import bacmman.utils.Utils;
 import java.util.function.Consumer;
+import java.util.function.IntPredicate;
 import java.util.stream.Stream;
 
 /**
@@ -47,6 +49,7 @@ public class BasicObjectDAO implements ObjectDAO {
     final MasterDAO masterDAO;
     Map<Integer, SegmentedObject> rootTrack;
     final String fieldName;
+    final Map<Integer, Set<String>> processedParentTracks = new HashMap<>();
     public BasicObjectDAO(MasterDAO masterDAO, List<SegmentedObject> rootTrack) {
         this.masterDAO=masterDAO;
         if (rootTrack.isEmpty()) throw new IllegalArgumentException("root track should not be empty");
@@ -81,6 +84,11 @@ public class BasicObjectDAO implements ObjectDAO {
         // no cache..
     }
 
+    @Override
+    public void clearCache(List<SegmentedObject> parentTrack, int structureIdx) {
+        // objects are only stored in memory
+    }
+
     @Override
     public void applyOnAllOpenedObjects(Consumer<SegmentedObject> function) {
         applyRec(rootTrack.values().stream(), function);
@@ -119,6 +127,9 @@ public class BasicObjectDAO implements ObjectDAO {
     
     protected void deleteObjectByStructureIdx(int structureIdx) {
         if (structureIdx==-1) deleteAllObjects();
+        synchronized(processedParentTracks) {
+            processedParentTracks.remove(structureIdx);
+        }
         int[] pathToRoot = getExperiment().experimentStructure.getPathToRoot(structureIdx);
         if (pathToRoot.length==1) for (SegmentedObject r : rootTrack.values()) deleteChildren(r, structureIdx);
         else {
@@ -130,6 +141,31 @@ public class BasicObjectDAO implements ObjectDAO {
 
     public void deleteAllObjects() {
         this.rootTrack.clear();
+        synchronized(processedParentTracks) {
+            processedParentTracks.clear();
+        }
+    }
+
+    @Override
+    public Set<String> getProcessedParentTracks(int structureIdx) {
+        synchronized(processedParentTracks) {
+            return new HashSet<>(processedParentTracks.getOrDefault(structureIdx, Collections.emptySet()));
+        }
+    }
+
+    @Override
+    public void setProcessedParentTracks(int structureIdx, Collection<String> parentTrackHeadIds, boolean processed) {
+        synchronized(processedParentTracks) {
+            if (processed) processedParentTracks.computeIfAbsent(structureIdx, s -> new HashSet<>()).addAll(parentTrackHeadIds);
+            else if (processedParentTracks.containsKey(structureIdx)) processedParentTracks.get(structureIdx).removeAll(parentTrackHeadIds);
+        }
+    }
+
+    @Override
+    public void clearProcessedParentTracks(int structureIdx) {
+        synchronized(processedParentTracks) {
+            processedParentTracks.remove(structureIdx);
+        }
     }
     /**
      * 
@@ -281,6 +317,12 @@ public class BasicObjectDAO implements ObjectDAO {
         return res;
     }
     @Override
+    public Stream<Measurements> streamMeasurements(int structureIdx, IntPredicate frameFilter) {
+        Stream<Measurements> res = getMeasurements(structureIdx).stream();
+        if (frameFilter!=null) res = res.filter(m -> frameFilter.test(m.getFrame()));
+        return res;
+    }
+    @Override
     public void deleteAllMeasurements() {
         SegmentedObjectAccessor accessor = getMasterDAO().getAccess();
         int structureCount = getExperiment().getStructureCount();
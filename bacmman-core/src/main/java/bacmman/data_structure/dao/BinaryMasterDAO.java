@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import bacmman.data_structure.SegmentedObjectAccessor;
+
+/**
+ * Master DAO whose positions store objects in binary column files (see {@link BinaryObjectDAO}). Configuration, selections and measurements are stored as in {@link DBMapMasterDAO}
+ * @author Jean Ollion
+ */
+public class BinaryMasterDAO extends DBMapMasterDAO {
+    public BinaryMasterDAO(String dir, String dbName, SegmentedObjectAccessor accessor) {
+        super(dir, dbName, accessor);
+    }
+
+    @Override
+    protected DBMapObjectDAO createObjectDAO(String positionName, String outputPath, boolean readOnly) {
+        return new BinaryObjectDAO(this, positionName, outputPath, readOnly);
+    }
+}
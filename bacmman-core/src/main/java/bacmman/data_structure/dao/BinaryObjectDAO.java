@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import bacmman.data_structure.MeasurementsCodec;
+import bacmman.data_structure.SegmentedObject;
+import bacmman.data_structure.SegmentedObjectAccessor;
+import bacmman.data_structure.region_container.RegionContainer;
+import bacmman.image.BoundingBox;
+import bacmman.utils.JSONSerializable;
+import bacmman.utils.Pair;
+import bacmman.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Object DAO that stores objects in binary column files (see {@link ObjectColumnFile}): one file per parent track head and object class, in a directory per object class.
+ * Ids, frame, idx, links, bounds and region hash are fixed-width binary columns, attributes and region container are binary-encoded variable-length columns: objects are created directly from the columns, without JSON. Measurements are stored as in {@link DBMapObjectDAO}
+ * @author Jean Ollion
+ */
+public class BinaryObjectDAO extends DBMapObjectDAO {
+    public static final Logger logger = LoggerFactory.getLogger(BinaryObjectDAO.class);
+    final Map<Pair<String, Integer>, ObjectColumnFile> objectFiles = new HashMap<>();
+
+    public BinaryObjectDAO(DBMapMasterDAO mDAO, String positionName, String dir, boolean readOnly) {
+        super(mDAO, positionName, dir, readOnly);
+    }
+
+    private Path getObjectDir(int structureIdx) {
+        return dir.resolve("objects_"+structureIdx);
+    }
+
+    protected ObjectColumnFile getObjectFile(Pair<String, Integer> key) {
+        synchronized (objectFiles) {
+            ObjectColumnFile res = objectFiles.get(key);
+            if (res==null) {
+                res = new ObjectColumnFile(getObjectDir(key.value), key.key!=null ? key.key : "root");
+                objectFiles.put(key, res);
+            }
+            return res;
+        }
+    }
+
+    @Override
+    protected Map<String, SegmentedObject> retrieveObjects(Pair<String, Integer> key, Set<String> excludeIds) {
+        return retrieveObjects(key, excludeIds.isEmpty() ? null : id -> !excludeIds.contains(id));
+    }
+
+    @Override
+    protected Map<String, SegmentedObject> retrieveObjectsById(Pair<String, Integer> key, Collection<String> ids) {
+        Set<String> idSet = ids instanceof Set ? (Set<String>)ids : new HashSet<>(ids);
+        return retrieveObjects(key, idSet::contains);
+    }
+
+    private Map<String, SegmentedObject> retrieveObjects(Pair<String, Integer> key, Predicate<String> idFilter) {
+        SegmentedObjectAccessor accessor = getMasterDAO().getAccess();
+        List<ObjectColumnFile.Record> records;
+        try {
+            records = getObjectFile(key).read(idFilter);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return records.parallelStream()
+                .map(r -> toObject(r, key.value, accessor))
+                .peek(o -> accessor.setDAO(o, this))
+                .collect(Collectors.toMap(SegmentedObject::getId, o->o));
+    }
+
+    /**
+     * Frame and track head id are fixed-width columns: the index is read without reading payloads
+     */
+    @Override
+    protected ObjectIndex loadIndex(Pair<String, Integer> key) {
+        ObjectIndex res = new ObjectIndex();
+        try {
+            for (ObjectColumnFile.Record r : getObjectFile(key).read(null, false)) res.put(r.id, r.frame, r.trackHeadId, r.isTrackHead);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return res;
+    }
+
+    @Override
+    protected Object serialize(SegmentedObject o) {
+        return toRecord(o, getMasterDAO().getAccess());
+    }
+
+    @Override
+    protected void writeSnapshots(Pair<String, Integer> key, Collection<ObjectSnapshot> objects) {
+        if (objects.isEmpty()) return;
+        List<ObjectColumnFile.Record> records = objects.stream().map(o -> (ObjectColumnFile.Record)o.serialized).collect(Collectors.toList());
+        try {
+            getObjectFile(key).upsert(records);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        updateIndex(key, objects);
+    }
+
+    @Override
+    protected void removeObjects(Pair<String, Integer> key, Collection<SegmentedObject> objects) {
+        try {
+            getObjectFile(key).remove(objects.stream().map(SegmentedObject::getId).collect(Collectors.toSet()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        removeFromIndex(key, objects);
+    }
+
+    @Override
+    protected void commitObjects(int structureIdx) {
+        // each write is persisted immediately
+    }
+
+    @Override
+    protected Iterable<String> getStoredParentTrackHeadIds(int structureIdx) {
+        return ObjectColumnFile.listNames(getObjectDir(structureIdx));
+    }
+
+    @Override
+    protected void deleteObjectFiles(int structureIdx) {
+        synchronized (objectFiles) {
+            objectFiles.entrySet().removeIf(k -> k.getKey().value==structureIdx);
+        }
+        synchronized (indices) {
+            indices.entrySet().removeIf(k -> k.getKey().value==structureIdx);
+        }
+        deleteIndexDB(structureIdx);
+        Utils.deleteDirectory(getObjectDir(structureIdx).toFile());
+    }
+
+    @Override
+    protected synchronized void closeAllObjectFiles(boolean commit) {
+        super.closeAllObjectFiles(commit);
+        synchronized (objectFiles) {
+            objectFiles.clear();
+        }
+    }
+
+    @Override
+    public List<File> getObjectStoreFiles() {
+        List<File> res = new ArrayList<>();
+        for (int s = -1; s<getExperiment().getStructureCount(); ++s) {
+            Path p = getObjectDir(s);
+            if (Files.exists(p)) res.add(p.toFile());
+        }
+        return res;
+    }
+
+    protected static ObjectColumnFile.Record toRecord(SegmentedObject o, SegmentedObjectAccessor accessor) {
+        ObjectColumnFile.Record r = new ObjectColumnFile.Record();
+        r.id = o.getId();
+        r.parentId = o.getParentId();
+        r.parentTrackHeadId = accessor.parentTrackHeadId(o);
+        r.trackHeadId = accessor.trackHeadId(o);
+        r.previousId = o.getPreviousId();
+        r.nextId = o.getNextId();
+        r.frame = o.getFrame();
+        r.idx = o.getIdx();
+        r.isTrackHead = o.isTrackHead();
+        r.region = accessor.encodeRegionContainer(o);
+        if (r.region!=null) {
+            BoundingBox b = RegionContainer.getBoundsFromBinary(r.region);
+            r.bounds = new int[]{b.xMin(), b.xMax(), b.yMin(), b.yMax(), b.zMin(), b.zMax()};
+            r.regionHash = accessor.getRegionHash(o);
+        }
+        Map<String, Object> attributes = accessor.getAttributes(o);
+        if (attributes!=null && !attributes.isEmpty()) {
+            Map<String, Object> values = new HashMap<>(attributes.size() * 2);
+            for (Map.Entry<String, Object> e : attributes.entrySet()) {
+                values.put(e.getKey(), e.getValue() instanceof JSONSerializable ? ((JSONSerializable)e.getValue()).toJSONEntry() : e.getValue());
+            }
+            r.attributes = MeasurementsCodec.encodeValues(values);
+        }
+        return r;
+    }
+
+    protected static SegmentedObject toObject(ObjectColumnFile.Record r, int structureIdx, SegmentedObjectAccessor accessor) {
+        return accessor.createFromColumns(r.id, r.parentId, structureIdx, r.idx, r.frame, r.previousId, r.nextId, r.parentTrackHeadId, r.trackHeadId, r.isTrackHead, r.attributes==null ? null : MeasurementsCodec.decodeValues(r.attributes), r.regionHash, r.region);
+    }
+}
@@ -50,6 +50,14 @@ public class BypassImageDAO implements ImageDAO {
         return new BlankMask(openPreProcessedImage(channelImageIdx, 0, microscopyFieldName));
     }
 
+    /**
+     * Images are computed from input images at each call and are not versioned
+     */
+    @Override
+    public long getPreProcessedImageVersion(int channelImageIdx, int timePoint, String microscopyFieldName) {
+        return 0;
+    }
+
     @Override
     public void writePreProcessedImage(Image image, int channelImageIdx, int timePoint, String microscopyFieldName) {
         throw new IllegalArgumentException("Unsupported operation");
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import bacmman.data_structure.SegmentedObject;
+import bacmman.image.*;
+import bacmman.utils.Triplet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+
+/**
+ * Image DAO that keeps recently opened pre-processed frames in memory, so that a frame opened several times (e.g. once per parent track and once for measurements) is read and decoded only once.
+ * Frames are evicted in least-recently-used order when the total size of cached frames exceeds the cache size. The cache is disabled when the cache size is 0 (default).
+ * Cached frames are never returned directly: a copy is returned so that callers can modify returned images.
+ * Frames can also be read in advance on a bounded pool of I/O threads (see {@link #prefetch(String, int, int)}): prefetched frames are kept until they are requested, independently of the cache size.
+ * Statistics (hits, misses, evictions, prefetched frames) are recorded per position.
+ * If the source DAO fails to read a frame, threads waiting for the same frame get the same exception.
+ * Frames that are written or deleted while being read are returned to the threads that requested them before, but are not cached.
+ * @author Jean Ollion
+ */
+public class CachedImageDAO implements ImageDAO {
+    public static final Logger logger = LoggerFactory.getLogger(CachedImageDAO.class);
+    final ImageDAO source;
+    long cacheSize;
+    long cachedBytes;
+    final LinkedHashMap<Triplet<String, Integer, Integer>, Image> cache = new LinkedHashMap<>(16, 0.75f, true); // position, channel, frame
+    final Map<Triplet<String, Integer, Integer>, CompletableFuture<Image>> loading = new HashMap<>();
+    final Map<String, CacheStatistics> statistics = new HashMap<>();
+    final Map<Triplet<String, Integer, Integer>, CompletableFuture<Image>> prefetched = new HashMap<>();
+    final Map<String, BiConsumer<Integer, Integer>> frameRequestListeners = new HashMap<>();
+    long invalidations; // incremented each time a frame is written or deleted: prefetched frames taken before are not cached
+    int prefetchDepth, prefetchThreads = 2;
+    ExecutorService prefetchPool;
+
+    public static class CacheStatistics {
+        long hits, misses, evictions, cachedBytes, prefetched, prefetchHits;
+        public long getHits() {return hits;}
+        public long getPrefetched() {return prefetched;}
+        public long getPrefetchHits() {return prefetchHits;}
+        public long getMisses() {return misses;}
+        public long getEvictions() {return evictions;}
+        public long getCachedBytes() {return cachedBytes;}
+        @Override
+        public String toString() {
+            long total = hits + misses;
+            return "hits: "+hits+" misses: "+misses+" hit ratio: "+(total==0 ? 0 : (100 * hits / total))+"% evictions: "+evictions+" cached: "+(cachedBytes/1000000)+"MB"+(prefetched>0 ? " prefetched: "+prefetched+" used: "+prefetchHits : "");
+        }
+    }
+
+    public CachedImageDAO(ImageDAO source) {
+        this.source = source;
+    }
+
+    public ImageDAO getSourceDAO() {
+        return source;
+    }
+
+    /**
+     *
+     * @param bytes maximal size of cached frames in bytes. 0 disables the cache
+     * @return this object
+     */
+    public synchronized CachedImageDAO setCacheSize(long bytes) {
+        this.cacheSize = Math.max(0, bytes);
+        evict();
+        return this;
+    }
+
+    public synchronized long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     *
+     * @param depth number of frames read in advance while a parent track is processed (see {@link bacmman.data_structure.FramePrefetcher}). 0 disables prefetching
+     * @param threads number of I/O threads used for prefetching
+     * @return this object
+     */
+    public synchronized CachedImageDAO setPrefetch(int depth, int threads) {
+        this.prefetchDepth = Math.max(0, depth);
+        if (threads!=prefetchThreads && prefetchPool!=null) {
+            prefetchPool.shutdown();
+            prefetchPool = null;
+        }
+        this.prefetchThreads = Math.max(1, threads);
+        return this;
+    }
+
+    public synchronized int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    public synchronized int getPrefetchThreads() {
+        return prefetchThreads;
+    }
+
+    /**
+     *
+     * @param position
+     * @param listener called with channel and frame each time a frame of {@param position} is requested. null removes the current listener
+     */
+    public synchronized void setFrameRequestListener(String position, BiConsumer<Integer, Integer> listener) {
+        if (listener==null) frameRequestListeners.remove(position);
+        else frameRequestListeners.put(position, listener);
+    }
+
+    /**
+     * Reads a frame in background, if it is not already cached or being read. The frame is kept until it is requested or until {@link #clearPrefetch(String)} is called
+     * @param position
+     * @param channelImageIdx
+     * @param timePoint
+     */
+    public synchronized void prefetch(String position, int channelImageIdx, int timePoint) {
+        Triplet<String, Integer, Integer> key = new Triplet<>(position, channelImageIdx, timePoint);
+        if (cache.containsKey(key) || loading.containsKey(key) || prefetched.containsKey(key)) return;
+        if (prefetchPool==null) prefetchPool = Executors.newFixedThreadPool(prefetchThreads, r -> {
+            Thread t = new Thread(r, "frame-prefetch");
+            t.setDaemon(true);
+            return t;
+        });
+        prefetched.put(key, CompletableFuture.supplyAsync(() -> source.openPreProcessedImage(channelImageIdx, timePoint, position), prefetchPool));
+        ++statistics.computeIfAbsent(position, p -> new CacheStatistics()).prefetched;
+    }
+
+    /**
+     * Releases frames of {@param position} that were prefetched and not requested
+     * @param position
+     */
+    public synchronized void clearPrefetch(String position) {
+        Iterator<Map.Entry<Triplet<String, Integer, Integer>, CompletableFuture<Image>>> it = prefetched.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Triplet<String, Integer, Integer>, CompletableFuture<Image>> e = it.next();
+            if (e.getKey().v1.equals(position)) {
+                e.getValue().cancel(false);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes cached frames of {@param position} and resets its statistics
+     * @param position
+     * @return statistics of {@param position} before they were reset (cached bytes are the bytes released), or null if the cache was never used for this position
+     */
+    public synchronized CacheStatistics clearCache(String position) {
+        clearPrefetch(position);
+        long released = 0;
+        Iterator<Map.Entry<Triplet<String, Integer, Integer>, Image>> it = cache.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Triplet<String, Integer, Integer>, Image> e = it.next();
+            if (e.getKey().v1.equals(position)) {
+                released += getBytes(e.getValue());
+                it.remove();
+            }
+        }
+        cachedBytes -= released;
+        CacheStatistics stats = statistics.remove(position);
+        if (stats!=null) stats.cachedBytes = released;
+        return stats;
+    }
+
+    public synchronized void clearCache() {
+        for (CompletableFuture<Image> f : prefetched.values()) f.cancel(false);
+        prefetched.clear();
+        cache.clear();
+        cachedBytes = 0;
+        statistics.clear();
+    }
+
+    /**
+     *
+     * @param position
+     * @return a copy of the statistics of {@param position}
+     */
+    public synchronized CacheStatistics getStatistics(String position) {
+        CacheStatistics s = statistics.get(position);
+        CacheStatistics res = new CacheStatistics();
+        if (s!=null) {
+            res.hits = s.hits;
+            res.misses = s.misses;
+            res.evictions = s.evictions;
+            res.prefetched = s.prefetched;
+            res.prefetchHits = s.prefetchHits;
+        }
+        for (Map.Entry<Triplet<String, Integer, Integer>, Image> e : cache.entrySet()) if (e.getKey().v1.equals(position)) res.cachedBytes+=getBytes(e.getValue());
+        return res;
+    }
+
+    @Override
+    public Image openPreProcessedImage(int channelImageIdx, int timePoint, String microscopyFieldName) {
+        Triplet<String, Integer, Integer> key = new Triplet<>(microscopyFieldName, channelImageIdx, timePoint);
+        CompletableFuture<Image> prefetchedFrame;
+        BiConsumer<Integer, Integer> listener;
+        long invalidationCount;
+        synchronized (this) {
+            invalidationCount = invalidations;
+            prefetchedFrame = prefetched.remove(key);
+            listener = frameRequestListeners.get(microscopyFieldName);
+        }
+        if (listener!=null) listener.accept(channelImageIdx, timePoint); // schedules next frames before waiting for this one
+        if (prefetchedFrame!=null) {
+            Image im = null;
+            try {
+                im = prefetchedFrame.join();
+            } catch (CancellationException e) {
+                logger.debug("prefetching of frame: {} was cancelled", key);
+            } catch (CompletionException e) { // same error as if the frame was read by this thread
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException)e.getCause() : e;
+            }
+            if (im!=null) {
+                boolean isCached = false;
+                synchronized (this) {
+                    ++statistics.computeIfAbsent(microscopyFieldName, p -> new CacheStatistics()).prefetchHits;
+                    if (cacheSize>0 && getBytes(im)<=cacheSize && !cache.containsKey(key) && invalidationCount==invalidations) {
+                        cache.put(key, im);
+                        cachedBytes += getBytes(im);
+                        evict();
+                        isCached = true;
+                    }
+                }
+                return isCached ? im.duplicate(im.getName()) : im;
+            } // otherwise read the frame again
+        }
+        CompletableFuture<Image> future = null;
+        Image cached = null;
+        boolean load = false;
+        synchronized (this) {
+            if (cacheSize>0) {
+                cached = cache.get(key);
+                CacheStatistics stats = statistics.computeIfAbsent(microscopyFieldName, p -> new CacheStatistics());
+                if (cached!=null) ++stats.hits;
+                else {
+                    future = loading.get(key);
+                    if (future==null) { // this thread loads the frame, other threads requesting the same frame wait for it
+                        ++stats.misses;
+                        future = new CompletableFuture<>();
+                        loading.put(key, future);
+                        load = true;
+                    } else ++stats.hits;
+                }
+            }
+        }
+        if (cached!=null) return cached.duplicate(cached.getName());
+        if (future==null) return source.openPreProcessedImage(channelImageIdx, timePoint, microscopyFieldName);
+        if (load) {
+            Image im;
+            try {
+                im = source.openPreProcessedImage(channelImageIdx, timePoint, microscopyFieldName);
+            } catch (RuntimeException|Error e) { // threads waiting for this frame get the same error
+                synchronized (this) {
+                    loading.remove(key, future);
+                }
+                future.completeExceptionally(e);
+                throw e;
+            }
+            boolean isCached = false;
+            synchronized (this) {
+                boolean invalidated = !loading.remove(key, future); // removed by invalidate: frame was written or deleted during the read
+                if (im!=null && cacheSize>0 && getBytes(im)<=cacheSize && !invalidated) {
+                    cache.put(key, im);
+                    cachedBytes += getBytes(im);
+                    evict();
+                    isCached = true;
+                }
+            }
+            future.complete(im);
+            return isCached ? im.duplicate(im.getName()) : im;
+        } else {
+            try {
+                Image im = future.get();
+                return im==null ? null : im.duplicate(im.getName());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+                if (e.getCause() instanceof Error) throw (Error)e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * If the whole frame is cached, the area is cropped from the cached frame, otherwise only the area is read from the source DAO, and is not cached
+     */
+    @Override
+    public Image openPreProcessedImage(int channelImageIdx, int timePoint, String microscopyFieldName, MutableBoundingBox bounds) {
+        synchronized (this) {
+            if (cacheSize>0) {
+                Image im = cache.get(new Triplet<>(microscopyFieldName, channelImageIdx, timePoint));
+                if (im!=null) {
+                    ++statistics.computeIfAbsent(microscopyFieldName, p -> new CacheStatistics()).hits;
+                    return im.crop(bounds);
+                }
+            }
+        }
+        return source.openPreProcessedImage(channelImageIdx, timePoint, microscopyFieldName, bounds);
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Triplet<String, Integer, Integer>, Image>> it = cache.entrySet().iterator();
+        while (cachedBytes>cacheSize && it.hasNext()) {
+            Map.Entry<Triplet<String, Integer, Integer>, Image> e = it.next();
+            cachedBytes -= getBytes(e.getValue());
+            CacheStatistics stats = statistics.get(e.getKey().v1);
+            if (stats!=null) ++stats.evictions;
+            it.remove();
+        }
+    }
+
+    /**
+     * Removes a frame from the cache and cancels its prefetching. A frame being read is removed from {@link #loading} so that next requests read it again, and is not cached when the read ends.
+     * Called before and after the frame is modified, so that frames read during the modification are not kept
+     */
+    private synchronized void invalidate(int channelImageIdx, int timePoint, String microscopyFieldName) {
+        Triplet<String, Integer, Integer> key = new Triplet<>(microscopyFieldName, channelImageIdx, timePoint);
+        ++invalidations;
+        CompletableFuture<Image> pf = prefetched.remove(key);
+        if (pf!=null) pf.cancel(false);
+        loading.remove(key);
+        Image im = cache.remove(key);
+        if (im!=null) cachedBytes -= getBytes(im);
+    }
+
+    private static long getBytes(Image image) {
+        return (long)image.getSizeXYZ() * (image instanceof ImageByte ? 1 : (image instanceof ImageShort ? 2 : 4));
+    }
+
+    @Override
+    public String getImageExtension() {
+        return source.getImageExtension();
+    }
+
+    @Override
+    public InputStream openPreProcessedImageAsStream(int channelImageIdx, int timePoint, String microscopyFieldName) {
+        return source.openPreProcessedImageAsStream(channelImageIdx, timePoint, microscopyFieldName);
+    }
+
+    @Override
+    public BlankMask getPreProcessedImageProperties(int channelImageIdx, String microscopyFieldName) {
+        return source.getPreProcessedImageProperties(channelImageIdx, microscopyFieldName);
+    }
+
+    @Override
+    public long getPreProcessedImageVersion(int channelImageIdx, int timePoint, String microscopyFieldName) {
+        return source.getPreProcessedImageVersion(channelImageIdx, timePoint, microscopyFieldName);
+    }
+
+    @Override
+    public void writePreProcessedImage(Image image, int channelImageIdx, int timePoint, String microscopyFieldName) {
+        invalidate(channelImageIdx, timePoint, microscopyFieldName);
+        source.writePreProcessedImage(image, channelImageIdx, timePoint, microscopyFieldName);
+        invalidate(channelImageIdx, timePoint, microscopyFieldName);
+    }
+
+    @Override
+    public void writePreProcessedImage(InputStream image, int channelImageIdx, int timePoint, String microscopyFieldName) {
+        invalidate(channelImageIdx, timePoint, microscopyFieldName);
+        source.writePreProcessedImage(image, channelImageIdx, timePoint, microscopyFieldName);
+        invalidate(channelImageIdx, timePoint, microscopyFieldName);
+    }
+
+    @Override
+    public void deletePreProcessedImage(int channelImageIdx, int timePoint, String microscopyFieldName) {
+        invalidate(channelImageIdx, timePoint, microscopyFieldName);
+        source.deletePreProcessedImage(channelImageIdx, timePoint, microscopyFieldName);
+        invalidate(channelImageIdx, timePoint, microscopyFieldName);
+    }
+
+    @Override
+    public void writeTrackImage(SegmentedObject trackHead, int channelImageIdx, Image image) {
+        source.writeTrackImage(trackHead, channelImageIdx, image);
+    }
+
+    @Override
+    public Image openTrackImage(SegmentedObject trackHead, int channelImageIdx) {
+        return source.openTrackImage(trackHead, channelImageIdx);
+    }
+
+    @Override
+    public InputStream openTrackImageAsStream(SegmentedObject trackHead, int channelImageIdx) {
+        return source.openTrackImageAsStream(trackHead, channelImageIdx);
+    }
+
+    @Override
+    public void writeTrackImage(SegmentedObject trackHead, int channelImageIdx, InputStream image) {
+        source.writeTrackImage(trackHead, channelImageIdx, image);
+    }
+
+    @Override
+    public void deleteTrackImages(String position, int parentStructureIdx) {
+        source.deleteTrackImages(position, parentStructureIdx);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import bacmman.image.BlankMask;
+import bacmman.image.Image;
+import bacmman.image.MutableBoundingBox;
+import bacmman.image.io.ImageFormat;
+import bacmman.image.io.ImageReader;
+import bacmman.image.io.ImageWriter;
+import bacmman.utils.FileIO;
+import bacmman.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Image DAO that stores pre-processed images of each position in a single chunked container: one {@link ChunkedImageStore} per channel in the directory "pre_processed_chunked" of the position, instead of one file per frame and channel.
+ * Bounded reads (e.g. microchannel crops) only decode the chunks that intersect the requested area.
+ * Track images are stored as in {@link LocalTIFImageDAO}
+ * @author Jean Ollion
+ */
+public class ChunkedImageDAO extends LocalTIFImageDAO {
+    private final static Logger logger = LoggerFactory.getLogger(ChunkedImageDAO.class);
+    public static final int MAX_OPEN_STORES = 32;
+    final Map<String, ChunkedImageStore> stores = new HashMap<>();
+    final List<ChunkedImageStore> evictedStores = new ArrayList<>(); // closed outside the lock of stores
+    final LinkedHashMap<ChunkedImageStore, Boolean> openStores = new LinkedHashMap<ChunkedImageStore, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ChunkedImageStore, Boolean> eldest) {
+            if (size()>MAX_OPEN_STORES) {
+                evictedStores.add(eldest.getKey());
+                return true;
+            } else return false;
+        }
+    };
+    int[] chunkShape = new int[]{128, 128, 1, 1};
+    ChunkedImageStore.Compression compression = ChunkedImageStore.Compression.DEFLATE;
+
+    public ChunkedImageDAO(String localDirectory) {
+        super(localDirectory);
+    }
+
+    /**
+     * Sets the shape of chunks of containers created after this call. Existing containers keep their chunk shape.
+     * @param x chunk size along X axis, value lower than 1 means the whole width of the image
+     * @param y chunk size along Y axis, value lower than 1 means the whole height of the image
+     * @param z chunk size along Z axis, value lower than 1 means all the planes of the image
+     * @param t number of frames per chunk, must be greater than 0
+     * @return this object
+     */
+    public ChunkedImageDAO setChunkShape(int x, int y, int z, int t) {
+        if (t<1) throw new IllegalArgumentException("Number of frames per chunk must be greater than 0");
+        this.chunkShape = new int[]{x, y, z, t};
+        return this;
+    }
+
+    /**
+     * Sets the compression of chunks of containers created after this call. Existing containers keep their compression.
+     * @param compression
+     * @return this object
+     */
+    public ChunkedImageDAO setCompression(ChunkedImageStore.Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    protected Path getStoreDir(String position) {
+        return Paths.get(directory, position, "pre_processed_chunked");
+    }
+
+    protected ChunkedImageStore getStore(int channelImageIdx, String position) {
+        String key = position + "/" + channelImageIdx;
+        ChunkedImageStore store;
+        List<ChunkedImageStore> toClose = null;
+        synchronized (stores) {
+            store = stores.get(key);
+            if (store==null) {
+                try {
+                    store = new ChunkedImageStore(getStoreDir(position), "c"+Utils.formatInteger(2, channelImageIdx));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                stores.put(key, store);
+            }
+            openStores.put(store, true); // evicts least recently used stores
+            if (!evictedStores.isEmpty()) {
+                toClose = new ArrayList<>(evictedStores);
+                evictedStores.clear();
+            }
+        }
+        // closing waits for reads and writes in progress on the store: done outside the lock. A closed store re-opens its file at next access
+        if (toClose!=null) toClose.forEach(ChunkedImageStore::close);
+        return store;
+    }
+
+    @Override
+    public Image openPreProcessedImage(int channelImageIdx, int timePoint, String microscopyFieldName) {
+        return openPreProcessedImage(channelImageIdx, timePoint, microscopyFieldName, null);
+    }
+
+    @Override
+    public Image openPreProcessedImage(int channelImageIdx, int timePoint, String microscopyFieldName, MutableBoundingBox bounds) {
+        try {
+            Image im = getStore(channelImageIdx, microscopyFieldName).read(timePoint, bounds);
+            if (im==null) logger.trace("pre-processed image: channel: {} timePoint: {} position: {} not found", channelImageIdx, timePoint, microscopyFieldName);
+            return im;
+        } catch (IOException e) {
+            logger.error("Error opening pre-processed image: channel: "+channelImageIdx+" timePoint: "+timePoint+" position: "+microscopyFieldName, e);
+            return null;
+        }
+    }
+
+    @Override
+    public BlankMask getPreProcessedImageProperties(int channelImageIdx, String microscopyFieldName) {
+        return getStore(channelImageIdx, microscopyFieldName).getProperties();
+    }
+
+    /**
+     * The version is the hash of the content of the frame recorded in the index when it was written, so it does not depend on the other frames nor on compaction
+     */
+    @Override
+    public long getPreProcessedImageVersion(int channelImageIdx, int timePoint, String microscopyFieldName) {
+        return getStore(channelImageIdx, microscopyFieldName).getFrameVersion(timePoint);
+    }
+
+    @Override
+    public void writePreProcessedImage(Image image, int channelImageIdx, int timePoint, String microscopyFieldName) {
+        try {
+            getStore(channelImageIdx, microscopyFieldName).write(image, timePoint, chunkShape, compression);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void deletePreProcessedImage(int channelImageIdx, int timePoint, String microscopyFieldName) {
+        try {
+            getStore(channelImageIdx, microscopyFieldName).deleteFrame(timePoint);
+        } catch (IOException e) {
+            logger.error("Error deleting pre-processed image: channel: "+channelImageIdx+" timePoint: "+timePoint+" position: "+microscopyFieldName, e);
+        }
+    }
+
+    /**
+     * The image is exported as a TIF file so that exported datasets do not depend on the image DAO type
+     */
+    @Override
+    public InputStream openPreProcessedImageAsStream(int channelImageIdx, int timePoint, String microscopyFieldName) {
+        Image im = openPreProcessedImage(channelImageIdx, timePoint, microscopyFieldName);
+        if (im==null) return null;
+        try {
+            File tmp = File.createTempFile("bacmman_pp", getImageExtension());
+            ImageWriter.writeToFile(im, tmp.getAbsolutePath(), ImageFormat.TIF);
+            return new FileInputStream(tmp) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    tmp.delete();
+                }
+            };
+        } catch (IOException e) {
+            logger.error("Error exporting pre-processed image: channel: "+channelImageIdx+" timePoint: "+timePoint+" position: "+microscopyFieldName, e);
+            return null;
+        }
+    }
+
+    @Override
+    public void writePreProcessedImage(InputStream image, int channelImageIdx, int timePoint, String microscopyFieldName) {
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("bacmman_pp", getImageExtension());
+            FileIO.writeFile(image, tmp.getAbsolutePath());
+            writePreProcessedImage(ImageReader.openImage(tmp.getAbsolutePath()), channelImageIdx, timePoint, microscopyFieldName);
+        } catch (IOException e) {
+            logger.error("Error importing pre-processed image: channel: "+channelImageIdx+" timePoint: "+timePoint+" position: "+microscopyFieldName, e);
+        } finally {
+            if (tmp!=null) tmp.delete();
+        }
+    }
+
+    /**
+     * Releases file handles of all containers
+     */
+    public void closeAllStores() {
+        synchronized (stores) {
+            for (ChunkedImageStore s : stores.values()) s.close();
+            openStores.clear();
+            evictedStores.clear();
+        }
+    }
+}
@@ -0,0 +1,646 @@
+/*
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import bacmman.image.*;
+import bacmman.utils.HashUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Chunked storage of all the frames of one channel of a position (XYZT array).
+ * The array is divided into chunks of configurable shape (X, Y, Z, T), each chunk is stored (optionally compressed) in a single append-only ".data" file. Location of chunks are recorded in an append-only ".index" file, that also contains the shape, type and calibration of the array, so that the last entry of a chunk is the valid one.
+ * Reading an area of a frame only reads and decodes the chunks that intersect this area.
+ * Each frame entry of the index records a hash of the content of the frame, used as version of the frame (see {@link #getFrameVersion(int)}): it is not modified by compaction.
+ * Rewritten chunks (e.g. each frame written into a chunk of several frames appends the whole chunk again) and chunks of deleted frames leave unreferenced bytes in the data file, see {@link #getReclaimableBytes()}. They are reclaimed by {@link #compact()}, which is called automatically when unreferenced bytes exceed referenced bytes.
+ * @author Jean Ollion
+ */
+public class ChunkedImageStore {
+    public static final Logger logger = LoggerFactory.getLogger(ChunkedImageStore.class);
+    public static final String INDEX_EXT = ".index";
+    public static final String DATA_EXT = ".data";
+    static final String TMP_EXT = ".tmp", COMPACTED_EXT = ".compacted";
+    static final long COMPACTION_MIN_BYTES = 1<<20;
+    public enum Compression {NONE, DEFLATE}
+    static final int MAGIC = 0x4243484B;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 4 + 4 + 1 + 3 * 4 + 2 * 4 + 4 * 4 + 1; // magic, version, bitDepth, size XYZ, scale XY & Z, chunk shape XYZT, compression
+    static final int ENTRY_BYTES = 1 + 4 + 4 + 8 + 4; // type, a, b, offset, length
+    static final byte ENTRY_CHUNK = 1, ENTRY_FRAME = 2, ENTRY_DELETE_FRAME = 3;
+
+    final Path dir;
+    final String name;
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // header
+    int bitDepth, sizeX, sizeY, sizeZ;
+    float scaleXY, scaleZ;
+    int[] chunkShape; // X, Y, Z, T
+    Compression compression;
+    // index
+    final Map<Long, long[]> chunks = new HashMap<>();
+    final BitSet frames = new BitSet();
+    final Map<Integer, Long> frameVersions = new HashMap<>();
+    long dataSize, liveBytes;
+    FileChannel dataChannel;
+
+    /**
+     *
+     * @param dir directory containing the files of the store
+     * @param name name of the store files
+     * @throws IOException if the index cannot be read
+     */
+    public ChunkedImageStore(Path dir, String name) throws IOException {
+        this.dir = dir;
+        this.name = name;
+        readIndex();
+    }
+    public Path getIndexFile() {
+        return dir.resolve(name + INDEX_EXT);
+    }
+    public Path getDataFile() {
+        return dir.resolve(name + DATA_EXT);
+    }
+    private Path getTmpDataFile() {
+        return dir.resolve(name + DATA_EXT + TMP_EXT);
+    }
+    private Path getTmpIndexFile() {
+        return dir.resolve(name + INDEX_EXT + TMP_EXT);
+    }
+    private Path getCompactedIndexFile() {
+        return dir.resolve(name + INDEX_EXT + COMPACTED_EXT);
+    }
+
+    public boolean hasFrame(int frame) {
+        lock.readLock().lock();
+        try {
+            return frames.get(frame);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     *
+     * @param frame
+     * @return hash of the content of {@param frame} recorded when it was written, 0 if the frame is not stored
+     */
+    public long getFrameVersion(int frame) {
+        lock.readLock().lock();
+        try {
+            Long v = frameVersions.get(frame);
+            return v==null ? 0 : v;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.readLock().lock();
+        try {
+            return frames.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     *
+     * @return properties of stored frames, or null if no frame is stored
+     */
+    public BlankMask getProperties() {
+        lock.readLock().lock();
+        try {
+            if (chunkShape==null) return null;
+            return new BlankMask(sizeX, sizeY, sizeZ, 0, 0, 0, scaleXY, scaleZ);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     *
+     * @return number of bytes of the data file that are not referenced by the index anymore
+     */
+    public long getReclaimableBytes() {
+        lock.readLock().lock();
+        try {
+            return dataSize - liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     *
+     * @param frame frame to read
+     * @param bounds if not null only the area within {@param bounds} is read. The returned image has the dimensions and offset of {@param bounds}, the area of {@param bounds} outside of the stored array is filled with zeros (same behavior as {@link Image#crop(BoundingBox)})
+     * @return the image of the frame or null if the frame is not stored
+     * @throws IOException
+     */
+    public Image read(int frame, BoundingBox bounds) throws IOException {
+        lock.readLock().lock();
+        try {
+            if (!frames.get(frame)) return null;
+            BoundingBox b = bounds!=null ? bounds : new SimpleBoundingBox(0, sizeX-1, 0, sizeY-1, 0, sizeZ-1);
+            Image res = allocate(b);
+            int xMin = Math.max(0, b.xMin()), xMax = Math.min(sizeX-1, b.xMax());
+            int yMin = Math.max(0, b.yMin()), yMax = Math.min(sizeY-1, b.yMax());
+            int zMin = Math.max(0, b.zMin()), zMax = Math.min(sizeZ-1, b.zMax());
+            if (xMin<=xMax && yMin<=yMax && zMin<=zMax) {
+                int tc = frame / chunkShape[3];
+                int tIn = frame % chunkShape[3];
+                for (int zc = zMin / chunkShape[2]; zc <= zMax / chunkShape[2]; ++zc) {
+                    for (int yc = yMin / chunkShape[1]; yc <= yMax / chunkShape[1]; ++yc) {
+                        for (int xc = xMin / chunkShape[0]; xc <= xMax / chunkShape[0]; ++xc) {
+                            long[] location = chunks.get(getChunkKey(tc, xc, yc, zc));
+                            if (location==null) continue; // never written: zeros
+                            ByteBuffer chunk = readChunk(location);
+                            int x0 = xc * chunkShape[0], y0 = yc * chunkShape[1], z0 = zc * chunkShape[2];
+                            int cw = Math.min(chunkShape[0], sizeX - x0), ch = Math.min(chunkShape[1], sizeY - y0), cd = Math.min(chunkShape[2], sizeZ - z0);
+                            int rxMin = Math.max(x0, xMin), rxMax = Math.min(x0 + cw - 1, xMax);
+                            for (int z = Math.max(z0, zMin); z <= Math.min(z0 + cd - 1, zMax); ++z) {
+                                Object pixels = res.getPixelArray()[z - b.zMin()];
+                                for (int y = Math.max(y0, yMin); y <= Math.min(y0 + ch - 1, yMax); ++y) {
+                                    int source = ((tIn * cd + z - z0) * ch + y - y0) * cw + rxMin - x0;
+                                    int dest = (y - b.yMin()) * b.sizeX() + rxMin - b.xMin();
+                                    copy(chunk, source, pixels, dest, rxMax - rxMin + 1, false);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            res.setCalibration(scaleXY, scaleZ);
+            if (bounds!=null) res.translate(bounds);
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores {@param image} at frame {@param frame}. If {@param image} has not the same dimensions and type as previously stored frames, the whole store is reset.
+     * @param image
+     * @param frame
+     * @param chunkShape shape of chunks (X, Y, Z, T) used if the store is created or reset. A value lower than 1 means the whole dimension of the image (not allowed for T)
+     * @param compression compression used if the store is created or reset
+     * @throws IOException
+     */
+    public void write(Image image, int frame, int[] chunkShape, Compression compression) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (this.chunkShape==null || !sameProperties(image)) create(image, chunkShape, compression);
+            int tc = frame / this.chunkShape[3];
+            int tIn = frame % this.chunkShape[3];
+            int nX = getChunkNumber(sizeX, this.chunkShape[0]), nY = getChunkNumber(sizeY, this.chunkShape[1]), nZ = getChunkNumber(sizeZ, this.chunkShape[2]);
+            ByteBuffer index = ByteBuffer.allocate(ENTRY_BYTES * (nX * nY * nZ + 1));
+            FileChannel data = getDataChannel();
+            CRC32 crc = new CRC32();
+            long version = 0;
+            for (int zc = 0; zc<nZ; ++zc) {
+                for (int yc = 0; yc<nY; ++yc) {
+                    for (int xc = 0; xc<nX; ++xc) {
+                        int x0 = xc * this.chunkShape[0], y0 = yc * this.chunkShape[1], z0 = zc * this.chunkShape[2];
+                        int cw = Math.min(this.chunkShape[0], sizeX - x0), ch = Math.min(this.chunkShape[1], sizeY - y0), cd = Math.min(this.chunkShape[2], sizeZ - z0);
+                        long key = getChunkKey(tc, xc, yc, zc);
+                        long[] previous = chunks.get(key);
+                        ByteBuffer chunk;
+                        if (this.chunkShape[3]>1 && previous!=null) chunk = readChunk(previous); // other frames of the chunk are kept
+                        else chunk = ByteBuffer.allocate(cw * ch * cd * this.chunkShape[3] * getBytesPerPixel()).order(ByteOrder.LITTLE_ENDIAN);
+                        for (int z = 0; z<cd; ++z) {
+                            Object pixels = image.getPixelArray()[z0 + z];
+                            for (int y = 0; y<ch; ++y) {
+                                copy(chunk, ((tIn * cd + z) * ch + y) * cw, pixels, (y0 + y) * sizeX + x0, cw, true);
+                            }
+                        }
+                        int frameBytes = cw * ch * cd * getBytesPerPixel();
+                        crc.reset();
+                        crc.update(chunk.array(), tIn * frameBytes, frameBytes); // only the part of the chunk that contains this frame
+                        version = HashUtils.combine(version, crc.getValue());
+                        byte[] encoded = encode(chunk.array());
+                        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+                        long offset = dataSize;
+                        while (buffer.hasRemaining()) offset += data.write(buffer, offset);
+                        if (previous!=null) liveBytes -= previous[1];
+                        chunks.put(key, new long[]{dataSize, encoded.length});
+                        liveBytes += encoded.length;
+                        putEntry(index, ENTRY_CHUNK, tc, getChunkIdx(xc, yc, zc), dataSize, encoded.length);
+                        dataSize = offset;
+                    }
+                }
+            }
+            if (version==0) version = 1; // 0 means unknown version
+            frames.set(frame);
+            frameVersions.put(frame, version);
+            putEntry(index, ENTRY_FRAME, frame, 0, version, 0);
+            index.flip();
+            appendIndex(index);
+            compactIfNecessary();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a frame from the store. Files are deleted when no frame remains
+     * @param frame
+     * @throws IOException
+     */
+    public void deleteFrame(int frame) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!frames.get(frame)) return;
+            frames.clear(frame);
+            frameVersions.remove(frame);
+            if (frames.isEmpty()) {
+                delete();
+                return;
+            }
+            if (chunkShape[3]==1) { // chunks of this frame are not referenced anymore
+                chunks.entrySet().removeIf(e -> {
+                    if ((int)(e.getKey()>>>32) == frame) {
+                        liveBytes -= e.getValue()[1];
+                        return true;
+                    } else return false;
+                });
+            }
+            ByteBuffer index = ByteBuffer.allocate(ENTRY_BYTES);
+            putEntry(index, ENTRY_DELETE_FRAME, frame, 0, 0, 0);
+            index.flip();
+            appendIndex(index);
+            compactIfNecessary();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the data file with only the chunks that are referenced by the index and that contain at least one stored frame, and rewrites the index accordingly.
+     * New files are written next to the current ones and replace them once complete: an interrupted compaction is either discarded or completed when the store is opened again.
+     * @return number of bytes reclaimed
+     * @throws IOException
+     */
+    public long compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (chunkShape==null || dataSize==0) return 0;
+            long previousSize = dataSize;
+            List<Long> keys = new ArrayList<>(chunks.keySet());
+            Collections.sort(keys); // chunks of a frame are contiguous
+            Map<Long, long[]> newChunks = new HashMap<>();
+            ByteBuffer index = ByteBuffer.allocate(HEADER_BYTES + ENTRY_BYTES * (keys.size() + frames.cardinality()));
+            putHeader(index);
+            long offset = 0;
+            FileChannel data = getDataChannel();
+            try (FileChannel out = FileChannel.open(getTmpDataFile(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (long key : keys) {
+                    int tc = (int)(key>>>32);
+                    int fromFrame = tc * chunkShape[3];
+                    int next = frames.nextSetBit(fromFrame);
+                    if (next<0 || next>=fromFrame + chunkShape[3]) continue; // all frames of the chunk were deleted
+                    long[] location = chunks.get(key);
+                    long position = location[0], end = location[0] + location[1];
+                    while (position<end) {
+                        long n = data.transferTo(position, end - position, out);
+                        if (n<=0) throw new IOException("Unexpected end of data file: "+getDataFile());
+                        position += n;
+                    }
+                    newChunks.put(key, new long[]{offset, location[1]});
+                    putEntry(index, ENTRY_CHUNK, tc, (int)key, offset, (int)location[1]);
+                    offset += location[1];
+                }
+                out.force(false);
+            }
+            for (int f = frames.nextSetBit(0); f>=0; f = frames.nextSetBit(f+1)) putEntry(index, ENTRY_FRAME, f, 0, frameVersions.getOrDefault(f, 0L), 0);
+            index.flip();
+            try (FileChannel out = FileChannel.open(getTmpIndexFile(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (index.hasRemaining()) out.write(index);
+                out.force(false);
+            }
+            closeChannel();
+            Files.move(getTmpIndexFile(), getCompactedIndexFile(), StandardCopyOption.REPLACE_EXISTING); // commit point
+            completeCompaction();
+            chunks.clear();
+            chunks.putAll(newChunks);
+            dataSize = offset;
+            liveBytes = offset;
+            logger.debug("chunked image store: {} compacted: {} -> {} bytes", dir.resolve(name), previousSize, dataSize);
+            return previousSize - dataSize;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compactIfNecessary() throws IOException {
+        long reclaimable = dataSize - liveBytes;
+        if (reclaimable>liveBytes && reclaimable>=COMPACTION_MIN_BYTES) compact();
+    }
+
+    /**
+     * Replaces the current files by the files of a committed compaction
+     */
+    private void completeCompaction() throws IOException {
+        if (Files.exists(getTmpDataFile())) Files.move(getTmpDataFile(), getDataFile(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(getCompactedIndexFile(), getIndexFile(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Completes a compaction that was interrupted after its commit point, or discards the files of a compaction interrupted before
+     */
+    private void recoverCompaction() throws IOException {
+        if (Files.exists(getCompactedIndexFile())) {
+            logger.info("chunked image store: {} completing interrupted compaction", dir.resolve(name));
+            completeCompaction();
+        } else {
+            Files.deleteIfExists(getTmpDataFile());
+            Files.deleteIfExists(getTmpIndexFile());
+        }
+    }
+
+    /**
+     * Deletes the files of this store
+     */
+    public void delete() {
+        lock.writeLock().lock();
+        try {
+            closeChannel();
+            Files.deleteIfExists(getIndexFile());
+            Files.deleteIfExists(getDataFile());
+            Files.deleteIfExists(getTmpDataFile());
+            Files.deleteIfExists(getTmpIndexFile());
+            Files.deleteIfExists(getCompactedIndexFile());
+        } catch (IOException e) {
+            logger.error("could not delete chunked image store: "+dir.resolve(name), e);
+        } finally {
+            reset();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Releases the file handle of the data file. It will be re-opened when needed.
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            closeChannel();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void reset() {
+        chunkShape = null;
+        compression = null;
+        chunks.clear();
+        frames.clear();
+        frameVersions.clear();
+        dataSize = 0;
+        liveBytes = 0;
+    }
+
+    private void create(Image image, int[] chunkShape, Compression compression) throws IOException {
+        if (this.chunkShape!=null) {
+            logger.debug("chunked image store: {} is reset: dimensions or type have changed", dir.resolve(name));
+            delete();
+        }
+        if (chunkShape.length!=4 || chunkShape[3]<1) throw new IllegalArgumentException("Invalid chunk shape: chunk shape must be X, Y, Z, T with T>=1");
+        bitDepth = image.getBitDepth();
+        sizeX = image.sizeX();
+        sizeY = image.sizeY();
+        sizeZ = image.sizeZ();
+        scaleXY = (float)image.getScaleXY();
+        scaleZ = (float)image.getScaleZ();
+        this.chunkShape = new int[]{chunkShape[0]<1 ? sizeX : chunkShape[0], chunkShape[1]<1 ? sizeY : chunkShape[1], chunkShape[2]<1 ? sizeZ : chunkShape[2], chunkShape[3]};
+        this.compression = compression;
+        Files.createDirectories(dir);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        putHeader(header);
+        header.flip();
+        try (FileChannel channel = FileChannel.open(getIndexFile(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) channel.write(header);
+        }
+        Files.deleteIfExists(getDataFile());
+    }
+
+    private void putHeader(ByteBuffer header) {
+        header.putInt(MAGIC).putInt(VERSION).put((byte)bitDepth).putInt(sizeX).putInt(sizeY).putInt(sizeZ).putFloat(scaleXY).putFloat(scaleZ);
+        for (int s : chunkShape) header.putInt(s);
+        header.put((byte)compression.ordinal());
+    }
+
+    private boolean sameProperties(Image image) {
+        return image.getBitDepth()==bitDepth && image.sizeX()==sizeX && image.sizeY()==sizeY && image.sizeZ()==sizeZ;
+    }
+
+    private void readIndex() throws IOException {
+        reset();
+        if (Files.isDirectory(dir)) recoverCompaction();
+        Path indexFile = getIndexFile();
+        if (!Files.exists(indexFile)) return;
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+        if (index.limit()<HEADER_BYTES || index.getInt()!=MAGIC) throw new IOException("Invalid chunked image index: "+indexFile);
+        int version = index.getInt();
+        if (version!=VERSION) throw new IOException("Unsupported chunked image index version: "+version+" file: "+indexFile);
+        bitDepth = index.get();
+        sizeX = index.getInt();
+        sizeY = index.getInt();
+        sizeZ = index.getInt();
+        scaleXY = index.getFloat();
+        scaleZ = index.getFloat();
+        chunkShape = new int[]{index.getInt(), index.getInt(), index.getInt(), index.getInt()};
+        compression = Compression.values()[index.get()];
+        while (index.remaining()>=ENTRY_BYTES) { // an incomplete last entry (interrupted write) is ignored
+            byte type = index.get();
+            int a = index.getInt();
+            int b = index.getInt();
+            long offset = index.getLong();
+            int length = index.getInt();
+            switch (type) {
+                case ENTRY_CHUNK:
+                    long[] previous = chunks.put(((long)a<<32) | (b & 0xFFFFFFFFL), new long[]{offset, length});
+                    if (previous!=null) liveBytes -= previous[1];
+                    liveBytes += length;
+                    break;
+                case ENTRY_FRAME:
+                    frames.set(a);
+                    frameVersions.put(a, offset); // offset field of frame entries holds the version
+                    break;
+                case ENTRY_DELETE_FRAME:
+                    frames.clear(a);
+                    frameVersions.remove(a);
+                    if (chunkShape[3]==1) {
+                        chunks.entrySet().removeIf(e -> {
+                            if ((int)(e.getKey()>>>32) == a) {
+                                liveBytes -= e.getValue()[1];
+                                return true;
+                            } else return false;
+                        });
+                    }
+                    break;
+                default:
+                    throw new IOException("Invalid entry in chunked image index: "+indexFile);
+            }
+        }
+        dataSize = Files.exists(getDataFile()) ? Files.size(getDataFile()) : 0;
+    }
+
+    private void appendIndex(ByteBuffer entries) throws IOException {
+        try (FileChannel channel = FileChannel.open(getIndexFile(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (entries.hasRemaining()) channel.write(entries);
+        }
+    }
+
+    private static void putEntry(ByteBuffer buffer, byte type, int a, int b, long offset, int length) {
+        buffer.put(type).putInt(a).putInt(b).putLong(offset).putInt(length);
+    }
+
+    private synchronized FileChannel getDataChannel() throws IOException {
+        if (dataChannel==null || !dataChannel.isOpen()) dataChannel = FileChannel.open(getDataFile(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return dataChannel;
+    }
+
+    private synchronized void closeChannel() {
+        if (dataChannel==null) return;
+        try {
+            dataChannel.close();
+        } catch (IOException e) {
+            logger.debug("error closing data file: "+getDataFile(), e);
+        }
+        dataChannel = null;
+    }
+
+    private ByteBuffer readChunk(long[] location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int)location[1]);
+        FileChannel data = getDataChannel();
+        long position = location[0];
+        while (buffer.hasRemaining()) {
+            int read = data.read(buffer, position);
+            if (read<0) throw new IOException("Unexpected end of data file: "+getDataFile());
+            position += read;
+        }
+        return ByteBuffer.wrap(decode(buffer.array())).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private byte[] encode(byte[] raw) {
+        if (Compression.DEFLATE.equals(compression)) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] buffer = new byte[Math.max(64, raw.length + raw.length / 1000 + 64)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length==buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            deflater.end();
+            return Arrays.copyOf(buffer, length);
+        } else return raw;
+    }
+
+    private byte[] decode(byte[] encoded) throws IOException {
+        if (Compression.DEFLATE.equals(compression)) {
+            Inflater inflater = new Inflater();
+            inflater.setInput(encoded);
+            byte[] buffer = new byte[Math.max(64, encoded.length * 4)];
+            int length = 0;
+            try {
+                while (!inflater.finished()) {
+                    if (length==buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    int n = inflater.inflate(buffer, length, buffer.length - length);
+                    if (n==0 && (inflater.needsInput() || inflater.needsDictionary())) throw new IOException("Truncated chunk in: "+getDataFile());
+                    length += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted chunk in: "+getDataFile(), e);
+            } finally {
+                inflater.end();
+            }
+            return length==buffer.length ? buffer : Arrays.copyOf(buffer, length);
+        } else return encoded;
+    }
+
+    private Image allocate(BoundingBox bounds) {
+        ImageProperties props = new SimpleImageProperties(bounds.sizeX(), bounds.sizeY(), bounds.sizeZ(), 1, 1);
+        switch (bitDepth) {
+            case 8: return new ImageByte("", props);
+            case 16: return new ImageShort("", props);
+            case 32: return new ImageFloat("", props);
+            default: return new ImageInt("", props);
+        }
+    }
+
+    private int getBytesPerPixel() {
+        return bitDepth==8 ? 1 : (bitDepth==16 ? 2 : 4);
+    }
+
+    private static void copy(ByteBuffer chunk, int chunkOffset, Object pixels, int pixelOffset, int length, boolean toChunk) {
+        ByteBuffer b = chunk.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (pixels instanceof byte[]) {
+            b.position(chunkOffset);
+            if (toChunk) b.put((byte[])pixels, pixelOffset, length);
+            else b.get((byte[])pixels, pixelOffset, length);
+        } else if (pixels instanceof short[]) {
+            b.position(chunkOffset * 2);
+            if (toChunk) b.asShortBuffer().put((short[])pixels, pixelOffset, length);
+            else b.asShortBuffer().get((short[])pixels, pixelOffset, length);
+        } else if (pixels instanceof float[]) {
+            b.position(chunkOffset * 4);
+            if (toChunk) b.asFloatBuffer().put((float[])pixels, pixelOffset, length);
+            else b.asFloatBuffer().get((float[])pixels, pixelOffset, length);
+        } else {
+            b.position(chunkOffset * 4);
+            if (toChunk) b.asIntBuffer().put((int[])pixels, pixelOffset, length);
+            else b.asIntBuffer().get((int[])pixels, pixelOffset, length);
+        }
+    }
+
+    private static int getChunkNumber(int size, int chunkSize) {
+        return (size + chunkSize - 1) / chunkSize;
+    }
+
+    private int getChunkIdx(int xc, int yc, int zc) {
+        return (zc * getChunkNumber(sizeY, chunkShape[1]) + yc) * getChunkNumber(sizeX, chunkShape[0]) + xc;
+    }
+
+    private long getChunkKey(int tc, int xc, int yc, int zc) {
+        return ((long)tc<<32) | (getChunkIdx(xc, yc, zc) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,128 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compacts object and measurement files of idle positions in background. MapDB hash maps do not reclaim the space of deleted or overwritten entries, so files grow at each re-processing.
+ * A position is idle when its files are closed, which is the case after processing (see {@link DBMapObjectDAO#clearCache()}): positions being processed or edited are skipped. Only positions that have been accessed (thus locked) are considered.
+ * See {@link DBMapObjectDAO#compactClosedFiles(double, long)}
+ * @author Jean Ollion
+ */
+public class DBCompactionService {
+    public final static Logger logger = LoggerFactory.getLogger(DBCompactionService.class);
+    public static final double DEFAULT_MIN_FRAGMENTATION = 0.5;
+    public static final long DEFAULT_MIN_RECLAIMABLE_BYTES = 16 * 1024 * 1024;
+    public static final long DEFAULT_INTERVAL = 10 * 60 * 1000;
+    final DBMapMasterDAO db;
+    double minFragmentation = DEFAULT_MIN_FRAGMENTATION;
+    long minReclaimableBytes = DEFAULT_MIN_RECLAIMABLE_BYTES;
+    final AtomicLong reclaimedBytes = new AtomicLong();
+    private ScheduledExecutorService service;
+
+    public DBCompactionService(DBMapMasterDAO db) {
+        this.db = db;
+    }
+
+    /**
+     *
+     * @param minFragmentation files are compacted if their estimated fragmentation ratio (fraction of file size not used by live entries) is at least this value
+     * @return this service
+     */
+    public DBCompactionService setMinFragmentation(double minFragmentation) {
+        this.minFragmentation = minFragmentation;
+        return this;
+    }
+
+    /**
+     *
+     * @param minReclaimableBytes files are compacted if their estimated reclaimable size is at least this value
+     * @return this service
+     */
+    public DBCompactionService setMinReclaimableBytes(long minReclaimableBytes) {
+        this.minReclaimableBytes = minReclaimableBytes;
+        return this;
+    }
+
+    /**
+     * Compacts idle positions every {@param intervalMs} ms in a background thread
+     * @param intervalMs
+     * @return this service
+     */
+    public synchronized DBCompactionService start(long intervalMs) {
+        stop();
+        service = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Compaction: "+db.getDBName());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        service.scheduleWithFixedDelay(() -> {
+            try {
+                compactIdlePositions();
+            } catch (RuntimeException e) {
+                logger.error("Error during compaction of dataset: "+db.getDBName(), e);
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Stops background compaction. A running compaction is not interrupted
+     */
+    public synchronized void stop() {
+        if (service!=null) {
+            service.shutdown();
+            service = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return service!=null;
+    }
+
+    /**
+     * Compacts the fragmented files of idle positions in the calling thread
+     * @return number of bytes reclaimed by this call
+     */
+    public long compactIdlePositions() {
+        long res = 0;
+        for (DBMapObjectDAO dao : db.getOpenedDAOs()) res += dao.compactClosedFiles(minFragmentation, minReclaimableBytes);
+        if (res>0) {
+            reclaimedBytes.addAndGet(res);
+            logger.info("Dataset: {} compaction reclaimed: {}MB (total: {}MB)", db.getDBName(), res / (1024 * 1024), reclaimedBytes.get() / (1024 * 1024));
+        }
+        return res;
+    }
+
+    /**
+     *
+     * @return number of bytes reclaimed since this service was created
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+}
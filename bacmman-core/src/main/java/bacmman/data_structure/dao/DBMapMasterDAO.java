@@ -30,7 +30,9 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 
 import bacmman.data_structure.SegmentedObjectAccessor;
@@ -40,6 +42,7 @@ import bacmman.utils.FileIO;
 import bacmman.utils.JSONUtils;
 import bacmman.utils.Utils;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import static bacmman.core.Core.*;
@@ -54,7 +57,7 @@ public class DBMapMasterDAO implements MasterDAO {
     
     protected final String dbName;
     final HashMap<String, DBMapObjectDAO> DAOs = new HashMap<>();
-    final Set<String> positionLock = new HashSet<>();
+    final Set<String> positionLock = Collections.synchronizedSet(new HashSet<>());
     protected Experiment xp;
     java.nio.channels.FileLock xpFileLock;
     private FileChannel xpLockChannel;
@@ -62,6 +65,9 @@ public class DBMapMasterDAO implements MasterDAO {
     DBMapSelectionDAO selectionDAO;
     boolean readOnly = true; // default is read only
     private final SegmentedObjectAccessor accessor;
+    int writeBehindSize;
+    long writeBehindInterval;
+    DBCompactionService compactionService;
 
     public DBMapMasterDAO(String dir, String dbName, SegmentedObjectAccessor accessor) {
         if (dir==null) throw new IllegalArgumentException("Invalid directory: "+ dir);
@@ -108,10 +114,11 @@ public class DBMapMasterDAO implements MasterDAO {
         }
         this.positionLock.removeAll(Arrays.asList(positionNames));
         for (String p : positionNames) {
-            if (this.DAOs.containsKey(p)) {
-                this.getDao(p).unlock();
-                DAOs.remove(p);
+            DBMapObjectDAO dao;
+            synchronized(DAOs) {
+                dao = DAOs.remove(p);
             }
+            if (dao!=null) dao.unlock();
         }
     }
 
@@ -158,15 +165,58 @@ public class DBMapMasterDAO implements MasterDAO {
     
     @Override
     public DBMapObjectDAO getDao(String positionName) {
-        DBMapObjectDAO res = this.DAOs.get(positionName);
-        if (res==null) {
-            String op = getOutputPath();
-            if (op==null) throw new RuntimeException("No output path set, cannot create DAO");
-            res = new DBMapObjectDAO(this, positionName, op, positionLock.contains(positionName)?false:readOnly);
-            //logger.debug("creating DAO: {} position lock: {}, read only: {}", positionName, positionLock.contains(positionName), res.isReadOnly());
-            DAOs.put(positionName, res);
+        synchronized(DAOs) {
+            DBMapObjectDAO res = this.DAOs.get(positionName);
+            if (res!=null) return res;
+        }
+        String op = getOutputPath(); // outside the DAOs lock: may lock this object
+        if (op==null) throw new RuntimeException("No output path set, cannot create DAO");
+        synchronized(DAOs) { // positions may be processed concurrently: a single DAO must be created per position
+            DBMapObjectDAO res = this.DAOs.get(positionName);
+            if (res==null) {
+                res = createObjectDAO(positionName, op, positionLock.contains(positionName)?false:readOnly);
+                if (writeBehindSize>0) res.setWriteBehind(writeBehindSize, writeBehindInterval);
+                //logger.debug("creating DAO: {} position lock: {}, read only: {}", positionName, positionLock.contains(positionName), res.isReadOnly());
+                DAOs.put(positionName, res);
+            }
+            return res;
         }
-        return res;
+    }
+
+    /**
+     *
+     * @return DAOs of positions that have been accessed
+     */
+    public List<DBMapObjectDAO> getOpenedDAOs() {
+        synchronized(DAOs) {
+            return new ArrayList<>(DAOs.values());
+        }
+    }
+
+    /**
+     *
+     * @return service compacting position files in background (not started)
+     */
+    public synchronized DBCompactionService getCompactionService() {
+        if (compactionService==null) compactionService = new DBCompactionService(this);
+        return compactionService;
+    }
+
+    /**
+     * Sets write-behind mode of all position DAOs (see {@link DBMapObjectDAO#setWriteBehind(int, long)})
+     * @param maxPendingObjects 0 disables write-behind mode
+     * @param flushIntervalMs
+     * @return this DAO
+     */
+    public DBMapMasterDAO setWriteBehind(int maxPendingObjects, long flushIntervalMs) {
+        this.writeBehindSize = maxPendingObjects;
+        this.writeBehindInterval = flushIntervalMs;
+        for (DBMapObjectDAO dao : getOpenedDAOs()) dao.setWriteBehind(maxPendingObjects, flushIntervalMs);
+        return this;
+    }
+
+    protected DBMapObjectDAO createObjectDAO(String positionName, String outputPath, boolean readOnly) {
+        return new DBMapObjectDAO(this, positionName, outputPath, readOnly);
     }
 
     @Override
@@ -291,12 +341,15 @@ public class DBMapMasterDAO implements MasterDAO {
     @Override 
     public void clearCache(String position) {
         if (getExperiment().getPosition(position)!=null) getExperiment().getPosition(position).flushImages(true, true); // input images
-        DBMapObjectDAO dao = DAOs.get(position);
+        DBMapObjectDAO dao;
+        synchronized(DAOs) {
+            dao = DAOs.get(position);
+        }
         if (dao!=null) dao.clearCache();
     }
     public synchronized void clearCache(boolean xpDAO, boolean objectDAO, boolean selectionDAO) {
         if (objectDAO) {
-            for (DBMapObjectDAO dao : DAOs.values()) clearCache(dao.getPositionName());
+            for (DBMapObjectDAO dao : getOpenedDAOs()) clearCache(dao.getPositionName());
         }
         
         if (selectionDAO && this.selectionDAO!=null) {
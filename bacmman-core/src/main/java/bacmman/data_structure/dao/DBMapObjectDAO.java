@@ -28,8 +28,17 @@ import java.io.File;
 import java.io.IOError;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.mapdb.DB;
 import org.mapdb.HTreeMap;
@@ -41,7 +50,6 @@ import static bacmman.utils.DBMapUtils.getEntrySet;
 import static bacmman.utils.DBMapUtils.getValues;
 import bacmman.utils.HashMapGetCreate;
 import bacmman.utils.JSONUtils;
-import static bacmman.utils.JSONUtils.parse;
 import bacmman.utils.Pair;
 import bacmman.utils.Utils;
 
@@ -51,22 +59,50 @@ import java.nio.channels.OverlappingFileLockException;
 import java.util.function.Consumer;
 
 /**
- *
+ * Object DAO storing objects and measurements in MapDB files, one per object class.
+ * By default each call to a store method is committed. In write-behind mode (see {@link #setWriteBehind(int, long)}), stored objects and measurements are buffered and written by batch: repeated storage of an object is written only once, and there is one commit per file and per batch.
+ * Objects and measurements are serialized when they are stored, so that later modifications are not written. Batches are written when the buffer reaches its maximal size, at regular intervals, before measurements are read from storage, when cache is cleared, when the position is unlocked and at shutdown. Buffered objects and measurements are not in the transaction log until their batch is written, so they do not survive a crash: in case of crash, changes stored since the last written batch (at most one flush interval, or the maximal buffer size) are lost, while written batches are recovered as in the default mode. Write-behind mode is therefore disabled by default and should only be enabled when this loss is acceptable, e.g. for batch processing that can be re-run.
  * @author Jean Ollion
  */
 public class DBMapObjectDAO implements ObjectDAO {
     public static final Logger logger = LoggerFactory.getLogger(DBMapObjectDAO.class);
+    public static final String INDEX_VERSION_MAP_NAME = "versions";
+    static final String INDEX_DIRTY = "dirty"; // stamp of an index whose objects are being committed
+    static final String INDEX_COMMIT_KEY = "#commit"; // entry of the version map: commit counter of the object file
+    static final String INDEX_FILE_KEY = "#objects"; // entry of the version map: size and modification time of the object file at last commit
+    static final String PROCESSED_PARENT_TRACKS_MAP_NAME = "processed";
+    public static final int DEFAULT_WRITE_BEHIND_SIZE = 5000;
+    public static final long DEFAULT_WRITE_BEHIND_INTERVAL = 5000;
     final DBMapMasterDAO mDAO;
     final String positionName;
     final HashMapGetCreate<Pair<String, Integer>, Map<String, SegmentedObject>> cache = new HashMapGetCreate<>(new HashMapGetCreate.MapFactory()); // parent trackHead id -> id cache
     final HashMapGetCreate<Pair<String, Integer>, Boolean> allObjectsRetrievedInCache = new HashMapGetCreate<>(p -> false);
     final Map<Pair<String, Integer>, HTreeMap<String, String>> dbMaps = new HashMap<>();
+    final Map<Pair<String, Integer>, HTreeMap<String, String>> indexDbMaps = new HashMap<>();
+    final Map<Integer, DB> indexDbS = new HashMap<>();
+    final Set<Pair<String, Integer>> modifiedIndices = new HashSet<>(); // indices whose version is persisted at next commit
+    final Set<Integer> staleIndexDBs = new HashSet<>(); // object classes whose object file was modified without updating persisted indices. guarded by dbS
+    final Map<Pair<String, Integer>, ObjectIndex> indices = new HashMap<>();
     final Path dir;
     final Map<Integer, DB> dbS = new HashMap<>();
-    final Map<Integer, Pair<DB, HTreeMap<String, String>>> measurementdbS = new HashMap<>();
+    final Map<Integer, MeasurementStore> measurementdbS = new HashMap<>();
+    final Map<Integer, Integer> measurementReaders = new HashMap<>(); // object class -> number of read-only stores opened by streamMeasurements. guarded by measurementdbS
     public final boolean readOnly;
     private java.nio.channels.FileLock lock;
     private FileChannel lockChannel;
+    // write-behind
+    final Object writeBehindLock = new Object();
+    final Map<Pair<String, Integer>, Map<String, ObjectSnapshot>> pendingObjects = new HashMap<>();
+    final Map<Integer, Map<String, Measurements>> pendingMeasurements = new HashMap<>();
+    int pendingCount;
+    int writeBehindSize; // 0 : disabled
+    long writeBehindInterval;
+    private volatile boolean writeBehind; // configured and position is locked
+    private ScheduledExecutorService flushService;
+    private Thread shutdownFlush;
+    private volatile RuntimeException flushError; // error of last periodic flush
+    final Map<String, long[]> compactionChecks = new ConcurrentHashMap<>(); // file -> last modified, size at last check
+    final AtomicLong fileOpenings = new AtomicLong(); // incremented under the lock of each kind of file, so that compaction detects files opened during copy
     public DBMapObjectDAO(DBMapMasterDAO mDAO, String positionName, String dir, boolean readOnly) {
         this.mDAO=mDAO;
         this.positionName=positionName;
@@ -87,7 +123,11 @@ public class DBMapObjectDAO implements ObjectDAO {
         return dir.getParent().resolve(".lock");
         //return FileSystems.getDefault().getPath(new File(dir).getParent(), ".lock");
     }
-    private synchronized boolean lock() {
+    /**
+     * Locks the position. Write-behind mode is resumed if it was configured (see {@link #setWriteBehind(int, long)})
+     * @return true if the position is locked
+     */
+    public synchronized boolean lock() {
         if (lock!=null) return true;
         try {
             Path p = getLockedFilePath();
@@ -105,10 +145,18 @@ public class DBMapObjectDAO implements ObjectDAO {
                 } 
             } 
             return false;
-        } else return true;
+        } else {
+            startWriteBehind();
+            return true;
+        }
     }
+
+    /**
+     * Writes pending changes and releases the lock on the position. Write-behind configuration is kept and resumed at next call to {@link #lock()}
+     */
     public synchronized void unlock() {
         clearCache();
+        stopWriteBehind();
         if (this.lock!=null) {
             try {
                 lock.release();
@@ -140,6 +188,182 @@ public class DBMapObjectDAO implements ObjectDAO {
         return mDAO;
     }
 
+    /**
+     * Enables write-behind mode: stored objects and measurements are buffered and written by batch. Pending changes are written before mode is changed. Buffered changes are lost in case of crash (see class description)
+     * The mode is active while the position is locked: it is suspended by {@link #unlock()} and resumed by {@link #lock()}
+     * @param maxPendingObjects buffer size (in objects) that triggers writing. 0 disables write-behind mode
+     * @param flushIntervalMs pending changes are written at this interval (in ms). 0 : no periodic writing
+     * @return this DAO
+     */
+    public synchronized DBMapObjectDAO setWriteBehind(int maxPendingObjects, long flushIntervalMs) {
+        stopWriteBehind();
+        this.writeBehindSize = readOnly ? 0 : Math.max(0, maxPendingObjects);
+        this.writeBehindInterval = Math.max(0, flushIntervalMs);
+        if (lock!=null) startWriteBehind();
+        return this;
+    }
+
+    private void startWriteBehind() {
+        if (writeBehind || writeBehindSize==0) return;
+        if (writeBehindInterval>0) {
+            flushService = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "DAO flush: "+positionName);
+                t.setDaemon(true);
+                return t;
+            });
+            flushService.scheduleWithFixedDelay(() -> {
+                try {
+                    flush();
+                } catch (RuntimeException e) { // pending changes are kept, error is thrown to the next caller
+                    flushError = e;
+                    logger.error("Error while writing pending objects of position: "+positionName, e);
+                }
+            }, writeBehindInterval, writeBehindInterval, TimeUnit.MILLISECONDS);
+        }
+        shutdownFlush = new Thread(() -> {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                logger.error("Error while writing pending objects of position: "+positionName+" at shutdown", e);
+            }
+        }, "DAO shutdown flush: "+positionName);
+        Runtime.getRuntime().addShutdownHook(shutdownFlush);
+        writeBehind = true;
+    }
+
+    private void stopWriteBehind() {
+        if (!writeBehind) return;
+        writeBehind = false; // objects stored from now on are written directly
+        if (flushService!=null) {
+            flushService.shutdown();
+            flushService = null;
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownFlush);
+        } catch (IllegalStateException e) { } // shutdown in progress: hook is running
+        shutdownFlush = null;
+        flush();
+    }
+
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Writes and commits buffered objects and measurements (write-behind mode).
+     * Buffer is cleared only once all changes are committed: in case of error, pending changes are kept so that they are written at next call, and the error is thrown
+     */
+    public void flush() {
+        synchronized(writeBehindLock) {
+            if (pendingCount==0) {
+                flushError = null;
+                return;
+            }
+            long t0 = System.currentTimeMillis();
+            int objectCount = 0, measurementCount = 0;
+            for (Map.Entry<Pair<String, Integer>, Map<String, ObjectSnapshot>> e : pendingObjects.entrySet()) {
+                writeSnapshots(e.getKey(), e.getValue().values());
+                objectCount += e.getValue().size();
+            }
+            pendingObjects.keySet().stream().map(k -> k.value).distinct().forEach(this::commitObjects);
+            for (Map.Entry<Integer, Map<String, Measurements>> e : pendingMeasurements.entrySet()) {
+                putMeasurements(e.getKey(), e.getValue());
+                measurementCount += e.getValue().size();
+            }
+            int count = pendingCount;
+            pendingObjects.clear();
+            pendingMeasurements.clear();
+            pendingCount = 0;
+            flushError = null;
+            logger.debug("position: {} wrote {} pending changes ({} objects, {} measurements) in {}ms", positionName, count, objectCount, measurementCount, System.currentTimeMillis()-t0);
+        }
+    }
+
+    /**
+     * Buffers a snapshot of {@param objects}, taken on the calling thread: later modifications of the objects are not written by the flush thread
+     * @param objects
+     */
+    private void bufferObjects(Collection<SegmentedObject> objects) {
+        SegmentedObjectAccessor accessor = getMasterDAO().getAccess();
+        Map<Pair<String, Integer>, List<SegmentedObject>> splitByPTH = splitByParentTrackHeadIdAndStructureIdx(objects);
+        Map<Pair<String, Integer>, List<ObjectSnapshot>> snapshots = new HashMap<>(splitByPTH.size());
+        for (Map.Entry<Pair<String, Integer>, List<SegmentedObject>> e : splitByPTH.entrySet()) {
+            e.getValue().parallelStream().forEach(accessor::updateRegionContainer);
+            snapshots.put(e.getKey(), e.getValue().parallelStream().map(this::snapshot).collect(Collectors.toList()));
+        }
+        List<Measurements> measurements = snapshotMeasurements(objects.stream().filter(SegmentedObject::hasMeasurementModifications).collect(Collectors.toList()));
+        synchronized(writeBehindLock) {
+            for (Map.Entry<Pair<String, Integer>, List<ObjectSnapshot>> e : snapshots.entrySet()) {
+                Map<String, ObjectSnapshot> pending = pendingObjects.computeIfAbsent(e.getKey(), k -> new HashMap<>());
+                for (ObjectSnapshot o : e.getValue()) if (pending.put(o.id, o)==null) ++pendingCount;
+                getIndex(e.getKey()); // so that index-based queries include pending objects
+                updateIndex(e.getKey(), e.getValue());
+            }
+            addPendingMeasurements(measurements);
+        }
+        flushIfNecessary();
+    }
+
+    private void bufferMeasurements(Collection<SegmentedObject> objects) {
+        List<Measurements> measurements = snapshotMeasurements(objects);
+        synchronized(writeBehindLock) {
+            addPendingMeasurements(measurements);
+        }
+        flushIfNecessary();
+    }
+
+    private void addPendingMeasurements(List<Measurements> measurements) {
+        for (Measurements m : measurements) {
+            if (pendingMeasurements.computeIfAbsent(m.getStructureIdx(), s -> new HashMap<>()).put(m.getId(), m)==null) ++pendingCount;
+        }
+    }
+
+    private void flushIfNecessary() {
+        // write-behind mode may have been stopped while objects were buffered. An error of the periodic flush is thrown to the caller
+        if (pendingCount>=writeBehindSize || !writeBehind || flushError!=null) flush();
+    }
+
+    /**
+     * Updates object properties of the measurements of {@param objects} and copies them
+     * @param objects
+     * @return copies of the measurements
+     */
+    private static List<Measurements> snapshotMeasurements(Collection<SegmentedObject> objects) {
+        List<Measurements> res = new ArrayList<>(objects.size());
+        for (SegmentedObject o : objects) {
+            Measurements m = o.getMeasurements();
+            m.updateObjectProperties(o);
+            res.add(m.duplicate());
+            m.modifications = false;
+        }
+        return res;
+    }
+
+    /**
+     * Removes objects from write-behind buffer
+     * @param objects
+     */
+    private void discardPending(Collection<SegmentedObject> objects) {
+        synchronized(writeBehindLock) {
+            if (pendingCount==0) return;
+            for (SegmentedObject o : objects) {
+                Map<String, ?> pending = pendingObjects.get(new Pair<>(o.isRoot()? null : o.getParentTrackHeadId(), o.getStructureIdx()));
+                if (pending!=null && pending.remove(o.getId())!=null) --pendingCount;
+                pending = pendingMeasurements.get(o.getStructureIdx());
+                if (pending!=null && pending.remove(o.getId())!=null) --pendingCount;
+            }
+        }
+    }
+
+    private void discardPending(Set<Integer> structureIdx) {
+        synchronized(writeBehindLock) {
+            if (pendingCount==0) return;
+            pendingObjects.entrySet().removeIf(e -> structureIdx==null || structureIdx.contains(e.getKey().value));
+            pendingMeasurements.entrySet().removeIf(e -> structureIdx==null || structureIdx.contains(e.getKey()));
+            pendingCount = pendingObjects.values().stream().mapToInt(Map::size).sum() + pendingMeasurements.values().stream().mapToInt(Map::size).sum();
+        }
+    }
+
     @Override
     public Experiment getExperiment() {
         return mDAO.getExperiment();
@@ -162,6 +386,8 @@ public class DBMapObjectDAO implements ObjectDAO {
                 if (!dbS.containsKey(structureIdx)) {
                     //logger.debug("creating db: {} (From DAO: {}), readOnly: {}", getDBFile(structureIdx), this.hashCode(), readOnly);
                     try {
+                        checkIndexStamp(structureIdx);
+                        fileOpenings.incrementAndGet();
                         res = createFileDB(getDBFile(structureIdx), readOnly);
                         dbS.put(structureIdx, res);
                     } catch (org.mapdb.DBException ex) {
@@ -192,41 +418,453 @@ public class DBMapObjectDAO implements ObjectDAO {
         }
         return res;
     }
+    private String getIndexDBFile(int structureIdx) {
+        return dir.resolve("objects_"+structureIdx+".index.db").toString();
+    }
+
+    /**
+     * Secondary indexes are stored in a separate file, so that versions that do not use indexes ignore them. This file also contains the parent tracks processed by a streamed run (see {@link #getProcessedParentTracks(int)})
+     * @param structureIdx object class index
+     * @return DB containing the secondary indexes of object class {@param structureIdx}
+     */
+    protected DB getIndexDB(int structureIdx) {
+        synchronized(indexDbS) {
+            DB res = indexDbS.get(structureIdx);
+            if (res==null && !indexDbS.containsKey(structureIdx)) {
+                try {
+                    fileOpenings.incrementAndGet();
+                    res = createFileDB(getIndexDBFile(structureIdx), readOnly);
+                } catch (org.mapdb.DBException|IOError ex) {
+                    logger.debug("Could not open index DB readOnly: "+readOnly, ex);
+                }
+                indexDbS.put(structureIdx, res);
+            }
+            return res;
+        }
+    }
+
+    /**
+     *
+     * @param key parent track head id and object class index
+     * @return map of frame and track head id of each object
+     */
+    protected HTreeMap<String, String> getIndexDBMap(Pair<String, Integer> key) {
+        synchronized(indexDbMaps) {
+            if (indexDbMaps.containsKey(key)) return indexDbMaps.get(key);
+            HTreeMap<String, String> res = null;
+            DB db = getIndexDB(key.value);
+            if (db!=null) {
+                res = DBMapUtils.createHTreeMap(db, key.key!=null? key.key : "root");
+                if (res!=null || readOnly) indexDbMaps.put(key, res);
+            }
+            return res;
+        }
+    }
+
+    /**
+     *
+     * @param structureIdx object class index
+     * @return map of parent track head id -> commit stamp of each persisted index, plus the commit counter and the stamp of the object file (see {@link #getObjectFileStamp(int)}) at last commit
+     */
+    protected HTreeMap<String, String> getIndexVersionMap(int structureIdx) {
+        DB db = getIndexDB(structureIdx);
+        return db==null ? null : DBMapUtils.createHTreeMap(db, INDEX_VERSION_MAP_NAME);
+    }
+
+    /**
+     *
+     * @param structureIdx object class index
+     * @return size and modification time of the object file of {@param structureIdx}, null if it does not exist
+     */
+    protected String getObjectFileStamp(int structureIdx) {
+        try {
+            Path p = Paths.get(getDBFile(structureIdx));
+            if (!Files.exists(p)) return null;
+            return Files.size(p) + ";" + Files.getLastModifiedTime(p).to(TimeUnit.MICROSECONDS);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Called before the object file is opened. If the object file was modified since persisted indices were last committed (e.g. by a version that does not maintain indices, or by a commit interrupted by a crash), persisted indices are not used: they are rebuilt when loaded. Guarded by dbS
+     * @param structureIdx object class index
+     */
+    private void checkIndexStamp(int structureIdx) {
+        HTreeMap<String, String> versions = getIndexVersionMap(structureIdx);
+        String stamp = getObjectFileStamp(structureIdx);
+        if (versions!=null && stamp!=null && stamp.equals(versions.get(INDEX_FILE_KEY))) return;
+        staleIndexDBs.add(structureIdx);
+        if (stamp!=null) logger.debug("Position: {} object class: {}: object file modified outside of this DAO, indices will be rebuilt", positionName, structureIdx);
+        if (!readOnly && versions!=null && !versions.isEmpty()) {
+            versions.clear();
+            getIndexDB(structureIdx).commit();
+        }
+    }
+
+    /**
+     * Records the state of the object file in the version map of the indices. Called after the object file has been committed or closed, when persisted indices are consistent with it
+     * @param structureIdx object class index
+     * @return whether the version map was modified
+     */
+    private boolean recordObjectFileStamp(int structureIdx) {
+        if (readOnly) return false;
+        HTreeMap<String, String> versions = getIndexVersionMap(structureIdx);
+        if (versions==null) return false;
+        String stamp = getObjectFileStamp(structureIdx);
+        if (stamp==null || stamp.equals(versions.get(INDEX_FILE_KEY))) return false;
+        versions.put(INDEX_FILE_KEY, stamp);
+        return true;
+    }
+
+    /**
+     *
+     * @param key parent track head id and object class index
+     * @return secondary indexes (frame and track head) of the stored objects of a parent track
+     */
+    protected ObjectIndex getIndex(Pair<String, Integer> key) {
+        synchronized(indices) {
+            ObjectIndex res = indices.get(key);
+            if (res==null) {
+                res = loadIndex(key);
+                indices.put(key, res);
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Updates loaded secondary indexes after objects have been written
+     * @param key parent track head id and object class index
+     * @param objects written objects
+     */
+    protected void updateIndex(Pair<String, Integer> key, Collection<ObjectSnapshot> objects) {
+        ObjectIndex index;
+        synchronized(indices) {
+            index = indices.get(key);
+        }
+        if (index==null) return;
+        for (ObjectSnapshot o : objects) index.put(o.id, o.frame, o.trackHeadId, o.isTrackHead);
+    }
+
+    /**
+     * Updates loaded secondary indexes after objects have been removed
+     * @param key parent track head id and object class index
+     * @param objects removed objects
+     */
+    protected void removeFromIndex(Pair<String, Integer> key, Collection<SegmentedObject> objects) {
+        ObjectIndex index;
+        synchronized(indices) {
+            index = indices.get(key);
+        }
+        if (index!=null) for (SegmentedObject o : objects) index.remove(o.getId());
+    }
+
+    // object store. Implementations using another file layout override the following methods
+    /**
+     * Reads and parses the stored objects of a parent track
+     * @param key parent track head id and object class index
+     * @param excludeIds ids of objects that should not be parsed (e.g. because they are already in cache)
+     * @return stored objects whose id is not in {@param excludeIds}, mapped by id
+     */
+    protected Map<String, SegmentedObject> retrieveObjects(Pair<String, Integer> key, Set<String> excludeIds) {
+        SegmentedObjectAccessor accessor = getMasterDAO().getAccess();
+        HTreeMap<String, String> dbm = getDBMap(key);
+        Stream<String> serializedObjects = excludeIds.isEmpty() ? getValues(dbm).parallelStream() : getEntrySet(dbm).parallelStream().filter(e -> !excludeIds.contains(e.getKey())).map(Map.Entry::getValue);
+        return serializedObjects.map(accessor::createFromJSON)
+                .filter(Objects::nonNull)
+                .peek(o -> accessor.setDAO(o,this))
+                .collect(Collectors.toMap(SegmentedObject::getId, o->o));
+    }
+
+    /**
+     * Reads and parses some stored objects of a parent track
+     * @param key parent track head id and object class index
+     * @param ids ids of objects to retrieve
+     * @return stored objects whose id is in {@param ids}, mapped by id
+     */
+    protected Map<String, SegmentedObject> retrieveObjectsById(Pair<String, Integer> key, Collection<String> ids) {
+        SegmentedObjectAccessor accessor = getMasterDAO().getAccess();
+        HTreeMap<String, String> dbm = getDBMap(key);
+        if (dbm==null) return new HashMap<>();
+        return ids.parallelStream().map(dbm::get)
+                .filter(Objects::nonNull)
+                .map(accessor::createFromJSON)
+                .filter(Objects::nonNull)
+                .peek(o -> accessor.setDAO(o,this))
+                .collect(Collectors.toMap(SegmentedObject::getId, o->o));
+    }
+
+    /**
+     * Loads secondary indexes of a parent track. The persisted index is used if its commit stamp is valid, without reading the stored objects: the stamp is invalidated before the objects of the parent track are committed and set after, and all stamps are discarded if the object file was modified outside of this DAO (see {@link #checkIndexStamp(int)}).
+     * Otherwise (files written before indexes were introduced, interrupted commit, or objects modified by a version that does not maintain indexes), it is rebuilt from the frame and track head entries of the stored objects, which are read but not parsed, and persisted at next commit
+     * @param key parent track head id and object class index
+     * @return index of stored objects
+     */
+    protected ObjectIndex loadIndex(Pair<String, Integer> key) {
+        ObjectIndex res = new ObjectIndex();
+        HTreeMap<String, String> dbm = getDBMap(key);
+        if (dbm==null) return res;
+        HTreeMap<String, String> indexMap = getIndexDBMap(key);
+        HTreeMap<String, String> versions = getIndexVersionMap(key.value);
+        String name = key.key!=null? key.key : "root";
+        boolean stale;
+        synchronized(dbS) {
+            stale = staleIndexDBs.contains(key.value);
+        }
+        String stamp = versions==null || stale ? null : versions.get(name);
+        if (indexMap!=null && stamp!=null && !INDEX_DIRTY.equals(stamp)) {
+            for (Map.Entry<String, String> e : getEntrySet(indexMap)) res.put(e.getKey(), e.getValue());
+            return res;
+        }
+        long t0 = System.currentTimeMillis();
+        Set<String> indexedEntries = new HashSet<>(Arrays.asList("id", "frame", "thId", "isTh"));
+        getValues(dbm).parallelStream().map(s -> JSONUtils.extractScalarEntries(s, indexedEntries)).forEach(e -> {
+            String thId = e.get("thId");
+            res.put(e.get("id"), Integer.parseInt(e.get("frame")), thId==null || "null".equals(thId) ? null : thId, "true".equals(e.get("isTh")));
+        });
+        if (!readOnly && indexMap!=null) {
+            indexMap.clear();
+            indexMap.putAll(res.getIds().stream().collect(Collectors.toMap(id -> id, res::getEncoded)));
+            synchronized(modifiedIndices) {
+                modifiedIndices.add(key);
+            }
+        }
+        logger.debug("built index of {} objects of structure: {} parent: {} in {}ms", res.size(), key.value, key.key, System.currentTimeMillis()-t0);
+        return res;
+    }
+
+    /**
+     * Serialized state of an object, with the properties used by the secondary indexes
+     */
+    protected static class ObjectSnapshot {
+        final String id, trackHeadId;
+        final int frame;
+        final boolean isTrackHead;
+        final Object serialized;
+        ObjectSnapshot(String id, int frame, String trackHeadId, boolean isTrackHead, Object serialized) {
+            this.id = id;
+            this.frame = frame;
+            this.trackHeadId = trackHeadId;
+            this.isTrackHead = isTrackHead;
+            this.serialized = serialized;
+        }
+    }
+
+    /**
+     * Serializes an object. Region container is already up-to-date
+     * @param o object
+     * @return snapshot of {@param o}
+     */
+    protected ObjectSnapshot snapshot(SegmentedObject o) {
+        return new ObjectSnapshot(o.getId(), o.getFrame(), getMasterDAO().getAccess().trackHeadId(o), o.isTrackHead(), serialize(o));
+    }
+
+    /**
+     *
+     * @param o object
+     * @return serialized object, in the format of {@link #writeSnapshots(Pair, Collection)}
+     */
+    protected Object serialize(SegmentedObject o) {
+        return JSONUtils.serialize(o);
+    }
+
+    /**
+     * Writes objects of a parent track. Region containers are already up-to-date. Changes are persisted at next call to {@link #commitObjects(int)}
+     * @param key parent track head id and object class index
+     * @param objects objects to insert or replace
+     */
+    protected void writeObjects(Pair<String, Integer> key, Collection<SegmentedObject> objects) {
+        writeSnapshots(key, objects.parallelStream().map(this::snapshot).collect(Collectors.toList()));
+    }
+
+    /**
+     * Writes serialized objects of a parent track. Changes are persisted at next call to {@link #commitObjects(int)}
+     * @param key parent track head id and object class index
+     * @param objects objects to insert or replace
+     */
+    protected void writeSnapshots(Pair<String, Integer> key, Collection<ObjectSnapshot> objects) {
+        if (objects.isEmpty()) return;
+        ObjectIndex index = getIndex(key); // loaded before writing, as it may be rebuilt from stored objects
+        HTreeMap<String, String> dbMap = getDBMap(key);
+        for (ObjectSnapshot o : objects) {
+            dbMap.put(o.id, (String)o.serialized);
+            index.put(o.id, o.frame, o.trackHeadId, o.isTrackHead);
+        }
+        getIndexDBMap(key).putAll(objects.stream().collect(Collectors.toMap(o -> o.id, o -> index.getEncoded(o.id))));
+        synchronized(modifiedIndices) {
+            modifiedIndices.add(key);
+        }
+    }
+
+    protected void removeObjects(Pair<String, Integer> key, Collection<SegmentedObject> objects) {
+        ObjectIndex index = getIndex(key);
+        HTreeMap<String, String> dbMap = getDBMap(key);
+        HTreeMap<String, String> indexMap = getIndexDBMap(key);
+        objects.forEach(o -> {
+            dbMap.remove(o.getId());
+            indexMap.remove(o.getId());
+        });
+        removeFromIndex(key, objects);
+        synchronized(modifiedIndices) {
+            modifiedIndices.add(key);
+        }
+    }
+
+    /**
+     * Commits objects. Stamps of modified indices are invalidated and committed before, and set after: if the commit of the objects is interrupted, modified indices are rebuilt when loaded
+     * @param structureIdx object class index
+     */
+    protected void commitObjects(int structureIdx) {
+        List<Pair<String, Integer>> modified;
+        synchronized(modifiedIndices) {
+            modified = modifiedIndices.stream().filter(k -> k.value==structureIdx).collect(Collectors.toList());
+        }
+        HTreeMap<String, String> versions = readOnly ? null : getIndexVersionMap(structureIdx);
+        if (versions!=null && !modified.isEmpty()) {
+            for (Pair<String, Integer> key : modified) versions.put(key.key!=null? key.key : "root", INDEX_DIRTY);
+            getIndexDB(structureIdx).commit();
+        }
+        getDB(structureIdx).commit();
+        synchronized(modifiedIndices) {
+            modifiedIndices.removeAll(modified);
+        }
+        if (versions==null) return;
+        if (!modified.isEmpty()) {
+            String commit = String.valueOf(Long.parseLong(versions.getOrDefault(INDEX_COMMIT_KEY, "0")) + 1);
+            versions.put(INDEX_COMMIT_KEY, commit);
+            for (Pair<String, Integer> key : modified) {
+                boolean loaded;
+                synchronized(indices) {
+                    loaded = indices.containsKey(key);
+                }
+                if (loaded) versions.put(key.key!=null? key.key : "root", commit);
+            }
+        }
+        if (recordObjectFileStamp(structureIdx) || !modified.isEmpty()) getIndexDB(structureIdx).commit();
+    }
+
+    /**
+     *
+     * @param structureIdx object class index
+     * @return ids of parent track heads that have stored objects of class {@param structureIdx}
+     */
+    protected Iterable<String> getStoredParentTrackHeadIds(int structureIdx) {
+        List<String> res = new ArrayList<>();
+        for (String n : DBMapUtils.getNames(getDB(structureIdx))) res.add(n);
+        return res;
+    }
+
+    protected void deleteObjectFiles(int structureIdx) {
+        if (this.dbS.containsKey(structureIdx)) {
+            dbS.remove(structureIdx).close();
+            dbMaps.entrySet().removeIf(k -> k.getKey().value==structureIdx);
+        }
+        synchronized(indexDbMaps) {
+            indexDbMaps.entrySet().removeIf(k -> k.getKey().value==structureIdx);
+        }
+        synchronized(indices) {
+            indices.entrySet().removeIf(k -> k.getKey().value==structureIdx);
+        }
+        synchronized(modifiedIndices) {
+            modifiedIndices.removeIf(k -> k.value==structureIdx);
+        }
+        synchronized(dbS) {
+            staleIndexDBs.remove(structureIdx);
+        }
+        deleteIndexDB(structureIdx);
+        synchronized(dbS) { // see compactIfFragmented
+            DBMapUtils.deleteDBFile(getDBFile(structureIdx));
+        }
+    }
+
+    /**
+     * Deletes persisted indexes and processed parent tracks of object class {@param structureIdx}
+     * @param structureIdx object class index
+     */
+    protected void deleteIndexDB(int structureIdx) {
+        synchronized(indexDbS) {
+            DB indexDB = indexDbS.remove(structureIdx);
+            if (indexDB!=null) indexDB.close();
+            DBMapUtils.deleteDBFile(getIndexDBFile(structureIdx));
+        }
+    }
+
+    @Override
+    public Set<String> getProcessedParentTracks(int structureIdx) {
+        synchronized(indexDbS) {
+            DB db = getIndexDB(structureIdx);
+            HTreeMap<String, String> map = db==null ? null : DBMapUtils.createHTreeMap(db, PROCESSED_PARENT_TRACKS_MAP_NAME);
+            return map==null ? new HashSet<>() : new HashSet<>(map.keySet());
+        }
+    }
+
+    /**
+     * Processed parent tracks are committed immediately
+     */
+    @Override
+    public void setProcessedParentTracks(int structureIdx, Collection<String> parentTrackHeadIds, boolean processed) {
+        if (readOnly || parentTrackHeadIds.isEmpty()) return;
+        synchronized(indexDbS) {
+            DB db = getIndexDB(structureIdx);
+            if (db==null) return;
+            HTreeMap<String, String> map = DBMapUtils.createHTreeMap(db, PROCESSED_PARENT_TRACKS_MAP_NAME);
+            for (String id : parentTrackHeadIds) {
+                if (processed) map.put(id, "");
+                else map.remove(id);
+            }
+            db.commit();
+        }
+    }
+
+    @Override
+    public void clearProcessedParentTracks(int structureIdx) {
+        if (readOnly) return;
+        synchronized(indexDbS) {
+            DB db = getIndexDB(structureIdx);
+            if (db==null) return;
+            HTreeMap<String, String> map = DBMapUtils.createHTreeMap(db, PROCESSED_PARENT_TRACKS_MAP_NAME);
+            if (map==null || map.isEmpty()) return;
+            map.clear();
+            db.commit();
+        }
+    }
+
+    /**
+     *
+     * @return existing files and directories containing the objects (not the measurements) of this position
+     */
+    public List<File> getObjectStoreFiles() {
+        List<File> res = new ArrayList<>();
+        for (int s = -1; s<getExperiment().getStructureCount(); ++s) {
+            File f = new File(getDBFile(s));
+            if (f.exists()) res.add(f);
+            File index = new File(getIndexDBFile(s));
+            if (index.exists()) res.add(index);
+        }
+        return res;
+    }
+
     protected Map<String, SegmentedObject> getChildren(Pair<String, Integer> key) {
         SegmentedObjectAccessor accessor = getMasterDAO().getAccess();
         if (cache.containsKey(key) && allObjectsRetrievedInCache.getOrDefault(key, false)) return cache.get(key);
         else {
             synchronized(this) {
                 if (cache.containsKey(key) && allObjectsRetrievedInCache.getOrDefault(key, false)) return cache.get(key);
-                HTreeMap<String, String> dbm = getDBMap(key);
                 if (cache.containsKey(key) && !cache.get(key).isEmpty()) {
                     long t0 = System.currentTimeMillis();
                     Map<String, SegmentedObject> objectMap = cache.get(key);
-                    Map<String, SegmentedObject> objectMapToAdd = getEntrySet(dbm).parallelStream()
-                            .filter((e) -> (!objectMap.containsKey(e.getKey())))
-                            .map((e) -> accessor.createFromJSON(e.getValue()))
-                            .filter(o->o!=null).map((o) -> {
-                                accessor.setDAO(o,this);
-                                return o;
-                            }).collect(Collectors.toMap(o->o.getId(), o->o));
+                    Map<String, SegmentedObject> objectMapToAdd = retrieveObjects(key, objectMap.keySet());
                     objectMap.putAll(objectMapToAdd);
                     long t1 = System.currentTimeMillis();
                     logger.debug("#{} (already: {}) objects from structure: {}, time {}", objectMap.size(), objectMap.size()-objectMapToAdd.size(), key.value, t1-t0);
                 } else {
                     long t0 = System.currentTimeMillis();
                     try {
-                        Collection<String> allStrings = getValues(dbm);
-                        allStrings.size();
-                        long t1 = System.currentTimeMillis();
-                        Map<String, SegmentedObject> objectMap = allStrings.parallelStream()
-                                .map(accessor::createFromJSON)
-                                .map((o) -> {
-                                    accessor.setDAO(o,this);
-                                    return o;
-                                }).collect(Collectors.toMap(o->o.getId(), o->o));
+                        Map<String, SegmentedObject> objectMap = retrieveObjects(key, Collections.emptySet());
                         cache.put(key, objectMap);
-                        long t2 = System.currentTimeMillis();
-                        //logger.debug("#{} objects from structure: {}, time to retrieve: {}, time to parse: {}", allStrings.size(), key.value, t1-t0, t2-t1);
+                        long t1 = System.currentTimeMillis();
+                        //logger.debug("#{} objects from structure: {}, time to retrieve: {}", objectMap.size(), key.value, t1-t0);
                     } catch(IOError|AssertionError|Exception e) {
                         logger.error("Corrupted DATA for structure: "+key.value+" parent: "+key, e);
                         allObjectsRetrievedInCache.put(key, true);
@@ -281,6 +919,35 @@ public class DBMapObjectDAO implements ObjectDAO {
             }
         }
     }
+
+    protected boolean isFullyRetrieved(Pair<String, Integer> key) {
+        return cache.containsKey(key) && allObjectsRetrievedInCache.getOrDefault(key, false);
+    }
+
+    /**
+     * Retrieves some objects of a parent track without retrieving the whole parent track. Retrieved objects are put in cache, and linked to their previous, next and track head objects if they are in cache
+     * @param key parent track head id and object class index
+     * @param ids ids of objects to retrieve
+     * @return objects in the order of {@param ids}. Objects that are not stored are omitted
+     */
+    protected List<SegmentedObject> getObjects(Pair<String, Integer> key, List<String> ids) {
+        SegmentedObjectAccessor accessor = getMasterDAO().getAccess();
+        synchronized(this) {
+            Map<String, SegmentedObject> objectMap = cache.getAndCreateIfNecessary(key);
+            List<String> missing = ids.stream().filter(id -> !objectMap.containsKey(id)).collect(Collectors.toList());
+            if (!missing.isEmpty()) {
+                Map<String, SegmentedObject> retrieved = retrieveObjectsById(key, missing);
+                objectMap.putAll(retrieved);
+                for (SegmentedObject o : retrieved.values()) {
+                    if (o.getNextId()!=null && objectMap.containsKey(o.getNextId())) o.setNext(objectMap.get(o.getNextId()));
+                    if (o.getPreviousId()!=null && objectMap.containsKey(o.getPreviousId())) o.setPrevious(objectMap.get(o.getPreviousId()));
+                    if (accessor.trackHeadId(o)!=null && objectMap.containsKey(accessor.trackHeadId(o))) accessor.setTrackHead(o, objectMap.get(accessor.trackHeadId(o)), false, false);
+                }
+            }
+            return ids.stream().map(objectMap::get).filter(Objects::nonNull).collect(Collectors.toList());
+        }
+    }
+
     private void setParents(Collection<SegmentedObject> objects, Pair<String, Integer> parentKey) {
         Map<String, SegmentedObject> allParents = getChildren(parentKey);
         for (SegmentedObject o : objects) if (!o.hasParent()) o.setParent(allParents.get(o.getParentId()));
@@ -289,6 +956,14 @@ public class DBMapObjectDAO implements ObjectDAO {
     public SegmentedObject getById(String parentTrackHeadId, int structureIdx, int frame, String id) {
         // parentTrackHeadId can be null in case of parent call -> frame not null
         // frame can be < 
+        if (parentTrackHeadId!=null && structureIdx>=0) {
+            Pair<String, Integer> key = new Pair<>(parentTrackHeadId, structureIdx);
+            if (!isFullyRetrieved(key)) { // only retrieve the requested object
+                if (!getIndex(key).contains(id)) return null;
+                List<SegmentedObject> res = getObjects(key, Collections.singletonList(id));
+                return res.isEmpty() ? null : res.get(0);
+            }
+        }
         if (parentTrackHeadId!=null || structureIdx==-1) {
             logger.debug("getById: sIdx={} f={}, allChilldren: {}", structureIdx, frame, getChildren(new Pair(parentTrackHeadId, structureIdx)).size());
             return ((Map<String, SegmentedObject>)getChildren(new Pair(parentTrackHeadId, structureIdx))).get(id);
@@ -305,7 +980,9 @@ public class DBMapObjectDAO implements ObjectDAO {
             Map<String, SegmentedObject> map = getChildren(new Pair(null, structureIdx));
             if (map.containsKey(id)) return map;
         } else {
-            for (String parentTHId : DBMapUtils.getNames(getDB(structureIdx))) {
+            for (String parentTHId : getStoredParentTrackHeadIds(structureIdx)) {
+                Pair<String, Integer> key = new Pair<>(parentTHId, structureIdx);
+                if (!isFullyRetrieved(key) && !getIndex(key).contains(id)) continue;
                 Map<String, SegmentedObject> map = getChildren(new Pair(parentTHId, structureIdx)); //"root".equals(parentTHId) ?  null :
                 if (map.containsKey(id)) return map;
             }
@@ -327,8 +1004,15 @@ public class DBMapObjectDAO implements ObjectDAO {
     
     @Override
     public List<SegmentedObject> getChildren(SegmentedObject parent, int structureIdx) {
+        Pair<String, Integer> key = new Pair<>(parent.getTrackHeadId(), structureIdx);
+        if (!isFullyRetrieved(key)) { // only retrieve objects of the frame of the parent
+            List<SegmentedObject> res = getObjects(key, getIndex(key).getIdsAtFrame(parent.getFrame())).stream().filter(o -> parent.getId().equals(o.getParentId())).collect(Collectors.toList());
+            res.forEach(o -> o.setParent(parent));
+            Collections.sort(res);
+            return res;
+        }
         List<SegmentedObject> res = new ArrayList<>();
-        Map<String, SegmentedObject> children = getChildren(new Pair(parent.getTrackHeadId(), structureIdx));
+        Map<String, SegmentedObject> children = getChildren(key);
         if (children==null) {
             logger.error("null children for: {} @ structure: {}", parent, structureIdx);
             return new ArrayList<>();
@@ -383,8 +1067,8 @@ public class DBMapObjectDAO implements ObjectDAO {
 
         for (SegmentedObject pth : byTh.keySet()) res.addAll(deleteChildren(byTh.get(pth), structureIdx, pth.getId(), false));
         if (commit) {
-            getDB(structureIdx).commit();
-            getMeasurementDB(structureIdx).key.commit();
+            commitObjects(structureIdx);
+            getMeasurementDB(structureIdx).commit();
         }
         return res;
     }
@@ -407,13 +1091,12 @@ public class DBMapObjectDAO implements ObjectDAO {
             toDelete.add(s);
             toDelete.addAll(Utils.toList(getExperiment().experimentStructure.getAllChildStructures(s)));
         }
+        discardPending(toDelete);
         for (int structureIdx : toDelete) {
-            if (this.dbS.containsKey(structureIdx)) {
-                dbS.remove(structureIdx).close();
-                dbMaps.entrySet().removeIf(k -> k.getKey().value==structureIdx);
+            deleteObjectFiles(structureIdx);
+            synchronized(measurementdbS) {
+                DBMapUtils.deleteDBFile(getMeasurementDBFile(structureIdx));
             }
-            DBMapUtils.deleteDBFile(getDBFile(structureIdx));
-            DBMapUtils.deleteDBFile(getMeasurementDBFile(structureIdx));
         }
     }
     @Override
@@ -424,57 +1107,200 @@ public class DBMapObjectDAO implements ObjectDAO {
     }
     @Override
     public void clearCache() {
+        flush();
         //logger.debug("clearing cache for Dao: {} / objects: {}, measurements: {}", this.positionName, this.dbS.keySet(), this.measurementdbS.keySet());
         applyOnAllOpenedObjects(o->{
             getMasterDAO().getAccess().flushImages(o);
             if (o.hasRegion()) o.getRegion().clearVoxels();
         }); // free memory in case objects are stored elsewhere (eg selection, tack mask...)
+        getMasterDAO().getAccess().clearDecodedRegions();
         cache.clear();
         allObjectsRetrievedInCache.clear();
         closeAllFiles(true);
     }
+
+    @Override
+    public void clearCache(List<SegmentedObject> parentTrack, int structureIdx) {
+        if (parentTrack.isEmpty()) return;
+        flush(); // objects will be retrieved from storage
+        SegmentedObjectAccessor accessor = getMasterDAO().getAccess();
+        Pair<String, Integer> key = new Pair<>(parentTrack.get(0).getTrackHeadId(), structureIdx);
+        Map<String, SegmentedObject> objects;
+        synchronized(this) {
+            objects = cache.remove(key);
+            allObjectsRetrievedInCache.remove(key);
+        }
+        parentTrack.forEach(p -> accessor.setChildren(p, null, structureIdx)); // children will be retrieved from storage
+        if (objects!=null) objects.values().forEach(o -> {
+            accessor.flushImages(o);
+            if (o.hasRegion()) o.getRegion().clearVoxels();
+        });
+    }
     
     @Override
     public synchronized void deleteAllObjects() {
+        discardPending((Set<Integer>)null);
         closeAllObjectFiles(false);
         closeAllMeasurementFiles(false);
         cache.clear();
         allObjectsRetrievedInCache.clear();
         if (readOnly) return;
         File f = dir.toFile();
-        if (f.exists() && f.isDirectory()) for (File subF : f.listFiles())  subF.delete();
+        synchronized(dbS) { // see compactIfFragmented
+            synchronized(measurementdbS) {
+                if (f.exists() && f.isDirectory()) for (File subF : f.listFiles())  Utils.deleteDirectory(subF);
+            }
+        }
     }
-    private synchronized void closeAllObjectFiles(boolean commit) {
-        for (DB db : dbS.values()) {
-            if (!readOnly && commit&&!db.isClosed()) db.commit();
+    protected synchronized void closeAllObjectFiles(boolean commit) {
+        for (Map.Entry<Integer, DB> e : dbS.entrySet()) {
+            if (!readOnly && commit&&!e.getValue().isClosed()) commitObjects(e.getKey());
             //logger.debug("closing object file : {} ({})", db, Utils.toStringList(Utils.getKeys(dbS, db), i->this.getDBFile(i)));
-            db.close();
+            e.getValue().close();
+            // uncommitted changes are discarded in both files: persisted indices are consistent with the closed object file
+            if (!readOnly) {
+                DB indexDB = getIndexDB(e.getKey());
+                if (indexDB!=null && !indexDB.isClosed()) {
+                    indexDB.rollback();
+                    if (recordObjectFileStamp(e.getKey())) indexDB.commit();
+                }
+            }
         }
         dbS.clear();
+        synchronized(dbS) {
+            staleIndexDBs.clear();
+        }
         dbMaps.clear();
+        synchronized(indexDbMaps) {
+            indexDbMaps.clear();
+        }
+        synchronized(indices) {
+            indices.clear();
+        }
+        synchronized(modifiedIndices) {
+            modifiedIndices.clear();
+        }
+        synchronized(indexDbS) {
+            for (DB db : indexDbS.values()) if (db!=null && !db.isClosed()) db.close();
+            indexDbS.clear();
+        }
         //cache.clear();
         //allObjectsRetrieved.clear();
     }
     public void closeAllFiles(boolean commit) {
+        if (commit) flush();
         closeAllObjectFiles(commit);
         closeAllMeasurementFiles(commit);
     }
     public synchronized void compactDBs(boolean onlyOpened) {
         if (readOnly) return;
+        flush();
         compactObjectDBs(onlyOpened);
         compactMeasurementDBs(onlyOpened);
     }
+    /**
+     * Compacts the object, index and measurement files of this position that are not open, when their fragmentation is high enough (see {@link DBMapUtils#compact(String)}).
+     * Fragmentation ratio of a file is estimated as 1 - (live bytes / file size) (see {@link DBMapUtils#getLiveBytes(String)}). Files that were not modified since last check are skipped.
+     * Each file is copied without locking the DAO, and replaced by its copy under the lock used to open files of its kind: if the file was opened or modified during the copy, the copy is discarded.
+     * @param minFragmentation minimal fragmentation ratio
+     * @param minReclaimableBytes minimal estimated number of reclaimable bytes
+     * @return number of reclaimed bytes
+     */
+    public long compactClosedFiles(double minFragmentation, long minReclaimableBytes) {
+        if (readOnly || pendingCount>0 || getExperiment()==null) return 0;
+        long res = 0;
+        for (int s = -1; s<getExperiment().getStructureCount(); ++s) {
+            int sIdx = s;
+            res += compactIfFragmented(getDBFile(s), dbS, () -> dbS.containsKey(sIdx), minFragmentation, minReclaimableBytes, () -> {
+                String stamp = getObjectFileStamp(sIdx);
+                return () -> updateIndexStampAfterCompaction(sIdx, stamp);
+            });
+            res += compactIfFragmented(getMeasurementDBFile(s), measurementdbS, () -> measurementdbS.containsKey(sIdx) || measurementReaders.containsKey(sIdx), minFragmentation, minReclaimableBytes, null);
+            res += compactIfFragmented(getIndexDBFile(s), indexDbS, () -> indexDbS.containsKey(sIdx), minFragmentation, minReclaimableBytes, null);
+        }
+        return res;
+    }
+
+    /**
+     *
+     * @param beforeReplace if not null, called under {@param fileLock} before the file is replaced by its compacted copy, returns an action performed under {@param fileLock} after replacement
+     */
+    private long compactIfFragmented(String path, Object fileLock, BooleanSupplier isOpen, double minFragmentation, long minReclaimableBytes, Supplier<Runnable> beforeReplace) {
+        File f = new File(path);
+        long[] state;
+        long openings;
+        synchronized(fileLock) {
+            if (isOpen.getAsBoolean() || !f.exists()) return 0;
+            state = new long[]{f.lastModified(), f.length()};
+            openings = fileOpenings.get();
+        }
+        if (Arrays.equals(compactionChecks.get(path), state)) return 0;
+        long size = state[1];
+        long live = DBMapUtils.getLiveBytes(path);
+        long reclaimed = 0;
+        if (live>=0 && size>0) {
+            double fragmentation = 1 - (double)live / size;
+            if (fragmentation>=minFragmentation && size - live>=minReclaimableBytes) {
+                long t0 = System.currentTimeMillis();
+                String copy = DBMapUtils.copyCompacted(path);
+                if (copy==null) return 0;
+                synchronized(fileLock) {
+                    if (isOpen.getAsBoolean() || openings!=fileOpenings.get() || !Arrays.equals(state, new long[]{f.lastModified(), f.length()})) {
+                        DBMapUtils.deleteCopy(copy);
+                        logger.debug("Position: {} file: {} was accessed during compaction", positionName, f.getName());
+                        return 0;
+                    }
+                    Runnable afterReplace = beforeReplace==null ? null : beforeReplace.get();
+                    reclaimed = Math.max(0, DBMapUtils.replaceByCopy(path, copy));
+                    if (afterReplace!=null) afterReplace.run();
+                    state = new long[]{f.lastModified(), f.length()};
+                }
+                logger.info("Position: {} compacted file: {} (fragmentation: {}) reclaimed: {} bytes in {}ms", positionName, f.getName(), String.format("%.2f", fragmentation), reclaimed, System.currentTimeMillis()-t0);
+            }
+        }
+        compactionChecks.put(path, state);
+        return reclaimed;
+    }
+
+    /**
+     * Compaction does not modify the content of the object file: if persisted indices were consistent with it, the recorded state of the object file is replaced by the state of the compacted file. Guarded by dbS
+     * @param structureIdx object class index
+     * @param previousStamp state of the object file before compaction
+     */
+    private void updateIndexStampAfterCompaction(int structureIdx, String previousStamp) {
+        if (previousStamp==null || !Files.exists(Paths.get(getIndexDBFile(structureIdx)))) return;
+        synchronized(indexDbS) {
+            DB db = indexDbS.get(structureIdx);
+            boolean temporary = db==null || db.isClosed();
+            try {
+                if (temporary) {
+                    fileOpenings.incrementAndGet();
+                    db = createFileDB(getIndexDBFile(structureIdx), false);
+                }
+                HTreeMap<String, String> versions = DBMapUtils.createHTreeMap(db, INDEX_VERSION_MAP_NAME);
+                if (versions!=null && previousStamp.equals(versions.get(INDEX_FILE_KEY))) {
+                    versions.put(INDEX_FILE_KEY, getObjectFileStamp(structureIdx));
+                    db.commit();
+                }
+            } catch (org.mapdb.DBException|IOError ex) {
+                logger.debug("Could not update index stamp after compaction", ex);
+            } finally {
+                if (temporary && db!=null && !db.isClosed()) db.close();
+            }
+        }
+    }
+
     public synchronized void compactObjectDBs(boolean onlyOpened) {
         if (readOnly) return;
         if (onlyOpened) {
-            for (DB db : this.dbS.values()) {
-                db.commit();
+            for (int s : new ArrayList<>(dbS.keySet())) {
+                commitObjects(s);
                 //db.compact();
             }
         } else {
             for (int s = -1; s<mDAO.getExperiment().getStructureCount(); ++s) {
                 if (dbS.keySet().contains(s)) {
-                    dbS.get(s).commit();
+                    commitObjects(s);
                     //dbS.get(s).compact();
                 } //else if (new File(getDBFile(s)).exists()) getDB(s).compact();
             }
@@ -483,14 +1309,14 @@ public class DBMapObjectDAO implements ObjectDAO {
     public synchronized void compactMeasurementDBs(boolean onlyOpened) {
         if (readOnly) return;
         if (onlyOpened) {
-            for (Pair<DB, ?> p : this.measurementdbS.values()) {
-                p.key.commit();
+            for (MeasurementStore p : this.measurementdbS.values()) {
+                p.commit();
                 //p.key.compact();
             }
         } else {
             for (int s = -1; s<mDAO.getExperiment().getStructureCount(); ++s) {
                 if (measurementdbS.keySet().contains(s)) {
-                    measurementdbS.get(s).key.commit();
+                    measurementdbS.get(s).commit();
                     //measurementdbS.get(s).key.compact();
                 } //else if (new File(this.getMeasurementDBFile(s)).exists()) this.getMeasurementDB(s).key.compact();
             }
@@ -509,6 +1335,7 @@ public class DBMapObjectDAO implements ObjectDAO {
     private Set<Integer> delete(Collection<SegmentedObject> list, boolean deleteChildren, boolean deleteFromParent, boolean relabelSiblings, boolean commit) {
         if (readOnly) return Collections.EMPTY_SET;
         SegmentedObjectAccessor accessor = getMasterDAO().getAccess();
+        discardPending(list);
         Map<Pair<String, Integer>, List<SegmentedObject>> splitByPTH = splitByParentTrackHeadIdAndStructureIdx(list);
         Set<Integer> allModifiedStructureIdx = new HashSet<>();
         for (Pair<String, Integer> key : splitByPTH.keySet()) {
@@ -520,11 +1347,10 @@ public class DBMapObjectDAO implements ObjectDAO {
                 }
             }
             
-            HTreeMap<String, String> dbMap = getDBMap(key);
-            toRemove.forEach((o) -> dbMap.remove(o.getId())); //.stream().sorted(Comparator.comparingInt(o->-o.getFrame())).
+            removeObjects(key, toRemove); //.stream().sorted(Comparator.comparingInt(o->-o.getFrame())).
             // also remove measurements
-            Pair<DB, HTreeMap<String, String>> mDB = getMeasurementDB(key.value);
-            if (mDB!=null) toRemove.forEach((o) -> mDB.value.remove(o.getId()));
+            MeasurementStore mDB = getMeasurementDB(key.value);
+            if (mDB!=null) toRemove.forEach((o) -> mDB.remove(o.getId()));
             if (cache.containsKey(key)) {
                 Map<String, SegmentedObject> cacheMap = cache.get(key);
                 for (SegmentedObject o : toRemove) cacheMap.remove(o.getId());
@@ -547,8 +1373,8 @@ public class DBMapObjectDAO implements ObjectDAO {
         }
         if (commit) {
             for (int i : allModifiedStructureIdx) {
-                getDB(i).commit();
-                getMeasurementDB(i).key.commit();
+                commitObjects(i);
+                getMeasurementDB(i).commit();
             }
         }
         return allModifiedStructureIdx;
@@ -558,18 +1384,40 @@ public class DBMapObjectDAO implements ObjectDAO {
     @Override
     public void store(SegmentedObject object) {
         if (readOnly) return;
+        if (isWriteBehind()) {
+            store(Collections.singletonList(object), true);
+            return;
+        }
         Pair<String, Integer> key = new Pair(object.getParentTrackHeadId(), object.getStructureIdx());
         if (object.hasMeasurementModifications()) upsertMeasurement(object);
         getMasterDAO().getAccess().updateRegionContainer(object);
         // get parent/pTh/next/prev ids ? 
         cache.getAndCreateIfNecessary(key).put(object.getId(), object);
-        getDBMap(key).put(object.getId(), JSONUtils.serialize(object));
-        getDB(object.getStructureIdx()).commit();
+        writeObjects(key, Collections.singletonList(object));
+        commitObjects(object.getStructureIdx());
     }
     protected void store(Collection<SegmentedObject> objects, boolean commit) {
-        SegmentedObjectAccessor accessor = getMasterDAO().getAccess();
         if (readOnly) return;
         if (objects==null || objects.isEmpty()) return;
+        if (isWriteBehind()) {
+            SegmentedObjectAccessor accessor = getMasterDAO().getAccess();
+            for (SegmentedObject o : objects) accessor.setDAO(o,this);
+            splitByParentTrackHeadIdAndStructureIdx(objects).forEach((key, toStore) -> {
+                Map<String, SegmentedObject> cacheMap = cache.getAndCreateIfNecessary(key);
+                toStore.forEach(o -> cacheMap.put(o.getId(), o));
+            });
+            bufferObjects(objects);
+        } else writeStore(objects, commit, true);
+    }
+
+    /**
+     * Writes objects and their modified measurements
+     * @param objects
+     * @param commit whether each object file should be committed
+     * @param upsertMeasurements whether modified measurements should be written
+     */
+    private void writeStore(Collection<SegmentedObject> objects, boolean commit, boolean upsertMeasurements) {
+        SegmentedObjectAccessor accessor = getMasterDAO().getAccess();
         //logger.debug("storing: {} commit: {}", objects.size(), commit);
         List<SegmentedObject> upserMeas = new ArrayList<>(objects.size());
         for (SegmentedObject o : objects) accessor.setDAO(o,this);
@@ -579,13 +1427,12 @@ public class DBMapObjectDAO implements ObjectDAO {
             List<SegmentedObject> toStore = splitByPTH.get(key);
             //logger.debug("storing: {} objects under key: {}", toStore.size(), key.toString());
             Map<String, SegmentedObject> cacheMap = cache.getAndCreateIfNecessary(key);
-            HTreeMap<String, String> dbMap = getDBMap(key);
             long t0 = System.currentTimeMillis();
-            Map<String, String> toStoreMap = toStore.parallelStream().map(o->{accessor.updateRegionContainer(o); return o;}).collect(Collectors.toMap(o->o.getId(), o->JSONUtils.serialize(o)));
+            toStore.parallelStream().forEach(accessor::updateRegionContainer);
             long t1 = System.currentTimeMillis();
-            dbMap.putAll(toStoreMap);
+            writeObjects(key, toStore);
             long t2 = System.currentTimeMillis();
-            logger.debug("storing: #{} objects of structure: {} to: {} in {}ms ({}ms+{}ms)",toStoreMap.size(), key.value, objects.iterator().next().getParent()==null ? "" : objects.iterator().next().getParent().getTrackHead(), t2-t0, t1-t0, t2-t1);
+            logger.debug("storing: #{} objects of structure: {} to parent track: {} in {}ms ({}ms+{}ms)",toStore.size(), key.value, key.key, t2-t0, t1-t0, t2-t1);
             toStore.stream().map((object) -> {
                 if (object.hasMeasurementModifications()) upserMeas.add(object);
                 return object;
@@ -593,10 +1440,10 @@ public class DBMapObjectDAO implements ObjectDAO {
                 cacheMap.put(object.getId(), object);
             });
             if (commit) {
-                this.getDB(key.value).commit();
+                commitObjects(key.value);
             }
         }
-        upsertMeasurements(upserMeas);
+        if (upsertMeasurements) writeMeasurements(upserMeas);
     }
     @Override
     public void store(Collection<SegmentedObject> objects) {
@@ -625,7 +1472,9 @@ public class DBMapObjectDAO implements ObjectDAO {
 
     @Override
     public List<SegmentedObject> getTrack(SegmentedObject trackHead) {
-        Map<String, SegmentedObject> allObjects = getChildren(new Pair(trackHead.getParentTrackHeadId(), trackHead.getStructureIdx()));
+        Pair<String, Integer> key = new Pair<>(trackHead.getParentTrackHeadId(), trackHead.getStructureIdx());
+        if (!isFullyRetrieved(key)) return getObjects(key, getIndex(key).getTrack(trackHead.getId())); // ordered by frame
+        Map<String, SegmentedObject> allObjects = getChildren(key);
         return allObjects.values().stream()
                 .filter(o->o.getTrackHeadId().equals(trackHead.getId()))
                 .sorted((o1, o2)-> Integer.compare(o1.getFrame(), o2.getFrame()))
@@ -636,10 +1485,12 @@ public class DBMapObjectDAO implements ObjectDAO {
     @Override
     public List<SegmentedObject> getTrackHeads(SegmentedObject parentTrack, int structureIdx) {
         long t0 = System.currentTimeMillis();
-        Map<String, SegmentedObject> allObjects = getChildren(new Pair(parentTrack.getId(), structureIdx));
+        Pair<String, Integer> key = new Pair<>(parentTrack.getId(), structureIdx);
+        List<SegmentedObject> list;
+        if (isFullyRetrieved(key)) list = getChildren(key).values().stream().filter(o->o.isTrackHead()).sorted().collect(Collectors.toList());
+        else list = getObjects(key, getIndex(key).getTrackHeadIds()).stream().filter(o->o.isTrackHead()).sorted().collect(Collectors.toList()); // only retrieve track heads
         long t1 = System.currentTimeMillis();
-        logger.debug("parent: {}, structure: {}, #{} objects retrieved in {}ms", parentTrack, structureIdx, allObjects.size(), t1-t0);
-        List<SegmentedObject> list = allObjects.values().stream().filter(o->o.isTrackHead()).sorted().collect(Collectors.toList());
+        logger.debug("parent: {}, structure: {}, #{} track heads retrieved in {}ms", parentTrack, structureIdx, list.size(), t1-t0);
         setParents(list, new Pair(parentTrack.getParentTrackHeadId(), parentTrack.getStructureIdx()));
         return list;
     }
@@ -649,17 +1500,15 @@ public class DBMapObjectDAO implements ObjectDAO {
     private String getMeasurementDBFile(int structureIdx) {
         return dir.resolve("measurements_"+structureIdx+".db").toString();
     }
-    protected Pair<DB, HTreeMap<String, String>> getMeasurementDB(int structureIdx) {
-        Pair<DB, HTreeMap<String, String>> res = this.measurementdbS.get(structureIdx);
+    protected MeasurementStore getMeasurementDB(int structureIdx) {
+        MeasurementStore res = this.measurementdbS.get(structureIdx);
         if (res==null) {
             synchronized(measurementdbS) {
                 if (!measurementdbS.containsKey(structureIdx)) {
                     try {
                         //logger.debug("opening measurement DB for structure: {}: file {} readONly: {}",structureIdx, getMeasurementDBFile(structureIdx), readOnly);
-                        DB db = DBMapUtils.createFileDB(getMeasurementDBFile(structureIdx), readOnly);
-                        //logger.debug("opening measurement DB for structure: {}: file {} readONly: {}: {}",structureIdx, getMeasurementDBFile(structureIdx), readOnly, db);
-                        HTreeMap<String, String> dbMap = DBMapUtils.createHTreeMap(db, "measurements");
-                        res = new Pair(db, dbMap);
+                        fileOpenings.incrementAndGet();
+                        res = new MeasurementStore(getMeasurementDBFile(structureIdx), positionName, readOnly);
                         measurementdbS.put(structureIdx, res);
                     }  catch (org.mapdb.DBException ex) {
                         logger.error("Couldnot create DB: readOnly:"+readOnly, ex);
@@ -673,52 +1522,121 @@ public class DBMapObjectDAO implements ObjectDAO {
         return res;
     }
     
+    /**
+     * Converts all measurement files of this position to the binary encoding or to the JSON encoding readable by previous versions (see {@link MeasurementStore#convert(String, String, boolean)})
+     * Files that are being read by a stream of {@link #streamMeasurements(int, IntPredicate)} are skipped
+     * @param toBinary target encoding
+     * @return number of converted measurements, or -1 if this DAO is read-only
+     */
+    public synchronized int convertMeasurements(boolean toBinary) {
+        if (readOnly) return -1;
+        flush();
+        closeAllMeasurementFiles(true);
+        int count = 0;
+        synchronized(measurementdbS) {
+            for (int s = -1; s<getExperiment().getStructureCount(); ++s) {
+                String path = getMeasurementDBFile(s);
+                if (!new File(path).exists()) continue;
+                if (measurementReaders.containsKey(s)) logger.warn("Position: {} measurement file: {} is being read and is not converted", positionName, path);
+                else count += MeasurementStore.convert(path, positionName, toBinary);
+            }
+        }
+        return count;
+    }
+
     @Override
     public void upsertMeasurements(Collection<SegmentedObject> objects) {
         if (readOnly) return;
+        if (isWriteBehind()) bufferMeasurements(objects);
+        else writeMeasurements(objects);
+    }
+
+    protected void writeMeasurements(Collection<SegmentedObject> objects) {
+        if (objects.isEmpty()) return;
         Map<Integer, List<SegmentedObject>> bySIdx = SegmentedObjectUtils.splitByStructureIdx(objects);
         for (int i : bySIdx.keySet()) {
-            Pair<DB, HTreeMap<String, String>> mDB = getMeasurementDB(i);
             List<SegmentedObject> toStore = bySIdx.get(i);
             long t0 = System.currentTimeMillis();
             toStore.parallelStream().forEach(o -> o.getMeasurements().updateObjectProperties(o));
             long t1 = System.currentTimeMillis();
-            Map<String, String> serializedObjects = toStore.parallelStream().collect(Collectors.toMap(SegmentedObject::getId, o->JSONUtils.serialize(o.getMeasurements())));
-            long t2 = System.currentTimeMillis();
-            mDB.value.putAll(serializedObjects);
-            long t3 = System.currentTimeMillis();
+            putMeasurements(i, toStore.stream().collect(Collectors.toMap(SegmentedObject::getId, SegmentedObject::getMeasurements)));
             toStore.forEach(o -> o.getMeasurements().modifications=false);
-            long t4 = System.currentTimeMillis();
-            mDB.key.commit();
-            long t5 = System.currentTimeMillis();
-            logger.debug("upsertMeas: update {}, serialize: {}, store: {}, commit {}", t1-t0, t2-t1, t3-t2, t5-t4);
+            logger.debug("upsertMeas: update {}, encode, store & commit: {}", t1-t0, System.currentTimeMillis()-t1);
         }
     }
 
+    /**
+     * Writes and commits measurements of an object class
+     * @param structureIdx object class index
+     * @param measurements measurements mapped by object id
+     */
+    protected void putMeasurements(int structureIdx, Map<String, Measurements> measurements) {
+        MeasurementStore mDB = getMeasurementDB(structureIdx);
+        mDB.putAll(measurements);
+        mDB.commit();
+    }
+
     @Override
     public void upsertMeasurement(SegmentedObject o) {
         if (readOnly) return;
+        if (isWriteBehind()) {
+            bufferMeasurements(Collections.singletonList(o));
+            return;
+        }
         o.getMeasurements().updateObjectProperties(o);
-        Pair<DB, HTreeMap<String, String>> mDB = getMeasurementDB(o.getStructureIdx());
-        mDB.value.put(o.getId(), JSONUtils.serialize(o.getMeasurements()));
-        mDB.key.commit();
+        MeasurementStore mDB = getMeasurementDB(o.getStructureIdx());
+        mDB.put(o.getId(), o.getMeasurements());
+        mDB.commit();
         o.getMeasurements().modifications=false;
     }
 
     @Override
     public List<Measurements> getMeasurements(int structureIdx, String... measurements) {
-        Pair<DB, HTreeMap<String, String>> mDB = getMeasurementDB(structureIdx);
-        return getValues(mDB.value).stream().map((s) -> new Measurements(parse(s), this.positionName)).collect(Collectors.toList());
+        flush();
+        MeasurementStore mDB = getMeasurementDB(structureIdx);
+        if (mDB==null) return Collections.emptyList();
+        return mDB.getAll();
+    }
+    /**
+     * If the measurement file of {@param structureIdx} is not already open, it is opened in read-only mode and closed when the returned stream is closed: the file is neither locked nor modified.
+     */
+    @Override
+    public Stream<Measurements> streamMeasurements(int structureIdx, IntPredicate frameFilter) {
+        flush();
+        String path = getMeasurementDBFile(structureIdx);
+        synchronized(measurementdbS) {
+            MeasurementStore open = measurementdbS.get(structureIdx);
+            if (open!=null) return open.stream(frameFilter);
+            if (!new File(path).exists()) return Stream.empty();
+            fileOpenings.incrementAndGet();
+            measurementReaders.merge(structureIdx, 1, Integer::sum);
+        }
+        MeasurementStore mDB;
+        try {
+            mDB = new MeasurementStore(path, positionName, true);
+        } catch (org.mapdb.DBException|IOError ex) {
+            logger.error("Could not open measurement DB: "+path, ex);
+            releaseMeasurementReader(structureIdx);
+            return Stream.empty();
+        }
+        return mDB.stream(frameFilter).onClose(() -> {
+            mDB.close(false);
+            releaseMeasurementReader(structureIdx);
+        });
+    }
+
+    private void releaseMeasurementReader(int structureIdx) {
+        synchronized(measurementdbS) {
+            measurementReaders.computeIfPresent(structureIdx, (s, count) -> count>1 ? count-1 : null);
+        }
     }
     @Override
     public Measurements getMeasurements(SegmentedObject o) {
-        Pair<DB, HTreeMap<String, String>> mDB = getMeasurementDB(o.getStructureIdx());
+        flush();
+        MeasurementStore mDB = getMeasurementDB(o.getStructureIdx());
         if (mDB==null) return null;
         try {
-            String mS = mDB.value.get(o.getId());
-            if (mS==null) return null;
-            Measurements m = new Measurements(parse(mS), this.positionName);
-            return m;
+            return mDB.get(o.getId());
         } catch (IOError e) {
             logger.error("Error while fetching measurement", e);
         }
@@ -727,25 +1645,33 @@ public class DBMapObjectDAO implements ObjectDAO {
     }
     @Override
     public void retrieveMeasurements(int... structureIdx) {
+        flush();
         SegmentedObjectAccessor accessor = getMasterDAO().getAccess();
         for (int sIdx : structureIdx) {
-            Pair<DB, HTreeMap<String, String>> mDB = getMeasurementDB(sIdx);
+            MeasurementStore mDB = getMeasurementDB(sIdx);
+            if (mDB==null) continue;
             SegmentedObjectUtils.getAllObjectsAsStream(this, sIdx)
                 .parallel()
                 .filter(o->!o.hasMeasurements()) // only objects without measurements
                 .forEach(o->{
-                    String mS = mDB.value.get(o.getId());
-                    if (mS!=null) accessor.setMeasurements(o, new Measurements(parse(mS), this.positionName));
+                    Measurements m = mDB.get(o.getId());
+                    if (m!=null) accessor.setMeasurements(o, m);
                 });
         }
     }
 
     @Override
     public void deleteAllMeasurements() {
+        synchronized(writeBehindLock) {
+            pendingCount -= pendingMeasurements.values().stream().mapToInt(Map::size).sum();
+            pendingMeasurements.clear();
+        }
         closeAllMeasurementFiles(false);
         deleteMeasurementsFromOpenObjects(); // also in opened structureObjects
         if (readOnly) return;
-        for (int s = 0; s<getExperiment().getStructureCount(); ++s) DBMapUtils.deleteDBFile(getMeasurementDBFile(s));
+        synchronized(measurementdbS) {
+            for (int s = 0; s<getExperiment().getStructureCount(); ++s) DBMapUtils.deleteDBFile(getMeasurementDBFile(s));
+        }
     }
     
     private void deleteMeasurementsFromOpenObjects() {
@@ -755,11 +1681,7 @@ public class DBMapObjectDAO implements ObjectDAO {
         }
     }
     private synchronized void closeAllMeasurementFiles(boolean commit) {
-        for (Pair<DB, HTreeMap<String, String>> p : this.measurementdbS.values()) {
-            if (!readOnly&&commit&&!p.key.isClosed()) p.key.commit();
-            //logger.debug("closing measurement DB: {} ({})",p.key, Utils.toStringList(Utils.getKeys(measurementdbS, p), i->getMeasurementDBFile(i)));
-            p.key.close();
-        }
+        for (MeasurementStore p : this.measurementdbS.values()) p.close(!readOnly&&commit);
         measurementdbS.clear();
     }
     
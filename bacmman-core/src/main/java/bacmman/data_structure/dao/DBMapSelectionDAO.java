@@ -27,24 +27,30 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.mapdb.DB;
 import org.mapdb.HTreeMap;
 import bacmman.utils.DBMapUtils;
 import bacmman.utils.FileIO;
 import bacmman.utils.JSONUtils;
+import org.json.simple.JSONObject;
 
 /**
  *
  * @author Jean Ollion
  */
 public class DBMapSelectionDAO implements SelectionDAO {
-    
+    public static final String MAP_NAME = "selections", ELEMENT_MAP_NAME = "selection_elements", FORMAT_MAP_NAME = "selection_format";
+    static final String FORMAT_KEY = "elements", PACKED = "packed", JSON = "json";
     final Path dir;
     final DBMapMasterDAO mDAO;
     DB db;
     HTreeMap<String, String> dbMap;
+    HTreeMap<String, byte[]> elementMap; // packed elements of selections, see Selection#encodeElements
+    boolean packed; // if false, elements are stored in the JSON entries, as in previous versions
     private final Map<String, Selection> idCache = new HashMap<>();
     private final boolean readOnly;
     public DBMapSelectionDAO(DBMapMasterDAO mDAO, String dir, boolean readOnly) {
@@ -56,7 +62,43 @@ public class DBMapSelectionDAO implements SelectionDAO {
     }
     private synchronized void makeDB() {
         db = DBMapUtils.createFileDB(getSelectionFile(), readOnly);
-        dbMap = DBMapUtils.createHTreeMap(db, "selections");
+        Set<String> names = new HashSet<>();
+        for (String n : DBMapUtils.getNames(db)) names.add(n);
+        dbMap = DBMapUtils.createHTreeMap(db, MAP_NAME);
+        String format = names.contains(FORMAT_MAP_NAME) ? DBMapUtils.createHTreeMap(db, FORMAT_MAP_NAME).get(FORMAT_KEY) : null;
+        if (format==null) format = dbMap!=null && !dbMap.isEmpty() && !names.contains(ELEMENT_MAP_NAME) ? JSON : PACKED; // files written by previous versions keep their format
+        packed = PACKED.equals(format);
+        elementMap = packed || names.contains(ELEMENT_MAP_NAME) ? DBMapUtils.createBinaryHTreeMap(db, ELEMENT_MAP_NAME) : null;
+        if (!readOnly && !names.contains(FORMAT_MAP_NAME)) {
+            DBMapUtils.createHTreeMap(db, FORMAT_MAP_NAME).put(FORMAT_KEY, format);
+            db.commit();
+        }
+    }
+
+    /**
+     *
+     * @return whether elements of selections are stored in a packed binary map. If false, they are stored in the JSON entries, that can be read by previous versions
+     */
+    public synchronized boolean isPacked() {
+        if (db==null || db.isClosed()) makeDB();
+        return packed;
+    }
+
+    /**
+     * Rewrites all selections with packed elements, or with elements in the JSON entries so that the selections can be read by previous versions. Selections are never converted implicitly.
+     * @param packed target format
+     * @return false in read-only mode
+     */
+    public synchronized boolean convertElements(boolean packed) {
+        if (readOnly) return false;
+        List<Selection> selections = getSelections();
+        if (elementMap==null) elementMap = DBMapUtils.createBinaryHTreeMap(db, ELEMENT_MAP_NAME);
+        this.packed = packed;
+        DBMapUtils.createHTreeMap(db, FORMAT_MAP_NAME).put(FORMAT_KEY, packed ? PACKED : JSON);
+        for (Selection s : selections) put(s);
+        db.commit();
+        logger.debug("{} selections converted to {} format", selections.size(), packed ? PACKED : JSON);
+        return true;
     }
     
     private String getSelectionFile() {
@@ -80,7 +122,11 @@ public class DBMapSelectionDAO implements SelectionDAO {
         idCache.clear();
         if (db.isClosed()) makeDB();
         for (String s : DBMapUtils.getValues(dbMap)) {
-            Selection sel = JSONUtils.parse(Selection.class, s);
+            JSONObject json = JSONUtils.parse(s);
+            Selection sel = new Selection();
+            sel.initFromJSONEntry(json);
+            byte[] elements = json.containsKey("objects") || elementMap==null ? null : elementMap.get(sel.getName());
+            if (elements!=null) sel.decodeElements(elements); // otherwise elements are in the JSON entry
             sel.setMasterDAO(mDAO);
             idCache.put(sel.getName(), sel);
         }
@@ -122,16 +168,27 @@ public class DBMapSelectionDAO implements SelectionDAO {
         }
         s.setMasterDAO(this.mDAO);
         if (db.isClosed()) makeDB();
-        this.dbMap.put(s.getName(), JSONUtils.serialize(s));
+        put(s);
         db.commit();
     }
 
+    private void put(Selection s) {
+        if (packed) {
+            this.elementMap.put(s.getName(), s.encodeElements());
+            this.dbMap.put(s.getName(), s.toJSONEntry(false).toJSONString());
+        } else {
+            this.dbMap.put(s.getName(), s.toJSONEntry(true).toJSONString());
+            if (elementMap!=null) elementMap.remove(s.getName());
+        }
+    }
+
     @Override
     public synchronized void delete(String id) {
         idCache.remove(id);
         if (readOnly) return;
         if (db.isClosed()) makeDB();
         dbMap.remove(id);
+        if (elementMap!=null) elementMap.remove(id);
         db.commit();
     }
 
@@ -147,6 +204,7 @@ public class DBMapSelectionDAO implements SelectionDAO {
         db.close();
         db=null;
         dbMap=null;
+        elementMap=null;
         DBMapUtils.deleteDBFile(getSelectionFile());
     }
     public synchronized void compact(boolean commit) {
@@ -35,6 +35,11 @@ public interface ImageDAO {
     public Image openPreProcessedImage(int channelImageIdx, int timePoint, String microscopyFieldName);
     public Image openPreProcessedImage(int channelImageIdx, int timePoint, String microscopyFieldName, MutableBoundingBox bounds);
     public BlankMask getPreProcessedImageProperties(int channelImageIdx, String microscopyFieldName);
+    /**
+     *
+     * @return value that changes when the pre-processed image is written again, 0 if unknown or if the image does not exist
+     */
+    public long getPreProcessedImageVersion(int channelImageIdx, int timePoint, String microscopyFieldName);
     public void writePreProcessedImage(Image image, int channelImageIdx, int timePoint, String microscopyFieldName);
     public void writePreProcessedImage(InputStream image, int channelImageIdx, int timePoint, String microscopyFieldName);
     public void deletePreProcessedImage(int channelImageIdx, int timePoint, String microscopyFieldName);
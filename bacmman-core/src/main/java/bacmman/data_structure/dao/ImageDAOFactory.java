@@ -25,10 +25,24 @@ import java.util.HashMap;
  * @author Jean Ollion
  */
 public class ImageDAOFactory {
-    public enum ImageDAOTypes {LocalTIF};
+    public enum ImageDAOTypes {LocalTIF, LocalChunked};
     static HashMap<String, LocalTIFImageDAO> localDirDAO = new HashMap<String, LocalTIFImageDAO>(1);
-    public ImageDAO getImageDAO(ImageDAOTypes type, String localDir) {
+    static HashMap<String, ChunkedImageDAO> chunkedDirDAO = new HashMap<String, ChunkedImageDAO>(1);
+    static HashMap<String, CachedImageDAO> cachedDAO = new HashMap<String, CachedImageDAO>(1);
+    /**
+     *
+     * @param type
+     * @param localDir
+     * @return image DAO of type {@param type} wrapped in a {@link CachedImageDAO} shared by all callers (frame cache is disabled by default)
+     */
+    public static synchronized CachedImageDAO getImageDAO(ImageDAOTypes type, String localDir) {
+        return cachedDAO.computeIfAbsent(type.name()+";"+localDir, k -> new CachedImageDAO(getSourceImageDAO(type, localDir)));
+    }
+    public static ImageDAO getSourceImageDAO(ImageDAOTypes type, String localDir) {
         switch (type) {
+            case LocalChunked: {
+                return getChunkedImageDAO(localDir);
+            }
             case LocalTIF:
             default: {
                 return getLocalTIFImageDAO(localDir);
@@ -43,4 +57,12 @@ public class ImageDAOFactory {
         }
         return dao;
     }
+    public static synchronized ChunkedImageDAO getChunkedImageDAO(String localDirectory) {
+        ChunkedImageDAO dao = chunkedDirDAO.get(localDirectory);
+        if (dao==null) {
+            dao = new ChunkedImageDAO(localDirectory);
+            chunkedDirDAO.put(localDirectory, dao);
+        }
+        return dao;
+    }
 }
@@ -26,14 +26,21 @@ import bacmman.image.Image;
 import bacmman.image.io.ImageFormat;
 import bacmman.image.io.ImageIOCoordinates;
 import bacmman.image.io.ImageReader;
+import bacmman.image.io.TIFRawReader;
 import bacmman.image.io.ImageWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
 
 import bacmman.utils.FileIO;
+import bacmman.utils.HashUtils;
 import bacmman.utils.Pair;
 import bacmman.utils.Utils;
 import org.slf4j.Logger;
@@ -72,7 +79,8 @@ public class LocalTIFImageDAO implements ImageDAO {
         File f = new File(path);
         if (f.exists()) {
             //long t0 = System.currentTimeMillis();
-            Image im = ImageReader.openImage(path);
+            Image im = TIFRawReader.openImage(path);
+            if (im==null) im = ImageReader.openImage(path);
             //long t1 = System.currentTimeMillis();
             //logger.debug("Opening pre-processed image:  channel: {} timePoint: {} position: {}, in {}ms", channelImageIdx, timePoint, microscopyFieldName, t1-t0);
             return im;
@@ -87,7 +95,9 @@ public class LocalTIFImageDAO implements ImageDAO {
         File f = new File(path);
         if (f.exists()) {
             logger.trace("Opening pre-processed image:  channel: {} timePoint: {} fieldName: {} bounds: {}", channelImageIdx, timePoint, microscopyFieldName, bounds);
-            return ImageReader.openImage(path, new ImageIOCoordinates(bounds));
+            Image im = TIFRawReader.openImage(path, bounds); // only reads rows within bounds
+            if (im==null) im = ImageReader.openImage(path, new ImageIOCoordinates(bounds));
+            return im;
         } else {
             logger.error("pre-processed image: {} not found", path);
             return null;
@@ -100,6 +110,25 @@ public class LocalTIFImageDAO implements ImageDAO {
         if (f.exists()) f.delete();
     }
 
+    /**
+     * Combines the modification time at the resolution of the file system ({@link File#lastModified()} can be truncated to the second), the size and the identity of the file, so that rewriting a frame changes the version without reading the image
+     */
+    @Override
+    public long getPreProcessedImageVersion(int channelImageIdx, int timePoint, String microscopyFieldName) {
+        String path = getPreProcessedImagePath(channelImageIdx, timePoint, microscopyFieldName);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+            long h = HashUtils.combine(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), attributes.size());
+            if (attributes.fileKey()!=null) h = HashUtils.combine(h, attributes.fileKey().hashCode());
+            return h==0 ? 1 : h; // 0 means the image does not exist
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            logger.debug("could not read attributes of pre-processed image: "+path, e);
+            return 0;
+        }
+    }
+
     @Override
     public BlankMask getPreProcessedImageProperties(int channelIdx, String microscopyFieldName) {
         String path = getPreProcessedImagePath(channelIdx, 0, microscopyFieldName);
@@ -75,6 +75,16 @@ public interface MasterDAO {
     public SelectionDAO getSelectionDAO();
     
     // static methods
+    /**
+     *
+     * @param db
+     * @param objectClassIdx
+     * @return query on stored measurements of {@param objectClassIdx}
+     */
+    public static MeasurementQuery query(MasterDAO db, int objectClassIdx) {
+        return new MeasurementQuery(db, objectClassIdx);
+    }
+
     public static ObjectDAO getDao(MasterDAO db, int positionIdx) {
         String p = db.getExperiment().getPosition(positionIdx).getName();
         return db.getDao(p);
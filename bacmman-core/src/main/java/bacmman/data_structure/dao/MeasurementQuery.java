@@ -0,0 +1,183 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import bacmman.data_structure.Measurements;
+import bacmman.data_structure.Selection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.function.DoublePredicate;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Selects objects of one object class from their stored measurements. Only measurement stores are scanned (see {@link ObjectDAO#streamMeasurements(int, IntPredicate)}): objects and regions are not loaded.
+ * Positions are scanned in parallel. Conditions are combined with a logical AND. Measurement files that are not already open are opened in read-only mode: a query never modifies the files.
+ * <pre>
+ * Selection s = MasterDAO.query(db, 1).setFrameRange(0, 100).whereNumber("Size", v -> v > 500).toSelection("big cells");
+ * </pre>
+ * Only measurements that have been stored are considered: modifications of objects that are not saved are ignored.
+ * @author Jean Ollion
+ */
+public class MeasurementQuery {
+    public final static Logger logger = LoggerFactory.getLogger(MeasurementQuery.class);
+    final MasterDAO db;
+    final int objectClassIdx;
+    List<String> positions;
+    IntPredicate frameFilter;
+    final List<Predicate<Measurements>> conditions = new ArrayList<>();
+
+    public MeasurementQuery(MasterDAO db, int objectClassIdx) {
+        this.db = db;
+        this.objectClassIdx = objectClassIdx;
+    }
+
+    public int getObjectClassIdx() {
+        return objectClassIdx;
+    }
+
+    /**
+     *
+     * @param positions positions to scan. If none, all positions are scanned
+     * @return this query
+     */
+    public MeasurementQuery setPositions(String... positions) {
+        this.positions = positions==null || positions.length==0 ? null : Arrays.asList(positions);
+        return this;
+    }
+
+    public MeasurementQuery setFrames(IntPredicate frameFilter) {
+        this.frameFilter = this.frameFilter==null ? frameFilter : this.frameFilter.and(frameFilter);
+        return this;
+    }
+
+    /**
+     *
+     * @param minFrame included
+     * @param maxFrame included
+     * @return this query
+     */
+    public MeasurementQuery setFrameRange(int minFrame, int maxFrame) {
+        return setFrames(f -> f>=minFrame && f<=maxFrame);
+    }
+
+    /**
+     * Adds a condition on a numerical measurement. Objects for which the value is missing or is not a number are rejected
+     * @param key measurement key
+     * @param condition
+     * @return this query
+     */
+    public MeasurementQuery whereNumber(String key, DoublePredicate condition) {
+        conditions.add(m -> {
+            Object v = m.getValue(key);
+            return v instanceof Number && condition.test(((Number)v).doubleValue());
+        });
+        return this;
+    }
+
+    /**
+     * Adds a condition on a boolean measurement. Objects for which the value is missing are rejected
+     * @param key measurement key
+     * @param value expected value
+     * @return this query
+     */
+    public MeasurementQuery whereBoolean(String key, boolean value) {
+        conditions.add(m -> Boolean.valueOf(value).equals(m.getValue(key)));
+        return this;
+    }
+
+    /**
+     * Adds a condition on a text measurement. Objects for which the value is missing are rejected
+     * @param key measurement key
+     * @param condition
+     * @return this query
+     */
+    public MeasurementQuery whereString(String key, Predicate<String> condition) {
+        conditions.add(m -> {
+            Object v = m.getValue(key);
+            return v instanceof String && condition.test((String)v);
+        });
+        return this;
+    }
+
+    /**
+     * Adds a condition on the presence of a measurement
+     * @param key measurement key
+     * @param present whether the value should be present or missing
+     * @return this query
+     */
+    public MeasurementQuery whereDefined(String key, boolean present) {
+        conditions.add(m -> (m.getValue(key)!=null) == present);
+        return this;
+    }
+
+    /**
+     * Adds a condition on all the measurements of an object (e.g. combination of several values)
+     * @param condition
+     * @return this query
+     */
+    public MeasurementQuery where(Predicate<Measurements> condition) {
+        conditions.add(condition);
+        return this;
+    }
+
+    protected List<String> getPositions() {
+        return positions==null ? Arrays.asList(db.getExperiment().getPositionsAsString()) : positions;
+    }
+
+    /**
+     * Measurement stores are opened when this method is called, scanning is performed while the stream is consumed. The store of each position is closed once it has been scanned
+     * @return measurements of objects that fulfill all conditions
+     */
+    public Stream<Measurements> stream() {
+        List<ObjectDAO> daos = getPositions().stream().map(db::getDao).collect(Collectors.toList()); // DAOs are created in the calling thread
+        Predicate<Measurements> filter = conditions.stream().reduce(Predicate::and).orElse(m -> true);
+        return daos.parallelStream().flatMap(dao -> dao.streamMeasurements(objectClassIdx, frameFilter)).filter(filter);
+    }
+
+    /**
+     *
+     * @return ids of objects that fulfill all conditions
+     */
+    public Stream<String> ids() {
+        return stream().map(Measurements::getId);
+    }
+
+    public long count() {
+        return stream().count();
+    }
+
+    /**
+     *
+     * @param name name of the selection
+     * @return new selection containing all objects that fulfill all conditions. The selection is not stored
+     */
+    public Selection toSelection(String name) {
+        long t0 = System.currentTimeMillis();
+        Map<String, List<int[]>> indicesByPosition = stream().collect(Collectors.groupingByConcurrent(Measurements::getPosition, Collectors.mapping(Measurements::getIndices, Collectors.toList())));
+        Selection res = new Selection(name, objectClassIdx, db);
+        indicesByPosition.forEach((p, l) -> l.forEach(i -> res.addElement(p, i)));
+        logger.debug("query on object class: {} selected {} objects in {}ms", objectClassIdx, res.count(), System.currentTimeMillis()-t0);
+        return res;
+    }
+}
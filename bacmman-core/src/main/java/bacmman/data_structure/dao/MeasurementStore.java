@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import bacmman.data_structure.Measurements;
+import bacmman.data_structure.MeasurementsCodec;
+import bacmman.utils.DBMapUtils;
+import bacmman.utils.JSONUtils;
+import org.mapdb.DB;
+import org.mapdb.HTreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static bacmman.utils.JSONUtils.parse;
+
+/**
+ * Measurements of one object class of a position, stored in a MapDB file.
+ * Two encodings are supported: the binary encoding of {@link MeasurementsCodec} (default for new files) and the former JSON encoding, that can be read by previous versions. The encoding of a file is recorded in the file and is only changed by {@link #convert(String, String, boolean)}: files are never converted implicitly.
+ * With the binary encoding, the key dictionary of the object class is stored in the same file.
+ * @author Jean Ollion
+ */
+public class MeasurementStore {
+    private final static Logger logger = LoggerFactory.getLogger(MeasurementStore.class);
+    public static final String MAP_NAME = "measurements_bin", KEY_MAP_NAME = "measurement_keys", LEGACY_MAP_NAME = "measurements", FORMAT_MAP_NAME = "measurement_format";
+    static final String FORMAT_KEY = "encoding", BINARY = "binary", JSON = "json";
+    static final int CONVERSION_BATCH = 10000;
+    final DB db;
+    HTreeMap<String, byte[]> map;
+    HTreeMap<String, String> keyMap;
+    HTreeMap<String, String> legacyMap;
+    final MeasurementsCodec.KeyDictionary dict;
+    final String positionName;
+    final boolean readOnly;
+    final boolean binary;
+
+    public MeasurementStore(String path, String positionName, boolean readOnly) {
+        this.positionName = positionName;
+        this.readOnly = readOnly;
+        this.db = DBMapUtils.createFileDB(path, readOnly);
+        Set<String> names = new HashSet<>();
+        for (String n : DBMapUtils.getNames(db)) names.add(n);
+        String format = names.contains(FORMAT_MAP_NAME) ? DBMapUtils.createHTreeMap(db, FORMAT_MAP_NAME).get(FORMAT_KEY) : null;
+        if (format==null) format = names.contains(LEGACY_MAP_NAME) && !names.contains(MAP_NAME) ? JSON : BINARY; // files written before the binary encoding
+        this.binary = BINARY.equals(format);
+        if (binary || names.contains(MAP_NAME)) { // binary entries can remain after an interrupted conversion
+            this.map = DBMapUtils.createBinaryHTreeMap(db, MAP_NAME);
+            this.keyMap = DBMapUtils.createHTreeMap(db, KEY_MAP_NAME);
+        }
+        if (!binary || names.contains(LEGACY_MAP_NAME)) this.legacyMap = DBMapUtils.createHTreeMap(db, LEGACY_MAP_NAME);
+        Map<Integer, String> keys = new HashMap<>();
+        if (keyMap!=null) keyMap.getEntries().forEach(e -> keys.put(Integer.parseInt(e.getKey()), e.getValue()));
+        this.dict = new MeasurementsCodec.KeyDictionary(keys);
+        if (!readOnly && !names.contains(FORMAT_MAP_NAME)) setFormat(format);
+    }
+
+    private void setFormat(String format) {
+        DBMapUtils.createHTreeMap(db, FORMAT_MAP_NAME).put(FORMAT_KEY, format);
+    }
+
+    /**
+     *
+     * @return whether entries are written with the binary encoding. If false, they are written with the JSON encoding
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Converts all entries of a measurement file to one encoding. The file must not be open.
+     * Entries are converted by batch. In case of interruption, entries of both encodings are read and the conversion can be resumed.
+     * @param path measurement file
+     * @param positionName
+     * @param toBinary if true, entries are converted to the binary encoding, otherwise to the JSON encoding readable by previous versions
+     * @return number of converted entries
+     */
+    public static int convert(String path, String positionName, boolean toBinary) {
+        MeasurementStore store = new MeasurementStore(path, positionName, false);
+        try {
+            return store.convert(toBinary);
+        } finally {
+            store.close(false);
+        }
+    }
+
+    protected int convert(boolean toBinary) {
+        long t0 = System.currentTimeMillis();
+        if (toBinary && map==null) {
+            map = DBMapUtils.createBinaryHTreeMap(db, MAP_NAME);
+            keyMap = DBMapUtils.createHTreeMap(db, KEY_MAP_NAME);
+        } else if (!toBinary && legacyMap==null) legacyMap = DBMapUtils.createHTreeMap(db, LEGACY_MAP_NAME);
+        int count = 0;
+        if (toBinary && legacyMap!=null) {
+            Map<String, byte[]> batch = new HashMap<>();
+            for (Map.Entry<String, String> e : legacyMap.getEntries()) {
+                batch.put(e.getKey(), MeasurementsCodec.encode(new Measurements(parse(e.getValue()), positionName), dict));
+                if (batch.size()>=CONVERSION_BATCH) count += writeBatch(batch, map, legacyMap);
+            }
+            count += writeBatch(batch, map, legacyMap);
+        } else if (!toBinary && map!=null) {
+            Map<String, String> batch = new HashMap<>();
+            for (Map.Entry<String, byte[]> e : map.getEntries()) {
+                batch.put(e.getKey(), JSONUtils.serialize(MeasurementsCodec.decode(e.getValue(), e.getKey(), positionName, dict)));
+                if (batch.size()>=CONVERSION_BATCH) count += writeBatch(batch, legacyMap, map);
+            }
+            count += writeBatch(batch, legacyMap, map);
+            keyMap.clear();
+            dict.pollAddedEntries();
+        }
+        setFormat(toBinary ? BINARY : JSON);
+        commit();
+        logger.info("Position: {} converted {} measurements to {} encoding in {}ms", positionName, count, toBinary ? BINARY : JSON, System.currentTimeMillis()-t0);
+        return count;
+    }
+
+    // entries are removed from the source map in the same commit, so that an interrupted conversion can be resumed
+    private <V> int writeBatch(Map<String, V> batch, Map<String, V> dest, Map<String, ?> source) {
+        int n = batch.size();
+        dest.putAll(batch);
+        batch.keySet().forEach(source::remove);
+        batch.clear();
+        commit();
+        return n;
+    }
+
+    public Measurements get(String id) {
+        byte[] data = map==null ? null : map.get(id);
+        if (data!=null) return MeasurementsCodec.decode(data, id, positionName, dict);
+        if (legacyMap!=null) {
+            String json = legacyMap.get(id);
+            if (json!=null) return new Measurements(parse(json), positionName);
+        }
+        return null;
+    }
+
+    public List<Measurements> getAll() {
+        return stream(null).collect(Collectors.toList());
+    }
+
+    /**
+     * Decodes entries lazily. The frame of binary entries is read before decoding so that entries rejected by {@param frameFilter} are not decoded
+     * @param frameFilter can be null
+     * @return parallel stream of measurements
+     */
+    public Stream<Measurements> stream(IntPredicate frameFilter) {
+        Stream<Map.Entry<String, byte[]>> entries = DBMapUtils.getEntrySet(map).parallelStream();
+        if (frameFilter!=null) entries = entries.filter(e -> frameFilter.test(MeasurementsCodec.decodeFrame(e.getValue())));
+        Stream<Measurements> res = entries.map(e -> MeasurementsCodec.decode(e.getValue(), e.getKey(), positionName, dict));
+        if (legacyMap!=null) {
+            Stream<Measurements> legacy = DBMapUtils.getEntrySet(legacyMap).parallelStream().filter(e -> map==null || !map.containsKey(e.getKey())).map(e -> new Measurements(parse(e.getValue()), positionName));
+            if (frameFilter!=null) legacy = legacy.filter(m -> frameFilter.test(m.getFrame()));
+            res = Stream.concat(res, legacy);
+        }
+        return res;
+    }
+
+    public void put(String id, Measurements m) {
+        if (binary) {
+            map.put(id, MeasurementsCodec.encode(m, dict));
+            if (legacyMap!=null) legacyMap.remove(id);
+        } else {
+            legacyMap.put(id, JSONUtils.serialize(m));
+            if (map!=null) map.remove(id);
+        }
+    }
+
+    /**
+     * Encodes (in parallel) and stores {@param measurements}
+     * @param measurements measurements mapped by object id
+     */
+    public void putAll(Map<String, Measurements> measurements) {
+        if (binary) {
+            Map<String, byte[]> encoded = measurements.entrySet().parallelStream().collect(Collectors.toMap(Map.Entry::getKey, e -> MeasurementsCodec.encode(e.getValue(), dict)));
+            map.putAll(encoded);
+            if (legacyMap!=null) encoded.keySet().forEach(legacyMap::remove);
+        } else {
+            Map<String, String> serialized = measurements.entrySet().parallelStream().collect(Collectors.toMap(Map.Entry::getKey, e -> JSONUtils.serialize(e.getValue())));
+            legacyMap.putAll(serialized);
+            if (map!=null) serialized.keySet().forEach(map::remove);
+        }
+    }
+
+    public void remove(String id) {
+        if (map!=null) map.remove(id);
+        if (legacyMap!=null) legacyMap.remove(id);
+    }
+
+    public void commit() {
+        if (readOnly || db.isClosed()) return;
+        Map<Integer, String> newKeys = dict.pollAddedEntries();
+        if (!newKeys.isEmpty()) keyMap.putAll(newKeys.entrySet().stream().collect(Collectors.toMap(e -> String.valueOf(e.getKey()), Map.Entry::getValue)));
+        db.commit();
+    }
+
+    public void close(boolean commit) {
+        if (commit) commit();
+        db.close();
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import bacmman.utils.Id;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Binary storage of the objects sharing the same parent track head and object class.
+ * The file is a header followed by a sequence of append-only segments. Each segment contains a batch of records stored as contiguous columns: fixed-width columns (ids, frame, idx, flags, bounds, region hash), then offsets and lengths of the variable-size columns (binary encoded attributes and region), the ids of removed records and a data area containing the variable-size columns.
+ * Variable-size columns are stored in the segment rather than in a separate file, so that a write is a single append covered by a single checksum. Reads that do not need them (e.g. index loading) do not read the data area.
+ * A record of a segment replaces the records of previous segments with the same id, so that a write only appends the modified records. Superseded records are reclaimed by {@link #compact()}, which rewrites the file with a single segment and is called automatically when superseded records outnumber live records or when the number of segments exceeds {@link #MAX_SEGMENTS}.
+ * Each segment is prefixed by its length and checksum: a segment partially written during a crash is ignored and truncated at next write. The file is read with positional reads, one segment at a time, so that its size is not limited by the size of a buffer and no mapping keeps it open when it is replaced.
+ * @author Jean Ollion
+ */
+public class ObjectColumnFile {
+    public static final Logger logger = LoggerFactory.getLogger(ObjectColumnFile.class);
+    public static final String COLUMN_EXT = ".col";
+    static final String TMP_EXT = ".tmp";
+    static final int MAGIC = 0x42434F4C;
+    static final int SEGMENT_MAGIC = 0x53454731;
+    static final int VERSION = 2;
+    static final int ID_BYTES = 12;
+    static final int HEADER_BYTES = 4 + 4; // magic, version
+    static final int SEGMENT_HEADER_BYTES = 4 + 4 + 4; // magic, body length, checksum of body
+    static final int RECORD_BYTES = 6 * ID_BYTES + 4 + 4 + 1 + 6 * 4 + 8 + 4 * 4; // ids, frame, idx, flags, bounds, region hash, offset & length of attributes and region
+    static final int MAX_SEGMENTS = 64;
+    static final int COMPACTION_MIN_RECORDS = 16;
+    static final byte FLAG_TRACK_HEAD = 1;
+    static final byte FLAG_BOUNDS = 2;
+    static final byte FLAG_REGION_HASH = 4;
+    private static final byte[] NULL_ID = new byte[ID_BYTES];
+
+    public static class Record {
+        public String id, parentId, parentTrackHeadId, trackHeadId, previousId, nextId;
+        public int frame, idx;
+        public boolean isTrackHead;
+        public int[] bounds; // xMin, xMax, yMin, yMax, zMin, zMax or null
+        public Long regionHash; // can be null
+        public byte[] attributes; // binary encoded attributes, can be null
+        public byte[] region; // binary encoded region container, can be null
+    }
+
+    /**
+     * Location of the live records of the file, resulting from a scan of the segments
+     */
+    private static class Content {
+        final List<long[]> segments = new ArrayList<>(); // position and length of segment body
+        final Map<String, int[]> live = new LinkedHashMap<>(); // id -> segment index, record index
+        int records;
+        long validLength = HEADER_BYTES;
+    }
+
+    final Path dir;
+    final String name;
+    // state used by writes: ids of live records, number of segments and records, length of the valid part of the file
+    private Set<String> liveIds;
+    private int segmentCount, recordCount;
+    private long validLength = -1;
+
+    public ObjectColumnFile(Path dir, String name) {
+        this.dir = dir;
+        this.name = name;
+    }
+    public Path getColumnFile() {
+        return dir.resolve(name + COLUMN_EXT);
+    }
+    public boolean exists() {
+        return Files.exists(getColumnFile());
+    }
+
+    /**
+     *
+     * @param idFilter only records whose id is accepted by this filter are decoded
+     * @return stored records in storage order
+     * @throws IOException
+     */
+    public List<Record> read(Predicate<String> idFilter) throws IOException {
+        return read(idFilter, true);
+    }
+
+    /**
+     *
+     * @param idFilter only records whose id is accepted by this filter are decoded
+     * @param readPayload if false, variable-size columns (attributes and region) are not read
+     * @return stored records in storage order
+     * @throws IOException
+     */
+    public synchronized List<Record> read(Predicate<String> idFilter, boolean readPayload) throws IOException {
+        Content content = scan();
+        if (content==null) return new ArrayList<>(0);
+        // records are decoded segment by segment, so that a single segment body is loaded at once
+        Map<Integer, List<int[]>> bySegment = new TreeMap<>(); // segment index -> record index, output index
+        int count = 0;
+        for (Map.Entry<String, int[]> e : content.live.entrySet()) {
+            if (idFilter!=null && !idFilter.test(e.getKey())) continue;
+            bySegment.computeIfAbsent(e.getValue()[0], s -> new ArrayList<>()).add(new int[]{e.getValue()[1], count++});
+        }
+        Record[] res = new Record[count];
+        if (count==0) return new ArrayList<>(0);
+        try (FileChannel channel = FileChannel.open(getColumnFile(), StandardOpenOption.READ)) {
+            for (Map.Entry<Integer, List<int[]>> e : bySegment.entrySet()) {
+                long[] segment = content.segments.get(e.getKey());
+                ByteBuffer body = readBody(channel, segment[0], (int)segment[1], readPayload);
+                for (int[] r : e.getValue()) res[r[1]] = getRecord(body, r[0], readPayload);
+            }
+        }
+        return Arrays.asList(res);
+    }
+
+    /**
+     *
+     * @return number of segments of the file
+     * @throws IOException
+     */
+    public synchronized int getSegmentCount() throws IOException {
+        loadState();
+        return segmentCount;
+    }
+
+    /**
+     * Inserts or replaces records, identified by their id. Records are appended to the file
+     * @param records
+     * @throws IOException
+     */
+    public synchronized void upsert(Collection<Record> records) throws IOException {
+        if (records.isEmpty()) return;
+        loadState();
+        Map<String, Record> unique = new LinkedHashMap<>(records.size());
+        for (Record r : records) unique.put(r.id, r);
+        append(unique.values(), Collections.emptyList());
+        liveIds.addAll(unique.keySet());
+        compactIfNecessary();
+    }
+
+    /**
+     * Removes records. Removal is appended to the file, the file is deleted if no record remains
+     * @param ids ids of records to remove
+     * @throws IOException
+     */
+    public synchronized void remove(Collection<String> ids) throws IOException {
+        if (ids.isEmpty() || !exists()) return;
+        loadState();
+        List<String> removed = new ArrayList<>(ids.size());
+        for (String id : new LinkedHashSet<>(ids)) if (liveIds.contains(id)) removed.add(id);
+        if (removed.isEmpty()) return;
+        if (removed.size()==liveIds.size()) {
+            delete();
+            return;
+        }
+        append(Collections.emptyList(), removed);
+        liveIds.removeAll(removed);
+        compactIfNecessary();
+    }
+
+    /**
+     * Replaces the whole content of this file by {@param records}. The new file is written next to the current one and replaces it once complete
+     * @param records
+     * @throws IOException
+     */
+    public synchronized void write(Collection<Record> records) throws IOException {
+        Files.createDirectories(dir);
+        Map<String, Record> unique = new LinkedHashMap<>(records.size());
+        for (Record r : records) unique.put(r.id, r);
+        ByteBuffer segment = encodeSegment(unique.values(), Collections.emptyList());
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION);
+        header.flip();
+        Path tmp = dir.resolve(name + COLUMN_EXT + TMP_EXT);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) channel.write(header);
+            while (segment.hasRemaining()) channel.write(segment);
+            channel.force(false);
+        }
+        try {
+            Files.move(tmp, getColumnFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, getColumnFile(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        liveIds = new HashSet<>(unique.keySet());
+        segmentCount = 1;
+        recordCount = unique.size();
+        validLength = Files.size(getColumnFile());
+    }
+
+    /**
+     * Rewrites the file with only the live records, in a single segment
+     * @return number of superseded records that were reclaimed
+     * @throws IOException
+     */
+    public synchronized int compact() throws IOException {
+        if (!exists()) return 0;
+        List<Record> records = read(null, true);
+        int reclaimed = recordCount - records.size();
+        write(records);
+        logger.debug("object file: {} compacted: {} records reclaimed", getColumnFile(), reclaimed);
+        return reclaimed;
+    }
+
+    public synchronized void delete() {
+        deleteIfExists(getColumnFile());
+        deleteIfExists(dir.resolve(name + COLUMN_EXT + TMP_EXT));
+        liveIds = null;
+        validLength = -1;
+    }
+
+    /**
+     *
+     * @param dir directory containing column files
+     * @return names of column files contained in {@param dir}
+     */
+    public static List<String> listNames(Path dir) {
+        List<String> res = new ArrayList<>();
+        if (!Files.isDirectory(dir)) return res;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*"+COLUMN_EXT)) {
+            for (Path p : stream) {
+                String fileName = p.getFileName().toString();
+                res.add(fileName.substring(0, fileName.length() - COLUMN_EXT.length()));
+            }
+        } catch (IOException e) {
+            logger.error("Could not list object files in: "+dir, e);
+        }
+        return res;
+    }
+
+    private void compactIfNecessary() throws IOException {
+        int superseded = recordCount - liveIds.size();
+        if (segmentCount>MAX_SEGMENTS || (superseded>liveIds.size() && superseded>=COMPACTION_MIN_RECORDS)) compact();
+    }
+
+    /**
+     * Loads the state used by writes if necessary, i.e. if the file was modified by another instance
+     */
+    private void loadState() throws IOException {
+        long size = exists() ? Files.size(getColumnFile()) : -1;
+        if (liveIds!=null && size==validLength) return;
+        Content content = scan();
+        if (content==null) {
+            liveIds = new HashSet<>();
+            segmentCount = 0;
+            recordCount = 0;
+            validLength = -1;
+        } else {
+            liveIds = new HashSet<>(content.live.keySet());
+            segmentCount = content.segments.size();
+            recordCount = content.records;
+            validLength = content.validLength;
+        }
+    }
+
+    private void append(Collection<Record> records, Collection<String> removedIds) throws IOException {
+        ByteBuffer segment = encodeSegment(records, removedIds);
+        if (validLength<0) { // new file
+            write(records);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(getColumnFile(), StandardOpenOption.WRITE)) {
+            if (channel.size()>validLength) {
+                logger.info("object file: {} discarding incomplete segment", getColumnFile());
+                channel.truncate(validLength);
+            }
+            long position = validLength;
+            while (segment.hasRemaining()) position += channel.write(segment, position);
+            channel.force(false);
+            validLength = position;
+        }
+        ++segmentCount;
+        recordCount += records.size();
+    }
+
+    private static ByteBuffer encodeSegment(Collection<Record> records, Collection<String> removedIds) throws IOException {
+        int n = records.size();
+        long dataSize = 0;
+        for (Record r : records) dataSize += (r.attributes==null ? 0 : r.attributes.length) + (r.region==null ? 0 : r.region.length);
+        long bodySize = 4 + 4 + (long)RECORD_BYTES * n + (long)ID_BYTES * removedIds.size() + dataSize;
+        if (bodySize + SEGMENT_HEADER_BYTES>Integer.MAX_VALUE) throw new IOException("Object segment too large: "+bodySize+" bytes");
+        ByteBuffer res = ByteBuffer.allocate(SEGMENT_HEADER_BYTES + (int)bodySize);
+        res.putInt(SEGMENT_MAGIC).putInt((int)bodySize).putInt(0); // checksum is set once the body is written
+        res.putInt(n).putInt(removedIds.size());
+        for (Record r : records) putId(res, r.id);
+        for (Record r : records) putId(res, r.parentId);
+        for (Record r : records) putId(res, r.parentTrackHeadId);
+        for (Record r : records) putId(res, r.trackHeadId);
+        for (Record r : records) putId(res, r.previousId);
+        for (Record r : records) putId(res, r.nextId);
+        for (Record r : records) res.putInt(r.frame);
+        for (Record r : records) res.putInt(r.idx);
+        for (Record r : records) res.put((byte)((r.isTrackHead ? FLAG_TRACK_HEAD : 0) | (r.bounds!=null ? FLAG_BOUNDS : 0) | (r.regionHash!=null ? FLAG_REGION_HASH : 0)));
+        for (Record r : records) {
+            if (r.bounds!=null) for (int b = 0; b<6; ++b) res.putInt(r.bounds[b]);
+            else for (int b = 0; b<6; ++b) res.putInt(0);
+        }
+        for (Record r : records) res.putLong(r.regionHash!=null ? r.regionHash : 0);
+        int offset = 0;
+        for (Record r : records) { // attributes then region of each record
+            res.putInt(offset).putInt(r.attributes==null ? -1 : r.attributes.length);
+            if (r.attributes!=null) offset += r.attributes.length;
+            res.putInt(offset).putInt(r.region==null ? -1 : r.region.length);
+            if (r.region!=null) offset += r.region.length;
+        }
+        for (String id : removedIds) putId(res, id);
+        for (Record r : records) {
+            if (r.attributes!=null) res.put(r.attributes);
+            if (r.region!=null) res.put(r.region);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(res.array(), SEGMENT_HEADER_BYTES, (int)bodySize);
+        res.putInt(8, (int)crc.getValue());
+        res.flip();
+        return res;
+    }
+
+    /**
+     * Reads the segments of the file. Reading stops at the first incomplete or corrupted segment
+     * @return content of the file, null if the file does not exist
+     */
+    private Content scan() throws IOException {
+        Path colFile = getColumnFile();
+        if (!Files.exists(colFile)) return null;
+        try (FileChannel channel = FileChannel.open(colFile, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = read(channel, 0, (int)Math.min(size, SEGMENT_HEADER_BYTES));
+            if (header.limit()<HEADER_BYTES || header.getInt(0)!=MAGIC) throw new IOException("Invalid object column file: "+colFile);
+            int version = header.getInt(4);
+            if (version!=VERSION) throw new IOException("Unsupported object column file version: "+version+" file: "+colFile);
+            Content res = new Content();
+            long position = HEADER_BYTES;
+            while (position + SEGMENT_HEADER_BYTES <= size) {
+                header = read(channel, position, SEGMENT_HEADER_BYTES);
+                if (header.getInt(0)!=SEGMENT_MAGIC) break;
+                int bodySize = header.getInt(4);
+                long body = position + SEGMENT_HEADER_BYTES;
+                if (bodySize<8 || body + bodySize > size) break;
+                if (header.getInt(8) != checksum(channel, body, bodySize)) break;
+                ByteBuffer counts = read(channel, body, 8);
+                int n = counts.getInt(0);
+                int removed = counts.getInt(4);
+                int segmentIdx = res.segments.size();
+                res.segments.add(new long[]{body, bodySize});
+                ByteBuffer ids = read(channel, body + 8, n * ID_BYTES);
+                for (int i = 0; i<n; ++i) {
+                    String id = getId(ids, i * ID_BYTES);
+                    res.live.put(id, new int[]{segmentIdx, i}); // replaces the record of a previous segment, at the same position
+                }
+                ByteBuffer removedIds = read(channel, body + 8 + (long)RECORD_BYTES * n, removed * ID_BYTES);
+                for (int i = 0; i<removed; ++i) res.live.remove(getId(removedIds, i * ID_BYTES));
+                res.records += n;
+                position = body + bodySize;
+            }
+            res.validLength = position;
+            if (position<size) logger.warn("object file: {} incomplete segment at {} (file size: {}) is ignored", colFile, position, size);
+            return res;
+        }
+    }
+
+    /**
+     *
+     * @param channel
+     * @param body position of the segment body
+     * @param bodySize length of the segment body
+     * @param readPayload if false, the data area containing the variable-size columns is not read
+     * @return segment body, starting at position 0
+     */
+    private static ByteBuffer readBody(FileChannel channel, long body, int bodySize, boolean readPayload) throws IOException {
+        if (readPayload) return read(channel, body, bodySize);
+        ByteBuffer counts = read(channel, body, 8);
+        int n = counts.getInt(0);
+        int removed = counts.getInt(4);
+        return read(channel, body, 8 + RECORD_BYTES * n + ID_BYTES * removed);
+    }
+
+    private static Record getRecord(ByteBuffer buffer, int i, boolean readPayload) {
+        int n = buffer.getInt(0);
+        int removed = buffer.getInt(4);
+        int idOff = 8;
+        int frameOff = idOff + 6 * ID_BYTES * n;
+        int idxOff = frameOff + 4 * n;
+        int flagOff = idxOff + 4 * n;
+        int boundsOff = flagOff + n;
+        int hashOff = boundsOff + 6 * 4 * n;
+        int varOff = hashOff + 8 * n;
+        int dataOff = varOff + 16 * n + ID_BYTES * removed;
+        Record r = new Record();
+        r.id = getId(buffer, idOff + i * ID_BYTES);
+        r.parentId = getId(buffer, idOff + (n + i) * ID_BYTES);
+        r.parentTrackHeadId = getId(buffer, idOff + (2 * n + i) * ID_BYTES);
+        r.trackHeadId = getId(buffer, idOff + (3 * n + i) * ID_BYTES);
+        r.previousId = getId(buffer, idOff + (4 * n + i) * ID_BYTES);
+        r.nextId = getId(buffer, idOff + (5 * n + i) * ID_BYTES);
+        r.frame = buffer.getInt(frameOff + 4 * i);
+        r.idx = buffer.getInt(idxOff + 4 * i);
+        byte flag = buffer.get(flagOff + i);
+        r.isTrackHead = (flag & FLAG_TRACK_HEAD) != 0;
+        if ((flag & FLAG_BOUNDS) != 0) {
+            r.bounds = new int[6];
+            for (int b = 0; b<6; ++b) r.bounds[b] = buffer.getInt(boundsOff + 4 * (6 * i + b));
+        }
+        if ((flag & FLAG_REGION_HASH) != 0) r.regionHash = buffer.getLong(hashOff + 8 * i);
+        if (readPayload) {
+            r.attributes = getBytes(buffer, dataOff, varOff + 16 * i);
+            r.region = getBytes(buffer, dataOff, varOff + 16 * i + 8);
+        }
+        return r;
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer, int dataOff, int locationOff) {
+        int length = buffer.getInt(locationOff + 4);
+        if (length<0) return null;
+        byte[] res = new byte[length];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(dataOff + buffer.getInt(locationOff));
+        slice.get(res);
+        return res;
+    }
+
+    private static int checksum(FileChannel channel, long offset, int length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer chunk = ByteBuffer.allocate(Math.min(length, 1<<16));
+        long position = offset;
+        int remaining = length;
+        while (remaining>0) {
+            chunk.clear();
+            chunk.limit(Math.min(remaining, chunk.capacity()));
+            readFully(channel, chunk, position);
+            crc.update(chunk.array(), 0, chunk.limit());
+            position += chunk.limit();
+            remaining -= chunk.limit();
+        }
+        return (int)crc.getValue();
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer res = ByteBuffer.allocate(length);
+        readFully(channel, res, position);
+        res.flip();
+        return res;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int r = channel.read(buffer, position);
+            if (r<0) throw new IOException("Unexpected end of file");
+            position += r;
+        }
+    }
+
+    private static void deleteIfExists(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.debug("could not delete file: "+file, e);
+        }
+    }
+
+    private static void putId(ByteBuffer buffer, String id) {
+        buffer.put(id==null ? NULL_ID : new Id(id).toByteArray());
+    }
+
+    private static String getId(ByteBuffer buffer, int offset) {
+        byte[] bytes = new byte[ID_BYTES];
+        boolean isNull = true;
+        for (int i = 0; i<ID_BYTES; ++i) {
+            bytes[i] = buffer.get(offset + i);
+            if (bytes[i]!=0) isNull = false;
+        }
+        return isNull ? null : new Id(bytes).toHexString();
+    }
+}
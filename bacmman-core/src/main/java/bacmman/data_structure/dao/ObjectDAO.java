@@ -30,7 +30,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntPredicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  *
@@ -42,6 +44,13 @@ public interface ObjectDAO {
     public Experiment getExperiment();
     public String getPositionName();
     public void clearCache();
+    /**
+     * Releases from memory the children of class {@param structureIdx} of the objects of {@param parentTrack}. Released objects are retrieved again from storage when requested.
+     * Has no effect for a DAO without persistent storage
+     * @param parentTrack objects with same trackHead id
+     * @param structureIdx direct child of parent
+     */
+    public void clearCache(List<SegmentedObject> parentTrack, int structureIdx);
     public boolean isReadOnly();
     SegmentedObject getById(String parentTrackHeadId, int structureIdx, int frame, String id);
     public List<SegmentedObject> getChildren(SegmentedObject parent, int structureIdx); // needs indicies: structureIdx & parent
@@ -64,6 +73,20 @@ public interface ObjectDAO {
      */
     public void deleteObjectsByStructureIdx(int... structures);
     public void deleteAllObjects();
+    /**
+     * Parent tracks whose children have been stored by a streamed processing run, so that an interrupted run can be resumed (see {@link bacmman.data_structure.Processor#executeProcessingScheme(List, int, boolean, boolean, bacmman.data_structure.Selection, ProgressCallback, boolean, boolean)})
+     * @param structureIdx object class of the children
+     * @return ids of the track heads of the processed parent tracks
+     */
+    public Set<String> getProcessedParentTracks(int structureIdx);
+    /**
+     * Flags parent tracks whose children have been stored by a streamed processing run. Should be called once the children are stored
+     * @param structureIdx object class of the children
+     * @param parentTrackHeadIds ids of the track heads of the parent tracks
+     * @param processed whether the parent tracks are flagged or unflagged
+     */
+    public void setProcessedParentTracks(int structureIdx, Collection<String> parentTrackHeadIds, boolean processed);
+    public void clearProcessedParentTracks(int structureIdx);
     /**
      * 
      * @param o object to delete
@@ -87,6 +110,14 @@ public interface ObjectDAO {
     public void retrieveMeasurements(int... structureIdx);
     public Measurements getMeasurements(SegmentedObject o);
     public List<Measurements> getMeasurements(int structureIdx, String... measurements);
+
+    /**
+     * Stream of stored measurements, without loading objects
+     * @param structureIdx object class
+     * @param frameFilter only measurements of frames accepted by this filter are returned. Can be null
+     * @return stream of measurements that can be processed in parallel. It should be closed after use, as it may hold resources (see {@link java.util.stream.BaseStream#close()})
+     */
+    public Stream<Measurements> streamMeasurements(int structureIdx, IntPredicate frameFilter);
     public void deleteAllMeasurements();
     
     public static boolean sameContent(ObjectDAO dao1, ObjectDAO dao2, ProgressCallback pcb) {
@@ -0,0 +1,144 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import java.util.*;
+
+/**
+ * Secondary indexes of the objects sharing the same parent track head and object class: frame -> ids and track head -> ids ordered by frame.
+ * They allow retrieving the objects of a single frame or of a single track without parsing the whole parent track. Both indexes are derived from the frame and track head id of each object, which is what is persisted (see {@link #encode(int, String)}).
+ * Validity of persisted indexes is tracked by the DAO (see {@link DBMapObjectDAO#loadIndex(bacmman.utils.Pair)})
+ * @author Jean Ollion
+ */
+public class ObjectIndex {
+    static class Entry {
+        final String id, trackHeadId;
+        final int frame;
+        Entry(String id, int frame, String trackHeadId) {
+            this.id = id;
+            this.frame = frame;
+            this.trackHeadId = trackHeadId;
+        }
+    }
+    static final Comparator<Entry> FRAME_ORDER = Comparator.<Entry>comparingInt(e -> e.frame).thenComparing(e -> e.id);
+    final Map<String, Entry> entries = new HashMap<>();
+    final Map<Integer, Set<String>> byFrame = new HashMap<>();
+    final Map<String, TreeSet<Entry>> byTrackHead = new HashMap<>();
+
+    public synchronized void put(String id, int frame, String trackHeadId) {
+        Entry old = entries.get(id);
+        if (old!=null) {
+            if (old.frame==frame && Objects.equals(old.trackHeadId, trackHeadId)) return;
+            remove(id);
+        }
+        Entry e = new Entry(id, frame, trackHeadId);
+        entries.put(id, e);
+        byFrame.computeIfAbsent(frame, f -> new HashSet<>()).add(id);
+        if (trackHeadId!=null) byTrackHead.computeIfAbsent(trackHeadId, th -> new TreeSet<>(FRAME_ORDER)).add(e);
+    }
+
+    /**
+     * Stored objects may have no track head id when they are their own track head
+     * @param id
+     * @param frame
+     * @param trackHeadId
+     * @param isTrackHead
+     */
+    public void put(String id, int frame, String trackHeadId, boolean isTrackHead) {
+        put(id, frame, trackHeadId==null && isTrackHead ? id : trackHeadId);
+    }
+
+    /**
+     *
+     * @param id
+     * @param encoded frame and track head id encoded by {@link #encode(int, String)}
+     */
+    public void put(String id, String encoded) {
+        int sep = encoded.indexOf(';');
+        put(id, Integer.parseInt(encoded.substring(0, sep)), sep==encoded.length()-1 ? null : encoded.substring(sep+1));
+    }
+
+    public synchronized boolean remove(String id) {
+        Entry e = entries.remove(id);
+        if (e==null) return false;
+        Set<String> frame = byFrame.get(e.frame);
+        frame.remove(id);
+        if (frame.isEmpty()) byFrame.remove(e.frame);
+        if (e.trackHeadId!=null) {
+            TreeSet<Entry> track = byTrackHead.get(e.trackHeadId);
+            track.remove(e);
+            if (track.isEmpty()) byTrackHead.remove(e.trackHeadId);
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @param id
+     * @return frame and track head id of object {@param id} encoded by {@link #encode(int, String)}, null if not indexed
+     */
+    public synchronized String getEncoded(String id) {
+        Entry e = entries.get(id);
+        return e==null ? null : encode(e.frame, e.trackHeadId);
+    }
+
+    public synchronized boolean contains(String id) {
+        return entries.containsKey(id);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized List<String> getIds() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    public synchronized List<String> getIdsAtFrame(int frame) {
+        Set<String> res = byFrame.get(frame);
+        return res==null ? new ArrayList<>(0) : new ArrayList<>(res);
+    }
+
+    /**
+     *
+     * @param trackHeadId
+     * @return ids of the objects of the track, ordered by frame
+     */
+    public synchronized List<String> getTrack(String trackHeadId) {
+        TreeSet<Entry> track = byTrackHead.get(trackHeadId);
+        if (track==null) return new ArrayList<>(0);
+        List<String> res = new ArrayList<>(track.size());
+        for (Entry e : track) res.add(e.id);
+        return res;
+    }
+
+    /**
+     *
+     * @return ids of indexed objects that are the track head of at least one indexed object
+     */
+    public synchronized List<String> getTrackHeadIds() {
+        List<String> res = new ArrayList<>();
+        for (String th : byTrackHead.keySet()) if (entries.containsKey(th)) res.add(th);
+        return res;
+    }
+
+    public static String encode(int frame, String trackHeadId) {
+        return frame + ";" + (trackHeadId==null ? "" : trackHeadId);
+    }
+}
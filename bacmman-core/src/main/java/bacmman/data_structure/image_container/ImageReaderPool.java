@@ -0,0 +1,70 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.image_container;
+
+import bacmman.image.io.ImageReader;
+import bacmman.utils.ReusableQueue;
+
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Pool of {@link ImageReader} for each channel of an image container.
+ * A reader is used by only one thread at a time, so that several threads can decode different frames concurrently: each thread pulls a reader from the pool (a new reader is created if none is available) and pushes it back after reading.
+ * @author Jean Ollion
+ */
+public class ImageReaderPool {
+    final ReusableQueue<ImageReader>[] readers;
+
+    /**
+     *
+     * @param channelNumber number of channels
+     * @param factory creates a reader for a given channel
+     */
+    public ImageReaderPool(int channelNumber, IntFunction<ImageReader> factory) {
+        readers = new ReusableQueue[channelNumber];
+        for (int c = 0; c<channelNumber; ++c) {
+            int channelIdx = c;
+            readers[c] = new ReusableQueue<>(() -> factory.apply(channelIdx), null);
+        }
+    }
+
+    /**
+     * Applies {@param function} to a reader of channel {@param channelIdx} that is not used by any other thread
+     * @param channelIdx
+     * @param function
+     * @param <T>
+     * @return result of {@param function}
+     */
+    public <T> T apply(int channelIdx, Function<ImageReader, T> function) {
+        ImageReader reader = readers[channelIdx].pull();
+        try {
+            return function.apply(reader);
+        } finally {
+            readers[channelIdx].push(reader);
+        }
+    }
+
+    /**
+     * Closes all readers that are not in use
+     */
+    public void close() {
+        for (ReusableQueue<ImageReader> r : readers) r.clear().forEach(ImageReader::closeReader);
+    }
+}
@@ -46,7 +46,7 @@ public class MultipleImageContainerChannelSerie extends MultipleImageContainer {
     int timePointNumber;
     int[] sizeZC;
     MutableBoundingBox bounds;
-    private ImageReader reader[];
+    private volatile ImageReaderPool readerPool; // lazily created, double-checked locking
     private Image[] singleFrameImages;
     boolean[] singleFrameC;
     Map<String, Double> timePointCZT;
@@ -133,7 +133,6 @@ public class MultipleImageContainerChannelSerie extends MultipleImageContainer {
         filePathC = imagePathC;
         this.singleFrameC = singleFrameC;
         this.timePointNumber=frameNumber;
-        this.reader=new ImageReader[imagePathC.length];
         this.singleFrameImages = new Image[imagePathC.length];
         this.invertTZ=invertTZ;
         this.invertTZbyC = invertTZbyC;
@@ -148,14 +147,16 @@ public class MultipleImageContainerChannelSerie extends MultipleImageContainer {
     private void initTimePointMap() {
         timePointCZT = new HashMap<>();
         for (int c = 0; c<filePathC.length; ++c) {
-            ImageReader r = this.getReader(c);
-            if (r==null) continue;
-            for (int z = 0; z<sizeZC[c]; ++z) {
-                for (int t = 0; t<timePointNumber; ++t) {
-                    double tp = r.getTimePoint(0, t, z);
-                    if (!Double.isNaN(tp)) timePointCZT.put(getKey(c, z, t), tp);
+            int cc = c;
+            getReaderPool().apply(c, r -> {
+                for (int z = 0; z<sizeZC[cc]; ++z) {
+                    for (int t = 0; t<timePointNumber; ++t) {
+                        double tp = r.getTimePoint(0, t, z);
+                        if (!Double.isNaN(tp)) timePointCZT.put(getKey(cc, z, t), tp);
+                    }
                 }
-            }
+                return null;
+            });
         }
         //logger.debug("tpMap: {}", timePointCZT);
     }
@@ -180,7 +181,10 @@ public class MultipleImageContainerChannelSerie extends MultipleImageContainer {
     
     public void setImagePath(String[] path) {
         this.filePathC=path;
-        this.reader=new ImageReader[filePathC.length];
+        synchronized(this) {
+            if (readerPool!=null) readerPool.close();
+            readerPool = null;
+        }
     }
     
     public String[] getFilePath(){return filePathC;}
@@ -212,26 +216,27 @@ public class MultipleImageContainerChannelSerie extends MultipleImageContainer {
         return new ImageIOCoordinates(0, channelModulo[channelIdx] > 1 ? 0 : channelIndices[channelIdx], channelModulo[channelIdx]==1 ? timePoint : timePoint * channelModulo[channelIdx] + channelIndices[channelIdx]);
     }
     
-    protected synchronized ImageReader getReader(int channelIdx) {
-        if (getImageReaders()[channelIdx]==null) {
+    /**
+     *
+     * @return pool of readers: each thread decoding a frame uses its own reader so that frames can be decoded concurrently
+     */
+    protected ImageReaderPool getReaderPool() {
+        ImageReaderPool pool = readerPool;
+        if (pool==null) {
             synchronized(this) {
-                if (getImageReaders()[channelIdx]==null) {
-                    reader[channelIdx] = new ImageReader(filePathC[channelIdx]);
-                    if (invertTZ || invertTZbyC[channelIdx]) reader[channelIdx].setInvertTZ(true);
+                pool = readerPool;
+                if (pool==null) {
+                    pool = new ImageReaderPool(filePathC.length, c -> {
+                        ImageReader r = new ImageReader(filePathC[c]);
+                        if (invertTZ || invertTZbyC[c]) r.setInvertTZ(true);
+                        return r;
+                    });
+                    readerPool = pool;
                     logger.debug("invert TZ: {}", invertTZ);
                 }
             }
         }
-        return reader[channelIdx];
-    }
-    
-    protected ImageReader[] getImageReaders() {
-        if (reader==null) {
-            synchronized(this) {
-                if (reader==null) reader=new ImageReader[filePathC.length];
-            }
-        }
-        return reader;
+        return pool;
     }
     
     @Override
@@ -247,27 +252,23 @@ public class MultipleImageContainerChannelSerie extends MultipleImageContainer {
             }
             if (singleFrameImages[channel]==null) {
                 synchronized(singleFrameImages) {
-                    if (singleFrameImages[channel]==null) singleFrameImages[channel] = getReader(channel).openImage(ioCoordinates);
+                    if (singleFrameImages[channel]==null) singleFrameImages[channel] = getReaderPool().apply(channel, r -> r.openImage(ioCoordinates));
                 }
             }
             return singleFrameImages[channel];
         } else {
-            ImageReader r= getReader(channel);
-            synchronized(r) {
-                Image image = getReader(channel).openImage(ioCoordinates);
-                return image;
-            }
+            return getReaderPool().apply(channel, r -> r.openImage(ioCoordinates));
         }
     }
     
     @Override
-    public synchronized Image getImage(int timePoint, int channel, MutableBoundingBox bounds) {
+    public Image getImage(int timePoint, int channel, MutableBoundingBox bounds) {
         
         if (this.timePointNumber==1) timePoint=0;
         ImageIOCoordinates ioCoordinates = getImageIOCoordinates(timePoint, channel);
         ImageIOCoordinates ioCoords = ioCoordinates.duplicate();
         ioCoords.setBounds(bounds);
-        Image image = getReader(channel).openImage(ioCoordinates);
+        Image image = getReaderPool().apply(channel, r -> r.openImage(ioCoordinates));
         /*if (scaleXY!=0 && scaleZ!=0) image.setCalibration((float)scaleXY, (float)scaleZ);
         else {
             scaleXY = image.getScaleXY();
@@ -278,9 +279,10 @@ public class MultipleImageContainerChannelSerie extends MultipleImageContainer {
     
     @Override
     public void flush() {
+        synchronized(this) {
+            if (readerPool!=null) readerPool.close();
+        }
         for (int i = 0; i<this.getChannelNumber(); ++i) {
-            if (getImageReaders()[i]!=null) reader[i].closeReader();
-            reader [i] = null;
             if (singleFrameImages!=null) singleFrameImages[i]=null;
         }
     }
@@ -34,18 +34,19 @@ import org.json.simple.JSONObject;
 import bacmman.utils.ArrayUtil;
 import bacmman.utils.JSONUtils;
 import bacmman.utils.Pair;
+import bacmman.utils.ReusableQueue;
 
 /**
  *
  * @author Jean Ollion
  */
 public class MultipleImageContainerPositionChannelFrame extends MultipleImageContainer { // one file per channel & per frame
-    byte[][] bufferStore = new byte[1][];
+    final ReusableQueue<byte[][]> bufferPool = new ReusableQueue<>(() -> new byte[1][], null); // one buffer per decoding thread
     String inputDir, extension, positionKey, positionName, timeKeyword;
     int frameNumber;
     String[] channelKeywords;
     int[] sizeZC;
-    List<List<String>> fileCT;
+    volatile List<List<String>> fileCT;
     Map<String, Double> timePointCZT;
     @Override
     public boolean sameContent(MultipleImageContainer other) {
@@ -224,31 +225,37 @@ public class MultipleImageContainerPositionChannelFrame extends MultipleImageCon
     }
 
     @Override
-    public synchronized Image getImage(int frame, int channel) { // synchronized if use of buffer
-        if (fileCT==null) {
-            //synchronized(this) {
-                if (fileCT==null) createFileMap();
-            //}
-        }
-        return ImageReader.openImage(fileCT.get(channel).get(frame), new ImageIOCoordinates(), bufferStore);
+    public Image getImage(int frame, int channel) {
+        return getImage(frame, channel, new ImageIOCoordinates());
     }
     
     
     
     @Override
     public Image getImage(int frame, int channel, MutableBoundingBox bounds) {
-        if (fileCT==null) {
+        return getImage(frame, channel, new ImageIOCoordinates(0, 0, 0, bounds));
+    }
+
+    private Image getImage(int frame, int channel, ImageIOCoordinates coords) {
+        List<List<String>> files = fileCT;
+        if (files==null) {
             synchronized(this) {
                 if (fileCT==null) createFileMap();
+                files = fileCT;
             }
         }
-        return ImageReader.openImage(fileCT.get(channel).get(frame), new ImageIOCoordinates(0, 0, 0, bounds), bufferStore);
+        byte[][] buffer = bufferPool.pull();
+        try {
+            return ImageReader.openImage(files.get(channel).get(frame), coords, buffer);
+        } finally {
+            bufferPool.push(buffer);
+        }
     }
 
     @Override
     public void flush() {
         fileCT=null;
-        bufferStore[0] = null;
+        bufferPool.clear();
     }
 
     @Override
@@ -269,11 +276,12 @@ public class MultipleImageContainerPositionChannelFrame extends MultipleImageCon
         List<File> files = Arrays.stream(allImages).filter( f -> positionPattern.matcher(f.getName()).find()).collect(Collectors.toList());
         Pattern timePattern = Pattern.compile(".*"+timeKeyword+"(\\d+).*");
         Map<Integer, List<File>> filesByChannel = files.stream().collect(Collectors.groupingBy(f -> getKeywordIdx(f.getName(), channelKeywords)));
-        fileCT = new ArrayList<>(filesByChannel.size());
+        List<List<String>> fileCT = new ArrayList<>(filesByChannel.size());
         filesByChannel.entrySet().stream().sorted(Comparator.comparingInt(Map.Entry::getKey)).forEach((channelFiles) -> {
             Map<Integer, String> filesByTimePoint = channelFiles.getValue().stream().collect(Collectors.toMap(f -> get(f.getName(), timePattern), f -> f.getAbsolutePath()));
             fileCT.add(new ArrayList<>(new TreeMap(filesByTimePoint).values()).subList(0, frameNumber));
         });
+        this.fileCT = fileCT; // only set when complete, as it is read without synchronization
         logger.debug("Position: {}, channels: {}, tp: {}", getName(), fileCT.size(), fileCT.get(0).size());
     }
     
@@ -42,7 +42,7 @@ public class MultipleImageContainerSingleFile extends MultipleImageContainer {
     int seriesIdx;
     int sizeZ;
     MutableBoundingBox bounds;
-    private ImageReader reader;
+    private volatile ImageReaderPool readerPool; // lazily created, double-checked locking
     private Map<String, Double> timePointCZT;
     private boolean invertTZ;
     @Override
@@ -130,17 +130,18 @@ public class MultipleImageContainerSingleFile extends MultipleImageContainer {
     }
     
     private void initTimePointMap() {
-        ImageReader r = this.getReader();
         timePointCZT = new HashMap<>();
-        if (r==null) return;
-        for (int c = 0; c<this.getChannelNumber(); ++c) {
-            for (int z = 0; z<getSizeZ(c); ++z) {
-                for (int t = 0; t<getFrameNumber(); ++t) {
-                    double tp = r.getTimePoint(c, t, z);
-                    if (!Double.isNaN(tp)) timePointCZT.put(getKey(c, z, t), tp);
+        getReaderPool().apply(0, r -> {
+            for (int c = 0; c<this.getChannelNumber(); ++c) {
+                for (int z = 0; z<getSizeZ(c); ++z) {
+                    for (int t = 0; t<getFrameNumber(); ++t) {
+                        double tp = r.getTimePoint(c, t, z);
+                        if (!Double.isNaN(tp)) timePointCZT.put(getKey(c, z, t), tp);
+                    }
                 }
             }
-        }
+            return null;
+        });
         logger.debug("tpMap: {}", timePointCZT);
     }
     
@@ -182,18 +183,34 @@ public class MultipleImageContainerSingleFile extends MultipleImageContainer {
         return new ImageIOCoordinates(seriesIdx, channel, timePoint);
     }
     
-    protected ImageReader getReader() {
-        if (reader==null) reader = new ImageReader(filePath);
-        if (invertTZ) reader.setInvertTZ(true);
-        return reader;
+    /**
+     *
+     * @return pool of readers of the file: each thread decoding a frame uses its own reader so that frames can be decoded concurrently
+     */
+    protected ImageReaderPool getReaderPool() {
+        ImageReaderPool pool = readerPool;
+        if (pool==null) {
+            synchronized(this) {
+                pool = readerPool;
+                if (pool==null) {
+                    pool = new ImageReaderPool(1, c -> { // all channels are in the same file
+                        ImageReader r = new ImageReader(filePath);
+                        if (invertTZ) r.setInvertTZ(true);
+                        return r;
+                    });
+                    readerPool = pool;
+                }
+            }
+        }
+        return pool;
     }
     
     @Override
-    public synchronized Image getImage(int timePoint, int channel) {
+    public Image getImage(int timePoint, int channel) {
         if (this.timePointNumber==1) timePoint=0;
         ImageIOCoordinates ioCoordinates = getImageIOCoordinates(timePoint, channel);
         if (bounds!=null) ioCoordinates.setBounds(bounds);
-        Image image = getReader().openImage(ioCoordinates);
+        Image image = getReaderPool().apply(0, r -> r.openImage(ioCoordinates));
         /*if (scaleXY!=0 && scaleZ!=0) image.setCalibration((float)scaleXY, (float)scaleZ);
         else {
             scaleXY = image.getScaleXY();
@@ -203,12 +220,12 @@ public class MultipleImageContainerSingleFile extends MultipleImageContainer {
     }
     
     @Override
-    public synchronized Image getImage(int timePoint, int channel, MutableBoundingBox bounds) {
+    public Image getImage(int timePoint, int channel, MutableBoundingBox bounds) {
         if (this.timePointNumber==1) timePoint=0;
         ImageIOCoordinates ioCoordinates = getImageIOCoordinates(timePoint, channel);
         ImageIOCoordinates ioCoords = ioCoordinates.duplicate();
         ioCoords.setBounds(bounds);
-        Image image = getReader().openImage(ioCoordinates);
+        Image image = getReaderPool().apply(0, r -> r.openImage(ioCoordinates));
         /*if (scaleXY!=0 && scaleZ!=0) image.setCalibration((float)scaleXY, (float)scaleZ);
         else {
             scaleXY = image.getScaleXY();
@@ -217,8 +234,7 @@ public class MultipleImageContainerSingleFile extends MultipleImageContainer {
         return image;
     }
     @Override 
-    public void flush() {
-        if (reader!=null) reader.closeReader();
-        reader = null;
+    public synchronized void flush() {
+        if (readerPool!=null) readerPool.close();
     }
 }
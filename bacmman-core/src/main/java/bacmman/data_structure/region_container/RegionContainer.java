@@ -22,6 +22,15 @@ import bacmman.data_structure.Region;
 import bacmman.data_structure.SegmentedObject;
 import bacmman.image.MutableBoundingBox;
 import bacmman.image.SimpleBoundingBox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.function.Supplier;
 
@@ -36,6 +45,7 @@ import org.json.simple.JSONObject;
 public abstract class RegionContainer {
     public static final int MAX_VOX_3D = 20;
     public static final int MAX_VOX_2D = 30;
+    static final byte BINARY_RECTANGLE = 1, BINARY_SPHERE = 2, BINARY_VOXELS = 3, BINARY_ROI = 4;
     protected transient SegmentedObject segmentedObject;
     SimpleBoundingBox bounds;
     boolean is2D;
@@ -71,7 +81,76 @@ public abstract class RegionContainer {
         res.put("is2D", is2D);
         return res;
     }
+    /**
+     *
+     * @return code of the type of container in the binary encoding (see {@link #toBinary()})
+     */
+    protected abstract byte getBinaryType();
+    protected void writeBinary(DataOutput out) throws IOException {
+        out.writeInt(bounds.xMin());
+        out.writeInt(bounds.xMax());
+        out.writeInt(bounds.yMin());
+        out.writeInt(bounds.yMax());
+        out.writeInt(bounds.zMin());
+        out.writeInt(bounds.zMax());
+        out.writeBoolean(is2D);
+    }
+    protected void initFromBinary(DataInput in) throws IOException {
+        bounds = new SimpleBoundingBox(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        is2D = in.readBoolean();
+    }
+    /**
+     * Binary encoding, more compact and faster to decode than the JSON encoding. Layout: type code, bounds, is2D flag, then data specific to the type of container
+     * @return encoded container
+     */
+    public byte[] toBinary() {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            out.writeByte(getBinaryType());
+            writeBinary(out);
+        } catch (IOException e) { // not thrown by in-memory stream
+            throw new RuntimeException(e);
+        }
+        return bos.toByteArray();
+    }
     protected RegionContainer() {}
+    public static RegionContainer createFromBinary(SegmentedObject o, byte[] data) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            byte type = in.readByte();
+            RegionContainer res;
+            switch (type) {
+                case BINARY_RECTANGLE:
+                    res = new RegionContainerBlankMask();
+                    break;
+                case BINARY_SPHERE:
+                    res = new RegionContainerSpot();
+                    break;
+                case BINARY_VOXELS:
+                    res = new RegionContainerVoxels();
+                    break;
+                case BINARY_ROI:
+                    res = new RegionContainerIjRoi();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown region container type: "+type);
+            }
+            res.setSegmentedObject(o);
+            res.initFromBinary(in);
+            return res;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupted region container", e);
+        }
+    }
+    /**
+     *
+     * @param data binary encoding of a region container (see {@link #toBinary()})
+     * @return bounds of the container, without decoding it
+     */
+    public static SimpleBoundingBox getBoundsFromBinary(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        return new SimpleBoundingBox(buffer.getInt(1), buffer.getInt(5), buffer.getInt(9), buffer.getInt(13), buffer.getInt(17), buffer.getInt(21));
+    }
     public static RegionContainer createFromJSON(SegmentedObject o, Map json) {
         RegionContainer res;
         if (json.containsKey("x")) res = new RegionContainerVoxels(); // coord list
@@ -42,5 +42,10 @@ public class RegionContainerBlankMask extends RegionContainer {
         return new Region(getImage(), segmentedObject.getIdx()+1, is2D);
     }
 
+    @Override
+    protected byte getBinaryType() {
+        return BINARY_RECTANGLE;
+    }
+
     protected RegionContainerBlankMask() {}
 }
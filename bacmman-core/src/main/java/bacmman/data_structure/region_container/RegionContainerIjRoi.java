@@ -34,11 +34,17 @@ import static bacmman.image.Image.logger;
 
 import ij.plugin.filter.ThresholdToSelection;
 import java.awt.Rectangle;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.*;
 import java.util.stream.IntStream;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
+import static bacmman.utils.VarIntUtils.readVarInt;
+import static bacmman.utils.VarIntUtils.writeVarInt;
+
 /**
  *
  * @author Jean Ollion
@@ -141,6 +147,31 @@ public class RegionContainerIjRoi extends RegionContainer {
         }
         return res;
     }
+    @Override
+    protected byte getBinaryType() {
+        return BINARY_ROI;
+    }
+    @Override
+    protected void writeBinary(DataOutput out) throws IOException {
+        super.writeBinary(out);
+        if (roiZ ==null) encodeRoi();
+        writeVarInt(out, roiZ.size());
+        for (byte[] bytes : roiZ) {
+            writeVarInt(out, bytes.length);
+            out.write(bytes);
+        }
+    }
+    @Override
+    protected void initFromBinary(DataInput in) throws IOException {
+        super.initFromBinary(in);
+        int n = readVarInt(in);
+        roiZ = new ArrayList<>(n);
+        for (int i = 0; i<n; ++i) {
+            byte[] bytes = new byte[readVarInt(in)];
+            in.readFully(bytes);
+            roiZ.add(bytes);
+        }
+    }
     protected RegionContainerIjRoi() {}
     
     /**
@@ -35,4 +35,9 @@ public class RegionContainerSpot extends RegionContainer {
         res.put("Type", ANALYTICAL_TYPES.SPHERE.name()); // center, radius and intensity are stored in the attribute parameter
         return res;
     }
+
+    @Override
+    protected byte getBinaryType() {
+        return BINARY_SPHERE;
+    }
 }
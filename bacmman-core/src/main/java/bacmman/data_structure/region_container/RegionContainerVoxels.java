@@ -20,15 +20,21 @@ package bacmman.data_structure.region_container;
 
 import bacmman.data_structure.Region;
 import bacmman.data_structure.SegmentedObject;
-import bacmman.data_structure.Voxel;
+import bacmman.image.BitMask;
+import bacmman.image.BoundingBox;
+import bacmman.image.MutableBoundingBox;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Map;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import bacmman.utils.JSONUtils;
-import java.util.Collection;
+
+import static bacmman.utils.VarIntUtils.readVarInt;
+import static bacmman.utils.VarIntUtils.writeVarInt;
 import java.util.HashSet;
-import java.util.Set;
 
 /**
  *
@@ -45,46 +51,42 @@ public class RegionContainerVoxels extends RegionContainer {
 
     
     private void createCoordsArrays(Region object) {
-        if (!object.is2D()) {
-            Collection<Voxel> voxels = object.getVoxels();
-            x = new int[voxels.size()];
-            y = new int[voxels.size()];
-            z = new int[voxels.size()];
-            int idx = 0;
-            for (Voxel v : voxels) {
-                x[idx] = v.x;
-                y[idx] = v.y;
-                z[idx++] = v.z;
-            }
-        } else {
-            Collection<Voxel> voxels = object.getVoxels();
-            x = new int[voxels.size()];
-            y = new int[voxels.size()];
-            z = null;
-            zMin = voxels.stream().mapToInt(v->v.z).min().orElse(0);
-            int idx = 0;
-            for (Voxel v : voxels) {
-                x[idx] = v.x;
-                y[idx++] = v.y;
-            }
-        }
+        int n = (int)object.size();
+        x = new int[n];
+        y = new int[n];
+        z = object.is2D() ? null : new int[n];
+        int[] idx = new int[1];
+        int[] minZ = new int[]{Integer.MAX_VALUE};
+        object.loop((xx, yy, zz) -> { // does not create voxels if the region is stored as a mask
+            x[idx[0]] = xx;
+            y[idx[0]] = yy;
+            if (z!=null) z[idx[0]] = zz;
+            else if (zz<minZ[0]) minZ[0] = zz;
+            ++idx[0];
+        });
+        zMin = z!=null || n==0 ? 0 : minZ[0];
     }
 
-    private Set<Voxel> getVoxels() {
-        if (x == null || y == null) {
-            return new HashSet(0);
-        }
-        HashSet<Voxel> voxels = new HashSet<>(x.length);
+    /**
+     * @return packed mask of the voxels, whose bounds are the stored bounds of the region (or the bounds of the voxels if they are not included in the stored bounds)
+     */
+    private BitMask getMask() {
+        if (x == null || y == null || x.length==0) return null;
+        MutableBoundingBox b = new MutableBoundingBox();
+        for (int i = 0; i < x.length; ++i) b.union(x[i], y[i], z!=null ? z[i] : zMin);
+        BitMask mask = new BitMask(bounds!=null && BoundingBox.isIncluded(b, bounds) ? bounds : b, segmentedObject.getScaleXY(), segmentedObject.getScaleZ());
         if (z != null) {
-            for (int i = 0; i < x.length; ++i) voxels.add(new Voxel(x[i], y[i], z[i]));
+            for (int i = 0; i < x.length; ++i) mask.setPixelWithOffset(x[i], y[i], z[i], true);
         } else {
-            for (int i = 0; i < x.length; ++i) voxels.add(new Voxel(x[i], y[i], zMin));
+            for (int i = 0; i < x.length; ++i) mask.setPixelWithOffset(x[i], y[i], zMin, true);
         }
-        return voxels;
+        return mask;
     }
     @Override
     public Region getRegion() {
-        return new Region(getVoxels(), segmentedObject.getIdx() + 1, bounds, is2D, segmentedObject.getScaleXY(), segmentedObject.getScaleZ());
+        BitMask mask = getMask();
+        if (mask == null) return new Region(new HashSet<>(0), segmentedObject.getIdx() + 1, bounds, is2D, segmentedObject.getScaleXY(), segmentedObject.getScaleZ());
+        return new Region(mask, segmentedObject.getIdx() + 1, is2D);
     }
     @Override
     public void update() {
@@ -113,5 +115,32 @@ public class RegionContainerVoxels extends RegionContainer {
         if (zJ!=null) z = JSONUtils.fromIntArray(zJ);
         if (json.containsKey("zMin")) zMin = ((Long)json.getOrDefault("zMin", 0)).intValue();
     }
+    @Override
+    protected byte getBinaryType() {
+        return BINARY_VOXELS;
+    }
+    @Override
+    protected void writeBinary(DataOutput out) throws IOException {
+        super.writeBinary(out);
+        writeVarInt(out, x.length);
+        for (int v : x) out.writeInt(v);
+        for (int v : y) out.writeInt(v);
+        out.writeBoolean(z!=null);
+        if (z!=null) for (int v : z) out.writeInt(v);
+        else out.writeInt(zMin);
+    }
+    @Override
+    protected void initFromBinary(DataInput in) throws IOException {
+        super.initFromBinary(in);
+        int n = readVarInt(in);
+        x = new int[n];
+        y = new int[n];
+        for (int i = 0; i<n; ++i) x[i] = in.readInt();
+        for (int i = 0; i<n; ++i) y[i] = in.readInt();
+        if (in.readBoolean()) {
+            z = new int[n];
+            for (int i = 0; i<n; ++i) z[i] = in.readInt();
+        } else zMin = in.readInt();
+    }
     protected RegionContainerVoxels() {}
 }
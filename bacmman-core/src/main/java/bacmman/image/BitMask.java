@@ -0,0 +1,272 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.image;
+
+import bacmman.image.BoundingBox.LoopFunction;
+
+/**
+ * Mask stored as a bitset local to its bounding box (one bit per voxel, raster order x, y then z).
+ * Compared to a set of voxels or to an {@link ImageByte} it is a compact representation of the voxels of a region,
+ * and set operations (union, difference, intersection count) are performed word-wise without creating voxels
+ * @author Jean Ollion
+ */
+public class BitMask extends SimpleImageProperties<BitMask> implements ImageMask<BitMask> {
+    final long[] bits;
+    int count;
+
+    public BitMask(String name, ImageProperties properties) {
+        super(properties);
+        this.name = name;
+        bits = new long[(int)(((long)sizeXYZ + 63) >>> 6)];
+    }
+
+    public BitMask(BoundingBox bounds, double scaleXY, double scaleZ) {
+        super(bounds, scaleXY, scaleZ);
+        bits = new long[(int)(((long)sizeXYZ + 63) >>> 6)];
+    }
+
+    protected BitMask(BitMask other) {
+        super(other);
+        bits = other.bits.clone();
+        count = other.count;
+    }
+
+    /**
+     * Copy of {@param mask}, with same bounds
+     * @param mask
+     * @return bit mask of the voxels of {@param mask}
+     */
+    public static BitMask from(ImageMask mask) {
+        if (mask instanceof BitMask) return ((BitMask)mask).duplicateMask();
+        BitMask res = new BitMask(mask.getName(), mask);
+        for (int z = 0; z<res.sizeZ; ++z) {
+            for (int xy = 0; xy<res.sizeXY; ++xy) {
+                if (mask.insideMask(xy, z)) res.set(xy + z * res.sizeXY);
+            }
+        }
+        return res;
+    }
+
+    private void set(int idx) {
+        long b = 1L << idx;
+        int w = idx >>> 6;
+        if ((bits[w] & b) == 0) {
+            bits[w] |= b;
+            ++count;
+        }
+    }
+
+    private void clear(int idx) {
+        long b = 1L << idx;
+        int w = idx >>> 6;
+        if ((bits[w] & b) != 0) {
+            bits[w] &= ~b;
+            --count;
+        }
+    }
+
+    public BitMask setPixel(int x, int y, int z, boolean inside) {
+        if (inside) set(x + y * sizeX + z * sizeXY);
+        else clear(x + y * sizeX + z * sizeXY);
+        return this;
+    }
+
+    public BitMask setPixelWithOffset(int x, int y, int z, boolean inside) {
+        return setPixel(x - xMin, y - yMin, z - zMin, inside);
+    }
+
+    @Override
+    public boolean insideMask(int x, int y, int z) {
+        int idx = x + y * sizeX + z * sizeXY;
+        return (bits[idx >>> 6] & (1L << idx)) != 0;
+    }
+
+    @Override
+    public boolean insideMask(int xy, int z) {
+        int idx = xy + z * sizeXY;
+        return (bits[idx >>> 6] & (1L << idx)) != 0;
+    }
+
+    @Override
+    public boolean insideMaskWithOffset(int x, int y, int z) {
+        return insideMask(x - xMin, y - yMin, z - zMin);
+    }
+
+    @Override
+    public boolean insideMaskWithOffset(int xy, int z) {
+        return insideMask(xy - offsetXY, z - zMin);
+    }
+
+    @Override
+    public int count() {
+        return count;
+    }
+
+    @Override
+    public BitMask duplicateMask() {
+        return new BitMask(this);
+    }
+
+    /**
+     * Calls {@param function} for each voxel of the mask, in raster order. Only non-zero words are visited
+     * @param function
+     * @param withOffset whether coordinates passed to {@param function} include the offset of the mask
+     */
+    public void loop(LoopFunction function, boolean withOffset) {
+        int offX = withOffset ? xMin : 0, offY = withOffset ? yMin : 0, offZ = withOffset ? zMin : 0;
+        for (int w = 0; w<bits.length; ++w) {
+            long word = bits[w];
+            while (word != 0) {
+                int idx = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                int z = idx / sizeXY;
+                int xy = idx - z * sizeXY;
+                int y = xy / sizeX;
+                function.loop(xy - y * sizeX + offX, y + offY, z + offZ);
+            }
+        }
+    }
+
+    /**
+     * Adds the voxels of {@param other} that are within the bounds of this mask. Offsets of both masks are taken into account
+     * @param other
+     * @return this mask
+     */
+    public BitMask or(ImageMask other) {
+        if (other instanceof BitMask) {
+            rowOperation((BitMask)other, 0, 0, 0, (nBits, srcIdx, dstIdx) -> {
+                for (int i = 0; i<nBits; i+=64) {
+                    int n = Math.min(64, nBits - i);
+                    writeBits(dstIdx + i, n, readBits(bits, dstIdx + i, n) | readBits(((BitMask)other).bits, srcIdx + i, n));
+                }
+            });
+            recount();
+        } else {
+            BoundingBox inter = BoundingBox.getIntersection(this, other);
+            if (inter.isValid()) BoundingBox.loop(inter, (x, y, z) -> {
+                if (other.insideMaskWithOffset(x, y, z)) setPixelWithOffset(x, y, z, true);
+            });
+        }
+        return this;
+    }
+
+    /**
+     * Removes the voxels of {@param other}. Offsets of both masks are taken into account
+     * @param other
+     * @return this mask
+     */
+    public BitMask andNot(ImageMask other) {
+        if (other instanceof BitMask) {
+            rowOperation((BitMask)other, 0, 0, 0, (nBits, srcIdx, dstIdx) -> {
+                for (int i = 0; i<nBits; i+=64) {
+                    int n = Math.min(64, nBits - i);
+                    writeBits(dstIdx + i, n, readBits(bits, dstIdx + i, n) & ~readBits(((BitMask)other).bits, srcIdx + i, n));
+                }
+            });
+            recount();
+        } else {
+            BoundingBox inter = BoundingBox.getIntersection(this, other);
+            if (inter.isValid()) BoundingBox.loop(inter, (x, y, z) -> {
+                if (other.insideMaskWithOffset(x, y, z)) setPixelWithOffset(x, y, z, false);
+            });
+        }
+        return this;
+    }
+
+    /**
+     * Counts common voxels of this mask and {@param other}, taking into account offsets of both masks, without modifying them
+     * @param other
+     * @return number of voxels inside both masks
+     */
+    public int intersectionCount(BitMask other) {
+        return intersectionCount(other, 0, 0, 0);
+    }
+
+    /**
+     * Same as {@link #intersectionCount(BitMask)} with {@param other} translated by ({@param dX}, {@param dY}, {@param dZ})
+     */
+    public int intersectionCount(BitMask other, int dX, int dY, int dZ) {
+        int[] res = new int[1];
+        rowOperation(other, dX, dY, dZ, (nBits, srcIdx, dstIdx) -> {
+            for (int i = 0; i<nBits; i+=64) {
+                int n = Math.min(64, nBits - i);
+                res[0] += Long.bitCount(readBits(bits, dstIdx + i, n) & readBits(other.bits, srcIdx + i, n));
+            }
+        });
+        return res[0];
+    }
+
+    private interface RowOperation {
+        void apply(int nBits, int srcIdx, int dstIdx);
+    }
+
+    /**
+     * Calls {@param op} for each row (constant y and z) of the intersection of the bounds of both masks, {@param other} being translated by ({@param dX}, {@param dY}, {@param dZ})
+     */
+    private void rowOperation(BitMask other, int dX, int dY, int dZ, RowOperation op) {
+        int oxMin = other.xMin + dX, oyMin = other.yMin + dY, ozMin = other.zMin + dZ;
+        BoundingBox inter = BoundingBox.getIntersection(this, new SimpleBoundingBox(oxMin, oxMin + other.sizeX - 1, oyMin, oyMin + other.sizeY - 1, ozMin, ozMin + other.sizeZ - 1));
+        if (!inter.isValid()) return;
+        int nBits = inter.sizeX();
+        for (int z = inter.zMin(); z<=inter.zMax(); ++z) {
+            for (int y = inter.yMin(); y<=inter.yMax(); ++y) {
+                int dstIdx = inter.xMin() - xMin + (y - yMin) * sizeX + (z - zMin) * sizeXY;
+                int srcIdx = inter.xMin() - oxMin + (y - oyMin) * other.sizeX + (z - ozMin) * other.sizeXY;
+                op.apply(nBits, srcIdx, dstIdx);
+            }
+        }
+    }
+
+    /**
+     * @return {@param n} (at most 64) bits starting at bit {@param idx}, in the lowest bits of the result
+     */
+    static long readBits(long[] bits, int idx, int n) {
+        int w = idx >>> 6, s = idx & 63;
+        long res = bits[w] >>> s;
+        if (s != 0 && s + n > 64) res |= bits[w + 1] << (64 - s);
+        return n == 64 ? res : res & ((1L << n) - 1);
+    }
+
+    private void writeBits(int idx, int n, long value) {
+        int w = idx >>> 6, s = idx & 63;
+        long mask = n == 64 ? -1L : (1L << n) - 1;
+        value &= mask;
+        bits[w] = (bits[w] & ~(mask << s)) | (value << s);
+        if (s != 0 && s + n > 64) {
+            int r = 64 - s;
+            long highMask = mask >>> r;
+            bits[w + 1] = (bits[w + 1] & ~highMask) | (value >>> r);
+        }
+    }
+
+    private void recount() {
+        int c = 0;
+        for (long w : bits) c += Long.bitCount(w);
+        count = c;
+    }
+
+    /**
+     * @return bounds of the voxels of the mask (with offset), invalid bounds if the mask is empty
+     */
+    public MutableBoundingBox getTightBounds() {
+        MutableBoundingBox res = new MutableBoundingBox();
+        loop((x, y, z) -> res.union(x, y, z), true);
+        return res;
+    }
+}
@@ -24,46 +24,60 @@ import bacmman.data_structure.Voxel;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 import bacmman.processing.watershed.WatershedTransform;
 import bacmman.processing.watershed.WatershedTransform.WatershedConfiguration;
-import java.util.Set;
+import bacmman.utils.ThreadRunner;
 
 /**
- *
+ * Connected component labelling with a union-find stored in the label map: during labelling each voxel of the map holds the index (+1) of its parent voxel.
+ * The image is split in slabs of planes (rows for 2D images) that are labelled in parallel, equivalences at slab borders are then merged, and final labels are written in the label map.
+ * Labels are consecutive and ordered by the first voxel (in raster order) of each component
  * @author Jean Ollion
  */
 public class ImageLabeller {
-    int[][] labels;
-    int sizeX;
-    HashMap<Integer, Spot> spots;
-    ImageMask mask;
+    static final int MIN_VOXELS_PER_SLAB = 1<<16;
     public static final int[][] neigh3DHalf = new int[][]{
-            {1, 1, -1}, {0, 1, -1}, {-1, 1, -1}, {1, 0, -1}, {0, 0, -1}, {-1, 0, -1}, {1, -1, -1}, {0, 1, -1}, {-1, -1, -1},
+            {1, 1, -1}, {0, 1, -1}, {-1, 1, -1}, {1, 0, -1}, {0, 0, -1}, {-1, 0, -1}, {1, -1, -1}, {0, -1, -1}, {-1, -1, -1},
             {1, -1, 0}, {0, -1, 0}, {-1, -1, 0}, {-1, 0, 0}
         };
     public static final int[][] neigh3DLowHalf = new int[][]{ {0, 0, -1}, {0, -1, 0},  {-1, 0, 0} };
     public static final int[][] neigh2D8Half = new int[][]{ {1, -1, 0}, {0, -1, 0}, {-1, -1, 0}, {-1, 0, 0} };
     public static final int[][] neigh2D4Half = new int[][]{ {0, -1, 0}, {-1, 0, 0} };
-    int[][] neigh;
-    
-    protected ImageLabeller(ImageMask mask) {
+    final ImageMask mask;
+    final int sizeX, sizeY, sizeZ, sizeXY;
+    final int[][] neigh;
+    final ImageInt labelMap;
+    final int[][] labels;
+    final boolean slabsArePlanes; // slabs are groups of planes for 3D images, groups of rows for 2D images
+    final int[] slabStart; // first plane (or row) of each slab, last element is the number of planes (or rows)
+    int labelCount;
+
+    protected ImageLabeller(ImageMask mask, boolean lowConnectivity) {
         this.mask=mask;
-        ImageInt imLabels = new ImageInt("labels", mask);
-        labels = imLabels.getPixelArray();
+        labelMap = new ImageInt("labels", mask);
+        labels = labelMap.getPixelArray();
         sizeX = mask.sizeX();
-        spots = new HashMap<Integer, Spot>();
+        sizeY = mask.sizeY();
+        sizeZ = mask.sizeZ();
+        sizeXY = mask.sizeXY();
+        if (sizeZ>1) neigh = lowConnectivity ? neigh3DLowHalf : neigh3DHalf;
+        else neigh = lowConnectivity ? neigh2D4Half : neigh2D8Half;
+        slabsArePlanes = sizeZ>1;
+        int lines = slabsArePlanes ? sizeZ : sizeY;
+        long voxels = (long)sizeXY * sizeZ;
+        int nSlabs = (int)Math.max(1, Math.min(Math.min(lines, ThreadRunner.getMaxCPUs()), voxels / MIN_VOXELS_PER_SLAB));
+        slabStart = new int[nSlabs+1];
+        for (int i = 0; i<=nSlabs; ++i) slabStart[i] = (int)((long)i * lines / nSlabs);
     }
-    
+
     public static Region[] labelImage(ImageMask mask) {
         if (mask instanceof BlankMask) return new Region[]{new Region((BlankMask)mask, 1, mask.sizeZ()==1)};
         else {
-            ImageLabeller il = new ImageLabeller(mask);
-            if (mask.sizeZ()>1) il.neigh=ImageLabeller.neigh3DHalf;
-            else il.neigh=ImageLabeller.neigh2D8Half;
+            ImageLabeller il = new ImageLabeller(mask, false);
             il.labelSpots();
             return il.getObjects();
         }
@@ -72,9 +86,7 @@ public class ImageLabeller {
     public static Region[] labelImageLowConnectivity(ImageMask mask) {
         if (mask instanceof BlankMask) return new Region[]{new Region((BlankMask)mask, 1, mask.sizeZ()==1)};
         else {
-            ImageLabeller il = new ImageLabeller(mask);
-            if (mask.sizeZ()>1) il.neigh=ImageLabeller.neigh3DLowHalf;
-            else il.neigh=ImageLabeller.neigh2D4Half;
+            ImageLabeller il = new ImageLabeller(mask, true);
             il.labelSpots();
             return il.getObjects();
         }
@@ -87,6 +99,42 @@ public class ImageLabeller {
     public static List<Region> labelImageListLowConnectivity(ImageMask mask) {
         return new ArrayList<>(Arrays.asList(labelImageLowConnectivity(mask)));
     }
+
+    /**
+     * Labels connected components of {@param mask} without creating regions
+     * @param mask
+     * @param lowConnectivity if true, 6-connectivity in 3D (4 in 2D) is used, otherwise 26-connectivity (8 in 2D)
+     * @return label map with same properties as {@param mask}, of the smallest type that can hold all labels
+     */
+    public static ImageInteger labelMap(ImageMask mask, boolean lowConnectivity) {
+        ImageLabeller il = new ImageLabeller(mask, lowConnectivity);
+        il.labelSpots();
+        return il.getLabelMap();
+    }
+
+    /**
+     * Labels connected components of {@param mask} and writes labels into {@param output} if they fit in its type
+     * @param mask
+     * @param output label map to write to, with same dimensions as {@param mask}. It can be {@param mask} itself
+     * @param lowConnectivity if true, 6-connectivity in 3D (4 in 2D) is used, otherwise 26-connectivity (8 in 2D)
+     * @return {@param output}, or a new label map if the number of labels exceeds the maximal value of {@param output}
+     */
+    public static ImageInteger labelMap(ImageMask mask, ImageInteger output, boolean lowConnectivity) {
+        if (!output.sameDimensions(mask)) throw new IllegalArgumentException("Output should have same dimensions as mask");
+        ImageLabeller il = new ImageLabeller(mask, lowConnectivity);
+        il.labelSpots();
+        if (il.labelCount>ImageInteger.getMaxValue(output, false)) return il.getLabelMap();
+        il.copyLabelsTo(output);
+        return output;
+    }
+
+    protected ImageInteger getLabelMap() {
+        if (labelCount>65535) return labelMap;
+        ImageInteger res = ImageInteger.createEmptyLabelImage(labelMap.getName(), labelCount, mask);
+        copyLabelsTo(res);
+        return res;
+    }
+
     /**
      * 
      * @param seeds seeds contained by final objects 
@@ -119,85 +167,155 @@ public class ImageLabeller {
         RegionPopulation pop = WatershedTransform.watershed(mask, null, WatershedTransform.createSeeds(seeds, mask.sizeZ()==1, mask.getScaleXY(), mask.getScaleZ()), config);
         return pop;
     }
+
+    /**
+     * Creates one region per label, with a {@link BitMask} as mask
+     * @return regions ordered by label
+     */
     protected Region[] getObjects() {
-        Region[] res = new Region[spots.size()];
-        int label = 0;
-        for (Spot s : spots.values()) res[label++]= new Region(s.voxels, label, mask.sizeZ()==1, mask.getScaleXY(), mask.getScaleZ());
-        return res;
-    }
-    
-    private void labelSpots() {
-        int currentLabel = 1;
-        Spot currentSpot;
-        Voxel v;
-        int nextLabel;
-        int xy;
-        for (int z = 0; z < mask.sizeZ(); ++z) {
-            for (int y = 0; y < mask.sizeY(); ++y) {
-                for (int x = 0; x < sizeX; ++x) {
-                    xy = x + y * sizeX;
-                    if (mask.insideMask(xy, z)) {
-                        currentSpot = null;
-                        v = new Voxel(x, y, z);
-                        for (int[] t : neigh) {
-                            if (mask.contains(x + t[0], y + t[1], z + t[2])) {
-                                nextLabel = labels[z + t[2]][xy + t[0] + t[1] * sizeX];
-                                if (nextLabel != 0) {
-                                    if (currentSpot == null) {
-                                        currentSpot = spots.get(nextLabel);
-                                        currentSpot.addVox(v);
-                                    } else if (nextLabel != currentSpot.label) {
-                                        currentSpot = currentSpot.fusion(spots.get(nextLabel));
-                                        currentSpot.addVox(v);
-                                    }
-                                }
-                            }
-                        }
-                        if (currentSpot == null) {
-                            spots.put(currentLabel, new Spot(currentLabel++, v));
-                        }
-                    }
+        int[] bds = new int[6 * labelCount]; // xMin, xMax, yMin, yMax, zMin, zMax of each label
+        for (int l = 0; l<labelCount; ++l) {
+            bds[6*l] = bds[6*l+2] = bds[6*l+4] = Integer.MAX_VALUE;
+            bds[6*l+1] = bds[6*l+3] = bds[6*l+5] = Integer.MIN_VALUE;
+        }
+        for (int z = 0; z<sizeZ; ++z) {
+            for (int y = 0; y<sizeY; ++y) {
+                for (int x = 0; x<sizeX; ++x) {
+                    int l = labels[z][x + y * sizeX] - 1;
+                    if (l<0) continue;
+                    l *= 6;
+                    if (x<bds[l]) bds[l] = x;
+                    if (x>bds[l+1]) bds[l+1] = x;
+                    if (y<bds[l+2]) bds[l+2] = y;
+                    if (y>bds[l+3]) bds[l+3] = y;
+                    if (z<bds[l+4]) bds[l+4] = z;
+                    if (z>bds[l+5]) bds[l+5] = z;
                 }
             }
         }
+        BitMask[] masks = new BitMask[labelCount];
+        for (int l = 0; l<labelCount; ++l) masks[l] = new BitMask(new SimpleBoundingBox(bds[6*l], bds[6*l+1], bds[6*l+2], bds[6*l+3], bds[6*l+4], bds[6*l+5]), mask.getScaleXY(), mask.getScaleZ());
+        for (int z = 0; z<sizeZ; ++z) {
+            for (int y = 0; y<sizeY; ++y) {
+                for (int x = 0; x<sizeX; ++x) {
+                    int l = labels[z][x + y * sizeX];
+                    if (l>0) masks[l-1].setPixelWithOffset(x, y, z, true);
+                }
+            }
+        }
+        Region[] res = new Region[labelCount];
+        for (int l = 0; l<labelCount; ++l) res[l] = new Region(masks[l], l+1, sizeZ==1);
+        return res;
     }
-    
-    private class Spot {
 
-        Set<Voxel> voxels;
-        int label;
+    private void copyLabelsTo(ImageInteger output) {
+        IntStream.range(0, sizeZ).parallel().forEach(z -> {
+            int[] l = labels[z];
+            for (int xy = 0; xy<sizeXY; ++xy) output.setPixel(xy, z, l[xy]);
+        });
+    }
 
-        public Spot(int label, Voxel v) {
-            this.label = label;
-            this.voxels = new HashSet<>();
-            voxels.add(v);
-            labels[v.z][v.x+v.y*sizeX] = label;
-        }
+    private int get(int idx) {
+        return labels[idx / sizeXY][idx % sizeXY] - 1;
+    }
+
+    private void set(int idx, int parent) {
+        labels[idx / sizeXY][idx % sizeXY] = parent + 1;
+    }
 
-        public void addVox(Voxel v) {
-            voxels.add(v);
-            labels[v.z][v.x+v.y*sizeX] = label;
+    private int find(int idx) { // with path halving
+        while (true) {
+            int p = get(idx);
+            if (p == idx) return idx;
+            int gp = get(p);
+            if (gp == p) return p;
+            set(idx, gp);
+            idx = gp;
         }
+    }
 
-        public void setLabel(int label) {
-            this.label = label;
-            for (Voxel v : voxels) {
-                labels[v.z][v.x+v.y*sizeX] = label;
-            }
+    private int findWithoutCompression(int idx) {
+        int p = get(idx);
+        while (p != idx) {
+            idx = p;
+            p = get(idx);
         }
+        return idx;
+    }
 
-        public Spot fusion(Spot other) {
-            if (other.label < label) {
-                return other.fusion(this);
+    private void union(int idx1, int idx2) { // root is the voxel with the lowest index
+        int r1 = find(idx1), r2 = find(idx2);
+        if (r1 == r2) return;
+        if (r1 < r2) set(r2, r1);
+        else set(r1, r2);
+    }
+
+    /**
+     * Unions foreground voxels of planes (or rows) [{@param start}; {@param end}[ with their neighbors located at or after plane (or row) {@param minNeighborLine}
+     * @param init if true, voxels are initialized as roots
+     */
+    private void unionLines(int start, int end, int minNeighborLine, boolean init) {
+        int zStart = slabsArePlanes ? start : 0, zEnd = slabsArePlanes ? end : 1;
+        int yStart = slabsArePlanes ? 0 : start, yEnd = slabsArePlanes ? sizeY : end;
+        for (int z = zStart; z < zEnd; ++z) {
+            for (int y = yStart; y < yEnd; ++y) {
+                for (int x = 0; x < sizeX; ++x) {
+                    int xy = x + y * sizeX;
+                    int idx = z * sizeXY + xy;
+                    if (init) {
+                        if (!mask.insideMask(xy, z)) continue;
+                        set(idx, idx);
+                    } else if (labels[z][xy]==0) continue;
+                    for (int[] t : neigh) {
+                        int nx = x + t[0], ny = y + t[1], nz = z + t[2];
+                        if ((slabsArePlanes ? nz : ny) < minNeighborLine) continue;
+                        if (mask.contains(nx, ny, nz) && labels[nz][nx + ny * sizeX] != 0) union(idx, nz * sizeXY + nx + ny * sizeX);
+                    }
+                }
             }
-            spots.remove(other.label);
-            voxels.addAll(other.voxels);
-            other.setLabel(label);
-            return this;
         }
+    }
 
-        public int getSize() {
-            return voxels.size();
+    /**
+     * Calls {@param fun} for the index of each foreground voxel of slab {@param slab}
+     */
+    private void loopSlab(int slab, IntConsumer fun) {
+        int lineSize = slabsArePlanes ? sizeXY : sizeX;
+        int end = slabStart[slab+1] * lineSize;
+        for (int idx = slabStart[slab] * lineSize; idx<end; ++idx) {
+            if (labels[idx / sizeXY][idx % sizeXY]!=0) fun.accept(idx);
         }
     }
+
+    private void labelSpots() {
+        int nSlabs = slabStart.length - 1;
+        // label each slab independently
+        IntStream.range(0, nSlabs).parallel().forEach(s -> unionLines(slabStart[s], slabStart[s+1], slabStart[s], true));
+        // merge equivalences at slab borders
+        for (int s = 1; s<nSlabs; ++s) unionLines(slabStart[s], slabStart[s]+1, slabStart[s]-1, false);
+        // point each voxel to its root and count roots. only the entry of the current voxel is written so that concurrent reads always see an ancestor
+        int[] rootCount = new int[nSlabs];
+        IntStream.range(0, nSlabs).parallel().forEach(s -> loopSlab(s, idx -> {
+            int root = findWithoutCompression(idx);
+            if (root == idx) ++rootCount[s];
+            else set(idx, root);
+        }));
+        int[] labelOffset = new int[nSlabs];
+        for (int s = 1; s<nSlabs; ++s) labelOffset[s] = labelOffset[s-1] + rootCount[s-1];
+        labelCount = labelOffset[nSlabs-1] + rootCount[nSlabs-1];
+        // roots hold their final label as a negative value
+        IntStream.range(0, nSlabs).parallel().forEach(s -> {
+            int[] label = new int[]{labelOffset[s]};
+            loopSlab(s, idx -> {
+                if (get(idx) == idx) labels[idx / sizeXY][idx % sizeXY] = -(++label[0]);
+            });
+        });
+        // write final labels
+        IntStream.range(0, nSlabs).parallel().forEach(s -> loopSlab(s, idx -> {
+            int z = idx / sizeXY, xy = idx % sizeXY;
+            int v = labels[z][xy];
+            if (v<0) labels[z][xy] = -v; // root
+            else labels[z][xy] = Math.abs(labels[(v-1) / sizeXY][(v-1) % sizeXY]); // the root may already be written
+        }));
+    }
 }
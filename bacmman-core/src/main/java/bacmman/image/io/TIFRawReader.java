@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.image.io;
+
+import bacmman.image.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fast reader for uncompressed, single-sample TIFF files such as those written by {@link ImageWriter} (ImageJ encoder), e.g. pre-processed images.
+ * IFDs are parsed directly and pixels are read with positional reads of the file into a buffer that is reused by each thread, and copied into the pixel arrays, so that only the rows within the requested bounds are read.
+ * Files that are not supported (compression, tiles, RGB, unsupported pixel type...) are not read: null is returned and the caller should use {@link ImageReader}
+ * @author Jean Ollion
+ */
+public class TIFRawReader {
+    public static final Logger logger = LoggerFactory.getLogger(TIFRawReader.class);
+    static final int IMAGE_WIDTH=256, IMAGE_LENGTH=257, BITS_PER_SAMPLE=258, COMPRESSION=259, IMAGE_DESCRIPTION=270, STRIP_OFFSETS=273, SAMPLES_PER_PIXEL=277, ROWS_PER_STRIP=278, STRIP_BYTE_COUNTS=279, X_RESOLUTION=282, TILE_WIDTH=322, SAMPLE_FORMAT=339;
+    static final int SAMPLE_FORMAT_UINT=1, SAMPLE_FORMAT_INT=2, SAMPLE_FORMAT_FLOAT=3;
+    static final Pattern SPACING = Pattern.compile("spacing=([0-9.eE+-]+)");
+    static final Pattern IMAGES = Pattern.compile("images=(\\d+)");
+    static final int BUFFER_SIZE = 1<<22; // contiguous rows are read at once, up to this size
+    static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(0));
+
+    /**
+     * Description of one plane (IFD) of a TIFF file
+     */
+    static class Plane {
+        int width, height, bitsPerSample=1, samplesPerPixel=1, compression=1, sampleFormat=SAMPLE_FORMAT_UINT, rowsPerStrip=Integer.MAX_VALUE;
+        boolean tiled;
+        long[] stripOffsets;
+        double xResolution;
+        String description;
+        ByteOrder order;
+        boolean supported() {
+            if (compression!=1 || samplesPerPixel!=1 || tiled || stripOffsets==null || stripOffsets.length==0) return false;
+            switch (bitsPerSample) {
+                case 8:
+                case 16: return sampleFormat!=SAMPLE_FORMAT_FLOAT;
+                case 32: return true;
+                default: return false;
+            }
+        }
+        int bytesPerPixel() {
+            return bitsPerSample/8;
+        }
+        long getRowOffset(int y) {
+            int strip = y / rowsPerStrip;
+            return stripOffsets[strip] + (long)(y - strip * rowsPerStrip) * width * bytesPerPixel();
+        }
+        /**
+         *
+         * @return last row of the strip that contains row {@param y}
+         */
+        int getStripEnd(int y) {
+            if (rowsPerStrip>=height) return height - 1;
+            return Math.min(height - 1, (y / rowsPerStrip + 1) * rowsPerStrip - 1);
+        }
+    }
+
+    /**
+     * 
+     * @param path path of the TIFF file
+     * @return image contained in the file or null if the file is not supported by this reader
+     */
+    public static Image openImage(String path) {
+        return openImage(path, null);
+    }
+
+    /**
+     *
+     * @param path path of the TIFF file
+     * @param bounds if not null, only the area of the image within {@param bounds} is read. The returned image has the dimensions and offset of {@param bounds}, the area of {@param bounds} outside of the stored image is filled with zeros (same behavior as {@link Image#crop(BoundingBox)})
+     * @return image contained in the file or null if the file is not supported by this reader
+     */
+    public static Image openImage(String path, BoundingBox bounds) {
+        Path file = Paths.get(path);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            List<Plane> planes = readPlanes(channel);
+            if (planes==null || planes.isEmpty()) return null;
+            Plane first = planes.get(0);
+            for (Plane p : planes) {
+                if (!p.supported() || p.width!=first.width || p.height!=first.height || p.bitsPerSample!=first.bitsPerSample || p.sampleFormat!=first.sampleFormat) return null;
+            }
+            int sizeZ = planes.size();
+            if (sizeZ==1 && first.description!=null) { // large ImageJ stacks have a single IFD: planes are contiguous
+                Matcher m = IMAGES.matcher(first.description);
+                if (m.find()) sizeZ = Math.max(1, Integer.parseInt(m.group(1)));
+                if (sizeZ>1 && (first.stripOffsets.length!=1 || first.stripOffsets[0] + (long)sizeZ * first.width * first.height * first.bytesPerPixel() > channel.size())) return null;
+            }
+            BoundingBox b = bounds!=null ? bounds : new SimpleBoundingBox(0, first.width-1, 0, first.height-1, 0, sizeZ-1);
+            Image res = allocate(new File(path).getName(), first, b);
+            int sizeX = b.sizeX();
+            // intersection of bounds and stored image
+            int xMin = Math.max(0, b.xMin()), xMax = Math.min(first.width-1, b.xMax());
+            int yMin = Math.max(0, b.yMin()), yMax = Math.min(first.height-1, b.yMax());
+            int zMin = Math.max(0, b.zMin()), zMax = Math.min(sizeZ-1, b.zMax());
+            if (xMin<=xMax && yMin<=yMax) {
+                int bpp = first.bytesPerPixel();
+                long planeBytes = (long)first.width * first.height * bpp;
+                int rowBytes = first.width * bpp;
+                int length = xMax - xMin + 1;
+                int maxRows = Math.max(1, BUFFER_SIZE / rowBytes);
+                ByteBuffer buffer = getBuffer(Math.min(maxRows, yMax - yMin + 1) * rowBytes, first.order);
+                for (int z = zMin; z<=zMax; ++z) {
+                    Plane p = planes.size()>1 ? planes.get(z) : first;
+                    long planeOffset = planes.size()>1 ? 0 : z * planeBytes;
+                    Object pixels = res.getPixelArray()[z - b.zMin()];
+                    int y = yMin;
+                    while (y<=yMax) { // rows of a strip are contiguous in the file: they are read at once
+                        int yEnd = Math.min(Math.min(yMax, p.getStripEnd(y)), y + maxRows - 1);
+                        buffer.clear();
+                        buffer.limit((yEnd - y) * rowBytes + length * bpp);
+                        readFully(channel, buffer, planeOffset + p.getRowOffset(y) + (long)xMin * bpp);
+                        for (int yy = y; yy<=yEnd; ++yy) {
+                            int destOffset = (yy - b.yMin()) * sizeX + xMin - b.xMin();
+                            copyRow(buffer, (yy - y) * rowBytes, pixels, destOffset, length);
+                        }
+                        y = yEnd + 1;
+                    }
+                }
+            }
+            // same calibration as ImageJ's decoder
+            double pixelWidth = first.xResolution>0 ? 1d / first.xResolution : 1;
+            double pixelDepth = 1;
+            if (first.description!=null) {
+                Matcher m = SPACING.matcher(first.description);
+                if (m.find()) pixelDepth = Double.parseDouble(m.group(1));
+            }
+            res.setCalibration((float)pixelWidth, (float)pixelDepth);
+            if (bounds!=null) res.translate(bounds);
+            return res;
+        } catch (IOException|RuntimeException e) {
+            logger.debug("could not read tif file: {} with raw reader: {}", path, e.getMessage());
+            return null;
+        }
+    }
+
+    private static Image allocate(String name, Plane plane, BoundingBox bounds) {
+        ImageProperties props = new SimpleImageProperties(bounds.sizeX(), bounds.sizeY(), bounds.sizeZ(), 1, 1);
+        switch (plane.bitsPerSample) {
+            case 8: return new ImageByte(name, props);
+            case 16: return new ImageShort(name, props);
+            default: return plane.sampleFormat==SAMPLE_FORMAT_FLOAT ? new ImageFloat(name, props) : new ImageInt(name, props);
+        }
+    }
+
+    /**
+     *
+     * @param capacity
+     * @param order
+     * @return buffer of the calling thread, with at least {@param capacity} bytes
+     */
+    private static ByteBuffer getBuffer(int capacity, ByteOrder order) {
+        ByteBuffer buffer = BUFFER.get();
+        if (buffer.capacity()<capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+            BUFFER.set(buffer);
+        }
+        buffer.clear();
+        return buffer.order(order);
+    }
+
+    /**
+     * Fills the remaining bytes of {@param buffer} with bytes of the file starting at {@param position}
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n<0) throw new EOFException("end of file reached at: "+position);
+            position += n;
+        }
+    }
+
+    /**
+     *
+     * @return {@param length} bytes of the file starting at {@param position}, in a new buffer with byte order {@param order}
+     */
+    private static ByteBuffer read(FileChannel channel, long position, int length, ByteOrder order) throws IOException {
+        ByteBuffer res = ByteBuffer.allocate(length).order(order);
+        readFully(channel, res, position);
+        res.flip();
+        return res;
+    }
+
+    private static void copyRow(ByteBuffer buffer, int position, Object pixels, int destOffset, int length) {
+        ByteBuffer row = buffer.duplicate().order(buffer.order());
+        row.position(position);
+        if (pixels instanceof byte[]) row.get((byte[])pixels, destOffset, length);
+        else if (pixels instanceof short[]) row.asShortBuffer().get((short[])pixels, destOffset, length);
+        else if (pixels instanceof float[]) row.asFloatBuffer().get((float[])pixels, destOffset, length);
+        else row.asIntBuffer().get((int[])pixels, destOffset, length);
+    }
+
+    /**
+     *
+     * @param channel TIFF file
+     * @return all planes of the file, or null if the file is not a (non big-) TIFF file
+     */
+    static List<Plane> readPlanes(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size<8) return null;
+        ByteBuffer header = read(channel, 0, 8, ByteOrder.BIG_ENDIAN);
+        short orderMark = header.getShort(0);
+        ByteOrder order;
+        if (orderMark==0x4949) order = ByteOrder.LITTLE_ENDIAN;
+        else if (orderMark==0x4D4D) order = ByteOrder.BIG_ENDIAN;
+        else return null;
+        header.order(order);
+        if (header.getShort(2)!=42) return null; // big tiff is not supported
+        List<Plane> res = new ArrayList<>();
+        long ifdOffset = header.getInt(4) & 0xFFFFFFFFL;
+        while (ifdOffset>0 && ifdOffset + 2 <= size) {
+            int entries = read(channel, ifdOffset, 2, order).getShort(0) & 0xFFFF;
+            ByteBuffer ifd = read(channel, ifdOffset + 2, 12 * entries + 4, order);
+            Plane p = new Plane();
+            p.order = order;
+            for (int i = 0; i<entries; ++i) readEntry(channel, ifd, 12 * i, p);
+            res.add(p);
+            ifdOffset = ifd.getInt(12 * entries) & 0xFFFFFFFFL;
+        }
+        return res;
+    }
+
+    private static void readEntry(FileChannel channel, ByteBuffer ifd, int entryOffset, Plane p) throws IOException {
+        int tag = ifd.getShort(entryOffset) & 0xFFFF;
+        int type = ifd.getShort(entryOffset + 2) & 0xFFFF;
+        int count = ifd.getInt(entryOffset + 4);
+        switch (tag) {
+            case IMAGE_WIDTH: p.width = (int)getValue(channel, ifd, entryOffset, type, count, 0); break;
+            case IMAGE_LENGTH: p.height = (int)getValue(channel, ifd, entryOffset, type, count, 0); break;
+            case BITS_PER_SAMPLE: p.bitsPerSample = (int)getValue(channel, ifd, entryOffset, type, count, 0); break;
+            case COMPRESSION: p.compression = (int)getValue(channel, ifd, entryOffset, type, count, 0); break;
+            case SAMPLES_PER_PIXEL: p.samplesPerPixel = (int)getValue(channel, ifd, entryOffset, type, count, 0); break;
+            case ROWS_PER_STRIP: p.rowsPerStrip = (int)getValue(channel, ifd, entryOffset, type, count, 0); break;
+            case SAMPLE_FORMAT: p.sampleFormat = (int)getValue(channel, ifd, entryOffset, type, count, 0); break;
+            case TILE_WIDTH: p.tiled = true; break;
+            case STRIP_OFFSETS: {
+                ByteBuffer values = getValues(channel, ifd, entryOffset, type, count);
+                int size = getTypeSize(type);
+                p.stripOffsets = new long[count];
+                for (int i = 0; i<count; ++i) p.stripOffsets[i] = getValue(values, size, i);
+                break;
+            }
+            case X_RESOLUTION: { // rational
+                ByteBuffer value = read(channel, ifd.getInt(entryOffset + 8) & 0xFFFFFFFFL, 8, ifd.order());
+                long num = value.getInt(0) & 0xFFFFFFFFL;
+                long den = value.getInt(4) & 0xFFFFFFFFL;
+                if (den!=0) p.xResolution = (double)num / den;
+                break;
+            }
+            case IMAGE_DESCRIPTION: {
+                ByteBuffer value = getValues(channel, ifd, entryOffset, 2, count);
+                byte[] chars = new byte[Math.max(0, count-1)]; // null-terminated
+                value.get(chars);
+                p.description = new String(chars, StandardCharsets.ISO_8859_1);
+                break;
+            }
+            default:
+        }
+    }
+
+    private static int getTypeSize(int type) {
+        return type==3 ? 2 : (type==4 ? 4 : 1);
+    }
+
+    /**
+     *
+     * @return buffer containing the {@param count} values of an entry, read from the entry itself or from the file
+     */
+    private static ByteBuffer getValues(FileChannel channel, ByteBuffer ifd, int entryOffset, int type, int count) throws IOException {
+        int length = getTypeSize(type) * count;
+        if (length <= 4) {
+            ByteBuffer res = ifd.duplicate().order(ifd.order());
+            res.position(entryOffset + 8);
+            res.limit(entryOffset + 8 + length);
+            return res.slice().order(ifd.order());
+        }
+        return read(channel, ifd.getInt(entryOffset + 8) & 0xFFFFFFFFL, length, ifd.order());
+    }
+
+    /**
+     *
+     * @return value of index {@param idx} of an entry of type BYTE, SHORT or LONG
+     */
+    private static long getValue(FileChannel channel, ByteBuffer ifd, int entryOffset, int type, int count, int idx) throws IOException {
+        return getValue(getValues(channel, ifd, entryOffset, type, count), getTypeSize(type), idx);
+    }
+
+    private static long getValue(ByteBuffer values, int size, int idx) {
+        int off = idx * size;
+        switch (size) {
+            case 1: return values.get(off) & 0xFF;
+            case 2: return values.getShort(off) & 0xFFFF;
+            default: return values.getInt(off) & 0xFFFFFFFFL;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.measurement;
+
+import java.io.*;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+import static bacmman.measurement.ColumnarMeasurementWriter.*;
+
+/**
+ * Reads files written by {@link ColumnarMeasurementWriter}. Only the chunks of requested columns are read.
+ * Columns are returned as int[], double[], String[] (null for missing values), int[][] or double[][] (null elements for missing values). If the chunk type of a measurement column varies among row groups, the column is returned as String[]
+ * @author Jean Ollion
+ */
+public class ColumnarMeasurementReader implements Closeable {
+    final RandomAccessFile file;
+    final String[] columnNames;
+    final int[] objectClasses;
+    final long[] rowGroupOffsets;
+    final int[] rowGroupRows;
+
+    public ColumnarMeasurementReader(File input) throws IOException {
+        file = new RandomAccessFile(input, "r");
+        try {
+            checkMagic();
+            int version = file.readInt();
+            if (version!=VERSION) throw new IOException("Unsupported columnar file version: "+version);
+            int nCols = file.readInt();
+            columnNames = new String[nCols];
+            objectClasses = new int[nCols];
+            for (int i = 0; i<nCols; ++i) {
+                columnNames[i] = file.readUTF();
+                objectClasses[i] = file.readInt();
+            }
+            file.seek(file.length() - 12);
+            long footer = file.readLong();
+            checkMagic();
+            file.seek(footer);
+            int nRG = file.readInt();
+            rowGroupOffsets = new long[nRG];
+            rowGroupRows = new int[nRG];
+            for (int i = 0; i<nRG; ++i) {
+                rowGroupOffsets[i] = file.readLong();
+                rowGroupRows[i] = file.readInt();
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private void checkMagic() throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        file.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a columnar measurement file");
+    }
+
+    public String[] getColumnNames() {
+        return columnNames.clone();
+    }
+
+    /**
+     * @return object class of each column, -1 for columns that are not measurements
+     */
+    public int[] getObjectClasses() {
+        return objectClasses.clone();
+    }
+
+    public int getRowCount() {
+        return Arrays.stream(rowGroupRows).sum();
+    }
+
+    /**
+     *
+     * @param columnIdx
+     * @return all values of the column
+     * @throws IOException
+     */
+    public Object readColumn(int columnIdx) throws IOException {
+        if (columnIdx<0 || columnIdx>=columnNames.length) throw new IllegalArgumentException("Invalid column index: "+columnIdx);
+        List<Object> chunks = new ArrayList<>(rowGroupOffsets.length);
+        Set<Byte> types = new HashSet<>();
+        for (int rg = 0; rg<rowGroupOffsets.length; ++rg) {
+            file.seek(rowGroupOffsets[rg] + 4);
+            for (int c = 0; c<columnIdx; ++c) { // skip previous columns
+                file.readByte();
+                file.seek(file.getFilePointer() + 4 + file.readInt());
+            }
+            byte type = file.readByte();
+            byte[] payload = new byte[file.readInt()];
+            file.readFully(payload);
+            types.add(type);
+            chunks.add(decode(type, ByteBuffer.wrap(payload), rowGroupRows[rg]));
+        }
+        if (types.size()>1) return concat(chunks, String[]::new, ColumnarMeasurementReader::toStrings);
+        byte type = types.isEmpty() ? DOUBLE : types.iterator().next();
+        switch (type) {
+            case INT: {
+                int[] res = new int[getRowCount()];
+                int off = 0;
+                for (Object c : chunks) {
+                    System.arraycopy(c, 0, res, off, ((int[])c).length);
+                    off += ((int[])c).length;
+                }
+                return res;
+            }
+            case DOUBLE: {
+                double[] res = new double[getRowCount()];
+                int off = 0;
+                for (Object c : chunks) {
+                    System.arraycopy(c, 0, res, off, ((double[])c).length);
+                    off += ((double[])c).length;
+                }
+                return res;
+            }
+            case STRING_DICT:
+                return concat(chunks, String[]::new, c -> (String[])c);
+            case INT_LIST:
+                return concat(chunks, int[][]::new, c -> (int[][])c);
+            default:
+                return concat(chunks, double[][]::new, c -> (double[][])c);
+        }
+    }
+
+    public Object readColumn(String name) throws IOException {
+        for (int i = 0; i<columnNames.length; ++i) if (columnNames[i].equals(name)) return readColumn(i);
+        throw new IllegalArgumentException("Column: "+name+" not found");
+    }
+
+    private <T> T[] concat(List<Object> chunks, IntFunction<T[]> create, Function<Object, T[]> convert) {
+        T[] res = create.apply(getRowCount());
+        int off = 0;
+        for (Object c : chunks) {
+            T[] a = convert.apply(c);
+            System.arraycopy(a, 0, res, off, a.length);
+            off += a.length;
+        }
+        return res;
+    }
+
+    private static String[] toStrings(Object chunk) {
+        if (chunk instanceof String[]) return (String[])chunk;
+        int n = Array.getLength(chunk);
+        String[] res = new String[n];
+        for (int i = 0; i<n; ++i) {
+            Object o = Array.get(chunk, i);
+            if (o==null) continue;
+            if (o instanceof Double && ((Double)o).isNaN()) continue;
+            if (o instanceof double[]) res[i] = Arrays.toString((double[])o);
+            else if (o instanceof int[]) res[i] = Arrays.toString((int[])o);
+            else res[i] = o.toString();
+        }
+        return res;
+    }
+
+    private static Object decode(byte type, ByteBuffer bb, int rows) throws IOException {
+        switch (type) {
+            case INT: {
+                int[] res = new int[rows];
+                bb.asIntBuffer().get(res);
+                return res;
+            }
+            case DOUBLE: {
+                double[] res = new double[rows];
+                bb.asDoubleBuffer().get(res);
+                return res;
+            }
+            case STRING_DICT: {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bb.array()));
+                String[] dict = new String[in.readInt()];
+                for (int i = 0; i<dict.length; ++i) dict[i] = in.readUTF();
+                String[] res = new String[rows];
+                for (int i = 0; i<rows; ++i) {
+                    int c = in.readInt();
+                    res[i] = c<0 ? null : dict[c];
+                }
+                return res;
+            }
+            case INT_LIST: {
+                int[][] res = new int[rows][];
+                int[] lengths = new int[rows];
+                for (int i = 0; i<rows; ++i) lengths[i] = bb.getInt();
+                for (int i = 0; i<rows; ++i) {
+                    if (lengths[i]<0) continue;
+                    res[i] = new int[lengths[i]];
+                    for (int j = 0; j<lengths[i]; ++j) res[i][j] = bb.getInt();
+                }
+                return res;
+            }
+            case DOUBLE_LIST: {
+                double[][] res = new double[rows][];
+                int[] lengths = new int[rows];
+                for (int i = 0; i<rows; ++i) lengths[i] = bb.getInt();
+                for (int i = 0; i<rows; ++i) {
+                    if (lengths[i]<0) continue;
+                    res[i] = new double[lengths[i]];
+                    for (int j = 0; j<lengths[i]; ++j) res[i][j] = bb.getDouble();
+                }
+                return res;
+            }
+            default:
+                throw new IOException("Unknown chunk type: "+type);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.measurement;
+
+import bacmman.data_structure.Measurements;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Writes measurements in a binary columnar file, an alternative to the semicolon-separated export that avoids number formatting and parsing.
+ * All numbers are big-endian. Layout:
+ * <ul>
+ *     <li>header: magic "BCOL", version (int), number of columns (int), then for each column: name (UTF), object class (int, -1 for base columns)</li>
+ *     <li>row groups: number of rows (int), then for each column a chunk: type (byte), length in bytes of the payload (int), payload. Readers can skip columns they don't need using the length</li>
+ *     <li>footer: number of row groups (int), then for each row group its offset (long) and number of rows (int); then the offset of the footer (long) and the magic</li>
+ * </ul>
+ * Chunk types and payloads:
+ * <ul>
+ *     <li>{@link #INT}: one int per row</li>
+ *     <li>{@link #DOUBLE}: one double per row, NaN for missing values</li>
+ *     <li>{@link #STRING_DICT}: dictionary size (int), entries (UTF), then one code (int) per row, -1 for missing values</li>
+ *     <li>{@link #INT_LIST} / {@link #DOUBLE_LIST}: one length (int) per row, -1 for missing values, then all elements</li>
+ * </ul>
+ * Measurement columns have a chunk type per row group, determined from their values: numbers give {@link #DOUBLE}, numeric arrays give {@link #DOUBLE_LIST}, other values give {@link #STRING_DICT}
+ * @author Jean Ollion
+ */
+public class ColumnarMeasurementWriter implements Closeable {
+    public static final byte[] MAGIC = new byte[]{'B', 'C', 'O', 'L'};
+    public static final int VERSION = 1;
+    public static final byte INT = 1, DOUBLE = 2, STRING_DICT = 3, INT_LIST = 4, DOUBLE_LIST = 5;
+    public static final int DEFAULT_ROW_GROUP_SIZE = 65536;
+    final DataOutputStream out;
+    final int columnCount;
+    long position;
+    final List<long[]> rowGroups = new ArrayList<>(); // offset, row count
+
+    /**
+     *
+     * @param output
+     * @param columnNames
+     * @param objectClasses object class of each column, -1 for columns that are not measurements
+     * @throws IOException
+     */
+    public ColumnarMeasurementWriter(File output, String[] columnNames, int[] objectClasses) throws IOException {
+        if (columnNames.length!=objectClasses.length) throw new IllegalArgumentException("One object class per column expected");
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1<<16));
+        this.columnCount = columnNames.length;
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(columnCount);
+        for (int i = 0; i<columnNames.length; ++i) {
+            out.writeUTF(columnNames[i]);
+            out.writeInt(objectClasses[i]);
+        }
+        position = out.size();
+    }
+
+    /**
+     * Appends a row group encoded by {@link RowGroup}
+     * @param rowGroup
+     * @throws IOException
+     */
+    public void write(RowGroup rowGroup) throws IOException {
+        if (rowGroup.columns!=columnCount) throw new IllegalArgumentException("Row group has "+rowGroup.columns+" columns instead of "+columnCount);
+        byte[] data = rowGroup.toByteArray();
+        rowGroups.add(new long[]{position, rowGroup.rows});
+        out.write(data);
+        position += data.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        long footer = position;
+        out.writeInt(rowGroups.size());
+        for (long[] rg : rowGroups) {
+            out.writeLong(rg[0]);
+            out.writeInt((int)rg[1]);
+        }
+        out.writeLong(footer);
+        out.write(MAGIC);
+        out.close();
+    }
+
+    /**
+     * Encodes the columns of a group of rows. Columns must be added in the order of the header
+     */
+    public static class RowGroup {
+        final int rows;
+        int columns;
+        final ByteArrayOutputStream bos;
+        final DataOutputStream data;
+        public RowGroup(int rows) {
+            this.rows = rows;
+            bos = new ByteArrayOutputStream(1024);
+            data = new DataOutputStream(bos);
+            try {
+                data.writeInt(rows);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        public int getRowCount() {
+            return rows;
+        }
+        private void writeChunk(byte type, ByteBuffer payload) {
+            try {
+                data.writeByte(type);
+                data.writeInt(payload.position());
+                data.write(payload.array(), 0, payload.position());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            ++columns;
+        }
+        private void checkLength(int length) {
+            if (length!=rows) throw new IllegalArgumentException("Column has "+length+" rows instead of "+rows);
+        }
+        public RowGroup addInts(int[] values) {
+            checkLength(values.length);
+            ByteBuffer bb = ByteBuffer.allocate(4 * rows);
+            bb.asIntBuffer().put(values);
+            bb.position(4 * rows);
+            writeChunk(INT, bb);
+            return this;
+        }
+        public RowGroup addDoubles(double[] values) {
+            checkLength(values.length);
+            ByteBuffer bb = ByteBuffer.allocate(8 * rows);
+            bb.asDoubleBuffer().put(values);
+            bb.position(8 * rows);
+            writeChunk(DOUBLE, bb);
+            return this;
+        }
+        /**
+         * @param values null values are stored as missing values
+         */
+        public RowGroup addStrings(String[] values) {
+            checkLength(values.length);
+            Map<String, Integer> dict = new LinkedHashMap<>();
+            int[] codes = new int[rows];
+            for (int i = 0; i<rows; ++i) {
+                if (values[i]==null) codes[i] = -1;
+                else {
+                    Integer c = dict.get(values[i]);
+                    if (c==null) {
+                        c = dict.size();
+                        dict.put(values[i], c);
+                    }
+                    codes[i] = c;
+                }
+            }
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream(4 * rows + 16 * dict.size() + 4);
+            DataOutputStream cout = new DataOutputStream(chunk);
+            try {
+                cout.writeInt(dict.size());
+                for (String s : dict.keySet()) cout.writeUTF(s);
+                for (int c : codes) cout.writeInt(c);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            ByteBuffer bb = ByteBuffer.wrap(chunk.toByteArray());
+            bb.position(bb.capacity());
+            writeChunk(STRING_DICT, bb);
+            return this;
+        }
+        /**
+         * @param values null elements are stored as missing values
+         */
+        public RowGroup addIntLists(int[][] values) {
+            checkLength(values.length);
+            int total = 0;
+            for (int[] v : values) if (v!=null) total+=v.length;
+            ByteBuffer bb = ByteBuffer.allocate(4 * (rows + total));
+            for (int[] v : values) bb.putInt(v==null ? -1 : v.length);
+            for (int[] v : values) if (v!=null) for (int i : v) bb.putInt(i);
+            writeChunk(INT_LIST, bb);
+            return this;
+        }
+        /**
+         * @param values null elements are stored as missing values
+         */
+        public RowGroup addDoubleLists(double[][] values) {
+            checkLength(values.length);
+            int total = 0;
+            for (double[] v : values) if (v!=null) total+=v.length;
+            ByteBuffer bb = ByteBuffer.allocate(4 * rows + 8 * total);
+            for (double[] v : values) bb.putInt(v==null ? -1 : v.length);
+            for (double[] v : values) if (v!=null) for (double d : v) bb.putDouble(d);
+            writeChunk(DOUBLE_LIST, bb);
+            return this;
+        }
+
+        /**
+         * Adds a measurement column, the type of the chunk depends on the values
+         * @param values values as returned by {@link Measurements#getValue(String)}, null for missing values
+         */
+        public RowGroup addValues(Object[] values) {
+            checkLength(values.length);
+            boolean allNumbers = true, allArrays = true;
+            for (Object o : values) {
+                if (o==null) continue;
+                if (!(o instanceof Number)) allNumbers = false;
+                if (toDoubleArray(o)==null) allArrays = false;
+            }
+            if (allNumbers) {
+                double[] res = new double[rows];
+                for (int i = 0; i<rows; ++i) res[i] = values[i]==null ? Double.NaN : ((Number)values[i]).doubleValue();
+                return addDoubles(res);
+            } else if (allArrays) {
+                double[][] res = new double[rows][];
+                for (int i = 0; i<rows; ++i) res[i] = values[i]==null ? null : toDoubleArray(values[i]);
+                return addDoubleLists(res);
+            } else {
+                String[] res = new String[rows];
+                for (int i = 0; i<rows; ++i) {
+                    String s = Measurements.asString(values[i], Object::toString);
+                    res[i] = Measurements.NA_STRING.equals(s) ? null : s;
+                }
+                return addStrings(res);
+            }
+        }
+        private static double[] toDoubleArray(Object o) {
+            if (o instanceof double[]) return (double[])o;
+            if (o instanceof float[]) {
+                float[] a = (float[])o;
+                double[] res = new double[a.length];
+                for (int i = 0; i<a.length; ++i) res[i] = a[i];
+                return res;
+            }
+            if (o instanceof int[]) return Arrays.stream((int[])o).asDoubleStream().toArray();
+            if (o instanceof long[]) return Arrays.stream((long[])o).asDoubleStream().toArray();
+            return null;
+        }
+        byte[] toByteArray() {
+            try {
+                data.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bos.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.measurement;
+
+import bacmman.data_structure.SegmentedObject;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Buffer of measurement values, written to {@link bacmman.data_structure.Measurements} of the objects in one call per object by {@link #flush()}.
+ * Not thread-safe: each task should use its own instance
+ * @author Jean Ollion
+ */
+public class MeasurementBatch {
+    final Map<SegmentedObject, Map<String, Object>> values = new LinkedHashMap<>();
+
+    private Map<String, Object> get(SegmentedObject object) {
+        Map<String, Object> res = values.get(object);
+        if (res==null) {
+            res = new HashMap<>();
+            values.put(object, res);
+        }
+        return res;
+    }
+
+    public MeasurementBatch setValue(SegmentedObject object, String key, Number value) {
+        get(object).put(key, value);
+        return this;
+    }
+
+    public MeasurementBatch setValue(SegmentedObject object, String key, boolean value) {
+        get(object).put(key, value);
+        return this;
+    }
+
+    public MeasurementBatch setStringValue(SegmentedObject object, String key, String value) {
+        get(object).put(key, value);
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    /**
+     * Writes all buffered values and empties this buffer
+     */
+    public void flush() {
+        for (Map.Entry<SegmentedObject, Map<String, Object>> e : values.entrySet()) e.getKey().getMeasurements().setValues(e.getValue());
+        values.clear();
+    }
+}
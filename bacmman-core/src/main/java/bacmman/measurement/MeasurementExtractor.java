@@ -28,15 +28,23 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Function;
+import bacmman.utils.Pair;
+import bacmman.utils.ThreadRunner;
 import bacmman.utils.Utils;
 
 /**
@@ -105,85 +113,222 @@ public class MeasurementExtractor {
         for (String[] s : measurements.values()) l.addAll(Arrays.asList(s));
         return l;
     }
+    public enum ExportFormat {
+        CSV("csv"), COLUMNAR("bcol");
+        final String extension;
+        ExportFormat(String extension) {this.extension=extension;}
+        public String getExtension() {return extension;}
+    }
     public static void extractMeasurementObjects(MasterDAO db, String outputFile, int structureIdx,  List<String> positions, String... measurements) {
         Map<Integer, String[]> map = new HashMap<>(1);
         map.put(structureIdx, measurements);
         MeasurementExtractor de= new MeasurementExtractor(db, structureIdx);
-        de.extractMeasurementObjects(outputFile, positions, map);
+        de.extractMeasurementObjects(outputFile, positions, map, ExportFormat.CSV);
     }
     public static void extractMeasurementObjects(MasterDAO db, String outputFile, List<String> positions, Map<Integer, String[]> allMeasurements) {
+        extractMeasurementObjects(db, outputFile, positions, allMeasurements, ExportFormat.CSV);
+    }
+    public static void extractMeasurementObjects(MasterDAO db, String outputFile, List<String> positions, Map<Integer, String[]> allMeasurements, ExportFormat format) {
         TreeMap<Integer, String[]> allMeasurementsSort = new TreeMap<>(allMeasurements);
         //if (allMeasurementsSort.isEmpty()) return;
         MeasurementExtractor de= new MeasurementExtractor(db, allMeasurementsSort.lastKey());
-        de.extractMeasurementObjects(outputFile, positions, allMeasurementsSort);
+        de.extractMeasurementObjects(outputFile, positions, allMeasurementsSort, format);
     }
-    protected void extractMeasurementObjects(String outputFile, List<String> positions, Map<Integer, String[]> allMeasurements) {
+    /**
+     * Writes one row per object of the last object class of {@param allMeasurements}, with the measurements of its parents.
+     * Positions are processed concurrently and written in the order of {@param positions}; parent rows are retrieved by index path through a hash map
+     * @param outputFile
+     * @param positions
+     * @param allMeasurements measurement names mapped by object class
+     * @param format semicolon-separated text or binary columnar file (see {@link ColumnarMeasurementWriter})
+     */
+    protected void extractMeasurementObjects(String outputFile, List<String> positions, Map<Integer, String[]> allMeasurements, ExportFormat format) {
         Experiment xp = db.getExperiment();
         if (positions==null) positions = Arrays.asList(db.getExperiment().getPositionsAsString());
+        if (positions.isEmpty()) return;
         long t0 = System.currentTimeMillis();
-        FileWriter fstream;
-        BufferedWriter out;
         int count = 0;
+        TreeMap<Integer, String[]> allMeasurementsSort = new TreeMap<>(allMeasurements); // sort by structureIndex value
+        int currentStructureIdx = allMeasurementsSort.lastKey();
+        int[] parentOrder = new int[currentStructureIdx]; // maps structureIdx to parent order
+        for (int s : allMeasurementsSort.keySet()) {
+            if (s!=currentStructureIdx) {
+                parentOrder[s] = xp.experimentStructure.getPathToStructure(s, currentStructureIdx).length;
+            }
+        }
+        String[] currentMeasurementNames = allMeasurementsSort.pollLastEntry().getValue();
+        int nThreads = Math.max(1, Math.min(ThreadRunner.getMaxCPUs(), positions.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        File output = new File(outputFile);
+        output.delete();
+        BufferedWriter csv = null;
+        ColumnarMeasurementWriter columnar = null;
         try {
-            File output = new File(outputFile);
-            output.delete();
-            fstream = new FileWriter(output);
-            out = new BufferedWriter(fstream);
-            TreeMap<Integer, String[]> allMeasurementsSort = new TreeMap<>(allMeasurements); // sort by structureIndex value
-            out.write(getHeader(getAllMeasurements(allMeasurements))); 
-            
-            int currentStructureIdx = allMeasurementsSort.lastKey();
-            int[] parentOrder = new int[currentStructureIdx]; // maps structureIdx to parent order
-            for (int s : allMeasurementsSort.keySet()) {
-                if (s!=currentStructureIdx) {
-                    parentOrder[s] = xp.experimentStructure.getPathToStructure(s, currentStructureIdx).length;
-                }
+            if (ExportFormat.COLUMNAR.equals(format)) columnar = new ColumnarMeasurementWriter(output, getColumnNames(allMeasurements), getColumnObjectClasses(allMeasurements));
+            else {
+                csv = new BufferedWriter(new FileWriter(output));
+                csv.write(getHeader(getAllMeasurements(allMeasurements)));
             }
-            String[] currentMeasurementNames = allMeasurementsSort.pollLastEntry().getValue();
+            Deque<Future<Pair<Object, Integer>>> pending = new ArrayDeque<>(); // results are written in the order of positions, at most nThreads positions are kept in memory
             for (String fieldName : positions) {
-                int posIdx = db.getExperiment().getPositionIdx(fieldName);
-                ObjectDAO dao = db.getDao(fieldName);
-                TreeMap<Integer, List<Measurements>> parentMeasurements = new TreeMap<Integer, List<Measurements>>();
-                for (Entry<Integer, String[]> e : allMeasurementsSort.entrySet()) parentMeasurements.put(e.getKey(), dao.getMeasurements(e.getKey(), e.getValue()));
-                List<Measurements> currentMeasurements = dao.getMeasurements(currentStructureIdx, currentMeasurementNames);
-                Collections.sort(currentMeasurements);
-                for (Measurements m : currentMeasurements) {
-                    StringBuilder line = getBaseLine(m, posIdx);
-                    // add measurements from parents of the the current structure
-                    for (Entry<Integer, List<Measurements>> e : parentMeasurements.entrySet()) {
-                        Measurements key = m.getParentMeasurementKey(parentOrder[e.getKey()]);
-                        int pIdx = e.getValue().indexOf(key);
-                        if (pIdx==-1) {
-                            for (String pMeasName : allMeasurementsSort.get(e.getKey())) {
-                                line.append(separator);
-                                line.append(Measurements.NA_STRING);
-                            } 
-                        }
-                        else {
-                            key = e.getValue().get(pIdx);
-                            for (String pMeasName : allMeasurementsSort.get(e.getKey())) {
-                                line.append(separator);
-                                line.append(key.getValueAsString(pMeasName, numberFormater));
-                                
-                            }
-                        }
-                    }
-                    //add measurements from the current structure
-                    for (String mName : currentMeasurementNames) {
-                        line.append(separator);
-                        line.append(m.getValueAsString(mName, numberFormater));
-                    }
-                    out.newLine();
-                    out.write(line.toString());
-                    ++count;
-                }
+                int posIdx = xp.getPositionIdx(fieldName);
+                ObjectDAO dao = db.getDao(fieldName); // DAOs are created from this thread only
+                pending.add(executor.submit(() -> {
+                    Pair<List<Measurements>, Measurements[][]> rows = extractPosition(dao, currentStructureIdx, currentMeasurementNames, allMeasurementsSort, parentOrder);
+                    Object block = ExportFormat.COLUMNAR.equals(format) ? encodeColumnar(rows, fieldName, posIdx, currentMeasurementNames, allMeasurementsSort) : formatCSV(rows, posIdx, currentMeasurementNames, allMeasurementsSort);
+                    return new Pair<>(block, rows.key.size());
+                }));
+                if (pending.size()>nThreads) count += write(pending.poll(), csv, columnar);
             }
-            out.close();
+            while (!pending.isEmpty()) count += write(pending.poll(), csv, columnar);
             long t1 = System.currentTimeMillis();
             logger.debug("data extractions: {} line in: {} ms", count, t1-t0);
         } catch (IOException ex) {
-            logger.debug("init extract data error: {}", ex);
+            logger.error("extract data error", ex);
+        } catch (InterruptedException | ExecutionException ex) {
+            logger.error("extract data error", ex);
+            if (ex instanceof InterruptedException) Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+            try {
+                if (csv!=null) csv.close();
+                if (columnar!=null) columnar.close();
+            } catch (IOException ex) {
+                logger.error("extract data error", ex);
+            }
+        }
+    }
+    private static int write(Future<Pair<Object, Integer>> block, BufferedWriter csv, ColumnarMeasurementWriter columnar) throws IOException, InterruptedException, ExecutionException {
+        Pair<Object, Integer> res = block.get();
+        if (columnar!=null) {
+            for (ColumnarMeasurementWriter.RowGroup rg : (List<ColumnarMeasurementWriter.RowGroup>)res.key) columnar.write(rg);
+        } else csv.append((StringBuilder)res.key);
+        return res.value;
+    }
+    protected String[] getColumnNames(Map<Integer, String[]> allMeasurements) {
+        List<String> res = new ArrayList<>(Arrays.asList("Position", "PositionIdx", "Indices", "Frame", "Idx", "Time"));
+        res.addAll(getAllMeasurements(new TreeMap<>(allMeasurements)));
+        return res.toArray(new String[0]);
+    }
+    protected int[] getColumnObjectClasses(Map<Integer, String[]> allMeasurements) {
+        List<Integer> res = new ArrayList<>(Arrays.asList(-1, -1, -1, -1, -1, -1));
+        for (Entry<Integer, String[]> e : new TreeMap<>(allMeasurements).entrySet()) for (String n : e.getValue()) res.add(e.getKey());
+        return Utils.toArray(res, false);
+    }
+    /**
+     * Retrieves measurements of a position and joins them with the measurements of their parents
+     * @return sorted measurements of the current object class, and for each of them the measurements of its parent of each class of {@param parentMeasurementNames} (null if not found)
+     */
+    protected Pair<List<Measurements>, Measurements[][]> extractPosition(ObjectDAO dao, int currentStructureIdx, String[] currentMeasurementNames, TreeMap<Integer, String[]> parentMeasurementNames, int[] parentOrder) {
+        List<Map<IndexKey, Measurements>> parentMeasurements = new ArrayList<>(parentMeasurementNames.size());
+        int[] orders = new int[parentMeasurementNames.size()];
+        for (Entry<Integer, String[]> e : parentMeasurementNames.entrySet()) {
+            orders[parentMeasurements.size()] = parentOrder[e.getKey()];
+            List<Measurements> pm = dao.getMeasurements(e.getKey(), e.getValue());
+            Map<IndexKey, Measurements> index = new HashMap<>(pm.size() * 4 / 3 + 1);
+            for (Measurements p : pm) index.put(new IndexKey(p.getIndices(), p.getIndices().length), p);
+            parentMeasurements.add(index);
+        }
+        List<Measurements> currentMeasurements = dao.getMeasurements(currentStructureIdx, currentMeasurementNames);
+        Collections.sort(currentMeasurements);
+        Measurements[][] parents = new Measurements[currentMeasurements.size()][];
+        for (int i = 0; i<parents.length; ++i) {
+            int[] indices = currentMeasurements.get(i).getIndices();
+            parents[i] = new Measurements[orders.length];
+            for (int p = 0; p<orders.length; ++p) {
+                if (orders[p]>0 && orders[p]<=indices.length) parents[i][p] = parentMeasurements.get(p).get(new IndexKey(indices, indices.length - orders[p]));
+            }
+        }
+        return new Pair<>(currentMeasurements, parents);
+    }
+    /**
+     *
+     * @return lines of the position, each preceded by a line separator
+     */
+    protected StringBuilder formatCSV(Pair<List<Measurements>, Measurements[][]> rows, int posIdx, String[] currentMeasurementNames, TreeMap<Integer, String[]> parentMeasurementNames) {
+        String lineSeparator = System.lineSeparator();
+        List<String[]> parentNames = new ArrayList<>(parentMeasurementNames.values());
+        StringBuilder lines = new StringBuilder(rows.key.size() * (64 + 8 * currentMeasurementNames.length));
+        for (int i = 0; i<rows.key.size(); ++i) {
+            Measurements m = rows.key.get(i);
+            lines.append(lineSeparator);
+            lines.append(getBaseLine(m, posIdx));
+            // add measurements from parents of the the current structure
+            for (int p = 0; p<parentNames.size(); ++p) {
+                Measurements parent = rows.value[i][p];
+                for (String pMeasName : parentNames.get(p)) {
+                    lines.append(separator);
+                    lines.append(parent==null ? Measurements.NA_STRING : parent.getValueAsString(pMeasName, numberFormater));
+                }
+            }
+            //add measurements from the current structure
+            for (String mName : currentMeasurementNames) {
+                lines.append(separator);
+                lines.append(m.getValueAsString(mName, numberFormater));
+            }
+        }
+        return lines;
+    }
+    /**
+     *
+     * @return row groups of at most {@link ColumnarMeasurementWriter#DEFAULT_ROW_GROUP_SIZE} rows, columns in the same order as the semicolon-separated export
+     */
+    protected List<ColumnarMeasurementWriter.RowGroup> encodeColumnar(Pair<List<Measurements>, Measurements[][]> rows, String position, int posIdx, String[] currentMeasurementNames, TreeMap<Integer, String[]> parentMeasurementNames) {
+        List<String[]> parentNames = new ArrayList<>(parentMeasurementNames.values());
+        int rowGroupSize = ColumnarMeasurementWriter.DEFAULT_ROW_GROUP_SIZE;
+        List<ColumnarMeasurementWriter.RowGroup> res = new ArrayList<>(rows.key.size() / rowGroupSize + 1);
+        for (int start = 0; start<rows.key.size(); start+=rowGroupSize) {
+            int n = Math.min(rowGroupSize, rows.key.size() - start);
+            List<Measurements> ms = rows.key.subList(start, start + n);
+            ColumnarMeasurementWriter.RowGroup rg = new ColumnarMeasurementWriter.RowGroup(n);
+            String[] pos = new String[n];
+            Arrays.fill(pos, position);
+            int[] pIdx = new int[n];
+            Arrays.fill(pIdx, posIdx);
+            rg.addStrings(pos).addInts(pIdx)
+                .addIntLists(ms.stream().map(Measurements::getIndices).toArray(int[][]::new))
+                .addInts(ms.stream().mapToInt(Measurements::getFrame).toArray())
+                .addInts(ms.stream().mapToInt(m -> m.getIndices()[m.getIndices().length-1]).toArray())
+                .addDoubles(ms.stream().mapToDouble(Measurements::getCalibratedTimePoint).toArray());
+            for (int p = 0; p<parentNames.size(); ++p) {
+                for (String pMeasName : parentNames.get(p)) {
+                    Object[] values = new Object[n];
+                    for (int i = 0; i<n; ++i) {
+                        Measurements parent = rows.value[start + i][p];
+                        if (parent!=null) values[i] = parent.getValue(pMeasName);
+                    }
+                    rg.addValues(values);
+                }
+            }
+            for (String mName : currentMeasurementNames) rg.addValues(ms.stream().map(m -> m.getValue(mName)).toArray());
+            res.add(rg);
+        }
+        return res;
+    }
+    /**
+     * Prefix of an index path, used as key to retrieve parent measurements without copying the index array of the child
+     */
+    private static final class IndexKey {
+        final int[] indices;
+        final int length, hash;
+        IndexKey(int[] indices, int length) {
+            this.indices = indices;
+            this.length = length;
+            int h = 1;
+            for (int i = 0; i<length; ++i) h = 31 * h + indices[i];
+            this.hash = h;
+        }
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IndexKey)) return false;
+            IndexKey other = (IndexKey)o;
+            if (other.length!=length || other.hash!=hash) return false;
+            for (int i = 0; i<length; ++i) if (indices[i]!=other.indices[i]) return false;
+            return true;
         }
     }
-    
 }
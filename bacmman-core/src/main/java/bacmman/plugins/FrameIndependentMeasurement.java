@@ -0,0 +1,48 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.plugins;
+
+import bacmman.data_structure.SegmentedObject;
+import bacmman.measurement.MeasurementBatch;
+
+import java.util.List;
+
+/**
+ * Capability of a {@link Measurement} called on track heads (see {@link Measurement#callOnlyOnTrackHeads()}) whose computation on one element of the track does not depend on the computation on the other elements.
+ * The processor calls {@link #setUpTrack(List)} once per track, then {@link #performMeasurementOnFrame(SegmentedObject, Object, MeasurementBatch)} on each element of the track, distributing the elements of all tracks among all available threads. This allows to use all cores for positions with few long tracks.
+ * {@link Measurement#performMeasurement(SegmentedObject)} should be equivalent to those calls performed sequentially
+ * @param <T> type of the track context
+ * @author Jean Ollion
+ */
+public interface FrameIndependentMeasurement<T> extends Measurement {
+    /**
+     * Computes what is shared by all elements of a track
+     * @param track track of call objects (object class {@link Measurement#getCallObjectClassIdx()}), starting with its track head
+     * @return context passed to all calls of {@link #performMeasurementOnFrame(SegmentedObject, Object, MeasurementBatch)} for this track. It must not be modified by those calls
+     */
+    T setUpTrack(List<SegmentedObject> track);
+
+    /**
+     * Performs the measurement on one element of a track. Can be called concurrently on different elements of the same track
+     * @param object element of the track
+     * @param trackContext context returned by {@link #setUpTrack(List)} for the track of {@param object}
+     * @param values measurement values should be set through this object, they are written to the measurements of the objects once the call returns
+     */
+    void performMeasurementOnFrame(SegmentedObject object, T trackContext, MeasurementBatch values);
+}
@@ -22,11 +22,13 @@ import bacmman.configuration.parameters.PreFilterSequence;
 import bacmman.data_structure.Region;
 import bacmman.image.BoundingBox;
 import bacmman.image.Image;
+import bacmman.image.ImageByte;
 import bacmman.image.ImageMask;
-import java.util.HashMap;
+import bacmman.image.ImageShort;
+import java.util.Arrays;
 import java.util.Map;
 
-import bacmman.measurement.BasicMeasurements;
+import bacmman.utils.ArrayUtil;
 import bacmman.utils.DoubleStatistics;
 import bacmman.utils.HashMapGetCreate;
 import bacmman.utils.geom.Point;
@@ -40,6 +42,7 @@ import org.slf4j.LoggerFactory;
 public class IntensityMeasurementCore {
     private final static Logger logger = LoggerFactory.getLogger(IntensityMeasurementCore.class);
     Image intensityMap, transformedMap;
+    boolean storeValues;
     Map<Region, IntensityMeasurements> values = new HashMapGetCreate.HashMapGetCreateRedirectedSyncKey<>(o -> new IntensityMeasurements(o));
     
     public void setUp(Image intensityMap, Image transformedMap) {
@@ -47,28 +50,80 @@ public class IntensityMeasurementCore {
         if (transformedMap==null) this.transformedMap=intensityMap;
         else this.transformedMap = transformedMap;
     }
+    /**
+     * Features that need quantiles call this method at set-up, so that the data needed for quantiles is retrieved in the same pass over voxels as the other statistics: a histogram for 8- and 16-bit images, sorted intensity values otherwise
+     * @return this core
+     */
+    public IntensityMeasurementCore storeSortedValues() {
+        this.storeValues = true;
+        return this;
+    }
     public Image getIntensityMap(boolean transformed) {
         return transformed ? transformedMap : intensityMap;
     }
     public IntensityMeasurements getIntensityMeasurements(Region o) {
         return values.get(o);
     }
-    
+
+    /**
+     * Releases the data used to compute quantiles of {@param o} (histogram or sorted values), to be called once all features of {@param o} are computed. Other statistics are kept
+     * @param o region
+     */
+    public void releaseValues(Region o) {
+        if (values.containsKey(o)) values.get(o).releaseValues();
+    }
+
+    private static boolean useHistogram(Image image) {
+        return image instanceof ImageByte || image instanceof ImageShort;
+    }
+    // histogram buffers, reused for all regions measured by a thread
+    private static final ThreadLocal<int[]> BYTE_BINS = ThreadLocal.withInitial(() -> new int[256]);
+    private static final ThreadLocal<int[]> SHORT_BINS = ThreadLocal.withInitial(() -> new int[65536]);
+
     public class IntensityMeasurements {
         public double mean=Double.NaN, sd=Double.NaN, min=Double.NaN, max=Double.NaN, valueAtCenter=Double.NaN, median=Double.NaN, count=Double.NaN;
+        double[] sortedValues; // non-integer images
+        int[] histogram; // integer images: number of voxels of each value from min to max
         Region o;
         
         public IntensityMeasurements(Region o) {
             this.o=o;
             if (!o.getBounds().isValid()) throw new RuntimeException("invalid bounds"); // TODO understand why the error thrown by getMask blocks the whole process
-            DoubleStatistics stats = DoubleStatistics.getStats(transformedMap.stream(o.getMask(), o.isAbsoluteLandMark()));
+            DoubleStatistics stats;
+            if (storeValues) stats = accumulateQuantileData();
+            else stats = DoubleStatistics.getStats(transformedMap.stream(o.getMask(), o.isAbsoluteLandMark()));
             mean = stats.getAverage();
             sd = stats.getStandardDeviation();
             min = stats.getMin();
             max = stats.getMax();
             count = stats.getCount();
         }
-        
+
+        /**
+         * Single pass over the voxels of the region, that computes count, sum, sum of squares, min, max and the data used by quantiles: a histogram for 8- and 16-bit images, sorted values otherwise
+         * @return statistics of the intensity values within the region
+         */
+        private DoubleStatistics accumulateQuantileData() {
+            DoubleStatistics stats = new DoubleStatistics();
+            if (useHistogram(transformedMap)) {
+                int[] bins = (transformedMap instanceof ImageByte ? BYTE_BINS : SHORT_BINS).get();
+                transformedMap.stream(o.getMask(), o.isAbsoluteLandMark()).forEach(v -> {
+                    stats.accept(v);
+                    ++bins[(int)v];
+                });
+                if (stats.getCount()==0) histogram = new int[0];
+                else {
+                    int minBin = (int)stats.getMin(), maxBin = (int)stats.getMax();
+                    histogram = Arrays.copyOfRange(bins, minBin, maxBin + 1);
+                    Arrays.fill(bins, minBin, maxBin + 1, 0);
+                }
+            } else {
+                sortedValues = transformedMap.stream(o.getMask(), o.isAbsoluteLandMark()).toArray();
+                for (double v : sortedValues) stats.accept(v);
+                Arrays.sort(sortedValues);
+            }
+            return stats;
+        }
         public double getValueAtCenter() {
             if (Double.isNaN(valueAtCenter)) {
                 Point center = o.getCenter();
@@ -84,8 +139,43 @@ public class IntensityMeasurementCore {
             return valueAtCenter;
         }
         public double getMedian() {
-            if (Double.isNaN(median)) this.median = BasicMeasurements.getQuantileValue(o, transformedMap, 0.5)[0];
+            if (Double.isNaN(median)) this.median = getQuantile(0.5);
             return median;
         }
+
+        /**
+         * Quantiles are exact: same interpolation as {@link ArrayUtil#quantilesSorted(double[], double...)}. The data used to compute quantiles is computed at the first call if it was not computed at creation or if it was released
+         * @param quantile in [0, 1]
+         * @return quantile of intensity values within the region, NaN if the region is empty
+         */
+        public synchronized double getQuantile(double quantile) {
+            if (sortedValues==null && histogram==null) accumulateQuantileData();
+            if (sortedValues!=null) {
+                if (sortedValues.length==0) return Double.NaN;
+                return ArrayUtil.quantilesSorted(sortedValues, quantile)[0];
+            }
+            int n = 0;
+            for (int c : histogram) n+=c;
+            if (n==0) return Double.NaN;
+            double idxD = quantile * (n-1);
+            if (idxD<0) idxD=0;
+            else if (idxD>n-1) idxD = n-1;
+            int idx = (int) idxD;
+            double delta = idxD - idx;
+            if (delta==0) return getValueAtRank(idx);
+            else return (1 - delta) * getValueAtRank(idx) + delta * getValueAtRank(idx+1);
+        }
+        private double getValueAtRank(int rank) {
+            int cumCount = 0;
+            for (int i = 0; i<histogram.length; ++i) {
+                cumCount += histogram[i];
+                if (cumCount>rank) return min + i;
+            }
+            return max;
+        }
+        synchronized void releaseValues() {
+            sortedValues = null;
+            histogram = null;
+        }
     }
 }
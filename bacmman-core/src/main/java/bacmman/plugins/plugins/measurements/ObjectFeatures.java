@@ -18,6 +18,8 @@
  */
 package bacmman.plugins.plugins.measurements;
 
+import bacmman.data_structure.Measurements;
+import bacmman.data_structure.Region;
 import bacmman.data_structure.SegmentedObject;
 import bacmman.image.Image;
 import bacmman.image.ImageMask;
@@ -36,6 +38,7 @@ import bacmman.configuration.parameters.PreFilterSequence;
 import bacmman.configuration.parameters.SimpleListParameter;
 import bacmman.configuration.parameters.ObjectClassParameter;
 import bacmman.configuration.parameters.TextParameter;
+import bacmman.utils.Pair;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -113,22 +116,30 @@ public class ObjectFeatures implements Measurement, Hint {
         for (PluginParameter<ObjectFeature> ofp : features.getActivatedChildren()) res.add(new MeasurementKeyObject(((TextParameter)ofp.getAdditionalParameters().get(0)).getValue(), structure.getSelectedIndex()));
         return res;
     }
+    /**
+     * All features are set-up before measurement so that features sharing the same intensity image (and pre-filters) share the same {@link IntensityMeasurementCore}, and declare the statistics they need. Then all features are computed for each object in turn, so that the statistics of an object are computed in a single pass over its voxels.
+     * @param parent
+     */
     @Override
     public void performMeasurement(SegmentedObject parent) {
         int structureIdx = structure.getSelectedIndex();
         Map<Image, IntensityMeasurementCore> cores = new ConcurrentHashMap<>();
         BiFunction<Image, ImageMask, Image> pf = (im, mask) -> preFilters.filter(im,mask);
+        List<Pair<String, ObjectFeature>> featureList = new ArrayList<>();
         for (PluginParameter<ObjectFeature> ofp : features.getActivatedChildren()) {
             ObjectFeature f = ofp.instantiatePlugin();
             if (f!=null) {
                 f.setUp(parent, structureIdx, parent.getChildRegionPopulation(structureIdx));
                 if (f instanceof ObjectFeatureWithCore) ((ObjectFeatureWithCore)f).setUpOrAddCore(cores, pf);
-                parent.getChildren(structureIdx).forEach(o-> {
-                    double m = f.performMeasurement(o.getRegion());
-                    o.getMeasurements().setValue(((TextParameter)ofp.getAdditionalParameters().get(0)).getValue(), m);
-                });
+                featureList.add(new Pair<>(((TextParameter)ofp.getAdditionalParameters().get(0)).getValue(), f));
             }
         }
+        parent.getChildren(structureIdx).forEach(o-> {
+            Region r = o.getRegion();
+            Measurements m = o.getMeasurements();
+            for (Pair<String, ObjectFeature> f : featureList) m.setValue(f.key, f.value.performMeasurement(r));
+            cores.values().forEach(c -> c.releaseValues(r)); // quantile data of an object is not kept once its features are computed
+        });
     }
     @Override
     public Parameter[] getParameters() {
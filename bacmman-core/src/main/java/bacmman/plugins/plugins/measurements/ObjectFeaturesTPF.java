@@ -20,6 +20,8 @@ package bacmman.plugins.plugins.measurements;
 
 import bacmman.configuration.parameters.*;
 import bacmman.core.Core;
+import bacmman.data_structure.Measurements;
+import bacmman.data_structure.Region;
 import bacmman.data_structure.SegmentedObject;
 import bacmman.data_structure.SegmentedObjectUtils;
 import bacmman.image.Image;
@@ -30,6 +32,7 @@ import bacmman.plugins.*;
 import bacmman.plugins.object_feature.IntensityMeasurement;
 import bacmman.plugins.object_feature.IntensityMeasurementCore;
 import bacmman.plugins.object_feature.ObjectFeatureWithCore;
+import bacmman.utils.Pair;
 import bacmman.utils.ThreadRunner;
 
 import java.util.*;
@@ -136,17 +139,21 @@ public class ObjectFeaturesTPF implements Measurement, Hint, MultiThreaded {
             preFilterSequenceMapByOC.put(oc, (im, mask)->rawToPF.get(im));
         }
         ThreadRunner.executeAndThrowErrors(parentTrack.parallelStream(), parent -> {
-            for (PluginParameter<ObjectFeature> ofp : features.getActivatedChildren()) {
+            List<Pair<String, ObjectFeature>> featureList = new ArrayList<>();
+            for (PluginParameter<ObjectFeature> ofp : features.getActivatedChildren()) { // set-up all features first so that they share cores, see ObjectFeatures
                 ObjectFeature f = ofp.instantiatePlugin();
                 if (f!=null) {
                     f.setUp(parent, structureIdx, parent.getChildRegionPopulation(structureIdx));
                     if (f instanceof ObjectFeatureWithCore) ((ObjectFeatureWithCore)f).setUpOrAddCore(cores, preFilterSequenceMapByOC.get(((ObjectFeatureWithCore)f).getIntensityStructure()));
-                    parent.getChildren(structureIdx).forEach(o-> {
-                        double m = f.performMeasurement(o.getRegion());
-                        o.getMeasurements().setValue(((TextParameter)ofp.getAdditionalParameters().get(0)).getValue(), m);
-                    });
+                    featureList.add(new Pair<>(((TextParameter)ofp.getAdditionalParameters().get(0)).getValue(), f));
                 }
             }
+            parent.getChildren(structureIdx).forEach(o-> {
+                Region r = o.getRegion();
+                Measurements m = o.getMeasurements();
+                for (Pair<String, ObjectFeature> f : featureList) m.setValue(f.key, f.value.performMeasurement(r));
+                cores.values().forEach(c -> c.releaseValues(r)); // quantile data of an object is not kept once its features are computed
+            });
         });
     }
     @Override
@@ -4,8 +4,10 @@ import bacmman.configuration.parameters.*;
 import bacmman.data_structure.*;
 import bacmman.image.ImageByte;
 import bacmman.image.ImageMask;
+import bacmman.measurement.MeasurementBatch;
 import bacmman.measurement.MeasurementKey;
 import bacmman.measurement.MeasurementKeyObject;
+import bacmman.plugins.FrameIndependentMeasurement;
 import bacmman.plugins.Hint;
 import bacmman.plugins.Measurement;
 import bacmman.plugins.PostFilterFeature;
@@ -33,11 +35,18 @@ import java.util.stream.Stream;
 import static java.util.stream.Collectors.toMap;
 import static java.util.stream.Collectors.toSet;
 
-public class SegmentationMetrics implements Measurement, Hint {
+public class SegmentationMetrics implements FrameIndependentMeasurement<Void>, Hint {
     ObjectClassParameter groundTruth = new ObjectClassParameter("Ground truth", -1, false, false).setHint("Reference object class");
     ObjectClassParameter objectClass = new ObjectClassParameter("Object class", -1, false, false).setHint("Object class to compare to the ground truth");
     TextParameter prefix = new TextParameter("Prefix", "", false).setHint("Prefix to add to measurement keys");
 
+    public SegmentationMetrics() {}
+
+    public SegmentationMetrics(int groundTruth, int objectClass) {
+        this.groundTruth.setSelectedIndex(groundTruth);
+        this.objectClass.setSelectedIndex(objectClass);
+    }
+
     @Override
     public String getHintText() {
         return "Computes metrics to evaluate segmentation precision of a two object classes. The following metrics are computed for each object class relatively to the other:" +
@@ -78,27 +87,42 @@ public class SegmentationMetrics implements Measurement, Hint {
 
     @Override
     public void performMeasurement(SegmentedObject parentTrackHead) {
-        performMeasurement(parentTrackHead, true);
-        performMeasurement(parentTrackHead, false);
+        List<SegmentedObject> parentTrack = SegmentedObjectUtils.getTrack(parentTrackHead);
+        setUpTrack(parentTrack);
+        MeasurementBatch batch = new MeasurementBatch();
+        for (SegmentedObject p : parentTrack) performMeasurementOnFrame(p, null, batch);
+        batch.flush();
+    }
+
+    @Override
+    public Void setUpTrack(List<SegmentedObject> parentTrack) {
+        return null;
     }
 
-    private void performMeasurement(SegmentedObject parentTrackHead, boolean invert) {
+    /**
+     * Objects are matched within each parent frame, thus frames are independent
+     * @param parent parent object of compared object classes
+     * @param trackContext not used
+     * @param values buffer in which measurements are written
+     */
+    @Override
+    public void performMeasurementOnFrame(SegmentedObject parent, Void trackContext, MeasurementBatch values) {
+        performMeasurementOnFrame(parent, true, values);
+        performMeasurementOnFrame(parent, false, values);
+    }
+
+    private void performMeasurementOnFrame(SegmentedObject parent, boolean invert, MeasurementBatch values) {
         int gtIdx = !invert ? groundTruth.getSelectedClassIdx() : objectClass.getSelectedClassIdx();
         int sIdx = !invert ? objectClass.getSelectedClassIdx() : groundTruth.getSelectedClassIdx();
-        List<SegmentedObject> parentTrack = SegmentedObjectUtils.getTrack(parentTrackHead);
-        Map<Integer, List<SegmentedObject>> GbyF = SegmentedObjectUtils.splitByFrame(SegmentedObjectUtils.getAllChildrenAsStream(parentTrack.stream(), gtIdx));
-        Map<Integer, List<SegmentedObject>> SbyF = SegmentedObjectUtils.splitByFrame(SegmentedObjectUtils.getAllChildrenAsStream(parentTrack.stream(), sIdx));
+        List<SegmentedObject> G = getChildren(parent, gtIdx);
+        List<SegmentedObject> S = getChildren(parent, sIdx);
 
         // compute all overlaps between regions and put non null overlap in a map
         MaxOverlapMatcher<SegmentedObject> matcher = new MaxOverlapMatcher<>(MaxOverlapMatcher.segmentedObjectOverlap());
         SimpleWeightedGraph<SegmentedObject, DefaultWeightedEdge> matchG2S = new SimpleWeightedGraph<>(DefaultWeightedEdge.class);
-        parentTrack.forEach(p -> {
-            List<SegmentedObject> G = GbyF.get(p.getFrame());
-            List<SegmentedObject> S = SbyF.get(p.getFrame());
-            if (G!=null) G.forEach(matchG2S::addVertex);
-            if (S!=null) S.forEach(matchG2S::addVertex);
-            matcher.match(G, S, matchG2S);
-        });
+        G.forEach(matchG2S::addVertex);
+        S.forEach(matchG2S::addVertex);
+        matcher.match(G, S, matchG2S);
         Function<SegmentedObject, Set<SegmentedObject>> getAllMatchingS = g -> matchG2S.outgoingEdgesOf(g).stream().map(matchG2S::getEdgeTarget).collect(Collectors.toSet());
         Function<SegmentedObject, Set<SegmentedObject>> getAllMatchingG = s -> matchG2S.incomingEdgesOf(s).stream().map(matchG2S::getEdgeSource).collect(Collectors.toSet());
         ToDoubleBiFunction<SegmentedObject, SegmentedObject> getOverlap = (g, s) -> {
@@ -107,7 +131,7 @@ public class SegmentationMetrics implements Measurement, Hint {
             return matchG2S.getEdgeWeight(e);
         };
         // map with S that match exactly one G
-        Map<SegmentedObject, SegmentedObject> matching1to1S2G = Utils.toMapWithNullValues(SbyF.values().stream().flatMap(Collection::stream), Function.identity(), s -> {
+        Map<SegmentedObject, SegmentedObject> matching1to1S2G = Utils.toMapWithNullValues(S.stream(), Function.identity(), s -> {
             Set<SegmentedObject> matchingG = getAllMatchingG.apply(s);
             if (matchingG.size()!=1) return null;
             SegmentedObject g = matchingG.iterator().next();
@@ -118,51 +142,53 @@ public class SegmentationMetrics implements Measurement, Hint {
 
         // set measurement to objects
         String prefix = this.prefix.getValue();
-        parentTrack.forEach(p -> {
-            List<SegmentedObject> S = SbyF.get(p.getFrame());
-            if (S==null) S = Collections.emptyList();
-            Set<SegmentedObject> seenS = new HashSet<>();
-            for (SegmentedObject s : S) {
-                if (seenS.contains(s)) continue;
-                SegmentedObject g = matching1to1S2G.get(s);
-                if (g!=null) { // 1 to 1 match
-                    double intersection = getOverlap.applyAsDouble(g, s);
-                    s.getMeasurements().setValue(prefix + "OverlapMax", intersection);
-                    s.getMeasurements().setValue(prefix + "OverlapSum", intersection);
-                    s.getMeasurements().setValue(prefix + "Size", s.getRegion().size());
-                    s.getMeasurements().setStringValue(prefix + "MatchIndices", Selection.indicesString(g));
+        Set<SegmentedObject> seenS = new HashSet<>();
+        for (SegmentedObject s : S) {
+            if (seenS.contains(s)) continue;
+            SegmentedObject g = matching1to1S2G.get(s);
+            if (g!=null) { // 1 to 1 match
+                double intersection = getOverlap.applyAsDouble(g, s);
+                values.setValue(s, prefix + "OverlapMax", intersection)
+                    .setValue(s, prefix + "OverlapSum", intersection)
+                    .setValue(s, prefix + "Size", s.getRegion().size())
+                    .setStringValue(s, prefix + "MatchIndices", Selection.indicesString(g));
+                seenS.add(s);
+            } else { // false positive or several objects match s or s matches several objects
+                Set<SegmentedObject>  matchingG = getAllMatchingG.apply(s);
+                if (matchingG.isEmpty()) { // false positive
+                    values.setValue(s, prefix + "OverlapMax", 0)
+                        .setValue(s, prefix + "OverlapSum", 0)
+                        .setValue(s, prefix + "Size", s.getRegion().size())
+                        .setStringValue(s, prefix + "MatchIndices", null);
                     seenS.add(s);
-                } else { // false positive or several objects match s or s matches several objects
-                    Set<SegmentedObject>  matchingG = getAllMatchingG.apply(s);
-                    if (matchingG.isEmpty()) { // false positive
-                        s.getMeasurements().setValue(prefix + "OverlapMax", 0);
-                        s.getMeasurements().setValue(prefix + "OverlapSum", 0);
-                        s.getMeasurements().setValue(prefix + "Size", s.getRegion().size());
-                        s.getMeasurements().setStringValue(prefix + "MatchIndices", null);
-                        seenS.add(s);
-                    } else if (matchingG.size()==1) { // several s match one g
-                        g = matchingG.iterator().next();
-                        Set<SegmentedObject> matchingS = getAllMatchingS.apply(g);
-                        for (SegmentedObject ss : matchingS) {
-                            double intersection = getOverlap.applyAsDouble(g, ss);
-                            ss.getMeasurements().setValue(prefix + "OverlapMax", intersection);
-                            ss.getMeasurements().setValue(prefix + "OverlapSum", intersection);
-                            ss.getMeasurements().setValue(prefix + "Size", ss.getRegion().size());
-                            ss.getMeasurements().setStringValue(prefix + "MatchIndices", Selection.indicesString(g));
-                        }
-                        seenS.addAll(matchingS);
-                    } else { // several g match one s
-                        double overlapSum = matchingG.stream().mapToDouble(o->getOverlap.applyAsDouble(o, s)).sum();
-                        SegmentedObject maxG = matchingG.stream().sorted(Comparator.comparingDouble(o->-getOverlap.applyAsDouble(o, s))).limit(1).collect(Collectors.toList()).get(0);
-                        s.getMeasurements().setValue(prefix + "OverlapMax", getOverlap.applyAsDouble(maxG, s));
-                        s.getMeasurements().setValue(prefix + "OverlapSum", overlapSum);
-                        s.getMeasurements().setValue(prefix + "Size", s.getRegion().size());
-                        s.getMeasurements().setStringValue(prefix + "MatchIndices",  Selection.indicesString(maxG));
-                        seenS.add(s);
+                } else if (matchingG.size()==1) { // several s match one g
+                    g = matchingG.iterator().next();
+                    Set<SegmentedObject> matchingS = getAllMatchingS.apply(g);
+                    for (SegmentedObject ss : matchingS) {
+                        double intersection = getOverlap.applyAsDouble(g, ss);
+                        values.setValue(ss, prefix + "OverlapMax", intersection)
+                            .setValue(ss, prefix + "OverlapSum", intersection)
+                            .setValue(ss, prefix + "Size", ss.getRegion().size())
+                            .setStringValue(ss, prefix + "MatchIndices", Selection.indicesString(g));
                     }
+                    seenS.addAll(matchingS);
+                } else { // several g match one s
+                    double overlapSum = matchingG.stream().mapToDouble(o->getOverlap.applyAsDouble(o, s)).sum();
+                    SegmentedObject maxG = matchingG.stream().sorted(Comparator.comparingDouble(o->-getOverlap.applyAsDouble(o, s))).limit(1).collect(Collectors.toList()).get(0);
+                    values.setValue(s, prefix + "OverlapMax", getOverlap.applyAsDouble(maxG, s))
+                        .setValue(s, prefix + "OverlapSum", overlapSum)
+                        .setValue(s, prefix + "Size", s.getRegion().size())
+                        .setStringValue(s, prefix + "MatchIndices",  Selection.indicesString(maxG));
+                    seenS.add(s);
                 }
             }
-        });
+        }
+    }
+
+    private static List<SegmentedObject> getChildren(SegmentedObject parent, int objectClassIdx) {
+        Stream<SegmentedObject> children = parent.getChildren(objectClassIdx);
+        if (children==null) return Collections.emptyList();
+        return children.collect(Collectors.toList());
     }
 
     @Override
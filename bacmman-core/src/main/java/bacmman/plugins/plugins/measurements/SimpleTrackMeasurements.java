@@ -23,10 +23,11 @@ import bacmman.configuration.parameters.Parameter;
 import bacmman.data_structure.Measurements;
 import bacmman.data_structure.SegmentedObject;
 import bacmman.data_structure.SegmentedObjectUtils;
+import bacmman.measurement.MeasurementBatch;
 import bacmman.measurement.MeasurementKey;
 import bacmman.measurement.MeasurementKeyObject;
+import bacmman.plugins.FrameIndependentMeasurement;
 import bacmman.plugins.Hint;
-import bacmman.plugins.Measurement;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -35,7 +36,7 @@ import java.util.List;
  *
  * @author Jean Ollion
  */
-public class SimpleTrackMeasurements implements Measurement, Hint {
+public class SimpleTrackMeasurements implements FrameIndependentMeasurement<SimpleTrackMeasurements.TrackValues>, Hint {
     protected ObjectClassParameter structure = new ObjectClassParameter("Objects", -1, false, false);
     protected Parameter[] parameters = new Parameter[]{structure};
     
@@ -67,17 +68,38 @@ public class SimpleTrackMeasurements implements Measurement, Hint {
     }
 
     @Override public void performMeasurement(SegmentedObject object) {
-        String th = SegmentedObjectUtils.getIndices(object.getTrackHead());
-        String pth = object.isRoot() ? Measurements.NA_STRING : SegmentedObjectUtils.getIndices(object.getParent().getTrackHead());
         List<SegmentedObject> track = SegmentedObjectUtils.getTrack(object, false);
-        int tl = track.get(track.size()-1).getFrame() - object.getFrame()+1;
-        for (SegmentedObject o : track) {
-            o.getMeasurements().setValue("TrackLength", tl);
-            o.getMeasurements().setValue("TrackObjectCount", track.size());
-            o.getMeasurements().setStringValue("TrackHeadIndices", th);
-            o.getMeasurements().setStringValue("ParentTrackHeadIndices", pth);
-            o.getMeasurements().setValue("TrackErrorNext", o.hasTrackLinkError(false, true));
-            o.getMeasurements().setValue("TrackErrorPrev", o.hasTrackLinkError(true, false));
+        TrackValues values = setUpTrack(track);
+        MeasurementBatch batch = new MeasurementBatch();
+        for (SegmentedObject o : track) performMeasurementOnFrame(o, values, batch);
+        batch.flush();
+    }
+
+    @Override public TrackValues setUpTrack(List<SegmentedObject> track) {
+        SegmentedObject head = track.get(0);
+        String th = SegmentedObjectUtils.getIndices(head.getTrackHead());
+        String pth = head.isRoot() ? Measurements.NA_STRING : SegmentedObjectUtils.getIndices(head.getParent().getTrackHead());
+        int tl = track.get(track.size()-1).getFrame() - head.getFrame()+1;
+        return new TrackValues(th, pth, tl, track.size());
+    }
+
+    @Override public void performMeasurementOnFrame(SegmentedObject o, TrackValues track, MeasurementBatch values) {
+        values.setValue(o, "TrackLength", track.length)
+            .setValue(o, "TrackObjectCount", track.objectCount)
+            .setStringValue(o, "TrackHeadIndices", track.trackHeadIndices)
+            .setStringValue(o, "ParentTrackHeadIndices", track.parentTrackHeadIndices)
+            .setValue(o, "TrackErrorNext", o.hasTrackLinkError(false, true))
+            .setValue(o, "TrackErrorPrev", o.hasTrackLinkError(true, false));
+    }
+
+    protected static class TrackValues {
+        final String trackHeadIndices, parentTrackHeadIndices;
+        final int length, objectCount;
+        TrackValues(String trackHeadIndices, String parentTrackHeadIndices, int length, int objectCount) {
+            this.trackHeadIndices = trackHeadIndices;
+            this.parentTrackHeadIndices = parentTrackHeadIndices;
+            this.length = length;
+            this.objectCount = objectCount;
         }
     }
 
@@ -3,8 +3,13 @@ package bacmman.plugins.plugins.measurements.objectFeatures.object_feature;
 import bacmman.configuration.parameters.BoundedNumberParameter;
 import bacmman.configuration.parameters.Parameter;
 import bacmman.data_structure.Region;
-import bacmman.measurement.BasicMeasurements;
+import bacmman.image.Image;
+import bacmman.image.ImageMask;
 import bacmman.plugins.object_feature.IntensityMeasurement;
+import bacmman.plugins.object_feature.IntensityMeasurementCore;
+
+import java.util.Map;
+import java.util.function.BiFunction;
 
 public class Quantile extends IntensityMeasurement {
     BoundedNumberParameter quantile = new BoundedNumberParameter("Quantile", 3, 0.5, 0, 1);
@@ -12,7 +17,13 @@ public class Quantile extends IntensityMeasurement {
     public double performMeasurement(Region region) {
         double quantile = this.quantile.getValue().doubleValue();
         if (quantile == 0.5) return core.getIntensityMeasurements(region).getMedian();
-        return BasicMeasurements.getQuantileValue(region, core.getIntensityMap(true), quantile)[0];
+        return core.getIntensityMeasurements(region).getQuantile(quantile);
+    }
+
+    @Override
+    public void setUpOrAddCore(Map<Image, IntensityMeasurementCore> availableCores, BiFunction<Image, ImageMask, Image> filters) {
+        super.setUpOrAddCore(availableCores, filters);
+        core.storeSortedValues();
     }
 
     @Override
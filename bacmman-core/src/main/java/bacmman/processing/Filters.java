@@ -19,7 +19,6 @@
 package bacmman.processing;
 
 import bacmman.image.BlankMask;
-import bacmman.image.BoundingBox;
 import bacmman.image.MutableBoundingBox;
 import bacmman.image.Image;
 import bacmman.image.ImageByte;
@@ -33,7 +32,8 @@ import java.util.Arrays;
 
 import bacmman.processing.neighborhood.EllipsoidalNeighborhood;
 import bacmman.processing.neighborhood.Neighborhood;
-import bacmman.utils.HashMapGetCreate;
+import bacmman.utils.ThreadRunner;
+import java.util.stream.IntStream;
 
 /**
  *
@@ -168,7 +168,6 @@ public class Filters {
         return applyFilter(image, output, filter, neighborhood, false);
     }
     public static <T extends Image<T>, F extends Filter> T applyFilter(Image image, T output, F filter, Neighborhood neighborhood, boolean parallele) {
-        // TODO TEST parallele -> hashmapgetCreate<Thread, Neighborhood> + loop parallele
         if (filter==null) throw new IllegalArgumentException("Apply Filter Error: Filter cannot be null");
         //if (neighborhood==null) throw new IllegalArgumentException("Apply Filter ("+filter.getClass().getSimpleName()+") Error: Neighborhood cannot be null");
         T res;
@@ -177,28 +176,56 @@ public class Filters {
         else if (!output.sameDimensions(image) || output==image) res = Image.createEmptyImage(name, output, image);
         else res = (T)output.setName(name);
         float round=res instanceof ImageFloat ? 0: 0.5f;
-        
-        
-        //if (Context.getThreadNumber(true)>1) BoundingBox.loopParallele(res.getBoundingBox().resetOffset(), loopFunc); // neiborhood is not thread safe. Todo: use reusable queue with copies of neighborhood
-        //else BoundingBox.loop(res.getBoundingBox().resetOffset(), loopFunc);
-        if (parallele && Runtime.getRuntime().availableProcessors()>1) {
-            HashMapGetCreate<Thread, Filter> nMap = new HashMapGetCreate<>(t -> {
-                Filter f = filter.duplicate();
-                f.setUp(image, neighborhood.duplicate());
-                return f;
-            });
-            BoundingBox.LoopFunction loopFunc = (x, y, z)->res.setPixel(x, y, z, nMap.getAndCreateIfNecessarySyncOnKey(Thread.currentThread()).applyFilter(x, y, z)+round);
-            BoundingBox.loop(res, loopFunc, parallele);
-        } else  {
-            filter.setUp(image, neighborhood);
-            BoundingBox.LoopFunction loopFunc = (x, y, z)->res.setPixel(x, y, z, filter.applyFilter(x, y, z)+round);
-            BoundingBox.loop(res.getBoundingBox().resetOffset(), loopFunc);
-        }
+        if (applyRankFilter(image, res, filter, neighborhood, round, parallele)) {
+            res.resetOffset().translate(image);
+            res.setCalibration(image);
+            return res;
+        }
+        int sizeX = res.sizeX(), sizeY = res.sizeY();
+        // rows are processed by chunks, each chunk has its own copy of filter and neighborhood
+        forEachChunk(sizeY * res.sizeZ(), parallele, (start, end) -> {
+            Filter f = filter;
+            if (parallele) {
+                f = filter.duplicate();
+                f.setUp(image, neighborhood==null ? null : neighborhood.duplicate());
+            } else f.setUp(image, neighborhood);
+            for (int l = start; l<end; ++l) {
+                int y = l % sizeY, z = l / sizeY;
+                for (int x = 0; x<sizeX; ++x) res.setPixel(x + y * sizeX, z, f.applyFilter(x, y, z)+round);
+            }
+        });
         res.resetOffset().translate(image);
         res.setCalibration(image);
         return res;
     }
     
+    interface ChunkFunction {
+        void apply(int start, int end);
+    }
+
+    /**
+     * Splits [0; {@param count}[ in contiguous chunks (e.g. rows of an image), processed in parallel if {@param parallele} is true
+     */
+    static void forEachChunk(int count, boolean parallele, ChunkFunction function) {
+        int nChunks = parallele ? Math.min(count, 4 * ThreadRunner.getMaxCPUs()) : 1;
+        if (nChunks<=1) function.apply(0, count);
+        else IntStream.range(0, nChunks).parallel().forEach(c -> function.apply((int)((long)c * count / nChunks), (int)((long)(c+1) * count / nChunks)));
+    }
+
+    /**
+     * Computes min, max, median and binary min/max filters with {@link RankFilters} when the neighborhood is supported
+     * @return false if {@param filter} is not computed by {@link RankFilters}
+     */
+    private static boolean applyRankFilter(Image image, Image output, Filter filter, Neighborhood neighborhood, float round, boolean parallele) {
+        if (neighborhood==null || !RankFilters.isSupported(neighborhood)) return false;
+        if (filter instanceof Min || filter instanceof Max) RankFilters.minMax(image, output, neighborhood, filter instanceof Max, round, parallele);
+        else if (filter instanceof BinaryMin) RankFilters.binaryMinMax(image, output, neighborhood, false, ((BinaryMin)filter).outOfBoundIsNull, parallele);
+        else if (filter instanceof BinaryMax) RankFilters.binaryMinMax(image, output, neighborhood, true, ((BinaryMax)filter).outOfBoundIsNonNull, parallele);
+        else if (filter instanceof Median && ((Median)filter).mask==null && RankFilters.isMedianSupported(image, neighborhood)) RankFilters.median((ImageInteger)image, output, neighborhood, round, parallele);
+        else return false;
+        return true;
+    }
+
     public static abstract class Filter {
         protected Image image;
         protected Neighborhood neighborhood;
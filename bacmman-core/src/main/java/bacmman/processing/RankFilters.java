@@ -0,0 +1,295 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.processing;
+
+import bacmman.image.Image;
+import bacmman.image.ImageByte;
+import bacmman.image.ImageInteger;
+import bacmman.image.ImageMask;
+import bacmman.image.ImageShort;
+import bacmman.processing.neighborhood.DisplacementNeighborhood;
+import bacmman.processing.neighborhood.Neighborhood;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Rank filters (min, max, median) whose cost does not depend on the area of the neighborhood but only on its number of rows.
+ * The neighborhood is decomposed in rows along the X-axis (one per (dy, dz) displacement). Applicable to neighborhoods that contain their center and whose rows are contiguous, such as {@link bacmman.processing.neighborhood.EllipsoidalNeighborhood}
+ * <ul>
+ *     <li>min / max: running extrema of each row computed with the van Herk / Gil-Werman algorithm, in constant time per voxel and per row</li>
+ *     <li>median (only for {@link ImageByte} and {@link ImageShort}): sliding histogram along the X-axis (Huang), updated for each row of the neighborhood. The histogram has an additional coarse level (Perreault) to find the median in short images</li>
+ * </ul>
+ * Results are identical to the voxel-wise filters of {@link Filters}: out-of-bound voxels are ignored, except for binary filters for which they can be counted as extremum
+ * @author Jean Ollion
+ */
+public class RankFilters {
+    /**
+     * Rows of a neighborhood: displacements along Y and Z axes, and interval of displacements along the X-axis
+     */
+    static class Rows {
+        final int[] dy, dz, xMin, xMax;
+        final int pad; // max absolute displacement along X-axis
+        Rows(int[] dy, int[] dz, int[] xMin, int[] xMax) {
+            this.dy = dy;
+            this.dz = dz;
+            this.xMin = xMin;
+            this.xMax = xMax;
+            int p = 0;
+            for (int i = 0; i<xMin.length; ++i) p = Math.max(p, Math.max(-xMin[i], xMax[i]));
+            this.pad = p;
+        }
+        int size() {
+            return dy.length;
+        }
+    }
+
+    /**
+     *
+     * @param neighborhood
+     * @return row decomposition of {@param neighborhood} or null if it does not contain its center, has a non-contiguous row or is 2D with displacements along Z-axis
+     */
+    static Rows getRows(Neighborhood neighborhood) {
+        if (!(neighborhood instanceof DisplacementNeighborhood)) return null;
+        DisplacementNeighborhood n = (DisplacementNeighborhood)neighborhood;
+        if (!n.is3D() && Arrays.stream(n.dz).anyMatch(d -> d!=0)) return null; // voxel-wise filters ignore dz of 2D neighborhoods
+        int[] idx = IntStream.range(0, n.dx.length).boxed().sorted((i, j) -> {
+            int c = Integer.compare(n.dz[i], n.dz[j]);
+            if (c==0) c = Integer.compare(n.dy[i], n.dy[j]);
+            if (c==0) c = Integer.compare(n.dx[i], n.dx[j]);
+            return c;
+        }).mapToInt(i->i).toArray();
+        List<int[]> rows = new ArrayList<>(); // dy, dz, xMin, xMax
+        boolean center = false;
+        for (int i : idx) {
+            if (n.dx[i]==0 && n.dy[i]==0 && n.dz[i]==0) center = true;
+            int[] last = rows.isEmpty() ? null : rows.get(rows.size()-1);
+            if (last!=null && last[0]==n.dy[i] && last[1]==n.dz[i]) {
+                if (n.dx[i]==last[3]) continue; // duplicated displacement
+                if (n.dx[i]!=last[3]+1) return null;
+                last[3] = n.dx[i];
+            } else rows.add(new int[]{n.dy[i], n.dz[i], n.dx[i], n.dx[i]});
+        }
+        if (!center) return null;
+        return new Rows(rows.stream().mapToInt(r->r[0]).toArray(), rows.stream().mapToInt(r->r[1]).toArray(), rows.stream().mapToInt(r->r[2]).toArray(), rows.stream().mapToInt(r->r[3]).toArray());
+    }
+
+    public static boolean isSupported(Neighborhood neighborhood) {
+        return getRows(neighborhood)!=null;
+    }
+
+    public static boolean isMedianSupported(Image image, Neighborhood neighborhood) {
+        return (image instanceof ImageByte || image instanceof ImageShort) && isSupported(neighborhood);
+    }
+
+    /**
+     * Minimum or maximum filter. Same results as {@link Neighborhood#getMin(int, int, int, Image, float...)} / {@link Neighborhood#getMax(int, int, int, Image)} called without out-of-bound value
+     * @param image input image
+     * @param output image with same dimensions as {@param image}, different from {@param image}
+     * @param neighborhood neighborhood supported by {@link #isSupported(Neighborhood)}
+     * @param max true for maximum filter, false for minimum filter
+     * @param round value added to results before they are set to {@param output}
+     * @param parallele
+     */
+    public static void minMax(Image image, Image output, Neighborhood neighborhood, boolean max, float round, boolean parallele) {
+        float neutral = max ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+        minMax(image, output, getRowsOrFail(neighborhood), max, false, neutral, round, parallele);
+    }
+
+    /**
+     * Binary minimum or maximum filter: voxels inside {@param mask} have value 1, other voxels have value 0
+     * @param mask input image
+     * @param output image with same dimensions as {@param mask}, different from {@param mask}
+     * @param neighborhood neighborhood supported by {@link #isSupported(Neighborhood)}
+     * @param max true for binary maximum filter (dilatation), false for binary minimum filter (erosion)
+     * @param outOfBoundIsExtremum if true, out-of-bound voxels have value 1 for maximum filter and value 0 for minimum filter. If false they are ignored
+     * @param parallele
+     */
+    public static void binaryMinMax(ImageMask mask, Image output, Neighborhood neighborhood, boolean max, boolean outOfBoundIsExtremum, boolean parallele) {
+        float outOfBound = outOfBoundIsExtremum ? (max ? 1 : 0) : (max ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY);
+        minMax(mask, output, getRowsOrFail(neighborhood), max, true, outOfBound, 0, parallele);
+    }
+
+    /**
+     * Median filter. For an even number of values, the median is the mean of the two central values
+     * @param image input image, {@link ImageByte} or {@link ImageShort}
+     * @param output image with same dimensions as {@param image}, different from {@param image}
+     * @param neighborhood neighborhood supported by {@link #isSupported(Neighborhood)}
+     * @param round value added to results before they are set to {@param output}
+     * @param parallele
+     */
+    public static void median(ImageInteger image, Image output, Neighborhood neighborhood, float round, boolean parallele) {
+        if (!(image instanceof ImageByte || image instanceof ImageShort)) throw new IllegalArgumentException("Median filter with sliding histogram only supports byte and short images");
+        Rows rows = getRowsOrFail(neighborhood);
+        int bins = image instanceof ImageByte ? 256 : 65536;
+        int sizeX = image.sizeX(), sizeY = image.sizeY(), sizeZ = image.sizeZ();
+        Filters.forEachChunk(sizeY * sizeZ, parallele, (start, end) -> {
+            int[] hist = new int[bins];
+            int[] coarse = new int[bins>>8];
+            int[][] lines = new int[rows.size()][2]; // index of row, offset of row in plane. only rows within the image
+            for (int line = start; line<end; ++line) {
+                int y = line % sizeY, z = line / sizeY;
+                int nLines = 0;
+                for (int r = 0; r<rows.size(); ++r) {
+                    int yy = y + rows.dy[r], zz = z + rows.dz[r];
+                    if (yy<0 || yy>=sizeY || zz<0 || zz>=sizeZ) continue;
+                    lines[nLines][0] = r;
+                    lines[nLines++][1] = yy * sizeX;
+                }
+                // init histogram with the window of x=0
+                int n = 0;
+                for (int l = 0; l<nLines; ++l) {
+                    int r = lines[l][0], zz = z + rows.dz[r], off = lines[l][1];
+                    for (int xx = Math.max(0, rows.xMin[r]); xx<=Math.min(sizeX-1, rows.xMax[r]); ++xx) {
+                        int v = image.getPixelInt(off + xx, zz);
+                        ++hist[v];
+                        ++coarse[v>>8];
+                        ++n;
+                    }
+                }
+                int m = 0, below = 0; // median candidate and count of values strictly lower
+                for (int x = 0; x<sizeX; ++x) {
+                    if (x>0) { // slide window
+                        for (int l = 0; l<nLines; ++l) {
+                            int r = lines[l][0], zz = z + rows.dz[r], off = lines[l][1];
+                            int xRem = x - 1 + rows.xMin[r], xAdd = x + rows.xMax[r];
+                            if (xRem>=0 && xRem<sizeX) {
+                                int v = image.getPixelInt(off + xRem, zz);
+                                --hist[v];
+                                --coarse[v>>8];
+                                --n;
+                                if (v<m) --below;
+                            }
+                            if (xAdd>=0 && xAdd<sizeX) {
+                                int v = image.getPixelInt(off + xAdd, zz);
+                                ++hist[v];
+                                ++coarse[v>>8];
+                                ++n;
+                                if (v<m) ++below;
+                            }
+                        }
+                    }
+                    int k = (n-1)/2;
+                    while (below>k) { // move down
+                        int b = (m-1)>>8;
+                        if ((m & 0xFF)==0 && below - coarse[b] > k) {
+                            below -= coarse[b];
+                            m -= 256;
+                        } else below -= hist[--m];
+                    }
+                    while (below + hist[m] <= k) { // move up
+                        if ((m & 0xFF)==0 && below + coarse[m>>8] <= k) {
+                            below += coarse[m>>8];
+                            m += 256;
+                        } else below += hist[m++];
+                    }
+                    float res;
+                    if (n%2==1 || below + hist[m] > k + 1) res = m;
+                    else { // mean with next value
+                        int m2 = m + 1;
+                        while (hist[m2]==0) {
+                            if ((m2 & 0xFF)==0 && coarse[m2>>8]==0) m2 += 256;
+                            else ++m2;
+                        }
+                        res = (m + m2) / 2f;
+                    }
+                    output.setPixel(x + y * sizeX, z, res + round);
+                }
+                // clear histogram with the window of x = sizeX-1
+                for (int l = 0; l<nLines; ++l) {
+                    int r = lines[l][0], zz = z + rows.dz[r], off = lines[l][1];
+                    for (int xx = Math.max(0, sizeX - 1 + rows.xMin[r]); xx<=Math.min(sizeX-1, sizeX - 1 + rows.xMax[r]); ++xx) {
+                        int v = image.getPixelInt(off + xx, zz);
+                        --hist[v];
+                        --coarse[v>>8];
+                    }
+                }
+            }
+        });
+    }
+
+    private static void minMax(ImageMask image, Image output, Rows rows, boolean max, boolean binary, float outOfBound, float round, boolean parallele) {
+        int sizeX = image.sizeX(), sizeY = image.sizeY(), sizeZ = image.sizeZ();
+        float neutral = max ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+        boolean ignoreOutOfBound = outOfBound == neutral;
+        int pad = rows.pad;
+        int length = sizeX + 2 * pad;
+        Filters.forEachChunk(sizeY * sizeZ, parallele, (start, end) -> {
+            float[] line = new float[length]; // padded line
+            float[] g = new float[length], h = new float[length]; // van Herk / Gil-Werman buffers
+            float[] res = new float[sizeX];
+            Arrays.fill(line, 0, pad, outOfBound);
+            Arrays.fill(line, pad + sizeX, length, outOfBound);
+            for (int l = start; l<end; ++l) {
+                int y = l % sizeY, z = l / sizeY;
+                Arrays.fill(res, neutral);
+                for (int r = 0; r<rows.size(); ++r) {
+                    int yy = y + rows.dy[r], zz = z + rows.dz[r];
+                    if (yy<0 || yy>=sizeY || zz<0 || zz>=sizeZ) {
+                        if (!ignoreOutOfBound) Arrays.fill(res, outOfBound);
+                        continue;
+                    }
+                    int off = yy * sizeX;
+                    for (int x = 0; x<sizeX; ++x) {
+                        float v;
+                        if (binary) v = image.insideMask(off + x, zz) ? 1 : 0;
+                        else {
+                            v = ((Image)image).getPixel(off + x, zz);
+                            if (Float.isNaN(v)) v = neutral; // NaN values are ignored by voxel-wise filters
+                        }
+                        line[pad + x] = v;
+                    }
+                    int w = rows.xMax[r] - rows.xMin[r] + 1;
+                    int first = pad + rows.xMin[r]; // index in padded line of the window start for x = 0
+                    if (w==1) {
+                        for (int x = 0; x<sizeX; ++x) res[x] = combine(res[x], line[first + x], max);
+                        continue;
+                    }
+                    // prefix (g) and suffix (h) extrema within blocks of size w. window extremum starting at i is combine(h[i], g[i+w-1])
+                    int lastIdx = first + sizeX - 1 + w - 1;
+                    for (int b = first - (first % w); b<=lastIdx; b+=w) {
+                        int bEnd = Math.min(b + w, length);
+                        g[b] = line[b];
+                        for (int i = b + 1; i<bEnd; ++i) g[i] = combine(g[i-1], line[i], max);
+                        h[bEnd-1] = line[bEnd-1];
+                        for (int i = bEnd - 2; i>=b; --i) h[i] = combine(h[i+1], line[i], max);
+                    }
+                    for (int x = 0; x<sizeX; ++x) res[x] = combine(res[x], combine(h[first + x], g[first + x + w - 1], max), max);
+                }
+                for (int x = 0; x<sizeX; ++x) {
+                    float v = res[x];
+                    if (v==neutral) v = max ? -Float.MAX_VALUE : Float.NaN; // no value: same as voxel-wise filters
+                    output.setPixel(x + y * sizeX, z, v + round);
+                }
+            }
+        });
+    }
+
+    private static float combine(float a, float b, boolean max) {
+        return max ? (a>=b ? a : b) : (a<=b ? a : b);
+    }
+
+    private static Rows getRowsOrFail(Neighborhood neighborhood) {
+        Rows rows = getRows(neighborhood);
+        if (rows==null) throw new IllegalArgumentException("Neighborhood is not supported by rank filters");
+        return rows;
+    }
+}
@@ -33,7 +33,6 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.TreeSet;
 import bacmman.processing.neighborhood.EllipsoidalNeighborhood;
 
 /**
@@ -41,7 +40,7 @@ import bacmman.processing.neighborhood.EllipsoidalNeighborhood;
  * @author Jean Ollion
  */
 public class MultiScaleWatershedTransform {
-    final protected TreeSet<Voxel> heap;
+    final protected VoxelQueue heap;
     final protected Spot[] spots; // map label -> spot (spots[0]==null)
     protected int spotNumber;
     final protected Image[] watershedMaps;
@@ -78,7 +77,7 @@ public class MultiScaleWatershedTransform {
         if (!Image.sameSize((List<Image>)Arrays.asList(watershedMaps))) throw new IllegalArgumentException("WatershedMaps should be of same dimensions");
         if (mask==null) mask=new BlankMask( watershedMaps[0]);
         this.decreasingPropagation = decreasingPropagation;
-        heap = decreasingPropagation ? new TreeSet<>(Voxel.getInvertedComparator()) : new TreeSet<>(Voxel.getComparator());
+        heap = VoxelQueue.create(decreasingPropagation, watershedMaps);
         this.mask=mask;
         this.watershedMaps=watershedMaps;
         spotNumber = 0;
@@ -124,50 +123,56 @@ public class MultiScaleWatershedTransform {
             if (s!=null) {
                 for (Voxel v : s.voxels) {
                     for (int i = 0; i<neigh.getSize(); ++i) {
-                        Voxel n = new Voxel(v.x+neigh.dx[i], v.y+neigh.dy[i], v.z+neigh.dz[i]) ;
-                        if (segmentedMap.contains(n.x, n.y, n.z) && mask.insideMask(n.x, n.y, n.z)) {
-                            n.value = watershedMaps[s.scale].getPixel(n.x, n.y, n.z);
-                            heap.add(n);
-                        }
+                        int x = v.x+neigh.dx[i], y = v.y+neigh.dy[i], z = v.z+neigh.dz[i];
+                        if (segmentedMap.contains(x, y, z) && mask.insideMask(x, y, z)) heap.push(x, y, z, watershedMaps[s.scale].getPixel(x, y, z));
                     }
                 }
             }
         }
         Score score = generateScore();
-        List<Voxel> nextProp  = new ArrayList<>(neigh.getSize());
+        int[] nextProp = new int[neigh.getSize()];
+        int nextPropCount;
+        Voxel v = new Voxel(0, 0, 0);
+        Voxel n = new Voxel(0, 0, 0); // neighbor voxel instance is re-used
         Set<Integer> surroundingLabels = fusionCriterion==null || fusionCriterion instanceof DefaultFusionCriterion ? null : new HashSet<>(neigh.getSize());
         while (!heap.isEmpty()) {
-            //Voxel v = heap.poll();
-            Voxel v = heap.pollFirst();
-            if (segmentedMap.getPixelInt(v.x, v.y, v.z)>0) continue;
+            heap.poll(v);
+            if (segmentedMap.getPixelInt(v.x, v.y, v.z)>0) continue; // already segmented. a voxel can be queued several times, the first occurrence has the highest priority
             score.setUp(v);
+            nextPropCount = 0;
             for (int i = 0; i<neigh.getSize(); ++i) {
-                Voxel n = new Voxel(v.x+neigh.dx[i], v.y+neigh.dy[i], v.z+neigh.dz[i]) ;
+                n.x = v.x+neigh.dx[i];
+                n.y = v.y+neigh.dy[i];
+                n.z = v.z+neigh.dz[i];
                 if (segmentedMap.contains(n.x, n.y, n.z) && mask.insideMask(n.x, n.y, n.z)) {
                     int nextLabel = segmentedMap.getPixelInt(n.x, n.y, n.z);
                     if (nextLabel>0) {
                         if (surroundingLabels!=null) surroundingLabels.add(nextLabel);
+                        n.value = 0;
                         score.add(n, nextLabel);
-                    } else nextProp.add(n);
+                    } else nextProp[nextPropCount++] = i;
                 }
             }
             int currentLabel = score.getLabel();
-            spots[currentLabel].addVox(v);
+            Voxel current = v;
+            v = new Voxel(0, 0, 0); // current voxel is stored in the spot
+            spots[currentLabel].addVox(current);
             // check propagation criterion
-            for (Voxel n : nextProp) {
+            for (int j = 0; j<nextPropCount; ++j) {
+                int i = nextProp[j];
+                n.x = current.x+neigh.dx[i];
+                n.y = current.y+neigh.dy[i];
+                n.z = current.z+neigh.dz[i];
                 n.value = watershedMaps[spots[currentLabel].scale].getPixel(n.x, n.y, n.z);
-                if (propagationCriterion.continuePropagation(v, n)) { // check if voxel already in set
-                    if (!heap.contains(n)) heap.add(n); // if already present in set -> was accessed from lower value -> priority
-                }
+                if (propagationCriterion.continuePropagation(current, n)) heap.push(n.x, n.y, n.z, n.value);
             }
-            nextProp.clear();
             // check fusion criterion
             if (surroundingLabels!=null) {
                 surroundingLabels.remove(currentLabel);
                 if (!surroundingLabels.isEmpty()) {
                     Spot currentSpot = spots[currentLabel];
                     for (int otherLabel : surroundingLabels) {
-                        if (fusionCriterion.checkFusionCriteria(currentSpot, spots[otherLabel], v)) {
+                        if (fusionCriterion.checkFusionCriteria(currentSpot, spots[otherLabel], current)) {
                             currentSpot = currentSpot.fusion(spots[otherLabel]);
                         }
                     }
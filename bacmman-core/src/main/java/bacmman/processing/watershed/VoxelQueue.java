@@ -0,0 +1,292 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.processing.watershed;
+
+import bacmman.data_structure.Voxel;
+import bacmman.image.Image;
+import bacmman.image.ImageByte;
+import bacmman.image.ImageShort;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Priority queue of voxels used by watershed propagation. Voxels are stored as packed long indices with primitive arrays, so that no {@link Voxel} object is created when a voxel is queued.
+ * Voxels are polled by increasing value (decreasing value if {@code decreasing} is true); ties are broken by x, y then z coordinates, consistently with {@link Voxel#getComparator()} and {@link Voxel#getInvertedComparator()}.
+ * Contrary to a TreeSet, a voxel can be present several times in the queue: voxels that are already processed should be skipped when polled.
+ * Use {@link #create(boolean, Image...)}: when all maps are {@link ImageByte} or {@link ImageShort}, a hierarchical bucket queue with one bucket per gray level is used, otherwise a binary heap
+ * @author Jean Ollion
+ */
+public abstract class VoxelQueue extends AbstractCollection<Voxel> {
+    final int sizeY, sizeZ;
+    final boolean decreasing;
+    int size;
+
+    protected VoxelQueue(Image dims, boolean decreasing) {
+        this.sizeY = dims.sizeY();
+        this.sizeZ = dims.sizeZ();
+        this.decreasing = decreasing;
+    }
+
+    /**
+     *
+     * @param decreasing whether voxels with highest values are polled first
+     * @param maps maps from which the values of the voxels are taken. They must have the same dimensions
+     * @return a bucket queue if values are 8-bit or 16-bit integers, a binary heap otherwise
+     */
+    public static VoxelQueue create(boolean decreasing, Image... maps) {
+        if (maps.length==0) throw new IllegalArgumentException("At least one map is required");
+        boolean byteMaps = true, shortMaps = true;
+        for (Image m : maps) {
+            if (!(m instanceof ImageByte)) byteMaps = false;
+            if (!(m instanceof ImageByte) && !(m instanceof ImageShort)) shortMaps = false;
+        }
+        if (byteMaps) return new BucketQueue(maps[0], decreasing, 1<<8);
+        if (shortMaps) return new BucketQueue(maps[0], decreasing, 1<<16);
+        return new BinaryHeap(maps[0], decreasing);
+    }
+
+    /**
+     * Packed index of a voxel, ordered by x, y then z
+     */
+    public long key(int x, int y, int z) {
+        return ((long)x * sizeY + y) * sizeZ + z;
+    }
+
+    protected Voxel decode(long key, float value, Voxel target) {
+        target.z = (int)(key % sizeZ);
+        key /= sizeZ;
+        target.y = (int)(key % sizeY);
+        target.x = (int)(key / sizeY);
+        target.value = value;
+        return target;
+    }
+
+    public void push(int x, int y, int z, float value) {
+        push(key(x, y, z), value);
+    }
+
+    public abstract void push(long key, float value);
+
+    /**
+     * Removes the head of the queue and copies its coordinates and value to {@param target}
+     * @param target voxel instance to write to
+     * @return {@param target}
+     * @throws NoSuchElementException if the queue is empty
+     */
+    public abstract Voxel poll(Voxel target);
+
+    public Voxel poll() {
+        return poll(new Voxel(0, 0, 0));
+    }
+
+    @Override
+    public boolean add(Voxel v) {
+        push(v.x, v.y, v.z, v.value);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size==0;
+    }
+
+    /**
+     * Binary min-heap on (value, key) stored in parallel arrays
+     */
+    static class BinaryHeap extends VoxelQueue {
+        long[] keys = new long[64];
+        float[] values = new float[64];
+
+        BinaryHeap(Image dims, boolean decreasing) {
+            super(dims, decreasing);
+        }
+
+        private boolean before(long k1, float v1, long k2, float v2) {
+            if (decreasing) return v1>v2 || (v1==v2 && k1>k2);
+            else return v1<v2 || (v1==v2 && k1<k2);
+        }
+
+        @Override
+        public void push(long key, float value) {
+            if (size==keys.length) {
+                int newLength = keys.length + (keys.length>>1);
+                keys = Arrays.copyOf(keys, newLength);
+                values = Arrays.copyOf(values, newLength);
+            }
+            int i = size++;
+            while (i>0) { // sift up
+                int parent = (i-1)>>>1;
+                if (!before(key, value, keys[parent], values[parent])) break;
+                keys[i] = keys[parent];
+                values[i] = values[parent];
+                i = parent;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        @Override
+        public Voxel poll(Voxel target) {
+            if (size==0) throw new NoSuchElementException();
+            decode(keys[0], values[0], target);
+            long key = keys[--size];
+            float value = values[size];
+            int i = 0, half = size>>>1;
+            while (i<half) { // sift down
+                int child = 2*i+1;
+                if (child+1<size && before(keys[child+1], values[child+1], keys[child], values[child])) ++child;
+                if (!before(keys[child], values[child], key, value)) break;
+                keys[i] = keys[child];
+                values[i] = values[child];
+                i = child;
+            }
+            keys[i] = key;
+            values[i] = value;
+            return target;
+        }
+
+        @Override
+        public void clear() {
+            size = 0;
+        }
+
+        @Override
+        public Iterator<Voxel> iterator() {
+            return new Iterator<Voxel>() {
+                int i = 0;
+                @Override public boolean hasNext() {
+                    return i<size;
+                }
+                @Override public Voxel next() {
+                    if (i>=size) throw new NoSuchElementException();
+                    Voxel res = decode(keys[i], values[i], new Voxel(0, 0, 0));
+                    ++i;
+                    return res;
+                }
+            };
+        }
+    }
+
+    /**
+     * Hierarchical queue with one bucket per integer level. Each bucket is a binary min-heap of keys so that ties are ordered as in {@link BinaryHeap}.
+     * Values are rounded to the nearest level and clipped to [0 ; levels-1]
+     */
+    static class BucketQueue extends VoxelQueue {
+        final LongHeap[] buckets;
+        int current; // lowest bucket that may be non-empty
+
+        BucketQueue(Image dims, boolean decreasing, int levels) {
+            super(dims, decreasing);
+            buckets = new LongHeap[levels];
+            current = levels;
+        }
+
+        private int bucket(float value) {
+            int level = Math.round(value);
+            if (level<0) level = 0;
+            else if (level>=buckets.length) level = buckets.length-1;
+            return decreasing ? buckets.length - 1 - level : level;
+        }
+
+        @Override
+        public void push(long key, float value) {
+            int b = bucket(value);
+            if (buckets[b]==null) buckets[b] = new LongHeap();
+            buckets[b].push(decreasing ? ~key : key); // ~key reverses the order of keys
+            if (b<current) current = b;
+            ++size;
+        }
+
+        @Override
+        public Voxel poll(Voxel target) {
+            if (size==0) throw new NoSuchElementException();
+            while (buckets[current]==null || buckets[current].size==0) ++current;
+            long key = buckets[current].poll();
+            --size;
+            return decode(decreasing ? ~key : key, decreasing ? buckets.length - 1 - current : current, target);
+        }
+
+        @Override
+        public void clear() {
+            for (LongHeap b : buckets) if (b!=null) b.size = 0;
+            current = buckets.length;
+            size = 0;
+        }
+
+        @Override
+        public Iterator<Voxel> iterator() {
+            return new Iterator<Voxel>() {
+                int b = current, i = 0;
+                private void advance() {
+                    while (b<buckets.length && (buckets[b]==null || i>=buckets[b].size)) {
+                        ++b;
+                        i = 0;
+                    }
+                }
+                @Override public boolean hasNext() {
+                    advance();
+                    return b<buckets.length;
+                }
+                @Override public Voxel next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    long key = buckets[b].data[i++];
+                    return decode(decreasing ? ~key : key, decreasing ? buckets.length - 1 - b : b, new Voxel(0, 0, 0));
+                }
+            };
+        }
+    }
+
+    static class LongHeap {
+        long[] data = new long[16];
+        int size;
+        void push(long key) {
+            if (size==data.length) data = Arrays.copyOf(data, data.length<<1);
+            int i = size++;
+            while (i>0) {
+                int parent = (i-1)>>>1;
+                if (data[parent]<=key) break;
+                data[i] = data[parent];
+                i = parent;
+            }
+            data[i] = key;
+        }
+        long poll() {
+            long res = data[0];
+            long key = data[--size];
+            int i = 0, half = size>>>1;
+            while (i<half) {
+                int child = 2*i+1;
+                if (child+1<size && data[child+1]<data[child]) ++child;
+                if (data[child]>=key) break;
+                data[i] = data[child];
+                i = child;
+            }
+            data[i] = key;
+            return res;
+        }
+    }
+}
@@ -37,7 +37,6 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.TreeSet;
 import bacmman.processing.neighborhood.EllipsoidalNeighborhood;
 import bacmman.utils.HashMapGetCreate;
 
@@ -75,7 +74,7 @@ public class WatershedTransform {
             return this;
         }
     }
-    final protected TreeSet<Voxel> heap;
+    final protected VoxelQueue heap;
     final protected Spot[] spots; // map label -> spot (spots[0]==null)
     protected int spotNumber;
     final protected Image watershedMap;
@@ -136,8 +135,7 @@ public class WatershedTransform {
         this.decreasingPropagation = config.decreasingPropagation;
         this.lowConnectivity = config.lowConnectivity;
         this.prop = config.prop;
-        heap = decreasingPropagation ? new TreeSet<>(Voxel.getInvertedComparator()) : new TreeSet<>(Voxel.getComparator());
-        //heap = decreasingPropagation ? new PriorityQueue<>(Voxel.getInvertedComparator()) : new PriorityQueue<>();
+        heap = VoxelQueue.create(decreasingPropagation, watershedMap);
         this.mask=mask;
         this.watershedMap=watershedMap;
         spots = new Spot[regionalExtrema.size()+1];
@@ -190,53 +188,60 @@ public class WatershedTransform {
                 for (Voxel v : s.voxels) {
                     if (!mask.insideMask(v.x, v.y, v.z)) continue;
                     for (int i = 0; i<neigh.getSize(); ++i) {
-                        Voxel n = new Voxel(v.x+neigh.dx[i], v.y+neigh.dy[i], v.z+neigh.dz[i]) ;
-                        if (segmentedMap.contains(n.x, n.y, n.z) && mask.insideMask(n.x, n.y, n.z)) {
-                            n.value = watershedMap.getPixel(n.x, n.y, n.z);
-                            heap.add(n);
-                        }
+                        int x = v.x+neigh.dx[i], y = v.y+neigh.dy[i], z = v.z+neigh.dz[i];
+                        if (segmentedMap.contains(x, y, z) && mask.insideMask(x, y, z)) heap.push(x, y, z, watershedMap.getPixel(x, y, z));
                     }
                 }
             }
         }
         Score score = generateScore();
-        List<Voxel> nextProp  = new ArrayList<>(neigh.getSize());
+        int[] nextProp = new int[neigh.getSize()]; // indices of neighbors to propagate to
+        int nextPropCount;
+        Voxel v = new Voxel(0, 0, 0);
+        Voxel n = new Voxel(0, 0, 0); // neighbor voxel instance is re-used
         Set<Integer> surroundingLabels = fusionCriterion==null || fusionCriterion instanceof DefaultFusionCriterion ? null : new HashSet<>(neigh.getSize());
         //logger.debug("fusion crit: {} surr. label null ? {}", fusionCriterion==null ? "null" : fusionCriterion.getClass(), surroundingLabels==null);
         while (!heap.isEmpty()) {
-            //Voxel v = heap.poll();
-            Voxel v = heap.pollFirst();
+            heap.poll(v);
             if (segmentedMap.getPixelInt(v.x, v.y, v.z)>0) continue; //already segmented
             score.setUp(v);
+            nextPropCount = 0;
             for (int i = 0; i<neigh.getSize(); ++i) { // check all neighbors
-                Voxel n = new Voxel(v.x+neigh.dx[i], v.y+neigh.dy[i], v.z+neigh.dz[i]) ;
+                n.x = v.x+neigh.dx[i];
+                n.y = v.y+neigh.dy[i];
+                n.z = v.z+neigh.dz[i];
                 if (segmentedMap.contains(n.x, n.y, n.z) && mask.insideMask(n.x, n.y, n.z)) {
                     int nextLabel = segmentedMap.getPixelInt(n.x, n.y, n.z);
                     if (nextLabel>0) { // if already segmented
                         if (surroundingLabels!=null) surroundingLabels.add(nextLabel); // add to surrounding labels for fusion cirterion
+                        n.value = 0;
                         score.add(n, nextLabel); // add candidate spot for segmentation
-                    } else { // else -> add to propagation heap
-                        n.value = watershedMap.getPixel(n.x, n.y, n.z);
-                        nextProp.add(n);
-                    }
+                    } else nextProp[nextPropCount++] = i; // else -> add to propagation heap
                 }
             }
             int currentLabel = score.getLabel();
             if (spots[currentLabel]==null) {
                 Processor.logger.error("WS error no spot for label: {} voxel: {}", currentLabel, v);
             }
-            spots[currentLabel].addVox(v);
+            Voxel current = v;
+            v = new Voxel(0, 0, 0); // current voxel is stored in the spot
+            spots[currentLabel].addVox(current);
             // check propagation criterion
-            nextProp.removeIf(n->!propagationCriterion.continuePropagation(v, n));
-            heap.addAll(nextProp);
-            nextProp.clear();
+            for (int j = 0; j<nextPropCount; ++j) {
+                int i = nextProp[j];
+                n.x = current.x+neigh.dx[i];
+                n.y = current.y+neigh.dy[i];
+                n.z = current.z+neigh.dz[i];
+                n.value = watershedMap.getPixel(n.x, n.y, n.z);
+                if (propagationCriterion.continuePropagation(current, n)) heap.push(n.x, n.y, n.z, n.value);
+            }
             // check fusion criterion for all surrounding labels
             if (surroundingLabels!=null) {
                 surroundingLabels.remove(currentLabel);
                 if (!surroundingLabels.isEmpty()) {
                     Spot currentSpot = spots[currentLabel];
                     for (int otherLabel : surroundingLabels) {
-                        if (fusionCriterion.checkFusionCriteria(currentSpot, spots[otherLabel], v)) {
+                        if (fusionCriterion.checkFusionCriteria(currentSpot, spots[otherLabel], current)) {
                             currentSpot = currentSpot.fusion(spots[otherLabel]);
                         }
                     }
@@ -253,26 +258,29 @@ public class WatershedTransform {
         for (Spot s : spots) if (s!=null) heap.addAll(s.voxels);
         double rad = lowConnectivity ? 1 : 1.5;
         EllipsoidalNeighborhood neigh = watershedMap.sizeZ()>1?new EllipsoidalNeighborhood(rad, rad, true) : new EllipsoidalNeighborhood(rad, true);
+        Voxel v = new Voxel(0, 0, 0);
+        Voxel n = new Voxel(0, 0, 0); // neighbor voxel instance is re-used, a new instance is created only when added to a spot
         while (!heap.isEmpty()) {
-            //Voxel v = heap.poll();
-            Voxel v = heap.pollFirst();
+            heap.poll(v);
             Spot currentSpot = spots[segmentedMap.getPixelInt(v.x, v.y, v.z)];
             if (currentSpot ==null) Processor.logger.error("spot null @ v={} label: {}", v, segmentedMap.getPixelInt(v.x, v.y, v.z));
             for (int i = 0; i<neigh.getSize(); ++i) {
-                Voxel n = new Voxel(v.x+neigh.dx[i], v.y+neigh.dy[i], v.z+neigh.dz[i]) ;
+                n.x = v.x+neigh.dx[i];
+                n.y = v.y+neigh.dy[i];
+                n.z = v.z+neigh.dz[i];
                 if (segmentedMap.contains(n.x, n.y, n.z) && mask.insideMask(n.x, n.y, n.z)) {
                     int nextLabel = segmentedMap.getPixelInt(n.x, n.y, n.z);
                     if (nextLabel==currentSpot.label) continue;
                     else if (nextLabel>0) {
+                        n.value = 0;
                         if (fusionCriterion.checkFusionCriteria(currentSpot, spots[nextLabel], n)) {
                             currentSpot = currentSpot.fusion( spots[nextLabel]);
                         }
                     } else {
                         n.value =watershedMap.getPixel(n.x, n.y, n.z);
                         if (propagationCriterion.continuePropagation(v, n)){
-                            currentSpot.addVox(n);
-                            heap.add(n);
-                            
+                            currentSpot.addVox(new Voxel(n.x, n.y, n.z, n.value));
+                            heap.push(n.x, n.y, n.z, n.value);
                         }
                     }
                 }
@@ -442,7 +450,7 @@ public class WatershedTransform {
     public Spot[] getSpotArray() {
         return spots;
     }
-    public Collection<Voxel> getHeap() {
+    public VoxelQueue getHeap() {
         return heap;
     }
     
@@ -522,6 +530,9 @@ public class WatershedTransform {
         }
         
     }
+    /**
+     * Voxel instances given to the criterion may be re-used by the transform: implementations should not keep references to them
+     */
     public interface PropagationCriterion {
         public void setUp(WatershedTransform instance);
         public boolean continuePropagation(Voxel currentVox, Voxel nextVox);
@@ -588,6 +599,9 @@ public class WatershedTransform {
         }
     }
     
+    /**
+     * As for {@link PropagationCriterion}, the voxel instance may be re-used
+     */
     public interface FusionCriterion {
         public void setUp(WatershedTransform instance);
         public boolean checkFusionCriteria(Spot s1, Spot s2, Voxel currentVoxel);
@@ -63,6 +63,7 @@ public class PropertyUtils {
     public final static String LAST_EXTRACT_MEASUREMENTS_DIR = "last_extract_measurement_dir";
     public final static String LOCAL_DATA_PATH = "local_data_path";
     public final static String HOSTNAME = "hostname";
+    public final static String WRITE_BEHIND = "write_behind";
     public final static String DATABASE_TYPE = MasterDAOFactory.DAOType.DBMap.toString();
     
     public static Properties getProps() { 
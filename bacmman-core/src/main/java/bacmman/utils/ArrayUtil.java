@@ -609,6 +609,16 @@ public class ArrayUtil {
     public static double[] quantiles(double[] values, double... quantile) {
         if (quantile.length==0) return new double[0];
         Arrays.sort(values);
+        return quantilesSorted(values, quantile);
+    }
+    /**
+     * Same as {@link #quantiles(double[], double...)} for an array already sorted in ascending order
+     * @param values sorted values, not modified
+     * @param quantile
+     * @return quantile values
+     */
+    public static double[] quantilesSorted(double[] values, double... quantile) {
+        if (quantile.length==0) return new double[0];
         double[] res = new double[quantile.length];
         for (int qIdx = 0; qIdx<quantile.length; ++qIdx) {
             double idxD = quantile[qIdx] * (values.length-1);
@@ -19,20 +19,33 @@
 package bacmman.utils;
 
 import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import org.mapdb.DB;
+import org.mapdb.DataOutput2;
 import org.mapdb.DBMaker;
 import org.mapdb.HTreeMap;
 import org.mapdb.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  *
  * @author Jean Ollion
  */
 public class DBMapUtils {
+    public final static Logger logger = LoggerFactory.getLogger(DBMapUtils.class);
+    static final int COMPACTION_BATCH = 10000;
     public static DB createFileDB(String path, boolean readOnly) {
         //logger.debug("creating file db: {}, is dir: {}, exists: {}", path, new File(path).isDirectory(),new File(path).exists());
         if (readOnly) return DBMaker.fileDB(path).transactionEnable().fileLockDisable().readOnly().closeOnJvmShutdown().make();
@@ -46,6 +59,13 @@ public class DBMapUtils {
             return null;
         }
     }
+    public static HTreeMap<String, byte[]> createBinaryHTreeMap(DB db, String key) {
+        try {
+            return db.hashMap(key, Serializer.STRING, Serializer.BYTE_ARRAY).createOrOpen();
+        } catch (UnsupportedOperationException e) { // read-only case
+            return null;
+        }
+    }
     public static <K, V> Set<Entry<K, V>> getEntrySet(HTreeMap<K, V> map) {
         if (map==null) return Collections.EMPTY_SET; // read-only case
         return map.getEntries(); 
@@ -60,4 +80,145 @@ public class DBMapUtils {
     public static void deleteDBFile(String path) {
         new File(path).delete();
     }
+
+    /**
+     *
+     * @param path path of a file DB
+     * @return true if write-ahead log files of the DB exist, i.e. the DB is open or was not closed properly
+     */
+    public static boolean hasWAL(String path) {
+        File[] wal = getWALFiles(path);
+        return wal!=null && wal.length>0;
+    }
+
+    private static File[] getWALFiles(String path) {
+        File f = new File(path);
+        return f.getAbsoluteFile().getParentFile().listFiles((dir, name) -> name.startsWith(f.getName()+".wal"));
+    }
+
+    /**
+     * Measures the number of bytes used by the entries of all maps of a closed file DB: keys and values are serialized with the serializers of their map. Index and allocation overhead are not counted.
+     * @param path path of a file DB
+     * @return number of bytes of live data, or -1 if the DB cannot be read, has write-ahead log files, or contains other collections than hash maps
+     */
+    public static long getLiveBytes(String path) {
+        if (!new File(path).exists() || hasWAL(path)) return -1;
+        DB db = null;
+        try {
+            db = createFileDB(path, true);
+            long res = 0;
+            DataOutput2 out = new DataOutput2();
+            for (String name : getNames(db)) {
+                Object o = db.get(name);
+                if (!(o instanceof HTreeMap)) return -1;
+                HTreeMap<Object, Object> map = (HTreeMap<Object, Object>)o;
+                Serializer<Object> keySerializer = map.getKeySerializer();
+                Serializer<Object> valueSerializer = map.getValueSerializer();
+                for (Entry<Object, Object> e : map.getEntries()) {
+                    out.pos = 0;
+                    keySerializer.serialize(out, e.getKey());
+                    valueSerializer.serialize(out, e.getValue());
+                    res += out.pos;
+                }
+            }
+            return res;
+        } catch (RuntimeException|IOError|IOException e) {
+            logger.debug("could not read file: "+path, e);
+            return -1;
+        } finally {
+            if (db!=null) db.close();
+        }
+    }
+
+    /**
+     * Reclaims the space of deleted and overwritten entries of a closed file DB: all hash maps are copied to a new file that replaces the DB file.
+     * The DB file is not modified if the copy fails.
+     * @param path path of a file DB
+     * @return number of reclaimed bytes, or -1 if the DB could not be compacted
+     */
+    public static long compact(String path) {
+        String tmpPath = copyCompacted(path);
+        if (tmpPath==null) return -1;
+        return replaceByCopy(path, tmpPath);
+    }
+
+    /**
+     * Copies all hash maps of a closed file DB to a new file. The DB file is only read.
+     * @param path path of a file DB
+     * @return path of the copy, or null if the DB could not be copied
+     */
+    public static String copyCompacted(String path) {
+        File file = new File(path);
+        if (!file.exists() || hasWAL(path)) return null;
+        String tmpPath = path + ".compact";
+        deleteDBFile(tmpPath);
+        DB source = null, dest = null;
+        try {
+            source = createFileDB(path, true);
+            dest = createFileDB(tmpPath, false);
+            for (String name : getNames(source)) {
+                Object o = source.get(name);
+                if (!(o instanceof HTreeMap)) throw new IllegalArgumentException("Unsupported collection: "+name+" in: "+path);
+                HTreeMap<Object, Object> sourceMap = (HTreeMap<Object, Object>)o;
+                HTreeMap<Object, Object> destMap = dest.hashMap(name, sourceMap.getKeySerializer(), sourceMap.getValueSerializer()).createOrOpen();
+                Map<Object, Object> batch = new HashMap<>();
+                for (Entry<Object, Object> e : sourceMap.getEntries()) {
+                    batch.put(e.getKey(), e.getValue());
+                    if (batch.size()>=COMPACTION_BATCH) {
+                        destMap.putAll(batch);
+                        batch.clear();
+                        dest.commit();
+                    }
+                }
+                destMap.putAll(batch);
+                dest.commit();
+            }
+            dest.close();
+            dest = null;
+            source.close();
+            source = null;
+            if (hasWAL(tmpPath)) throw new IllegalStateException("Write-ahead log remaining after compaction of: "+path);
+            return tmpPath;
+        } catch (RuntimeException|IOError e) {
+            logger.error("Could not compact file: "+path, e);
+            if (dest!=null) dest.close();
+            if (source!=null) source.close();
+            deleteCopy(tmpPath);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces a closed file DB by its copy (see {@link #copyCompacted(String)})
+     * @param path path of a file DB
+     * @param copyPath path of the copy
+     * @return number of reclaimed bytes, or -1 if the file could not be replaced
+     */
+    public static long replaceByCopy(String path, String copyPath) {
+        File file = new File(path);
+        long sizeBefore = file.length();
+        Path tmp = new File(copyPath).toPath();
+        try {
+            try {
+                Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return sizeBefore - file.length();
+        } catch (IOException e) {
+            logger.error("Could not replace file: "+path, e);
+            deleteCopy(copyPath);
+            return -1;
+        }
+    }
+
+    /**
+     * Deletes a copy of a DB and its write-ahead log files
+     * @param copyPath
+     */
+    public static void deleteCopy(String copyPath) {
+        deleteDBFile(copyPath);
+        File[] wal = getWALFiles(copyPath);
+        if (wal!=null) for (File f : wal) f.delete();
+    }
 }
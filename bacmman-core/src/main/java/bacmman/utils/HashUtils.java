@@ -0,0 +1,51 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.utils;
+
+/**
+ * 64-bit hashing helpers. Hashes are not cryptographic and should only be used to detect modifications
+ * @author Jean Ollion
+ */
+public class HashUtils {
+    /**
+     * Finalizer of SplitMix64: spreads the bits of {@param value}
+     * @param value
+     * @return mixed value
+     */
+    public static long mix(long value) {
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Order-dependent combination of hashes
+     * @param hash
+     * @param value
+     * @return
+     */
+    public static long combine(long hash, long value) {
+        return mix(hash * 31 + mix(value));
+    }
+
+    public static long hash(String s) {
+        return s==null ? 0 : mix(s.hashCode());
+    }
+}
@@ -39,6 +39,7 @@ import java.util.stream.Collectors;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONAware;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.slf4j.LoggerFactory;
@@ -198,6 +199,124 @@ public class JSONUtils {
         if (entry instanceof JSONAware) return ((JSONAware)entry).toJSONString();
         else return entry.toString();
     }
+    /**
+     * Reads scalar top-level entries of a serialized JSON object without parsing the other entries. Reading stops as soon as all entries are found
+     * @param json serialized JSON object
+     * @param keys keys of the entries to read
+     * @return key -> value of the scalar entries found: strings are unquoted, other values (numbers, booleans, null) are returned as serialized
+     */
+    public static Map<String, String> extractScalarEntries(String json, Set<String> keys) {
+        Map<String, String> res = new HashMap<>(keys.size() * 2);
+        int depth = 0;
+        for (int i = 0; i<json.length() && res.size()<keys.size(); ++i) {
+            char c = json.charAt(i);
+            switch (c) {
+                case '"': {
+                    int end = skipString(json, i);
+                    if (depth==1) {
+                        int j = end + 1;
+                        while (j<json.length() && Character.isWhitespace(json.charAt(j))) ++j;
+                        if (j<json.length() && json.charAt(j)==':') { // this is a key
+                            String key = json.substring(i+1, end);
+                            ++j;
+                            while (j<json.length() && Character.isWhitespace(json.charAt(j))) ++j;
+                            if (keys.contains(key) && j<json.length()) {
+                                char v = json.charAt(j);
+                                if (v=='"') {
+                                    int vEnd = skipString(json, j);
+                                    String value = json.substring(j+1, vEnd);
+                                    if (value.indexOf('\\')>=0) value = (String)JSONValue.parse(json.substring(j, vEnd+1));
+                                    res.put(key, value);
+                                    end = vEnd;
+                                } else if (v!='{' && v!='[') {
+                                    int vEnd = j;
+                                    while (vEnd<json.length() && json.charAt(vEnd)!=',' && json.charAt(vEnd)!='}') ++vEnd;
+                                    res.put(key, json.substring(j, vEnd).trim());
+                                    end = vEnd - 1;
+                                }
+                            }
+                        }
+                    }
+                    i = end;
+                    break;
+                }
+                case '{':
+                case '[':
+                    ++depth;
+                    break;
+                case '}':
+                case ']':
+                    --depth;
+                    break;
+            }
+        }
+        return res;
+    }
+    private static int skipString(String json, int start) { // returns index of closing quote
+        for (int i = start+1; i<json.length(); ++i) {
+            char c = json.charAt(i);
+            if (c=='\\') ++i;
+            else if (c=='"') return i;
+        }
+        return json.length();
+    }
+    /**
+     * Extracts a top-level entry from a serialized JSON object without parsing it
+     * @param json serialized JSON object
+     * @param key key of the entry to extract
+     * @return pair of serialized JSON object without the entry, and serialized value of the entry (null if not found)
+     */
+    public static Pair<String, String> extractEntry(String json, String key) {
+        String quotedKey = "\""+key+"\"";
+        int depth = 0;
+        boolean inString = false;
+        int entryStart = -1;
+        int valueStart = -1;
+        for (int i = 0; i<json.length(); ++i) {
+            char c = json.charAt(i);
+            if (inString) {
+                if (c=='\\') ++i;
+                else if (c=='"') inString = false;
+                continue;
+            }
+            switch (c) {
+                case '"':
+                    if (depth==1 && valueStart<0 && json.startsWith(quotedKey, i)) {
+                        int j = i + quotedKey.length();
+                        while (j<json.length() && Character.isWhitespace(json.charAt(j))) ++j;
+                        if (j<json.length() && json.charAt(j)==':') { // this is a key
+                            entryStart = i;
+                            valueStart = j + 1;
+                            i = j;
+                            break;
+                        }
+                    }
+                    inString = true;
+                    break;
+                case '{':
+                case '[':
+                    ++depth;
+                    break;
+                case '}':
+                case ']':
+                    if (valueStart>=0 && depth==1) return removeEntry(json, entryStart, valueStart, i);
+                    --depth;
+                    break;
+                case ',':
+                    if (valueStart>=0 && depth==1) return removeEntry(json, entryStart, valueStart, i);
+                    break;
+            }
+        }
+        return new Pair<>(json, null);
+    }
+    private static Pair<String, String> removeEntry(String json, int entryStart, int valueStart, int valueEnd) {
+        String value = json.substring(valueStart, valueEnd).trim();
+        if (json.charAt(valueEnd)==',') return new Pair<>(json.substring(0, entryStart) + json.substring(valueEnd+1), value);
+        int start = entryStart - 1; // last entry: also remove previous separator
+        while (start>=0 && Character.isWhitespace(json.charAt(start))) --start;
+        if (start<0 || json.charAt(start)!=',') start = entryStart;
+        return new Pair<>(json.substring(0, start) + json.substring(valueEnd), value);
+    }
     public static JSONObject parse(String s) {
         try {
             Object res= new JSONParser().parse(s);
@@ -18,7 +18,9 @@
  */
 package bacmman.utils;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 import org.slf4j.LoggerFactory;
 
@@ -45,6 +47,15 @@ public class ReusableQueue<T> {
         queue.add(object);
         //logger.debug("queue size: {} (type: {})", queue.size(), object.getClass().getSimpleName());
     }
+    /**
+     * Removes all objects from the queue
+     * @return removed objects
+     */
+    public synchronized List<T> clear() {
+        List<T> res = new ArrayList<>(queue);
+        queue.clear();
+        return res;
+    }
     public static interface Factory<T> {
         public T create();
     }
@@ -0,0 +1,66 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Variable-length encoding of integers used by binary storage formats: zig-zag encoding (so that small negative values are short) followed by 7 bits per byte, the high bit of each byte indicating that another byte follows.
+ * Values in [-64, 63] are encoded in one byte, any int in at most 5 bytes
+ * @author Jean Ollion
+ */
+public class VarIntUtils {
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        int v = (value << 1) ^ (value >> 31); // zig-zag
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int v = 0, shift = 0;
+        byte b;
+        do {
+            if (shift>28) throw new IOException("Malformed variable length integer");
+            b = in.readByte();
+            v |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Reads a value directly from an encoded array, without creating a stream
+     * @param data encoded data
+     * @param offset position of the first byte of the value
+     * @return decoded value
+     */
+    public static int readVarInt(byte[] data, int offset) {
+        int v = 0, shift = 0;
+        for (int i = offset; i<data.length && shift<=28; ++i, shift+=7) {
+            v |= (data[i] & 0x7F) << shift;
+            if ((data[i] & 0x80) == 0) return (v >>> 1) ^ -(v & 1);
+        }
+        throw new IllegalArgumentException("Malformed variable length integer");
+    }
+}
@@ -0,0 +1,152 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.core;
+
+import bacmman.configuration.experiment.ChannelImage;
+import bacmman.configuration.experiment.Experiment;
+import bacmman.configuration.experiment.Structure;
+import bacmman.data_structure.MasterDAOFactory;
+import bacmman.data_structure.Region;
+import bacmman.data_structure.SegmentedObject;
+import bacmman.data_structure.SegmentedObjectAccessor;
+import bacmman.data_structure.SegmentedObjectUtils;
+import bacmman.data_structure.Voxel;
+import bacmman.data_structure.dao.MasterDAO;
+import bacmman.data_structure.dao.ObjectDAO;
+import bacmman.image.BlankMask;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestDbConverter {
+    final static String DB = "testdb";
+    final static String POSITION = "pos";
+    final static int FRAMES = 3;
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    // each frame: one root with 2 cells, each containing 2 spots. Cells and spots are linked along frames
+    private String generateDB() throws IOException {
+        String dir = testFolder.newFolder().getAbsolutePath();
+        MasterDAO db = MasterDAOFactory.createDAO(DB, dir, MasterDAOFactory.DAOType.DBMap);
+        db.setConfigurationReadOnly(false);
+        Experiment xp = new Experiment("test");
+        xp.setImportImageMethod(Experiment.IMPORT_METHOD.SINGLE_FILE);
+        xp.setOutputDirectory(testFolder.newFolder().getAbsolutePath());
+        xp.getChannelImages().insert(new ChannelImage("channel"));
+        xp.getStructures().removeAllElements();
+        xp.getStructures().insert(new Structure("cells", -1, 0), new Structure("spots", 0, 0));
+        xp.createPosition(POSITION);
+        db.setExperiment(xp);
+        db.lockPositions(POSITION);
+        ObjectDAO dao = db.getDao(POSITION);
+        SegmentedObjectAccessor accessor = db.getAccess();
+        List<SegmentedObject> roots = new ArrayList<>();
+        List<List<SegmentedObject>> cellTracks = Arrays.asList(new ArrayList<>(), new ArrayList<>());
+        List<List<SegmentedObject>> spotTracks = new ArrayList<>();
+        for (int i = 0; i<4; ++i) spotTracks.add(new ArrayList<>());
+        List<SegmentedObject> children = new ArrayList<>();
+        for (int f = 0; f<FRAMES; ++f) {
+            SegmentedObject root = accessor.createRoot(f, new BlankMask(30, 10, 1, 0, 0, 0, 1, 1), dao);
+            roots.add(root);
+            List<SegmentedObject> cells = new ArrayList<>();
+            for (int c = 0; c<2; ++c) {
+                Set<Voxel> voxels = new HashSet<>();
+                for (int x = 0; x<6; ++x) for (int y = 0; y<4 + f; ++y) voxels.add(new Voxel(10 * c + x, y, 0));
+                SegmentedObject cell = new SegmentedObject(f, 0, c, new Region(voxels, c+1, true, 1, 1), root);
+                cell.setAttribute("Quality", 0.5 + f);
+                cell.setAttribute(SegmentedObject.EDITED_SEGMENTATION, c==1);
+                cell.setAttributeList("Center", Arrays.asList(10. * c + 2.5, 1.5 + f / 2., 0.));
+                cell.setAttribute("Label", "cell"+c);
+                List<SegmentedObject> spots = new ArrayList<>();
+                for (int s = 0; s<2; ++s) {
+                    SegmentedObject spot = new SegmentedObject(f, 1, s, new Region(new Voxel(10 * c + 2 * s, 1, 0), s+1, true, 1, 1), cell);
+                    spots.add(spot);
+                    spotTracks.get(2 * c + s).add(spot);
+                }
+                accessor.setChildren(cell, spots, 1);
+                cells.add(cell);
+                cellTracks.get(c).add(cell);
+                children.add(cell);
+                children.addAll(spots);
+            }
+            accessor.setChildren(root, cells, 0);
+        }
+        SegmentedObjectUtils.setTrackLinks(roots);
+        cellTracks.forEach(SegmentedObjectUtils::setTrackLinks);
+        spotTracks.forEach(SegmentedObjectUtils::setTrackLinks);
+        dao.store(roots);
+        dao.store(children);
+        db.unlockPositions(POSITION);
+        db.unlockConfiguration();
+        db.clearCache();
+        return dir;
+    }
+
+    // id -> stored properties of all objects of the position
+    private static Map<String, List<Object>> getContent(String dir, MasterDAOFactory.DAOType type) {
+        MasterDAO db = MasterDAOFactory.createDAO(DB, dir, type);
+        ObjectDAO dao = db.getDao(POSITION);
+        Map<String, List<Object>> res = new HashMap<>();
+        for (SegmentedObject root : dao.getRoots()) {
+            res.put(root.getId(), getContent(root));
+            for (int sIdx = 0; sIdx<2; ++sIdx) root.getChildren(sIdx).forEach(o -> res.put(o.getId(), getContent(o)));
+        }
+        db.clearCache();
+        return res;
+    }
+
+    private static List<Object> getContent(SegmentedObject o) {
+        Map<String, Object> attributes = o.getAttributeKeys().stream().collect(Collectors.toMap(k -> k, o::getAttribute));
+        return Arrays.asList(o.getStructureIdx(), o.getFrame(), o.getIdx(), o.getParentId(), o.getPreviousId(), o.getNextId(), o.getTrackHeadId(), o.isTrackHead(), attributes, o.getRegion().getBounds().toString(), o.getRegion().size(), o.getContentHash());
+    }
+
+    private void testConversion(MasterDAOFactory.DAOType sourceType, MasterDAOFactory.DAOType destType, String dir, Map<String, List<Object>> expected) {
+        assertTrue("conversion "+sourceType+" -> "+destType, DbConverter.convertObjectStore(DB, dir, sourceType, destType, true));
+        Map<String, List<Object>> converted = getContent(dir, destType);
+        assertEquals("object number", expected.size(), converted.size());
+        expected.forEach((id, content) -> assertEquals("object: "+id, content, converted.get(id)));
+        assertTrue("source is deleted", getContent(dir, sourceType).isEmpty());
+    }
+
+    @Test
+    public void testConvertObjectStore() throws IOException {
+        String dir = generateDB();
+        Map<String, List<Object>> expected = getContent(dir, MasterDAOFactory.DAOType.DBMap);
+        assertEquals("object number", FRAMES * (1 + 2 + 4), expected.size());
+        testConversion(MasterDAOFactory.DAOType.DBMap, MasterDAOFactory.DAOType.Binary, dir, expected);
+        testConversion(MasterDAOFactory.DAOType.Binary, MasterDAOFactory.DAOType.DBMap, dir, expected);
+    }
+}
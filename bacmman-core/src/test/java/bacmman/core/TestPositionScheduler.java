@@ -0,0 +1,101 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Admission of positions by {@link PositionScheduler}
+ * @author Jean Ollion
+ */
+public class TestPositionScheduler {
+
+    private static void work() {
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void testParallelism() throws InterruptedException {
+        PositionScheduler scheduler = new PositionScheduler(3, Long.MAX_VALUE);
+        AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i<12; ++i) positions.add(i);
+        scheduler.run(positions, p -> 1, (p, m) -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            work();
+            running.decrementAndGet();
+            processed.add(p);
+        });
+        assertEquals("all positions processed", 12, processed.size());
+        assertTrue("parallelism limit: "+maxRunning.get(), maxRunning.get()<=3);
+        assertTrue("concurrent processing", maxRunning.get()>1);
+        assertEquals(0, scheduler.getRunning());
+        assertEquals(0, scheduler.getAdmittedMemory());
+    }
+
+    @Test
+    public void testMemoryLimit() throws InterruptedException {
+        long[] memory = new long[]{40, 40, 40, 70, 10, 10, 150, 30};
+        PositionScheduler scheduler = new PositionScheduler(4, 100);
+        AtomicLong runningMemory = new AtomicLong();
+        AtomicInteger running = new AtomicInteger();
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i<memory.length; ++i) positions.add(i);
+        scheduler.run(positions, p -> memory[p], (p, m) -> {
+            assertEquals(memory[p], (long)m);
+            long mem = runningMemory.addAndGet(m);
+            int r = running.incrementAndGet();
+            if (r>1 && mem>100) errors.add("position: "+p+" memory: "+mem+" running: "+r);
+            work();
+            runningMemory.addAndGet(-m);
+            running.decrementAndGet();
+            processed.add(p);
+        });
+        assertTrue("memory limit exceeded: "+errors, errors.isEmpty());
+        assertEquals("all positions processed, including positions exceeding the limit", memory.length, processed.size());
+    }
+
+    @Test
+    public void testOrderAndErrors() throws InterruptedException {
+        PositionScheduler scheduler = new PositionScheduler(1, Long.MAX_VALUE);
+        List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+        scheduler.run(Arrays.asList(0, 1, 2, 3), p -> 0, (p, m) -> {
+            processed.add(p);
+            if (p==1) throw new RuntimeException("error on position 1");
+        });
+        assertEquals("a failing position does not stop the others", Arrays.asList(0, 1, 2, 3), processed);
+        assertEquals(0, scheduler.getRunning());
+    }
+}
@@ -36,9 +36,14 @@ import bacmman.image.io.ImageWriter;
 import java.io.File;
 import java.nio.file.Paths;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -46,7 +51,9 @@ import bacmman.plugins.PluginFactory;
 import bacmman.plugins.Segmenter;
 import bacmman.plugins.plugins.processing_pipeline.SegmentThenTrack;
 import bacmman.plugins.plugins.trackers.ObjectIdxTracker;
+import bacmman.dummy_plugins.DummyFailingSegmenter;
 import bacmman.dummy_plugins.DummySegmenter;
+import bacmman.utils.MultipleException;
 import static bacmman.utils.Utils.toStringArray;
 
 /**
@@ -103,6 +110,88 @@ public class TestDataStructure {
         assertEquals("r unique instanciation query from fieldName & time point", r2, db.getDao(f).getRoot(1));
     }
 
+    private static int[] countChildrenByParentTrack(ObjectDAO dao, int parentStructureIdx, int structureIdx) {
+        List<SegmentedObject> parentTrackHeads = dao.getTrackHeads(dao.getRoot(0), parentStructureIdx);
+        int[] res = new int[parentTrackHeads.size()];
+        for (SegmentedObject th : parentTrackHeads) {
+            for (SegmentedObject p : dao.getTrack(th)) res[th.getIdx()] += dao.getChildren(p, structureIdx).size();
+        }
+        return res;
+    }
+
+    @Test
+    public void testStreamAndResume() {
+        MasterDAO db = generateDB(MasterDAOFactory.DAOType.DBMap);
+        Experiment xp = new Experiment("test");
+        xp.setImportImageMethod(Experiment.IMPORT_METHOD.SINGLE_FILE);
+        File base = testFolder.newFolder("testDB");
+        xp.setPath(Paths.get(base.getAbsolutePath()));
+        xp.setOutputDirectory(new File(base, "Output").getAbsolutePath());
+        xp.getChannelImages().insert(new ChannelImage("ChannelImage"));
+        xp.getStructures().removeAllElements();
+        Structure microChannel = new Structure("MicroChannel", -1, 0);
+        Structure bacteries = new Structure("Bacteries", 0, 0);
+        bacteries.setParentStructure(0);
+        xp.getStructures().insert(microChannel, bacteries);
+        String fieldName = "field1";
+        PluginFactory.findPlugins("bacmman.dummy_plugins");
+        PluginFactory.findPlugins("bacmman.plugins.plugins");
+        microChannel.setProcessingPipeline(new SegmentThenTrack(new DummySegmenter(true, 2), new ObjectIdxTracker()));
+        File folder = testFolder.newFolder("TestInputImagesStream");
+        ImageWriter.writeToFile(folder.getAbsolutePath(), fieldName, ImageFormat.OMETIF, createDummyImagesTC(50, 50, 1, 3, 1));
+        Processor.importFiles(xp, true, null, folder.getAbsolutePath());
+        MasterDAO.deleteObjectsAndSelectionAndXP(db);
+        db.setExperiment(xp);
+        ObjectDAO dao = db.getDao(fieldName);
+        try {
+            Processor.preProcessImages(db, 0.5);
+        } catch (Exception ex) {
+            logger.debug("", ex);
+        }
+        xp.getPosition(0).createRootObjects(dao);
+        Processor.processAndTrackStructures(dao, true, false, 0);
+        dao.clearCache();
+        Set<String> mcTrackHeads = dao.getTrackHeads(dao.getRoot(0), 0).stream().map(SegmentedObject::getId).collect(Collectors.toSet());
+        assertEquals("microchannel tracks", 2, mcTrackHeads.size());
+
+        // streamed run: all parent tracks are recorded as processed by the DAO
+        bacteries.setProcessingPipeline(new SegmentThenTrack(new DummySegmenter(true, 3), new ObjectIdxTracker()));
+        Processor.executeProcessingScheme(dao.getRoots(), 1, false, true, null, null, true, false);
+        assertEquals("processed parent tracks", mcTrackHeads, dao.getProcessedParentTracks(1));
+        assertArrayEquals("streamed objects", new int[]{9, 9}, countChildrenByParentTrack(dao, 0, 1));
+
+        // resume: processed parent tracks are skipped
+        bacteries.setProcessingPipeline(new SegmentThenTrack(new DummySegmenter(true, 2), new ObjectIdxTracker()));
+        Processor.executeProcessingScheme(dao.getRoots(), 1, false, true, null, null, true, true);
+        assertArrayEquals("resumed run does not process again", new int[]{9, 9}, countChildrenByParentTrack(dao, 0, 1));
+
+        // run interrupted by an error on the second parent track
+        bacteries.setProcessingPipeline(new SegmentThenTrack(new DummyFailingSegmenter(true, 2, 1), new ObjectIdxTracker()));
+        try {
+            Processor.executeProcessingScheme(dao.getRoots(), 1, false, true, null, null, true, false);
+            fail("processing error is thrown");
+        } catch (MultipleException e) {
+            logger.debug("expected processing error", e);
+        }
+        Set<String> processed = dao.getProcessedParentTracks(1);
+        assertEquals("only the parent track processed without error is recorded", 1, processed.size());
+        SegmentedObject failedTh = dao.getTrackHeads(dao.getRoot(0), 0).stream().filter(th -> th.getIdx()==1).findAny().get();
+        assertFalse("failed parent track is not recorded", processed.contains(failedTh.getId()));
+        assertArrayEquals("objects after error", new int[]{6, 0}, countChildrenByParentTrack(dao, 0, 1));
+
+        // resume after error: only the failed parent track is processed
+        bacteries.setProcessingPipeline(new SegmentThenTrack(new DummySegmenter(true, 1), new ObjectIdxTracker()));
+        Processor.executeProcessingScheme(dao.getRoots(), 1, false, true, null, null, true, true);
+        assertArrayEquals("objects after resume", new int[]{6, 3}, countChildrenByParentTrack(dao, 0, 1));
+        assertEquals("processed parent tracks after resume", mcTrackHeads, dao.getProcessedParentTracks(1));
+
+        // a run that is not resumed makes recorded parent tracks obsolete
+        Processor.executeProcessingScheme(dao.getRoots(), 1, false, true, null, null, false, false);
+        assertTrue("processed parent tracks cleared", dao.getProcessedParentTracks(1).isEmpty());
+        assertArrayEquals("objects after non-streamed run", new int[]{3, 3}, countChildrenByParentTrack(dao, 0, 1));
+        db.unlockPositions();
+    }
+
     @Test
     public void StructureObjectTest() {
         MasterDAO db = generateDB(MasterDAOFactory.DAOType.DBMap);
@@ -0,0 +1,171 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure;
+
+import bacmman.configuration.experiment.ChannelImage;
+import bacmman.configuration.experiment.Experiment;
+import bacmman.configuration.experiment.Structure;
+import bacmman.data_structure.dao.MasterDAO;
+import bacmman.data_structure.dao.ObjectDAO;
+import bacmman.image.BlankMask;
+import bacmman.measurement.MeasurementKey;
+import bacmman.plugins.FrameIndependentMeasurement;
+import bacmman.plugins.Measurement;
+import bacmman.plugins.plugins.measurements.SegmentationMetrics;
+import bacmman.plugins.plugins.measurements.SimpleTrackMeasurements;
+import bacmman.utils.MultipleException;
+import bacmman.utils.Pair;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static bacmman.data_structure.SegmentedObjectUtils.setTrackLinks;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestFrameIndependentMeasurements {
+    final static String POSITION = "pos";
+    final static int FRAMES = 40;
+    final static int GT = 0, SEG = 1;
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private MasterDAO generateDB() throws IOException {
+        MasterDAO db = MasterDAOFactory.createDAO("testdb", testFolder.newFolder().getAbsolutePath(), MasterDAOFactory.DAOType.DBMap);
+        db.setConfigurationReadOnly(false);
+        Experiment xp = new Experiment("test");
+        xp.setImportImageMethod(Experiment.IMPORT_METHOD.SINGLE_FILE);
+        xp.setOutputDirectory(testFolder.newFolder().getAbsolutePath());
+        xp.getChannelImages().insert(new ChannelImage("channel"));
+        xp.getStructures().removeAllElements();
+        xp.getStructures().insert(new Structure("groundTruth", -1, 0), new Structure("segmented", -1, 0));
+        db.setExperiment(xp);
+        db.lockPositions(POSITION);
+        return db;
+    }
+
+    private static SegmentedObject object(SegmentedObject root, int objectClass, int idx, int x, int width) {
+        return new SegmentedObject(root.getFrame(), objectClass, idx, new Region(new BlankMask(width, 2, 1, x, 0, 0, 1, 1), idx+1, true), root);
+    }
+
+    /**
+     * Linked roots, each containing 3 ground truth objects and segmented objects that alternate between 1-to-1 matches, over-segmentation, under-segmentation and false positives
+     * @return track of roots
+     */
+    private static List<SegmentedObject> createRootTrack(MasterDAO db) {
+        ObjectDAO dao = db.getDao(POSITION);
+        List<SegmentedObject> roots = new ArrayList<>(FRAMES);
+        for (int f = 0; f<FRAMES; ++f) roots.add(db.getAccess().createRoot(f, new BlankMask(40, 2, 1, 0, 0, 0, 1, 1), dao));
+        setTrackLinks(roots);
+        List<List<SegmentedObject>> gtTracks = new ArrayList<>();
+        for (int i = 0; i<3; ++i) gtTracks.add(new ArrayList<>(FRAMES));
+        for (SegmentedObject root : roots) {
+            List<SegmentedObject> gt = new ArrayList<>();
+            for (int i = 0; i<3; ++i) gt.add(object(root, GT, i, 10 * i, 6));
+            List<SegmentedObject> seg = new ArrayList<>();
+            switch (root.getFrame() % 4) {
+                case 0: // 1 to 1
+                    for (int i = 0; i<3; ++i) seg.add(object(root, SEG, i, 10 * i + 1, 6));
+                    break;
+                case 1: // first gt object split in two
+                    seg.add(object(root, SEG, 0, 0, 3));
+                    seg.add(object(root, SEG, 1, 3, 3));
+                    seg.add(object(root, SEG, 2, 20, 6));
+                    break;
+                case 2: // two first gt objects merged
+                    seg.add(object(root, SEG, 0, 2, 12));
+                    seg.add(object(root, SEG, 1, 20, 6));
+                    break;
+                default: // false positive
+                    seg.add(object(root, SEG, 0, 0, 6));
+                    seg.add(object(root, SEG, 1, 33, 4));
+            }
+            root.setChildren(gt, GT);
+            root.setChildren(seg, SEG);
+            for (int i = 0; i<3; ++i) gtTracks.get(i).add(gt.get(i));
+        }
+        gtTracks.forEach(SegmentedObjectUtils::setTrackLinks);
+        return roots;
+    }
+
+    private static List<SegmentedObject> getAllObjects(List<SegmentedObject> roots) {
+        List<SegmentedObject> res = new ArrayList<>();
+        for (SegmentedObject r : roots) {
+            res.addAll(r.getChildren(GT).collect(Collectors.toList()));
+            res.addAll(r.getChildren(SEG).collect(Collectors.toList()));
+        }
+        return res;
+    }
+
+    // copies and clears measured values
+    private static Map<SegmentedObject, Map<String, Object>> pollValues(List<SegmentedObject> objects) {
+        Map<SegmentedObject, Map<String, Object>> res = new HashMap<>();
+        for (SegmentedObject o : objects) {
+            res.put(o, new HashMap<>(o.getMeasurements().values));
+            o.getMeasurements().values.clear();
+        }
+        return res;
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws IOException, MultipleException {
+        MasterDAO db = generateDB();
+        List<SegmentedObject> roots = createRootTrack(db);
+        List<SegmentedObject> objects = getAllObjects(roots);
+        List<Pair<Measurement, SegmentedObject>> measurements = new ArrayList<>();
+        measurements.add(new Pair<>(new SegmentationMetrics(GT, SEG), roots.get(0)));
+        roots.get(0).getChildren(GT).forEach(th -> measurements.add(new Pair<>(new SimpleTrackMeasurements(GT), th)));
+        Map<SegmentedObject, List<SegmentedObject>> tracks = new HashMap<>();
+        measurements.forEach(p -> tracks.put(p.value, SegmentedObjectUtils.getTrack(p.value)));
+        for (Pair<Measurement, SegmentedObject> p : measurements) assertTrue(p.key instanceof FrameIndependentMeasurement);
+
+        // sequential path
+        for (Pair<Measurement, SegmentedObject> p : measurements) p.key.performMeasurement(p.value);
+        Map<SegmentedObject, Map<String, Object>> sequential = pollValues(objects);
+        // check that all keys were written
+        List<String> gtKeys = new ArrayList<>();
+        for (Pair<Measurement, SegmentedObject> p : measurements) for (MeasurementKey k : p.key.getMeasurementKeys()) if (k.getStoreStructureIdx()==GT && !gtKeys.contains(k.getKey())) gtKeys.add(k.getKey());
+        assertEquals("ground truth keys", 10, gtKeys.size());
+        for (SegmentedObject o : objects) {
+            Map<String, Object> values = sequential.get(o);
+            if (o.getStructureIdx()==GT) for (String k : gtKeys) {
+                if (k.equals("MatchIndices")) continue; // not defined for unmatched objects
+                assertTrue("key: "+k+" for: "+o, values.containsKey(k));
+            } else assertTrue("size for: "+o, values.containsKey("Size"));
+        }
+        assertEquals("false positive", 0, ((Number)sequential.get(roots.get(3).getChildren(SEG).collect(Collectors.toList()).get(1)).get("OverlapMax")).intValue());
+
+        // frames of all tracks processed in parallel: same values, none lost
+        for (int rep = 0; rep<10; ++rep) {
+            Processor.performFrameIndependentMeasurements(measurements, tracks, null);
+            Map<SegmentedObject, Map<String, Object>> parallel = pollValues(objects);
+            for (SegmentedObject o : objects) assertEquals("repetition: "+rep+" object: "+o, sequential.get(o), parallel.get(o));
+        }
+    }
+}
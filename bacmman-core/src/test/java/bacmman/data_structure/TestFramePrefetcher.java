@@ -0,0 +1,54 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure;
+
+import bacmman.data_structure.dao.CachedImageDAO;
+import bacmman.data_structure.dao.MockImageDAO;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Frames scheduled by {@link FramePrefetcher} while a parent track is processed
+ * @author Jean Ollion
+ */
+public class TestFramePrefetcher {
+    static final String POS = "pos";
+
+    @Test
+    public void testPrefetchDepth() {
+        MockImageDAO source = new MockImageDAO();
+        CachedImageDAO dao = new CachedImageDAO(source).setPrefetch(2, 1);
+        FramePrefetcher prefetcher = new FramePrefetcher(dao, POS, 0, new int[]{0, 1, 2, 3, 4});
+        prefetcher.start();
+        assertEquals("first frames are prefetched", 2, dao.getStatistics(POS).getPrefetched());
+        dao.openPreProcessedImage(0, 0, POS);
+        assertEquals("next frame is prefetched", 3, dao.getStatistics(POS).getPrefetched());
+        assertEquals(1, dao.getStatistics(POS).getPrefetchHits());
+        dao.openPreProcessedImage(1, 1, POS); // other channel: ignored
+        assertEquals(3, dao.getStatistics(POS).getPrefetched());
+        dao.openPreProcessedImage(0, 4, POS); // last frame: nothing to prefetch
+        assertEquals(3, dao.getStatistics(POS).getPrefetched());
+        prefetcher.close();
+        dao.openPreProcessedImage(0, 1, POS);
+        dao.openPreProcessedImage(0, 2, POS);
+        assertEquals("closed prefetcher releases frames and stops prefetching", 3, dao.getStatistics(POS).getPrefetched());
+        assertEquals(1, dao.getStatistics(POS).getPrefetchHits());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestIndexPathSet {
+
+    private static IndexPathSet create(String... paths) {
+        IndexPathSet res = new IndexPathSet();
+        for (String p : paths) res.add(p);
+        return res;
+    }
+
+    @Test
+    public void testMembership() {
+        IndexPathSet s = create("0-3-12", "0-3-1", "1-0-0", "0-3-12");
+        assertEquals("size", 3, s.size());
+        assertTrue("contains", s.contains(new int[]{0, 3, 12}));
+        assertFalse("not contained", s.contains(new int[]{0, 3, 11}));
+        assertFalse("other parent", s.contains(new int[]{0, 2, 12}));
+        assertTrue("remove", s.remove("0-3-12"));
+        assertFalse("remove absent", s.remove("0-3-12"));
+        assertEquals("size after remove", 2, s.size());
+        assertEquals("sorted strings", Arrays.asList("0-3-1", "1-0-0"), s.toStringList());
+        assertEquals("remove children", 1, s.removeChildren(new int[]{1, 0}));
+        assertEquals("size after remove children", 1, s.size());
+    }
+
+    @Test
+    public void testSetOperations() {
+        IndexPathSet a = create("0-1", "0-2", "1-5", "2-0");
+        IndexPathSet b = create("0-2", "1-5", "1-6", "3-3");
+        assertEquals("union", Arrays.asList("0-1", "0-2", "1-5", "1-6", "2-0", "3-3"), a.duplicate().addAll(b).toStringList());
+        assertEquals("union size", 6, a.duplicate().addAll(b).size());
+        assertEquals("intersection", Arrays.asList("0-2", "1-5"), a.duplicate().retainAll(b).toStringList());
+        assertEquals("intersection size", 2, a.duplicate().retainAll(b).size());
+        assertEquals("difference", Arrays.asList("0-1", "2-0"), a.duplicate().removeAll(b).toStringList());
+        assertEquals("difference size", 2, a.duplicate().removeAll(b).size());
+        assertEquals("operand unchanged", 4, a.size());
+    }
+
+    @Test
+    public void testEncoding() throws IOException {
+        IndexPathSet s = create("0", "5", "0-3-12", "120-7-1000", "0-3-1");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        s.write(new DataOutputStream(bos));
+        IndexPathSet s2 = IndexPathSet.read(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+        assertEquals("decoded set", s, s2);
+        List<String> expected = Arrays.asList("0", "5", "0-3-1", "0-3-12", "120-7-1000");
+        assertEquals("decoded elements", expected, s2.toStringList());
+    }
+
+    @Test
+    public void testSparseGroups() throws IOException {
+        IndexPathSet s = new IndexPathSet();
+        for (int f = 0; f<1000; ++f) s.add(new int[]{f, 5000 + f}); // one object among many per frame
+        s.forEachGroup((prefix, group) -> assertFalse("sparse group", group.isDense()));
+        long bitSetBytes = 1000L * (5000 / 64 + 1) * 8;
+        assertTrue("memory of sparse groups", s.getMemoryFootprint() < bitSetBytes / 4);
+        assertTrue("memory per element of sparse groups", s.getMemoryFootprint() < 1000 * 128);
+        IndexPathSet dense = new IndexPathSet();
+        for (int i = 0; i<500; ++i) dense.add(new int[]{0, i});
+        dense.forEachGroup((prefix, group) -> assertTrue("dense group", group.isDense()));
+        assertTrue("memory of dense groups", dense.getMemoryFootprint() < 500 * 4);
+        // representation changes with modifications
+        for (int i = 1; i<500; ++i) dense.remove(new int[]{0, i});
+        dense.add(new int[]{0, 100000});
+        dense.forEachGroup((prefix, group) -> assertFalse("group became sparse", group.isDense()));
+        assertEquals(Arrays.asList("0-0", "0-100000"), dense.toStringList());
+        // operations between sparse and dense groups
+        IndexPathSet a = create("0-1", "0-3", "0-7000");
+        IndexPathSet b = new IndexPathSet();
+        for (int i = 0; i<64; ++i) b.add(new int[]{0, i});
+        assertEquals("union", 65, a.duplicate().addAll(b).size());
+        assertEquals("intersection", Arrays.asList("0-1", "0-3"), a.duplicate().retainAll(b).toStringList());
+        assertEquals("difference", Arrays.asList("0-7000"), a.duplicate().removeAll(b).toStringList());
+        assertEquals("difference of dense group", 62, b.duplicate().removeAll(a).size());
+        assertEquals("equality does not depend on representation", create("0-1", "0-3"), b.duplicate().retainAll(a));
+        // encoding
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        s.write(new DataOutputStream(bos));
+        assertTrue("encoded size of sparse groups", bos.size() < 1000 * 8);
+        assertEquals("decoded sparse groups", s, IndexPathSet.read(new DataInputStream(new ByteArrayInputStream(bos.toByteArray()))));
+    }
+}
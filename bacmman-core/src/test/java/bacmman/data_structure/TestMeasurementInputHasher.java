@@ -0,0 +1,223 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure;
+
+import bacmman.configuration.experiment.ChannelImage;
+import bacmman.configuration.experiment.Experiment;
+import bacmman.configuration.experiment.Structure;
+import bacmman.configuration.parameters.NumberParameter;
+import bacmman.configuration.parameters.Parameter;
+import bacmman.data_structure.dao.MasterDAO;
+import bacmman.data_structure.dao.ObjectDAO;
+import bacmman.image.BlankMask;
+import bacmman.image.SimpleOffset;
+import bacmman.measurement.MeasurementKey;
+import bacmman.plugins.Measurement;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestMeasurementInputHasher {
+    final static String POSITION = "pos";
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    static class DummyMeasurement implements Measurement {
+        final NumberParameter threshold = new NumberParameter<>("Threshold", 2, 1);
+
+        @Override
+        public Parameter[] getParameters() {
+            return new Parameter[]{threshold};
+        }
+
+        @Override
+        public int getCallObjectClassIdx() {
+            return 1;
+        }
+
+        @Override
+        public boolean callOnlyOnTrackHeads() {
+            return false;
+        }
+
+        @Override
+        public List<MeasurementKey> getMeasurementKeys() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void performMeasurement(SegmentedObject object) {}
+    }
+
+    private MasterDAO generateDB(MasterDAOFactory.DAOType type) throws IOException {
+        MasterDAO db = MasterDAOFactory.createDAO("testdb", testFolder.newFolder().getAbsolutePath(), type);
+        db.setConfigurationReadOnly(false);
+        Experiment xp = new Experiment("test");
+        xp.setImportImageMethod(Experiment.IMPORT_METHOD.SINGLE_FILE);
+        xp.setOutputDirectory(testFolder.newFolder().getAbsolutePath());
+        xp.getChannelImages().insert(new ChannelImage("channel"));
+        xp.getStructures().removeAllElements();
+        xp.getStructures().insert(new Structure("cells", -1, 0), new Structure("spots", 0, 0));
+        db.setExperiment(xp);
+        db.lockPositions(POSITION);
+        return db;
+    }
+
+    // one root with 2 cells, each containing 2 spots
+    private static List<SegmentedObject> createObjects(MasterDAO db) {
+        ObjectDAO dao = db.getDao(POSITION);
+        SegmentedObject root = db.getAccess().createRoot(0, new BlankMask(30, 10, 1, 0, 0, 0, 1, 1), dao);
+        List<SegmentedObject> res = new ArrayList<>();
+        res.add(root);
+        List<SegmentedObject> cells = new ArrayList<>();
+        for (int c = 0; c<2; ++c) {
+            Set<Voxel> voxels = new HashSet<>();
+            for (int x = 0; x<6; ++x) for (int y = 0; y<4; ++y) voxels.add(new Voxel(10 * c + x, y, 0));
+            SegmentedObject cell = new SegmentedObject(0, 0, c, new Region(voxels, c+1, true, 1, 1), root);
+            cells.add(cell);
+            List<SegmentedObject> spots = new ArrayList<>();
+            for (int s = 0; s<2; ++s) spots.add(new SegmentedObject(0, 1, s, new Region(new Voxel(10 * c + 2 * s, 1, 0), s+1, true, 1, 1), cell));
+            cell.setChildren(spots, 1);
+            res.add(cell);
+            res.addAll(spots);
+        }
+        root.setChildren(cells, 0);
+        return res;
+    }
+
+    private static Map<SegmentedObject, Long> getInputHashes(ObjectDAO dao, List<SegmentedObject> objects, Measurement m) {
+        MeasurementInputHasher hasher = new MeasurementInputHasher(dao);
+        long parameterHash = MeasurementInputHasher.getParameterHash(Collections.singletonList(m));
+        return objects.stream().collect(Collectors.toMap(Function.identity(), o -> hasher.getInputHash(o, new int[0], parameterHash)));
+    }
+
+    private static void record(Map<SegmentedObject, Long> inputHashes) {
+        inputHashes.forEach((o, h) -> o.getMeasurements().setInputHash(h));
+    }
+
+    private static Set<SegmentedObject> getSelection(Map<SegmentedObject, Long> inputHashes, Measurement m) {
+        Map<SegmentedObject, List<SegmentedObject>> tracks = inputHashes.keySet().stream().collect(Collectors.toMap(Function.identity(), Collections::singletonList));
+        BiPredicate<SegmentedObject, Measurement> inputChanged = Processor.inputChanged(inputHashes, tracks);
+        return inputHashes.keySet().stream().filter(o -> inputChanged.test(o, m)).collect(Collectors.toSet());
+    }
+
+    @Test
+    public void testIncrementalSelection() throws IOException {
+        MasterDAO db = generateDB(MasterDAOFactory.DAOType.DBMap);
+        ObjectDAO dao = db.getDao(POSITION);
+        List<SegmentedObject> objects = createObjects(db);
+        List<SegmentedObject> cells = objects.stream().filter(o -> o.getStructureIdx()==0).collect(Collectors.toList());
+        List<SegmentedObject> spots = objects.stream().filter(o -> o.getStructureIdx()==1).collect(Collectors.toList());
+        DummyMeasurement m = new DummyMeasurement();
+        Map<SegmentedObject, Long> hashes = getInputHashes(dao, spots, m);
+        assertEquals("never measured", new HashSet<>(spots), getSelection(hashes, m));
+        record(hashes);
+        assertEquals("unchanged inputs", Collections.emptySet(), getSelection(getInputHashes(dao, spots, m), m));
+
+        // sibling modified: the spots of the same cell are measured again
+        SegmentedObject spot = cells.get(0).getDirectChildren(1).get(1);
+        spot.getRegion().translate(new SimpleOffset(0, 1, 0));
+        hashes = getInputHashes(dao, spots, m);
+        assertEquals("sibling modified", new HashSet<>(cells.get(0).getDirectChildren(1)), getSelection(hashes, m));
+        record(hashes);
+
+        // parent modified
+        cells.get(1).getRegion().translate(new SimpleOffset(1, 0, 0));
+        hashes = getInputHashes(dao, spots, m);
+        assertEquals("parent modified", new HashSet<>(cells.get(1).getDirectChildren(1)), getSelection(hashes, m));
+        record(hashes);
+
+        // track link modified
+        spot.setAttribute(SegmentedObject.TRACK_ERROR_PREV, true);
+        hashes = getInputHashes(dao, spots, m);
+        assertEquals("link error", new HashSet<>(cells.get(0).getDirectChildren(1)), getSelection(hashes, m));
+        record(hashes);
+
+        // parameter modified: all objects are measured again
+        m.threshold.setValue(2);
+        hashes = getInputHashes(dao, spots, m);
+        assertEquals("parameter modified", new HashSet<>(spots), getSelection(hashes, m));
+        record(hashes);
+        assertEquals("unchanged inputs after parameter modification", Collections.emptySet(), getSelection(getInputHashes(dao, spots, m), m));
+    }
+
+    @Test
+    public void testParameterHash() {
+        DummyMeasurement m1 = new DummyMeasurement();
+        DummyMeasurement m2 = new DummyMeasurement();
+        assertEquals("same parameters", MeasurementInputHasher.getParameterHash(Collections.singletonList(m1)), MeasurementInputHasher.getParameterHash(Collections.singletonList(m2)));
+        m2.threshold.setValue(3);
+        assertTrue("different parameters", MeasurementInputHasher.getParameterHash(Collections.singletonList(m1))!=MeasurementInputHasher.getParameterHash(Collections.singletonList(m2)));
+        assertEquals("order independent", MeasurementInputHasher.getParameterHash(Arrays.asList(m1, m2)), MeasurementInputHasher.getParameterHash(Arrays.asList(m2, m1)));
+        assertTrue("number of measurements", MeasurementInputHasher.getParameterHash(Collections.singletonList(m1))!=MeasurementInputHasher.getParameterHash(Arrays.asList(m1, m1)));
+    }
+
+    private void testStoredContentHash(MasterDAOFactory.DAOType type) throws IOException {
+        MasterDAO db = generateDB(type);
+        ObjectDAO dao = db.getDao(POSITION);
+        List<SegmentedObject> objects = createObjects(db);
+        Map<String, Long> hashes = objects.stream().collect(Collectors.toMap(SegmentedObject::getId, SegmentedObject::getContentHash));
+        dao.store(objects);
+        dao.clearCache();
+        SegmentedObject root = dao.getRoots().get(0);
+        List<SegmentedObject> retrieved = new ArrayList<>();
+        retrieved.add(root);
+        root.getChildren(0).forEach(c -> {
+            retrieved.add(c);
+            c.getChildren(1).forEach(retrieved::add);
+        });
+        assertEquals("number of objects", objects.size(), retrieved.size());
+        for (SegmentedObject o : retrieved) {
+            assertEquals("stored content hash", hashes.get(o.getId()), (Long)o.getContentHash());
+            if (!o.isRoot()) assertFalse("region is not decoded", o.hasRegion());
+        }
+        // stored hash is not used once the region is modified
+        SegmentedObject cell = retrieved.get(1);
+        cell.getRegion().translate(new SimpleOffset(0, 1, 0));
+        assertTrue("modified region", hashes.get(cell.getId())!=cell.getContentHash());
+    }
+
+    @Test
+    public void testStoredContentHashDBMap() throws IOException {
+        testStoredContentHash(MasterDAOFactory.DAOType.DBMap);
+    }
+
+    @Test
+    public void testStoredContentHashBinary() throws IOException {
+        testStoredContentHash(MasterDAOFactory.DAOType.Binary);
+    }
+}
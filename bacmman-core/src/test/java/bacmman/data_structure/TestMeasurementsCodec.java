@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure;
+
+import bacmman.utils.JSONUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static bacmman.utils.VarIntUtils.writeVarInt;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestMeasurementsCodec {
+
+    private static Measurements create() {
+        Measurements m = new Measurements("pos0", 12, 1, new int[]{12, 3, 5}).initValues();
+        m.id = "abc";
+        m.calibratedTimePoint = 24.5;
+        m.isTrackHead = true;
+        m.inputHash = -4587512354687L;
+        m.setValue("Size", 153.25);
+        m.setValue("Count", 7);
+        m.setValue("IsDivision", true);
+        m.setStringValue("Label", "cell");
+        m.values.put("Profile", new double[]{1.5, -2, Double.NaN});
+        m.values.put("Ids", new int[]{1, 2, 3});
+        return m;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        Measurements m = create();
+        MeasurementsCodec.KeyDictionary dict = new MeasurementsCodec.KeyDictionary();
+        byte[] data = MeasurementsCodec.encode(m, dict);
+        Measurements m2 = MeasurementsCodec.decode(data, m.id, m.positionName, dict);
+        assertEquals("id", m.id, m2.id);
+        assertEquals("object", m, m2);
+        assertEquals("calibrated time point", m.calibratedTimePoint, m2.calibratedTimePoint, 0);
+        assertTrue("track head", m2.isTrackHead);
+        assertEquals("input hash", m.getInputHash(), m2.getInputHash());
+        assertEquals("keys", m.getKeys(), m2.getKeys());
+        assertEquals("double", 153.25, ((Number)m2.getValue("Size")).doubleValue(), 0);
+        assertEquals("integer", 7L, m2.getValue("Count"));
+        assertEquals("boolean", true, m2.getValue("IsDivision"));
+        assertEquals("string", "cell", m2.getValue("Label"));
+        assertArrayEquals("double array", new double[]{1.5, -2, Double.NaN}, (double[])m2.getValue("Profile"), 0);
+        assertArrayEquals("int array", new long[]{1, 2, 3}, (long[])m2.getValue("Ids"));
+        assertEquals("dictionary", 6, dict.size());
+        assertEquals("dictionary entries to persist", 6, dict.pollAddedEntries().size());
+        assertTrue("dictionary entries persisted", dict.pollAddedEntries().isEmpty());
+    }
+
+    @Test
+    public void testSameValuesAsJSON() {
+        Measurements m = create();
+        m.values.put("Profile", new double[]{1.5, -2}); // NaN is not supported by JSON
+        Measurements mJSON = new Measurements(JSONUtils.parse(JSONUtils.serialize(m)), m.positionName);
+        MeasurementsCodec.KeyDictionary dict = new MeasurementsCodec.KeyDictionary();
+        Measurements mBin = MeasurementsCodec.decode(MeasurementsCodec.encode(mJSON, dict), m.id, m.positionName, dict);
+        for (String k : mJSON.getKeys()) {
+            Object vJSON = mJSON.getValue(k), vBin = mBin.getValue(k);
+            assertEquals("type of: "+k, vJSON.getClass(), vBin.getClass());
+            if (vJSON instanceof double[]) assertArrayEquals("value of: "+k, (double[])vJSON, (double[])vBin, 0);
+            else if (vJSON instanceof long[]) assertTrue("value of: "+k, Arrays.equals((long[])vJSON, (long[])vBin));
+            else assertEquals("value of: "+k, vJSON, vBin);
+        }
+    }
+
+    @Test
+    public void testSharedDictionary() {
+        MeasurementsCodec.KeyDictionary dict = new MeasurementsCodec.KeyDictionary();
+        byte[] d1 = MeasurementsCodec.encode(create(), dict);
+        MeasurementsCodec.KeyDictionary reloaded = new MeasurementsCodec.KeyDictionary(dict.keys);
+        Measurements m = MeasurementsCodec.decode(d1, "abc", "pos0", reloaded);
+        assertEquals("keys", create().getKeys(), m.getKeys());
+        assertEquals("no new entry", 0, reloaded.pollAddedEntries().size());
+    }
+
+    @Test
+    public void testLongStrings() {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length()<100000) sb.append("cell \u00e9\u4e2d ");
+        String longString = sb.toString(); // more than 64KB once encoded
+        Measurements m = new Measurements("pos0", 0, 0, new int[]{0}).initValues();
+        m.id = "abc";
+        m.setStringValue("Long", longString);
+        m.values.put("Labels", Arrays.asList("a", longString));
+        MeasurementsCodec.KeyDictionary dict = new MeasurementsCodec.KeyDictionary();
+        Measurements m2 = MeasurementsCodec.decode(MeasurementsCodec.encode(m, dict), m.id, m.positionName, dict);
+        assertEquals("long string", longString, m2.getValue("Long"));
+        assertEquals("list of strings", Arrays.asList("a", longString), m2.values.get("Labels"));
+    }
+
+    @Test
+    public void testDecodeVersion2() throws IOException { // strings were encoded with DataOutput.writeUTF
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(2);
+        writeVarInt(out, 3); // frame
+        writeVarInt(out, 1); // object class
+        out.writeDouble(6);
+        out.writeBoolean(false);
+        out.writeLong(42);
+        writeVarInt(out, 1); // indices
+        writeVarInt(out, 3);
+        writeVarInt(out, 2); // values
+        writeVarInt(out, 0);
+        out.writeByte(MeasurementsCodec.STRING);
+        out.writeUTF("cell \u00e9");
+        writeVarInt(out, 1);
+        out.writeByte(MeasurementsCodec.STRING_ARRAY);
+        writeVarInt(out, 2);
+        out.writeUTF("a");
+        out.writeUTF("b");
+        out.flush();
+        MeasurementsCodec.KeyDictionary dict = new MeasurementsCodec.KeyDictionary();
+        dict.getCode("Label");
+        dict.getCode("Labels");
+        Measurements m = MeasurementsCodec.decode(bos.toByteArray(), "abc", "pos0", dict);
+        assertEquals("frame", 3, m.getFrame());
+        assertEquals("input hash", 42, m.getInputHash());
+        assertEquals("string", "cell \u00e9", m.getValue("Label"));
+        assertEquals("list of strings", Arrays.asList("a", "b"), m.values.get("Labels"));
+    }
+}
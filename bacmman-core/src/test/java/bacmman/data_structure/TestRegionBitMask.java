@@ -0,0 +1,106 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure;
+
+import bacmman.image.BitMask;
+import bacmman.image.MutableBoundingBox;
+import bacmman.image.Offset;
+import bacmman.image.SimpleOffset;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares operations of regions backed by a {@link BitMask} (no voxel created) with the same operations on regions backed by voxels
+ * @author Jean Ollion
+ */
+public class TestRegionBitMask {
+
+    private static Set<Voxel> randomVoxels(Random r, boolean is2D) {
+        int x0 = r.nextInt(20) - 10, y0 = r.nextInt(20) - 10, z0 = r.nextInt(4);
+        int sX = 1 + r.nextInt(80), sY = 1 + r.nextInt(10), sZ = is2D ? 1 : 1 + r.nextInt(4);
+        double p = 0.2 + 0.7 * r.nextDouble();
+        Set<Voxel> res = new HashSet<>();
+        for (int z = 0; z<sZ; ++z) {
+            for (int y = 0; y<sY; ++y) {
+                for (int x = 0; x<sX; ++x) if (r.nextDouble()<p) res.add(new Voxel(x0 + x, y0 + y, z0 + z));
+            }
+        }
+        if (res.isEmpty()) res.add(new Voxel(x0, y0, z0));
+        return res;
+    }
+
+    private static Region voxelRegion(Set<Voxel> voxels, boolean is2D) {
+        return new Region(new HashSet<>(voxels), 1, is2D, 1, 1);
+    }
+
+    private static Region maskRegion(Set<Voxel> voxels, boolean is2D) {
+        MutableBoundingBox bounds = new MutableBoundingBox();
+        for (Voxel v : voxels) bounds.union(v.x, v.y, v.z);
+        BitMask mask = new BitMask(bounds, 1, 1);
+        for (Voxel v : voxels) mask.setPixelWithOffset(v.x, v.y, v.z, true);
+        return new Region(mask, 1, is2D);
+    }
+
+    private static Set<Voxel> translate(Set<Voxel> voxels, Offset offset, boolean ignoreZ) {
+        return voxels.stream().map(v -> new Voxel(v.x + (offset==null ? 0 : offset.xMin()), v.y + (offset==null ? 0 : offset.yMin()), ignoreZ ? 0 : v.z + (offset==null ? 0 : offset.zMin()))).collect(Collectors.toSet());
+    }
+
+    @Test
+    public void testOverlapArea() {
+        Random r = new Random(5);
+        for (int i = 0; i<400; ++i) {
+            boolean is2D = i%2==0; // 2D regions are located on random planes, z is ignored
+            Set<Voxel> v1 = randomVoxels(r, is2D), v2 = randomVoxels(r, is2D);
+            Offset off1 = i%3==0 ? null : new SimpleOffset(r.nextInt(10) - 5, r.nextInt(6) - 3, is2D ? 0 : r.nextInt(3) - 1);
+            Offset off2 = i%3==0 ? null : new SimpleOffset(r.nextInt(10) - 5, r.nextInt(6) - 3, is2D ? 0 : r.nextInt(3) - 1);
+            Set<Voxel> inter = translate(v1, off1, is2D);
+            inter.retainAll(translate(v2, off2, is2D));
+            assertEquals("voxel path: "+i, inter.size(), voxelRegion(v1, is2D).getOverlapArea(voxelRegion(v2, is2D), off1, off2), 0);
+            Region m1 = maskRegion(v1, is2D), m2 = maskRegion(v2, is2D);
+            assertEquals("word-wise path: "+i, inter.size(), m1.getOverlapArea(m2, off1, off2), 0);
+            assertFalse("no voxel created", m1.voxelsCreated() || m2.voxelsCreated());
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        Random r = new Random(6);
+        for (int i = 0; i<200; ++i) {
+            boolean is2D = i%2==0;
+            Set<Voxel> v1 = randomVoxels(r, is2D), v2 = randomVoxels(r, is2D);
+            Region vox = voxelRegion(v1, is2D);
+            vox.getVoxels();
+            vox.merge(voxelRegion(v2, is2D));
+            Region mask = maskRegion(v1, is2D);
+            mask.merge(maskRegion(v2, is2D));
+            assertFalse("no voxel created", mask.voxelsCreated());
+            Set<Voxel> union = new HashSet<>(v1);
+            union.addAll(v2);
+            assertTrue("bounds: "+i, vox.getBounds().sameBounds(mask.getBounds()));
+            assertEquals("voxel path: "+i, union, vox.getVoxels());
+            assertEquals("mask path: "+i, union, mask.getVoxels());
+        }
+    }
+}
@@ -51,6 +51,10 @@ public class TestTrackStructure {
     public void testTrackStructure() {
         testTrackStructure(DAOType.DBMap);
     }
+    @Test
+    public void testTrackStructureBinary() {
+        testTrackStructure(DAOType.Binary);
+    }
 
     /*public static void main(String[] args) {
         TestTrackStructure t = new TestTrackStructure();
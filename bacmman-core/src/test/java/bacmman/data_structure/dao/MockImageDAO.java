@@ -0,0 +1,142 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import bacmman.data_structure.SegmentedObject;
+import bacmman.image.BlankMask;
+import bacmman.image.Image;
+import bacmman.image.ImageByte;
+import bacmman.image.MutableBoundingBox;
+
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+/**
+ * In-memory pre-processed images (10x10 byte frames whose value is the frame index, unless a frame was written) that counts reads, and can block or fail reads.
+ * The content returned by a read is the one at the beginning of the read
+ * @author Jean Ollion
+ */
+public class MockImageDAO implements ImageDAO {
+    final Map<Integer, AtomicInteger> reads = new ConcurrentHashMap<>();
+    final Map<Integer, Image> written = new ConcurrentHashMap<>();
+    CountDownLatch gate;
+    IntPredicate fail;
+
+    /**
+     * Reads are blocked until {@link CountDownLatch#countDown()} is called on the returned latch
+     */
+    public CountDownLatch block() {
+        gate = new CountDownLatch(1);
+        return gate;
+    }
+
+    /**
+     * @param fail frames for which reads throw an exception
+     */
+    public MockImageDAO setFailure(IntPredicate fail) {
+        this.fail = fail;
+        return this;
+    }
+
+    public int getReadCount(int frame) {
+        AtomicInteger c = reads.get(frame);
+        return c==null ? 0 : c.get();
+    }
+
+    @Override
+    public Image openPreProcessedImage(int channelImageIdx, int timePoint, String microscopyFieldName) {
+        reads.computeIfAbsent(timePoint, t -> new AtomicInteger()).incrementAndGet();
+        Image w = written.get(timePoint);
+        CountDownLatch g = gate;
+        if (g!=null) {
+            try {
+                if (!g.await(10, TimeUnit.SECONDS)) throw new RuntimeException("timeout");
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (fail!=null && fail.test(timePoint)) throw new IllegalStateException("cannot read frame: "+timePoint);
+        if (w!=null) return w.duplicate(w.getName());
+        ImageByte res = new ImageByte("frame"+timePoint, 10, 10, 1);
+        for (int xy = 0; xy<100; ++xy) res.setPixel(xy, 0, timePoint);
+        return res;
+    }
+
+    @Override
+    public Image openPreProcessedImage(int channelImageIdx, int timePoint, String microscopyFieldName, MutableBoundingBox bounds) {
+        return openPreProcessedImage(channelImageIdx, timePoint, microscopyFieldName).crop(bounds);
+    }
+
+    @Override
+    public String getImageExtension() {
+        return ".tif";
+    }
+
+    @Override
+    public InputStream openPreProcessedImageAsStream(int channelImageIdx, int timePoint, String microscopyFieldName) {
+        return null;
+    }
+
+    @Override
+    public BlankMask getPreProcessedImageProperties(int channelImageIdx, String microscopyFieldName) {
+        return new BlankMask(10, 10, 1);
+    }
+
+    @Override
+    public long getPreProcessedImageVersion(int channelImageIdx, int timePoint, String microscopyFieldName) {
+        return 0;
+    }
+
+    @Override
+    public void writePreProcessedImage(Image image, int channelImageIdx, int timePoint, String microscopyFieldName) {
+        written.put(timePoint, image.duplicate(image.getName()));
+    }
+
+    @Override
+    public void writePreProcessedImage(InputStream image, int channelImageIdx, int timePoint, String microscopyFieldName) {}
+
+    @Override
+    public void deletePreProcessedImage(int channelImageIdx, int timePoint, String microscopyFieldName) {
+        written.remove(timePoint);
+    }
+
+    @Override
+    public void writeTrackImage(SegmentedObject trackHead, int channelImageIdx, Image image) {}
+
+    @Override
+    public Image openTrackImage(SegmentedObject trackHead, int channelImageIdx) {
+        return null;
+    }
+
+    @Override
+    public InputStream openTrackImageAsStream(SegmentedObject trackHead, int channelImageIdx) {
+        return null;
+    }
+
+    @Override
+    public void writeTrackImage(SegmentedObject trackHead, int channelImageIdx, InputStream image) {}
+
+    @Override
+    public void deleteTrackImages(String position, int parentStructureIdx) {}
+}
@@ -0,0 +1,182 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import bacmman.image.Image;
+import bacmman.image.ImageByte;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrent loading, eviction and prefetching of {@link CachedImageDAO}
+ * @author Jean Ollion
+ */
+public class TestCachedImageDAO {
+    static final String POS = "pos";
+
+    @Test
+    public void testConcurrentLoads() throws Exception {
+        MockImageDAO source = new MockImageDAO();
+        CachedImageDAO dao = new CachedImageDAO(source).setCacheSize(1000);
+        CountDownLatch gate = source.block();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Image>> res = new ArrayList<>();
+            for (int i = 0; i<4; ++i) res.add(pool.submit(() -> dao.openPreProcessedImage(0, 3, POS)));
+            Thread.sleep(100);
+            gate.countDown();
+            List<Image> images = new ArrayList<>();
+            for (Future<Image> f : res) images.add(f.get(10, TimeUnit.SECONDS));
+            assertEquals("single read", 1, source.getReadCount(3));
+            for (Image im : images) {
+                assertNotNull(im);
+                assertEquals("value", 3, im.getPixel(5, 5, 0), 0);
+                for (Image other : images) if (other!=im) assertNotSame("copies are returned", im, other);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLoadFailure() throws Exception {
+        MockImageDAO source = new MockImageDAO().setFailure(t -> t==0);
+        CachedImageDAO dao = new CachedImageDAO(source).setCacheSize(1000);
+        CountDownLatch gate = source.block();
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<Image>> res = new ArrayList<>();
+            for (int i = 0; i<3; ++i) res.add(pool.submit(() -> dao.openPreProcessedImage(0, 0, POS)));
+            Thread.sleep(100);
+            gate.countDown();
+            for (Future<Image> f : res) {
+                try {
+                    Image im = f.get(10, TimeUnit.SECONDS);
+                    fail("error expected, got: "+im);
+                } catch (ExecutionException e) {
+                    assertTrue("loader error is propagated", e.getCause() instanceof IllegalStateException);
+                }
+            }
+            // failed frames are not cached: next request reads again
+            source.setFailure(null);
+            assertNotNull(dao.openPreProcessedImage(0, 0, POS));
+            assertEquals(2, source.getReadCount(0));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWriteDuringLoad() throws Exception {
+        MockImageDAO source = new MockImageDAO();
+        CachedImageDAO dao = new CachedImageDAO(source).setCacheSize(1000);
+        CountDownLatch gate = source.block();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<Image> before = pool.submit(() -> dao.openPreProcessedImage(0, 3, POS));
+            Thread.sleep(100); // frame is being read
+            ImageByte modified = new ImageByte("frame3", 10, 10, 1);
+            for (int xy = 0; xy<100; ++xy) modified.setPixel(xy, 0, 42);
+            dao.writePreProcessedImage(modified, 0, 3, POS);
+            Future<Image> after = pool.submit(() -> dao.openPreProcessedImage(0, 3, POS));
+            Thread.sleep(100);
+            assertEquals("request after write does not wait for the stale read", 2, source.getReadCount(3));
+            gate.countDown();
+            assertEquals("frame requested before write", 3, before.get(10, TimeUnit.SECONDS).getPixel(5, 5, 0), 0);
+            assertEquals("frame requested after write", 42, after.get(10, TimeUnit.SECONDS).getPixel(5, 5, 0), 0);
+            assertEquals("stale frame is not cached", 42, dao.openPreProcessedImage(0, 3, POS).getPixel(5, 5, 0), 0);
+            assertEquals("frame read after write is cached", 2, source.getReadCount(3));
+            dao.deletePreProcessedImage(0, 3, POS);
+            assertEquals("deleted frame is not cached", 3, dao.openPreProcessedImage(0, 3, POS).getPixel(5, 5, 0), 0);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testEviction() {
+        MockImageDAO source = new MockImageDAO();
+        CachedImageDAO dao = new CachedImageDAO(source).setCacheSize(200); // frames are 100 bytes
+        for (int t = 0; t<3; ++t) dao.openPreProcessedImage(0, t, POS);
+        CachedImageDAO.CacheStatistics stats = dao.getStatistics(POS);
+        assertEquals("misses", 3, stats.getMisses());
+        assertEquals("evictions", 1, stats.getEvictions());
+        assertEquals("cached bytes", 200, stats.getCachedBytes());
+        dao.openPreProcessedImage(0, 2, POS);
+        assertEquals("cached frame", 1, source.getReadCount(2));
+        dao.openPreProcessedImage(0, 0, POS);
+        assertEquals("evicted frame is read again", 2, source.getReadCount(0));
+        stats = dao.getStatistics(POS);
+        assertEquals("hits", 1, stats.getHits());
+        assertEquals("evictions", 2, stats.getEvictions());
+        dao.setCacheSize(100);
+        assertEquals("shrinking evicts", 100, dao.getStatistics(POS).getCachedBytes());
+        CachedImageDAO.CacheStatistics cleared = dao.clearCache(POS);
+        assertEquals("released bytes", 100, cleared.getCachedBytes());
+        assertEquals(0, dao.getStatistics(POS).getCachedBytes());
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        MockImageDAO source = new MockImageDAO();
+        CachedImageDAO dao = new CachedImageDAO(source).setPrefetch(2, 1);
+        dao.prefetch(POS, 0, 1);
+        Image im = dao.openPreProcessedImage(0, 1, POS);
+        assertEquals("value", 1, im.getPixel(0, 0, 0), 0);
+        assertEquals("prefetched frame is used", 1, source.getReadCount(1));
+        assertEquals(1, dao.getStatistics(POS).getPrefetchHits());
+    }
+
+    @Test
+    public void testPrefetchCancellation() throws Exception {
+        MockImageDAO source = new MockImageDAO();
+        CachedImageDAO dao = new CachedImageDAO(source).setPrefetch(2, 1);
+        CountDownLatch gate = source.block();
+        dao.prefetch(POS, 0, 1);
+        dao.prefetch(POS, 0, 2);
+        assertEquals(2, dao.getStatistics(POS).getPrefetched());
+        dao.clearPrefetch(POS);
+        synchronized (dao) {
+            assertTrue("prefetched frames released", dao.prefetched.isEmpty());
+        }
+        gate.countDown();
+        Image im = dao.openPreProcessedImage(0, 2, POS);
+        assertEquals("value", 2, im.getPixel(0, 0, 0), 0);
+        assertEquals("cancelled frames are not used", 0, dao.getStatistics(POS).getPrefetchHits());
+        // failure of a prefetched frame is propagated to the requesting thread
+        source.setFailure(t -> t==3);
+        dao.prefetch(POS, 0, 3);
+        try {
+            dao.openPreProcessedImage(0, 3, POS);
+            fail("error expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
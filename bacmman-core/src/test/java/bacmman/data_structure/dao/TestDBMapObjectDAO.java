@@ -0,0 +1,290 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import bacmman.configuration.experiment.ChannelImage;
+import bacmman.configuration.experiment.Experiment;
+import bacmman.configuration.experiment.Structure;
+import bacmman.data_structure.MasterDAOFactory;
+import bacmman.data_structure.Region;
+import bacmman.data_structure.SegmentedObject;
+import bacmman.data_structure.SegmentedObjectAccessor;
+import bacmman.image.BlankMask;
+import bacmman.utils.DBMapUtils;
+import bacmman.utils.JSONUtils;
+import bacmman.utils.Pair;
+import org.mapdb.DB;
+import org.mapdb.HTreeMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestDBMapObjectDAO {
+    final static String POSITION = "pos";
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private DBMapMasterDAO generateDB() throws IOException {
+        DBMapMasterDAO db = (DBMapMasterDAO)MasterDAOFactory.createDAO("testdb", testFolder.newFolder().getAbsolutePath(), MasterDAOFactory.DAOType.DBMap);
+        db.setConfigurationReadOnly(false);
+        Experiment xp = new Experiment("test");
+        xp.setImportImageMethod(Experiment.IMPORT_METHOD.SINGLE_FILE);
+        xp.setOutputDirectory(testFolder.newFolder("output").getAbsolutePath());
+        xp.getChannelImages().insert(new ChannelImage("channel"));
+        xp.getStructures().removeAllElements();
+        xp.getStructures().insert(new Structure("objects", -1, 0));
+        db.setExperiment(xp);
+        db.lockPositions(POSITION);
+        return db;
+    }
+
+    private static List<SegmentedObject> createRoots(DBMapObjectDAO dao, int frames) {
+        SegmentedObjectAccessor accessor = dao.getMasterDAO().getAccess();
+        List<SegmentedObject> res = new ArrayList<>(frames);
+        for (int f = 0; f<frames; ++f) res.add(accessor.createRoot(f, new BlankMask(5, 4, 1, 0, 0, 0, 1, 1), dao));
+        return res;
+    }
+
+    private static void link(SegmentedObjectAccessor accessor, SegmentedObject previous, SegmentedObject next, SegmentedObject trackHead) {
+        previous.setNext(next);
+        next.setPrevious(previous);
+        accessor.setTrackHead(next, trackHead, false, false);
+    }
+
+    private static List<String> ids(List<SegmentedObject> objects) {
+        return objects.stream().map(SegmentedObject::getId).collect(Collectors.toList());
+    }
+
+    private static int countStoredRoots(DBMapObjectDAO dao) {
+        return dao.getDBMap(new Pair<>(null, -1)).size();
+    }
+
+    private static int getPendingCount(DBMapObjectDAO dao) {
+        synchronized (dao.writeBehindLock) {
+            return dao.pendingCount;
+        }
+    }
+
+    @Test
+    public void testWriteBehindCoalescing() throws IOException {
+        DBMapObjectDAO dao = generateDB().getDao(POSITION);
+        dao.setWriteBehind(100, 0);
+        List<SegmentedObject> roots = createRoots(dao, 3);
+        for (int i = 0; i<3; ++i) dao.store(roots);
+        assertEquals("repeated storage is buffered once", 3, getPendingCount(dao));
+        assertEquals("nothing written before flush", 0, countStoredRoots(dao));
+        dao.flush();
+        assertEquals("pending after flush", 0, getPendingCount(dao));
+        assertEquals("written objects", 3, countStoredRoots(dao));
+        // objects are serialized when stored: later modifications are not written
+        roots.get(0).setAttribute("value", 1d);
+        dao.store(roots.get(0));
+        roots.get(0).setAttribute("value", 2d);
+        dao.flush();
+        dao.clearCache();
+        SegmentedObject root = dao.getRoots().get(0);
+        assertNotSame("object retrieved from storage", roots.get(0), root);
+        assertEquals("stored value", 1d, ((Number)root.getAttribute("value")).doubleValue(), 0);
+        dao.unlock();
+    }
+
+    @Test
+    public void testFlushOnSizeAndInterval() throws IOException, InterruptedException {
+        DBMapObjectDAO dao = generateDB().getDao(POSITION);
+        dao.setWriteBehind(2, 0);
+        List<SegmentedObject> roots = createRoots(dao, 3);
+        dao.store(roots.get(0));
+        assertEquals("pending", 1, getPendingCount(dao));
+        dao.store(roots.get(1));
+        assertEquals("buffer size reached", 0, getPendingCount(dao));
+        assertEquals("written objects", 2, countStoredRoots(dao));
+        dao.setWriteBehind(100, 20);
+        dao.store(roots.get(2));
+        long t0 = System.currentTimeMillis();
+        while (getPendingCount(dao)>0 && System.currentTimeMillis()-t0<10000) Thread.sleep(10);
+        assertEquals("periodic flush", 0, getPendingCount(dao));
+        assertEquals("written objects after periodic flush", 3, countStoredRoots(dao));
+        dao.unlock();
+    }
+
+    @Test
+    public void testFlushOnUnlock() throws IOException {
+        DBMapObjectDAO dao = generateDB().getDao(POSITION);
+        dao.setWriteBehind(100, 0);
+        dao.store(createRoots(dao, 3));
+        dao.unlock();
+        assertFalse("write-behind suspended", dao.isWriteBehind());
+        assertEquals("pending after unlock", 0, getPendingCount(dao));
+        assertEquals("written objects", 3, countStoredRoots(dao));
+        assertTrue("lock", dao.lock());
+        assertTrue("write-behind resumed", dao.isWriteBehind());
+        dao.store(createRoots(dao, 1));
+        assertEquals("pending after lock", 1, getPendingCount(dao));
+        dao.unlock();
+        assertEquals("written objects after second unlock", 4, countStoredRoots(dao));
+    }
+
+    @Test
+    public void testFlushError() throws IOException {
+        DBMapMasterDAO db = generateDB();
+        DBMapObjectDAO dao = new DBMapObjectDAO(db, "failing", db.getExperiment().getOutputDirectory(), false) {
+            int failures = 1;
+            @Override
+            protected void writeSnapshots(Pair<String, Integer> key, Collection<ObjectSnapshot> objects) {
+                if (failures-->0) throw new RuntimeException("write error");
+                super.writeSnapshots(key, objects);
+            }
+        };
+        dao.setWriteBehind(100, 0);
+        dao.store(createRoots(dao, 3));
+        try {
+            dao.flush();
+            fail("write error is thrown");
+        } catch (RuntimeException e) {
+            assertEquals("write error", e.getMessage());
+        }
+        assertEquals("pending changes kept", 3, getPendingCount(dao));
+        dao.flush();
+        assertEquals("pending after second flush", 0, getPendingCount(dao));
+        assertEquals("written objects", 3, countStoredRoots(dao));
+        dao.unlock();
+    }
+
+    @Test
+    public void testBinaryRecordRoundTrip() throws IOException {
+        DBMapObjectDAO dao = generateDB().getDao(POSITION);
+        SegmentedObjectAccessor accessor = dao.getMasterDAO().getAccess();
+        List<SegmentedObject> roots = createRoots(dao, 2);
+        accessor.setTrackHead(roots.get(0), roots.get(0), false, false);
+        link(accessor, roots.get(0), roots.get(1), roots.get(0));
+        SegmentedObject o = new SegmentedObject(1, 0, 2, new Region(new BlankMask(2, 3, 1, 1, 0, 0, 1, 1), 3, true), roots.get(1));
+        accessor.setTrackHead(o, o, false, false);
+        o.setAttribute("value", 2.5d);
+        ObjectColumnFile.Record r = BinaryObjectDAO.toRecord(o, accessor);
+        SegmentedObject res = BinaryObjectDAO.toObject(r, 0, accessor);
+        assertEquals("id", o.getId(), res.getId());
+        assertEquals("parent id", o.getParentId(), res.getParentId());
+        assertEquals("object class", 0, res.getStructureIdx());
+        assertEquals("idx", 2, res.getIdx());
+        assertEquals("frame", 1, res.getFrame());
+        assertEquals("parent track head id", accessor.parentTrackHeadId(o), accessor.parentTrackHeadId(res));
+        assertEquals("track head id", accessor.trackHeadId(o), accessor.trackHeadId(res));
+        assertTrue("track head", res.isTrackHead());
+        assertEquals("attribute", 2.5d, ((Number)res.getAttribute("value")).doubleValue(), 0);
+        assertEquals("region hash", accessor.getRegionHash(o), accessor.getRegionHash(res));
+        assertArrayEquals("region", accessor.encodeRegionContainer(o), accessor.encodeRegionContainer(res));
+        // root record without region nor attributes
+        r = BinaryObjectDAO.toRecord(roots.get(0), accessor);
+        res = BinaryObjectDAO.toObject(r, -1, accessor);
+        assertEquals("root next id", roots.get(1).getId(), res.getNextId());
+        assertNull("root previous id", res.getPreviousId());
+        assertNull("no parent", res.getParentId());
+        dao.unlock();
+    }
+
+    @Test
+    public void testIndexedQueries() throws IOException {
+        DBMapObjectDAO dao = generateDB().getDao(POSITION);
+        SegmentedObjectAccessor accessor = dao.getMasterDAO().getAccess();
+        List<SegmentedObject> roots = createRoots(dao, 3);
+        accessor.setTrackHead(roots.get(0), roots.get(0), false, false);
+        for (int f = 1; f<3; ++f) link(accessor, roots.get(f-1), roots.get(f), roots.get(0));
+        // two objects per frame. track a: a0 -> a1 -> a2, tracks b: b0 and b1 -> b2
+        SegmentedObject[][] objects = new SegmentedObject[3][2];
+        for (int f = 0; f<3; ++f) {
+            for (int i = 0; i<2; ++i) objects[f][i] = new SegmentedObject(f, 0, i, new Region(new BlankMask(2, 2, 1, 3*i, 0, 0, 1, 1), i+1, true), roots.get(f));
+        }
+        for (SegmentedObject th : new SegmentedObject[]{objects[0][0], objects[0][1], objects[1][1]}) accessor.setTrackHead(th, th, false, false);
+        for (int f = 1; f<3; ++f) link(accessor, objects[f-1][0], objects[f][0], objects[0][0]);
+        link(accessor, objects[1][1], objects[2][1], objects[1][1]);
+        dao.store(roots);
+        List<SegmentedObject> all = new ArrayList<>();
+        for (SegmentedObject[] frame : objects) for (SegmentedObject o : frame) all.add(o);
+        dao.store(all);
+        dao.clearCache();
+
+        // objects are retrieved through the index, without retrieving the whole parent track
+        List<SegmentedObject> storedRoots = dao.getRoots();
+        Pair<String, Integer> key = new Pair<>(roots.get(0).getId(), 0);
+        List<SegmentedObject> children = dao.getChildren(storedRoots.get(1), 0);
+        assertEquals("children", ids(Arrays.asList(objects[1])), ids(children));
+        assertFalse("partial retrieval", dao.isFullyRetrieved(key));
+        SegmentedObject a0 = dao.getChildren(storedRoots.get(0), 0).get(0);
+        assertEquals("track", ids(Arrays.asList(objects[0][0], objects[1][0], objects[2][0])), ids(dao.getTrack(a0)));
+        assertEquals("track heads", ids(Arrays.asList(objects[0][0], objects[0][1], objects[1][1])), ids(dao.getTrackHeads(storedRoots.get(0), 0)));
+        assertFalse("partial retrieval", dao.isFullyRetrieved(key));
+
+        String b2Id = objects[2][1].getId();
+        dao.clearCache();
+
+        // persisted index is used without reading stored objects: a modification of the persisted index only is visible
+        String name = roots.get(0).getId();
+        DB indexDB = DBMapUtils.createFileDB(dao.dir.resolve("objects_0.index.db").toString(), false);
+        HTreeMap<String, String> indexMap = DBMapUtils.createHTreeMap(indexDB, name);
+        String b2Encoded = indexMap.get(b2Id);
+        indexMap.put(b2Id, ObjectIndex.encode(0, b2Id));
+        indexDB.commit();
+        indexDB.close();
+        dao.getRoots();
+        assertTrue("persisted index is used", dao.getIndex(key).getIdsAtFrame(0).contains(b2Id));
+        dao.clearCache();
+
+        // interrupted commit: index is rebuilt
+        indexDB = DBMapUtils.createFileDB(dao.dir.resolve("objects_0.index.db").toString(), false);
+        DBMapUtils.createHTreeMap(indexDB, DBMapObjectDAO.INDEX_VERSION_MAP_NAME).put(name, DBMapObjectDAO.INDEX_DIRTY);
+        indexDB.commit();
+        indexDB.close();
+        dao.getRoots();
+        assertFalse("index rebuilt after interrupted commit", dao.getIndex(key).getIdsAtFrame(0).contains(b2Id));
+        assertEquals("rebuilt index", b2Encoded, dao.getIndex(key).getEncoded(b2Id));
+        dao.clearCache();
+
+        // objects modified without updating the index (e.g. by a version that does not maintain indexes): the index is rebuilt
+        SegmentedObject b2 = dao.getChildren(dao.getRoots().get(2), 0).get(1);
+        accessor.setTrackHead(b2, b2, true, false);
+        String serializedB2 = JSONUtils.serialize(b2);
+        dao.clearCache();
+        DB objectDB = DBMapUtils.createFileDB(dao.dir.resolve("objects_0.db").toString(), false);
+        DBMapUtils.createHTreeMap(objectDB, name).put(b2Id, serializedB2);
+        objectDB.commit();
+        objectDB.close();
+        storedRoots = dao.getRoots();
+        assertEquals("track heads after modification", ids(Arrays.asList(objects[0][0], objects[0][1], objects[1][1], objects[2][1])), ids(dao.getTrackHeads(storedRoots.get(0), 0)));
+        assertEquals("track after modification", ids(Arrays.asList(objects[1][1])), ids(dao.getTrack(dao.getChildren(storedRoots.get(1), 0).get(1))));
+        // rebuilt index is persisted
+        dao.clearCache();
+        indexDB = DBMapUtils.createFileDB(dao.dir.resolve("objects_0.index.db").toString(), true);
+        assertEquals("persisted rebuilt index", ObjectIndex.encode(2, b2Id), DBMapUtils.createHTreeMap(indexDB, name).get(b2Id));
+        indexDB.close();
+        dao.unlock();
+    }
+}
@@ -0,0 +1,118 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import bacmman.data_structure.Selection;
+import bacmman.utils.DBMapUtils;
+import bacmman.utils.JSONUtils;
+import org.json.simple.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapdb.DB;
+import org.mapdb.HTreeMap;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestDBMapSelectionDAO {
+    final static String POSITION = "pos";
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private static Selection createSelection(String name) {
+        Selection s = new Selection(name, 1, null);
+        for (int f = 0; f<10; ++f) s.addElement(POSITION, new int[]{f, f%3});
+        return s;
+    }
+
+    private static String getFile(String dir) {
+        return new File(new File(dir, "Selections"), "selections.db").getAbsolutePath();
+    }
+
+    private static JSONObject readJSONEntry(String dir, String name) { // as previous versions read selections
+        DB db = DBMapUtils.createFileDB(getFile(dir), true);
+        HTreeMap<String, String> map = DBMapUtils.createHTreeMap(db, DBMapSelectionDAO.MAP_NAME);
+        JSONObject res = JSONUtils.parse(map.get(name));
+        db.close();
+        return res;
+    }
+
+    private static void assertSameElements(Selection expected, Selection actual) {
+        assertNotNull("selection", actual);
+        assertEquals("elements", expected.getElementStrings(POSITION), actual.getElementStrings(POSITION));
+        assertEquals("object class", expected.getStructureIdx(), actual.getStructureIdx());
+    }
+
+    private static Selection get(String dir, String name) {
+        DBMapSelectionDAO dao = new DBMapSelectionDAO(null, dir, true);
+        Selection res = dao.getSelections().stream().filter(s -> s.getName().equals(name)).findAny().orElse(null);
+        dao.clearCache();
+        return res;
+    }
+
+    @Test
+    public void testPreviousFormatIsKept() throws IOException {
+        String dir = testFolder.newFolder().getAbsolutePath();
+        new File(dir, "Selections").mkdirs();
+        Selection legacy = createSelection("legacy");
+        DB db = DBMapUtils.createFileDB(getFile(dir), false); // file written by a previous version
+        DBMapUtils.createHTreeMap(db, DBMapSelectionDAO.MAP_NAME).put(legacy.getName(), JSONUtils.serialize(legacy));
+        db.commit();
+        db.close();
+        DBMapSelectionDAO dao = new DBMapSelectionDAO(null, dir, false);
+        assertFalse("format of previous versions", dao.isPacked());
+        Selection s = createSelection("new");
+        dao.store(s);
+        dao.clearCache();
+        assertTrue("elements in JSON entry", readJSONEntry(dir, "new").containsKey("objects"));
+        assertSameElements(legacy, get(dir, "legacy"));
+        assertSameElements(s, get(dir, "new"));
+    }
+
+    @Test
+    public void testConversion() throws IOException {
+        String dir = testFolder.newFolder().getAbsolutePath();
+        DBMapSelectionDAO dao = new DBMapSelectionDAO(null, dir, false);
+        assertTrue("new files use packed elements", dao.isPacked());
+        Selection s = createSelection("sel");
+        dao.store(s);
+        dao.clearCache();
+        assertFalse("packed elements", readJSONEntry(dir, "sel").containsKey("objects"));
+        assertSameElements(s, get(dir, "sel"));
+        dao = new DBMapSelectionDAO(null, dir, false);
+        assertTrue("conversion", dao.convertElements(false));
+        dao.clearCache();
+        assertTrue("elements in JSON entry", readJSONEntry(dir, "sel").containsKey("objects"));
+        Selection fromJSON = JSONUtils.parse(Selection.class, readJSONEntry(dir, "sel").toJSONString());
+        assertSameElements(s, fromJSON);
+        dao = new DBMapSelectionDAO(null, dir, false);
+        assertFalse("format is recorded", dao.isPacked());
+        assertTrue("conversion", dao.convertElements(true));
+        dao.clearCache();
+        assertFalse("packed elements", readJSONEntry(dir, "sel").containsKey("objects"));
+        assertSameElements(s, get(dir, "sel"));
+    }
+}
@@ -0,0 +1,150 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import bacmman.configuration.experiment.ChannelImage;
+import bacmman.configuration.experiment.Experiment;
+import bacmman.configuration.experiment.Structure;
+import bacmman.data_structure.MasterDAOFactory;
+import bacmman.data_structure.Measurements;
+import bacmman.data_structure.SegmentedObject;
+import bacmman.data_structure.SegmentedObjectAccessor;
+import bacmman.data_structure.Selection;
+import bacmman.image.BlankMask;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestMeasurementQuery {
+    final static String POSITION = "pos";
+    final static int FRAMES = 6;
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    // roots of frame f have: Size = 100 * f, Even = f is even, Name = "root"+f, and Odd only when f is odd
+    private DBMapMasterDAO generateDB() throws IOException {
+        DBMapMasterDAO db = (DBMapMasterDAO)MasterDAOFactory.createDAO("testdb", testFolder.newFolder().getAbsolutePath(), MasterDAOFactory.DAOType.DBMap);
+        db.setConfigurationReadOnly(false);
+        Experiment xp = new Experiment("test");
+        xp.setImportImageMethod(Experiment.IMPORT_METHOD.SINGLE_FILE);
+        xp.setOutputDirectory(testFolder.newFolder("output").getAbsolutePath());
+        xp.getChannelImages().insert(new ChannelImage("channel"));
+        xp.getStructures().removeAllElements();
+        xp.getStructures().insert(new Structure("objects", -1, 0));
+        db.setExperiment(xp);
+        db.lockPositions(POSITION);
+        DBMapObjectDAO dao = db.getDao(POSITION);
+        SegmentedObjectAccessor accessor = db.getAccess();
+        List<SegmentedObject> roots = new ArrayList<>(FRAMES);
+        for (int f = 0; f<FRAMES; ++f) roots.add(accessor.createRoot(f, new BlankMask(5, 4, 1, 0, 0, 0, 1, 1), dao));
+        dao.store(roots);
+        for (SegmentedObject r : roots) {
+            Measurements m = r.getMeasurements();
+            m.setValue("Size", 100 * r.getFrame());
+            m.setValue("Even", r.getFrame()%2==0);
+            m.setStringValue("Name", "root"+r.getFrame());
+            if (r.getFrame()%2==1) m.setValue("Odd", r.getFrame());
+        }
+        dao.upsertMeasurements(roots);
+        return db;
+    }
+
+    private static MeasurementQuery query(MasterDAO db) {
+        return MasterDAO.query(db, -1).setPositions(POSITION);
+    }
+
+    private static Set<Integer> frames(MeasurementQuery query) {
+        return query.stream().map(Measurements::getFrame).collect(Collectors.toSet());
+    }
+
+    private static Set<Integer> set(Integer... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    @Test
+    public void testFilters() throws IOException {
+        DBMapMasterDAO db = generateDB();
+        assertEquals("no condition", set(0, 1, 2, 3, 4, 5), frames(query(db)));
+        assertEquals("number", set(3, 4, 5), frames(query(db).whereNumber("Size", v -> v>250)));
+        assertEquals("number and frame range", set(3, 4), frames(query(db).whereNumber("Size", v -> v>250).setFrameRange(0, 4)));
+        assertEquals("frame filters are combined", set(2, 4), frames(query(db).setFrameRange(1, 4).setFrames(f -> f%2==0)));
+        assertEquals("boolean", set(0, 2, 4), frames(query(db).whereBoolean("Even", true)));
+        assertEquals("string", set(2), frames(query(db).whereString("Name", "root2"::equals)));
+        assertEquals("defined", set(1, 3, 5), frames(query(db).whereDefined("Odd", true)));
+        assertEquals("undefined", set(0, 2, 4), frames(query(db).whereDefined("Odd", false)));
+        assertEquals("missing values are rejected", set(), frames(query(db).whereNumber("Unknown", v -> true)));
+        assertEquals("wrong type is rejected", set(), frames(query(db).whereNumber("Name", v -> true)));
+        assertEquals("custom condition", set(1, 5), frames(query(db).where(m -> ((Number)m.getValue("Odd")).intValue()!=3).whereDefined("Odd", true)));
+        assertEquals("unknown object class", 0, MasterDAO.query(db, 0).setPositions(POSITION).count());
+    }
+
+    @Test
+    public void testProjections() throws IOException {
+        DBMapMasterDAO db = generateDB();
+        MeasurementQuery q = query(db).whereBoolean("Even", false);
+        assertEquals("count", 3, q.count());
+        Map<Integer, Measurements> byFrame = q.stream().collect(Collectors.toMap(Measurements::getFrame, m -> m));
+        assertEquals("measurement values", 300, ((Number)byFrame.get(3).getValue("Size")).intValue());
+        assertEquals("text values", "root5", byFrame.get(5).getValue("Name"));
+        assertEquals("position", POSITION, byFrame.get(1).getPosition());
+        Set<String> ids = db.getDao(POSITION).getRoots().stream().filter(r -> r.getFrame()%2==1).map(SegmentedObject::getId).collect(Collectors.toSet());
+        assertEquals("ids", ids, q.ids().collect(Collectors.toSet()));
+        Selection sel = q.toSelection("odd");
+        assertEquals("selection object class", -1, sel.getStructureIdx());
+        assertEquals("selection size", 3, sel.count());
+        Set<String> expected = byFrame.values().stream().map(m -> Selection.indicesToString(m.getIndices())).collect(Collectors.toSet());
+        assertEquals("selection elements", expected, sel.getElementStrings(POSITION));
+    }
+
+    @Test
+    public void testReadOnly() throws IOException {
+        DBMapMasterDAO db = generateDB();
+        DBMapObjectDAO dao = db.getDao(POSITION);
+        dao.clearCache(); // closes all files
+        assertEquals("stored measurements", 6, query(db).count());
+        assertFalse("query does not open the store in write mode", dao.measurementdbS.containsKey(-1));
+        assertTrue("read-only store is closed after the query", dao.measurementReaders.isEmpty());
+        Stream<Measurements> stream = dao.streamMeasurements(-1, null);
+        assertEquals("read-only store is open", 1, (int)dao.measurementReaders.get(-1));
+        stream.close();
+        assertTrue("read-only store is closed with the stream", dao.measurementReaders.isEmpty());
+        // the store remains writable by the DAO
+        SegmentedObject root = dao.getRoots().get(0);
+        root.getMeasurements().setValue("Size", 1000);
+        dao.upsertMeasurement(root);
+        assertEquals("query on open store", set(0), frames(query(db).whereNumber("Size", v -> v>900)));
+        dao.unlock();
+    }
+}
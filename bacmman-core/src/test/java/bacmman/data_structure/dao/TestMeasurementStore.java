@@ -0,0 +1,143 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import bacmman.data_structure.Measurements;
+import bacmman.utils.DBMapUtils;
+import bacmman.utils.JSONUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapdb.DB;
+import org.mapdb.HTreeMap;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestMeasurementStore {
+    final static String POSITION = "pos";
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private static String toJSON(String id, int frame) {
+        JSONObject json = new JSONObject();
+        json.put("id", id);
+        json.put("sIdx", 0);
+        json.put("frame", frame);
+        json.put("timePointCal", (double)frame);
+        json.put("isTh", true);
+        JSONArray indices = new JSONArray();
+        indices.add(frame);
+        indices.add(0);
+        json.put("indices", indices);
+        JSONObject values = new JSONObject();
+        values.put("Size", 10.5 * frame);
+        values.put("Label", "cell"+frame);
+        json.put("values", values);
+        return json.toJSONString();
+    }
+
+    // file written by a version that only supports the JSON encoding
+    private String createLegacyFile(int count) throws IOException {
+        String path = testFolder.newFolder().toPath().resolve("measurements_0.db").toString();
+        DB db = DBMapUtils.createFileDB(path, false);
+        HTreeMap<String, String> map = DBMapUtils.createHTreeMap(db, MeasurementStore.LEGACY_MAP_NAME);
+        for (int i = 0; i<count; ++i) map.put("id"+i, toJSON("id"+i, i));
+        db.commit();
+        db.close();
+        return path;
+    }
+
+    private static Map<String, String> readLegacyEntries(String path) { // as previous versions read measurements
+        DB db = DBMapUtils.createFileDB(path, true);
+        Map<String, String> res = new HashMap<>(DBMapUtils.createHTreeMap(db, MeasurementStore.LEGACY_MAP_NAME));
+        db.close();
+        return res;
+    }
+
+    private static void assertMeasurements(MeasurementStore store, int count) {
+        Map<String, Measurements> all = store.getAll().stream().collect(Collectors.toMap(Measurements::getId, m -> m));
+        assertEquals("count", count, all.size());
+        for (int i = 0; i<count; ++i) {
+            Measurements m = all.get("id"+i);
+            assertEquals("frame", i, m.getFrame());
+            assertEquals("numerical value", 10.5 * i, ((Number)m.getValue("Size")).doubleValue(), 0);
+            assertEquals("text value", "cell"+i, m.getValue("Label"));
+        }
+    }
+
+    @Test
+    public void testNoImplicitConversion() throws IOException {
+        String path = createLegacyFile(5);
+        MeasurementStore store = new MeasurementStore(path, POSITION, false);
+        assertFalse("legacy file keeps the JSON encoding", store.isBinary());
+        assertMeasurements(store, 5);
+        store.put("id5", new Measurements(JSONUtils.parse(toJSON("id5", 5)), POSITION));
+        store.close(true);
+        Map<String, String> legacy = readLegacyEntries(path);
+        assertEquals("all entries are readable by previous versions", 6, legacy.size());
+        assertEquals("stored entry", 5, ((Number)JSONUtils.parse(legacy.get("id5")).get("frame")).intValue());
+        MeasurementStore newStore = new MeasurementStore(testFolder.newFolder().toPath().resolve("measurements_0.db").toString(), POSITION, false);
+        assertTrue("new files use the binary encoding", newStore.isBinary());
+        newStore.close(false);
+    }
+
+    @Test
+    public void testConversionRoundTrip() throws IOException {
+        String path = createLegacyFile(MeasurementStore.CONVERSION_BATCH + 5); // several batches
+        int count = MeasurementStore.CONVERSION_BATCH + 5;
+        assertEquals("converted to binary", count, MeasurementStore.convert(path, POSITION, true));
+        MeasurementStore store = new MeasurementStore(path, POSITION, true);
+        assertTrue("binary encoding", store.isBinary());
+        assertTrue("JSON entries removed", store.legacyMap==null || store.legacyMap.isEmpty());
+        assertMeasurements(store, count);
+        store.close(false);
+        assertEquals("converted back to JSON", count, MeasurementStore.convert(path, POSITION, false));
+        store = new MeasurementStore(path, POSITION, false);
+        assertFalse("JSON encoding", store.isBinary());
+        assertMeasurements(store, count);
+        store.close(false);
+        Map<String, String> legacy = readLegacyEntries(path);
+        assertEquals("readable by previous versions", count, legacy.size());
+        Set<Integer> frames = legacy.values().stream().map(s -> ((Number)JSONUtils.parse(s).get("frame")).intValue()).collect(Collectors.toSet());
+        assertEquals("frames", count, frames.size());
+        assertEquals("idempotent", 0, MeasurementStore.convert(path, POSITION, false));
+    }
+
+    @Test
+    public void testEmptyFileConversion() throws IOException {
+        String path = testFolder.newFolder().toPath().resolve("measurements_0.db").toString();
+        new MeasurementStore(path, POSITION, false).close(true);
+        MeasurementStore.convert(path, POSITION, false);
+        MeasurementStore store = new MeasurementStore(path, POSITION, false);
+        assertFalse("encoding is recorded in the file", store.isBinary());
+        store.close(false);
+    }
+}
@@ -0,0 +1,207 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import bacmman.utils.Id;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestObjectColumnFile {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private ObjectColumnFile createFile() throws IOException {
+        return new ObjectColumnFile(testFolder.newFolder().toPath(), "th");
+    }
+
+    private static ObjectColumnFile.Record createRecord(int frame, int idx) {
+        ObjectColumnFile.Record r = new ObjectColumnFile.Record();
+        r.id = Id.get().toHexString();
+        r.parentId = Id.get().toHexString();
+        r.frame = frame;
+        r.idx = idx;
+        return r;
+    }
+
+    private static ObjectColumnFile.Record createFullRecord(int frame, int idx) {
+        ObjectColumnFile.Record r = createRecord(frame, idx);
+        r.parentTrackHeadId = Id.get().toHexString();
+        r.trackHeadId = r.id;
+        r.previousId = Id.get().toHexString();
+        r.nextId = Id.get().toHexString();
+        r.isTrackHead = true;
+        r.bounds = new int[]{1, 5, -2, 8, 0, 3};
+        r.regionHash = -123456789012345L;
+        r.attributes = new byte[]{1, 2, 3};
+        r.region = new byte[]{4, 5, 6, 7, 8};
+        return r;
+    }
+
+    private static List<String> ids(List<ObjectColumnFile.Record> records) {
+        return records.stream().map(r -> r.id).collect(Collectors.toList());
+    }
+
+    private static void assertRecordEquals(ObjectColumnFile.Record expected, ObjectColumnFile.Record actual) {
+        assertEquals("id", expected.id, actual.id);
+        assertEquals("parent id", expected.parentId, actual.parentId);
+        assertEquals("parent track head id", expected.parentTrackHeadId, actual.parentTrackHeadId);
+        assertEquals("track head id", expected.trackHeadId, actual.trackHeadId);
+        assertEquals("previous id", expected.previousId, actual.previousId);
+        assertEquals("next id", expected.nextId, actual.nextId);
+        assertEquals("frame", expected.frame, actual.frame);
+        assertEquals("idx", expected.idx, actual.idx);
+        assertEquals("track head", expected.isTrackHead, actual.isTrackHead);
+        assertArrayEquals("bounds", expected.bounds, actual.bounds);
+        assertEquals("region hash", expected.regionHash, actual.regionHash);
+        assertArrayEquals("attributes", expected.attributes, actual.attributes);
+        assertArrayEquals("region", expected.region, actual.region);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ObjectColumnFile file = createFile();
+        ObjectColumnFile.Record full = createFullRecord(3, 2);
+        ObjectColumnFile.Record minimal = createRecord(0, 0);
+        file.upsert(Arrays.asList(full, minimal));
+        List<ObjectColumnFile.Record> read = new ObjectColumnFile(file.dir, file.name).read(null);
+        assertEquals("record number", 2, read.size());
+        assertRecordEquals(full, read.get(0));
+        assertRecordEquals(minimal, read.get(1));
+        // variable-size columns are not read
+        ObjectColumnFile.Record columns = file.read(id -> id.equals(full.id), false).get(0);
+        assertEquals("track head id without payload", full.trackHeadId, columns.trackHeadId);
+        assertNull("no attributes", columns.attributes);
+        assertNull("no region", columns.region);
+        assertEquals("filter", Collections.singletonList(minimal.id), ids(file.read(id -> id.equals(minimal.id))));
+    }
+
+    @Test
+    public void testAppend() throws IOException {
+        ObjectColumnFile file = createFile();
+        List<ObjectColumnFile.Record> records = new ArrayList<>();
+        for (int i = 0; i<3; ++i) records.add(createRecord(0, i));
+        file.upsert(records);
+        long size = Files.size(file.getColumnFile());
+        ObjectColumnFile.Record replacement = createFullRecord(0, 1);
+        replacement.id = records.get(1).id;
+        file.upsert(Collections.singletonList(replacement));
+        assertEquals("appended segment", 2, file.getSegmentCount());
+        assertTrue("file is appended", Files.size(file.getColumnFile())>size);
+        List<ObjectColumnFile.Record> read = new ObjectColumnFile(file.dir, file.name).read(null);
+        assertEquals("replaced record keeps its position", ids(records), ids(read));
+        assertRecordEquals(replacement, read.get(1));
+        List<ObjectColumnFile.Record> columns = new ObjectColumnFile(file.dir, file.name).read(id -> !id.equals(records.get(0).id), false);
+        assertEquals("records of several segments without payload", Arrays.asList(records.get(1).id, records.get(2).id), ids(columns));
+        assertEquals("replaced record without payload", replacement.previousId, columns.get(0).previousId);
+        assertArrayEquals("replaced record bounds without payload", replacement.bounds, columns.get(0).bounds);
+
+        file.remove(Collections.singletonList(records.get(0).id));
+        assertEquals("removal is appended", 3, file.getSegmentCount());
+        assertEquals("after removal", Arrays.asList(records.get(1).id, records.get(2).id), ids(new ObjectColumnFile(file.dir, file.name).read(null)));
+        file.remove(Arrays.asList(records.get(1).id, records.get(2).id));
+        assertFalse("file deleted when no record remains", file.exists());
+        assertTrue("read deleted file", file.read(null).isEmpty());
+    }
+
+    @Test
+    public void testIncompleteSegment() throws IOException {
+        ObjectColumnFile file = createFile();
+        ObjectColumnFile.Record r1 = createFullRecord(0, 0);
+        file.upsert(Collections.singletonList(r1));
+        long size = Files.size(file.getColumnFile());
+        // simulates a segment partially written during a crash
+        ByteBuffer partial = ByteBuffer.allocate(ObjectColumnFile.SEGMENT_HEADER_BYTES + 10);
+        partial.putInt(ObjectColumnFile.SEGMENT_MAGIC).putInt(1000).putInt(0);
+        partial.flip();
+        try (FileChannel channel = FileChannel.open(file.getColumnFile(), StandardOpenOption.APPEND)) {
+            while (partial.hasRemaining()) channel.write(partial);
+        }
+        ObjectColumnFile other = new ObjectColumnFile(file.dir, file.name);
+        List<ObjectColumnFile.Record> read = other.read(null);
+        assertEquals("incomplete segment is ignored", 1, read.size());
+        assertRecordEquals(r1, read.get(0));
+        ObjectColumnFile.Record r2 = createFullRecord(1, 0);
+        other.upsert(Collections.singletonList(r2));
+        read = new ObjectColumnFile(file.dir, file.name).read(null);
+        assertEquals("incomplete segment is truncated", Arrays.asList(r1.id, r2.id), ids(read));
+        assertRecordEquals(r2, read.get(1));
+        assertEquals("segments", 2, new ObjectColumnFile(file.dir, file.name).getSegmentCount());
+        assertTrue("file size", Files.size(file.getColumnFile())>size);
+
+        // corrupted segment
+        Path p = file.getColumnFile();
+        byte[] bytes = Files.readAllBytes(p);
+        bytes[bytes.length - 1] ^= 0xFF;
+        Files.write(p, bytes);
+        assertEquals("segment with invalid checksum is ignored", Collections.singletonList(r1.id), ids(new ObjectColumnFile(file.dir, file.name).read(null)));
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        ObjectColumnFile file = createFile();
+        // superseded records
+        List<ObjectColumnFile.Record> records = new ArrayList<>();
+        for (int i = 0; i<ObjectColumnFile.COMPACTION_MIN_RECORDS + 4; ++i) records.add(createFullRecord(0, i));
+        file.upsert(records);
+        file.upsert(records);
+        assertEquals("not compacted", 2, file.getSegmentCount());
+        long size = Files.size(file.getColumnFile());
+        for (ObjectColumnFile.Record r : records) r.idx += 1;
+        file.upsert(records);
+        assertEquals("compacted", 1, file.getSegmentCount());
+        assertTrue("compacted size", Files.size(file.getColumnFile())<size);
+        List<ObjectColumnFile.Record> read = new ObjectColumnFile(file.dir, file.name).read(null);
+        assertEquals("content after compaction", ids(records), ids(read));
+        for (int i = 0; i<records.size(); ++i) assertRecordEquals(records.get(i), read.get(i));
+
+        // number of segments
+        file = createFile();
+        List<ObjectColumnFile.Record> all = new ArrayList<>();
+        for (int s = 0; s<ObjectColumnFile.MAX_SEGMENTS; ++s) {
+            ObjectColumnFile.Record r = createRecord(s, 0);
+            all.add(r);
+            file.upsert(Collections.singletonList(r));
+        }
+        assertEquals("segments", ObjectColumnFile.MAX_SEGMENTS, file.getSegmentCount());
+        ObjectColumnFile.Record last = createRecord(ObjectColumnFile.MAX_SEGMENTS, 0);
+        all.add(last);
+        file.upsert(Collections.singletonList(last));
+        assertEquals("compacted segments", 1, file.getSegmentCount());
+        assertEquals("content after segment compaction", ids(all), ids(new ObjectColumnFile(file.dir, file.name).read(null)));
+    }
+}
@@ -0,0 +1,68 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.data_structure.dao;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestObjectIndex {
+
+    @Test
+    public void testFrameAndTrackIndexes() {
+        ObjectIndex index = new ObjectIndex();
+        index.put("a2", 2, "a0", false);
+        index.put("a0", 0, null, true);
+        index.put("a1", 1, "a0", false);
+        index.put("b1", 1, "b1", true);
+        assertEquals("track ordered by frame", Arrays.asList("a0", "a1", "a2"), index.getTrack("a0"));
+        assertEquals("frame", 2, index.getIdsAtFrame(1).size());
+        assertTrue("frame", index.getIdsAtFrame(1).containsAll(Arrays.asList("a1", "b1")));
+        assertEquals("track heads", 2, index.getTrackHeadIds().size());
+        // re-tracking: a2 becomes a track head
+        index.put("a2", 2, "a2", true);
+        assertEquals("track after update", Arrays.asList("a0", "a1"), index.getTrack("a0"));
+        assertEquals("new track", Collections.singletonList("a2"), index.getTrack("a2"));
+        assertTrue("remove", index.remove("a1"));
+        assertEquals("frame after remove", Collections.singletonList("b1"), index.getIdsAtFrame(1));
+        assertEquals("size", 3, index.size());
+        assertEquals("ids", new HashSet<>(Arrays.asList("a0", "a2", "b1")), new HashSet<>(index.getIds()));
+    }
+
+    @Test
+    public void testEncoding() {
+        ObjectIndex index = new ObjectIndex();
+        index.put("a0", 5, "t0");
+        index.put("a1", 3, null);
+        ObjectIndex decoded = new ObjectIndex();
+        decoded.put("a0", index.getEncoded("a0"));
+        decoded.put("a1", index.getEncoded("a1"));
+        assertEquals("track", Collections.singletonList("a0"), decoded.getTrack("t0"));
+        assertEquals("frame", Collections.singletonList("a1"), decoded.getIdsAtFrame(3));
+        assertNull("unknown id", decoded.getEncoded("a2"));
+    }
+}
@@ -0,0 +1,47 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.dummy_plugins;
+
+import bacmman.configuration.parameters.NumberParameter;
+import bacmman.configuration.parameters.Parameter;
+import bacmman.data_structure.RegionPopulation;
+import bacmman.data_structure.SegmentedObject;
+import bacmman.image.Image;
+
+/**
+ * Segmenter that fails on parents of a given index, to simulate a processing interrupted by an error
+ * @author Jean Ollion
+ */
+public class DummyFailingSegmenter extends DummySegmenter {
+    NumberParameter failingParentIdx = new NumberParameter("Index of failing parent", 0, -1);
+    public DummyFailingSegmenter() {
+        parameters = new Parameter[]{objectNb, segDir, failingParentIdx};
+    }
+    public DummyFailingSegmenter(boolean dirX, int objectNb, int failingParentIdx) {
+        super(dirX, objectNb);
+        this.failingParentIdx.setValue(failingParentIdx);
+        parameters = new Parameter[]{this.objectNb, segDir, this.failingParentIdx};
+    }
+
+    @Override
+    public RegionPopulation runSegmenter(Image input, int objectClassIdx, SegmentedObject structureObject) {
+        if (structureObject!=null && structureObject.getIdx()==failingParentIdx.getValue().intValue()) throw new RuntimeException("segmentation failed on parent: "+structureObject);
+        return super.runSegmenter(input, objectClassIdx, structureObject);
+    }
+}
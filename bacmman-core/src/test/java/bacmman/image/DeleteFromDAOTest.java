@@ -108,6 +108,11 @@ public class DeleteFromDAOTest {
         MasterDAO dao = generateDB(MasterDAOFactory.DAOType.DBMap);
         deleteTest(dao);
     }
+    @Test
+    public void deleteTestBinary() throws IOException{
+        MasterDAO dao = generateDB(MasterDAOFactory.DAOType.Binary);
+        deleteTest(dao);
+    }
 
 
     public void deleteTest(MasterDAO masterDAO) throws IOException {
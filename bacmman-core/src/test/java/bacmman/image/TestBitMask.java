@@ -0,0 +1,79 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.image;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestBitMask {
+
+    private static BitMask randomMask(Random r) {
+        int x0 = r.nextInt(200) - 100, y0 = r.nextInt(20), z0 = r.nextInt(3);
+        BitMask res = new BitMask(new SimpleBoundingBox(x0, x0 + r.nextInt(150), y0, y0 + r.nextInt(10), z0, z0 + r.nextInt(3)), 1, 1);
+        double p = r.nextDouble();
+        BoundingBox.loop(res, (x, y, z) -> {if (r.nextDouble()<p) res.setPixelWithOffset(x, y, z, true);});
+        return res;
+    }
+
+    private static int bruteForceIntersection(ImageMask m1, ImageMask m2) {
+        int[] count = new int[1];
+        BoundingBox inter = BoundingBox.getIntersection(m1, m2);
+        if (inter.isValid()) BoundingBox.loop(inter, (x, y, z) -> {if (m1.insideMaskWithOffset(x, y, z) && m2.insideMaskWithOffset(x, y, z)) ++count[0];});
+        return count[0];
+    }
+
+    @Test
+    public void testLoopAndCount() {
+        Random r = new Random(1);
+        for (int i = 0; i<50; ++i) {
+            BitMask m = randomMask(r);
+            int[] count = new int[1];
+            m.loop((x, y, z) -> {
+                assertTrue("voxel inside mask", m.insideMaskWithOffset(x, y, z));
+                ++count[0];
+            }, true);
+            assertEquals("count", bruteForceIntersection(m, m), count[0]);
+            assertEquals("cached count", count[0], m.count());
+        }
+    }
+
+    @Test
+    public void testSetOperations() {
+        Random r = new Random(2);
+        for (int i = 0; i<200; ++i) {
+            BitMask m1 = randomMask(r), m2 = randomMask(r);
+            int inter = bruteForceIntersection(m1, m2);
+            assertEquals("intersection count", inter, m1.intersectionCount(m2));
+            BitMask union = m1.duplicateMask().or(m2);
+            assertEquals("union count", m1.count() + inter, union.count());
+            BoundingBox.loop(union, (x, y, z) -> assertEquals("union", m1.insideMaskWithOffset(x, y, z) || (m2.containsWithOffset(x, y, z) && m2.insideMaskWithOffset(x, y, z)), union.insideMaskWithOffset(x, y, z)));
+            BitMask diff = m1.duplicateMask().andNot(m2);
+            assertEquals("difference count", m1.count() - inter, diff.count());
+            ImageByte m2Byte = TypeConverter.toByteMask(m2, null, 1);
+            assertEquals("difference with other mask type", m1.count() - inter, m1.duplicateMask().andNot(m2Byte).count());
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.image;
+
+import bacmman.data_structure.dao.ChunkedImageDAO;
+import bacmman.data_structure.dao.ChunkedImageStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestChunkedImageDAO {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private static ImageShort getFrame(int frame) {
+        ImageShort im = new ImageShort("", 37, 21, 2);
+        BoundingBox.loop(im, (x, y, z) -> im.setPixel(x, y, z, x + 40 * y + 1000 * z + 3 * frame));
+        return im.setCalibration(0.2, 0.5);
+    }
+
+    private void testRoundTrip(ChunkedImageStore.Compression compression, int chunkT) {
+        String dir = testFolder.getRoot().getAbsolutePath();
+        ChunkedImageDAO dao = new ChunkedImageDAO(dir).setChunkShape(16, 8, 1, chunkT).setCompression(compression);
+        for (int f = 0; f<3; ++f) dao.writePreProcessedImage(getFrame(f), 0, f, "pos");
+        dao.closeAllStores();
+        // a new DAO reads the index from disk
+        ChunkedImageDAO dao2 = new ChunkedImageDAO(dir);
+        BlankMask props = dao2.getPreProcessedImageProperties(0, "pos");
+        assertNotNull("properties", props);
+        assertTrue("dimensions", props.sameDimensions(getFrame(0)));
+        assertEquals("scale XY", 0.2, props.getScaleXY(), 1e-5);
+        for (int f = 0; f<3; ++f) {
+            Image ref = getFrame(f);
+            Image im = dao2.openPreProcessedImage(0, f, "pos");
+            assertTrue("full frame dimensions", ref.sameDimensions(im));
+            assertSameValues(ref, im);
+            MutableBoundingBox bounds = new MutableBoundingBox(-2, 20, 5, 30, 1, 1);
+            Image refCrop = ref.crop(bounds);
+            Image crop = dao2.openPreProcessedImage(0, f, "pos", bounds);
+            assertTrue("crop dimensions", refCrop.sameDimensions(crop));
+            assertTrue("crop offset", refCrop.getOffset().sameOffset(crop));
+            assertSameValues(refCrop, crop);
+        }
+        dao2.deletePreProcessedImage(0, 1, "pos");
+        assertNull("deleted frame", dao2.openPreProcessedImage(0, 1, "pos"));
+        assertSameValues(getFrame(2), dao2.openPreProcessedImage(0, 2, "pos"));
+        dao2.deletePreProcessedImage(0, 0, "pos");
+        dao2.deletePreProcessedImage(0, 2, "pos");
+        assertNull("all frames deleted", dao2.getPreProcessedImageProperties(0, "pos"));
+    }
+
+    private static void assertSameValues(Image expected, Image actual) {
+        BoundingBox.loop(new SimpleBoundingBox(expected).resetOffset(), (x, y, z) -> assertEquals("value at x="+x+" y="+y+" z="+z, expected.getPixel(x, y, z), actual.getPixel(x, y, z), 0));
+    }
+
+    @Test
+    public void testUncompressed() {
+        testRoundTrip(ChunkedImageStore.Compression.NONE, 1);
+    }
+
+    @Test
+    public void testDeflate() {
+        testRoundTrip(ChunkedImageStore.Compression.DEFLATE, 1);
+    }
+
+    @Test
+    public void testSeveralFramesPerChunk() {
+        testRoundTrip(ChunkedImageStore.Compression.DEFLATE, 2);
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        Path dir = testFolder.getRoot().toPath();
+        ChunkedImageStore store = new ChunkedImageStore(dir, "c00");
+        int[] chunkShape = new int[]{16, 8, 1, 3};
+        for (int f = 0; f<6; ++f) store.write(getFrame(f), f, chunkShape, ChunkedImageStore.Compression.NONE); // each write appends the whole chunk again
+        long size = Files.size(store.getDataFile());
+        long reclaimable = store.getReclaimableBytes();
+        assertTrue("rewritten chunks", reclaimable>0);
+        assertEquals("reclaimed bytes", reclaimable, store.compact());
+        assertEquals(0, store.getReclaimableBytes());
+        assertEquals("data file size", size - reclaimable, Files.size(store.getDataFile()));
+        for (int f = 0; f<6; ++f) assertSameValues(getFrame(f), store.read(f, null));
+        // chunks of deleted frames are removed
+        for (int f = 0; f<3; ++f) store.deleteFrame(f);
+        long sizeBefore = Files.size(store.getDataFile());
+        assertTrue("chunks of deleted frames", store.compact()>0);
+        assertEquals("half of the chunks removed", sizeBefore / 2, Files.size(store.getDataFile()));
+        store.close();
+        // interrupted compaction: temporary files are discarded when the store is opened
+        Files.write(dir.resolve("c00"+ChunkedImageStore.DATA_EXT+".tmp"), new byte[10]);
+        ChunkedImageStore store2 = new ChunkedImageStore(dir, "c00");
+        assertFalse("temporary file discarded", Files.exists(dir.resolve("c00"+ChunkedImageStore.DATA_EXT+".tmp")));
+        for (int f = 0; f<3; ++f) assertFalse("deleted frame", store2.hasFrame(f));
+        for (int f = 3; f<6; ++f) assertSameValues(getFrame(f), store2.read(f, null));
+        store2.close();
+    }
+
+    @Test
+    public void testFrameVersions() throws IOException {
+        Path dir = testFolder.getRoot().toPath();
+        ChunkedImageStore store = new ChunkedImageStore(dir, "c00");
+        int[] chunkShape = new int[]{16, 8, 1, 2};
+        for (int f = 0; f<4; ++f) store.write(getFrame(f), f, chunkShape, ChunkedImageStore.Compression.NONE);
+        long[] versions = new long[4];
+        for (int f = 0; f<4; ++f) versions[f] = store.getFrameVersion(f);
+        for (int f = 0; f<4; ++f) assertTrue("version of stored frame", versions[f]!=0);
+        assertEquals("unknown frame", 0, store.getFrameVersion(5));
+        store.write(getFrame(0), 0, chunkShape, ChunkedImageStore.Compression.NONE);
+        assertEquals("same content", versions[0], store.getFrameVersion(0));
+        store.write(getFrame(3), 1, chunkShape, ChunkedImageStore.Compression.NONE);
+        assertTrue("modified frame", versions[1]!=store.getFrameVersion(1));
+        assertEquals("other frame of the same chunk", versions[0], store.getFrameVersion(0));
+        versions[1] = store.getFrameVersion(1);
+        store.compact();
+        for (int f = 0; f<4; ++f) assertEquals("version after compaction", versions[f], store.getFrameVersion(f));
+        store.deleteFrame(2);
+        assertEquals("deleted frame", 0, store.getFrameVersion(2));
+        store.close();
+        ChunkedImageStore store2 = new ChunkedImageStore(dir, "c00");
+        for (int f : new int[]{0, 1, 3}) assertEquals("version read from index", versions[f], store2.getFrameVersion(f));
+        assertEquals("deleted frame read from index", 0, store2.getFrameVersion(2));
+        store2.close();
+    }
+}
@@ -0,0 +1,105 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.image;
+
+import bacmman.data_structure.Region;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestImageLabeller {
+
+    // labels by flood fill, in raster order of the first voxel of each component
+    private static int[] floodFill(ImageByte mask, boolean lowConnectivity) {
+        int sX = mask.sizeX(), sXY = mask.sizeXY(), sZ = mask.sizeZ();
+        int[] res = new int[sXY * sZ];
+        int label = 0;
+        for (int i = 0; i<res.length; ++i) {
+            if (res[i]!=0 || !mask.insideMask(i % sXY, i / sXY)) continue;
+            res[i] = ++label;
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            queue.add(i);
+            while (!queue.isEmpty()) {
+                int j = queue.poll();
+                int x = j % sX, y = (j % sXY) / sX, z = j / sXY;
+                for (int dz = -1; dz<=1; ++dz) {
+                    for (int dy = -1; dy<=1; ++dy) {
+                        for (int dx = -1; dx<=1; ++dx) {
+                            if (lowConnectivity && Math.abs(dx)+Math.abs(dy)+Math.abs(dz)!=1) continue;
+                            int nx = x+dx, ny = y+dy, nz = z+dz;
+                            if (!mask.contains(nx, ny, nz)) continue;
+                            int k = nx + ny * sX + nz * sXY;
+                            if (res[k]==0 && mask.insideMask(nx, ny, nz)) {
+                                res[k] = label;
+                                queue.add(k);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    private static void assertSameLabels(ImageByte mask, boolean lowConnectivity) {
+        int[] ref = floodFill(mask, lowConnectivity);
+        ImageInteger labels = ImageLabeller.labelMap(mask, lowConnectivity);
+        for (int i = 0; i<ref.length; ++i) assertEquals("label at: "+i, ref[i], labels.getPixelInt(i % mask.sizeXY(), i / mask.sizeXY()));
+    }
+
+    @Test
+    public void testRandomMasks() {
+        Random r = new Random(1);
+        for (int i = 0; i<20; ++i) {
+            ImageByte mask = new ImageByte("", 1 + r.nextInt(300), 1 + r.nextInt(300), i%2==0 ? 1 : 1 + r.nextInt(10));
+            double p = 0.2 + 0.5 * r.nextDouble();
+            BoundingBox.loop(mask, (x, y, z) -> {if (r.nextDouble()<p) mask.setPixel(x, y, z, 1);});
+            assertSameLabels(mask, false);
+            assertSameLabels(mask, true);
+        }
+    }
+
+    @Test
+    public void testDiagonal3D() {
+        ImageByte mask = new ImageByte("", 3, 3, 2);
+        mask.setPixel(1, 1, 1, 1);
+        mask.setPixel(1, 0, 0, 1); // only connected through neighbor (0, -1, -1)
+        assertEquals("high connectivity", 1, ImageLabeller.labelImage(mask).length);
+        assertEquals("low connectivity", 2, ImageLabeller.labelImageLowConnectivity(mask).length);
+    }
+
+    @Test
+    public void testRegions() {
+        ImageByte mask = new ImageByte("", 10, 5, 1);
+        for (int x = 0; x<4; ++x) mask.setPixel(x, 1, 0, 1); // first voxel after the one of the vertical line in raster order
+        for (int y = 0; y<5; ++y) mask.setPixel(7, y, 0, 1);
+        Region[] regions = ImageLabeller.labelImage(mask);
+        assertEquals("region number", 2, regions.length);
+        assertEquals("first region size", 5, regions[0].size(), 0);
+        assertEquals("second region size", 4, regions[1].size(), 0);
+        assertEquals("label", 2, regions[1].getLabel());
+    }
+}
@@ -0,0 +1,86 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.image;
+
+import bacmman.image.io.ImageFormat;
+import bacmman.image.io.ImageReader;
+import bacmman.image.io.ImageWriter;
+import bacmman.image.io.TIFRawReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestTIFRawReader {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private void testRoundTrip(Image image) {
+        String path = new File(testFolder.getRoot(), image.getName()+".tif").getAbsolutePath();
+        ImageWriter.writeToFile(image, path, ImageFormat.TIF);
+        Image reference = ImageReader.openImage(path);
+        Image raw = TIFRawReader.openImage(path);
+        assertNotNull("raw reader supports image written by BACMMAN", raw);
+        assertEquals("same type", reference.getClass(), raw.getClass());
+        assertTrue("same dimensions", reference.sameDimensions(raw));
+        assertEquals("same calibration XY", reference.getScaleXY(), raw.getScaleXY(), 1e-5);
+        assertEquals("same calibration Z", reference.getScaleZ(), raw.getScaleZ(), 1e-5);
+        assertSameValues(reference, raw);
+        // bounded read, partially outside of image
+        BoundingBox bounds = new SimpleBoundingBox(-1, 3, 1, image.sizeY(), 1, 1);
+        Image refCrop = reference.crop(bounds);
+        Image rawCrop = TIFRawReader.openImage(path, bounds);
+        assertTrue("crop dimensions", refCrop.sameDimensions(rawCrop));
+        assertTrue("crop offset", refCrop.getOffset().sameOffset(rawCrop));
+        assertSameValues(refCrop, rawCrop);
+    }
+    private static void assertSameValues(Image expected, Image actual) {
+        BoundingBox.loop(new SimpleBoundingBox(expected).resetOffset(), (x, y, z) -> assertEquals("value at x="+x+" y="+y+" z="+z, expected.getPixel(x, y, z), actual.getPixel(x, y, z), 0));
+    }
+
+    @Test
+    public void testShort() {
+        ImageShort im = new ImageShort("short", 7, 5, 3);
+        BoundingBox.loop(im, (x, y, z) -> im.setPixel(x, y, z, x + 10 * y + 100 * z));
+        testRoundTrip(im.setCalibration(0.5, 2));
+    }
+
+    @Test
+    public void testFloat() {
+        ImageFloat im = new ImageFloat("float", 6, 4, 2);
+        BoundingBox.loop(im, (x, y, z) -> im.setPixel(x, y, z, x * 0.5 - y + 1000.25 * z));
+        testRoundTrip(im);
+    }
+
+    @Test
+    public void testByte() {
+        ImageByte im = new ImageByte("byte", 5, 5, 1);
+        BoundingBox.loop(im, (x, y, z) -> im.setPixel(x, y, z, x * y));
+        testRoundTrip(im);
+    }
+}
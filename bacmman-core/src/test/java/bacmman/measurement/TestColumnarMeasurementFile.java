@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.measurement;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestColumnarMeasurementFile {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @Test
+    public void testWriteRead() throws IOException {
+        File f = testFolder.newFile("test.bcol");
+        try (ColumnarMeasurementWriter w = new ColumnarMeasurementWriter(f, new String[]{"Position", "Indices", "Size", "Label", "Profile"}, new int[]{-1, -1, 0, 0, 0})) {
+            w.write(new ColumnarMeasurementWriter.RowGroup(2)
+                    .addStrings(new String[]{"pos0", "pos0"})
+                    .addIntLists(new int[][]{{0, 1}, {0, 2}})
+                    .addValues(new Object[]{1.5, 2L})
+                    .addValues(new Object[]{"a", null})
+                    .addValues(new Object[]{new double[]{1, 2}, null}));
+            w.write(new ColumnarMeasurementWriter.RowGroup(1)
+                    .addStrings(new String[]{"pos1"})
+                    .addIntLists(new int[][]{{3, 0}})
+                    .addValues(new Object[]{null})
+                    .addValues(new Object[]{"b"})
+                    .addValues(new Object[]{"c"})); // type differs from previous row group
+        }
+        try (ColumnarMeasurementReader r = new ColumnarMeasurementReader(f)) {
+            assertEquals("row count", 3, r.getRowCount());
+            assertArrayEquals("names", new String[]{"Position", "Indices", "Size", "Label", "Profile"}, r.getColumnNames());
+            assertArrayEquals("object classes", new int[]{-1, -1, 0, 0, 0}, r.getObjectClasses());
+            assertArrayEquals("positions", new String[]{"pos0", "pos0", "pos1"}, (String[])r.readColumn("Position"));
+            assertArrayEquals("indices", new int[][]{{0, 1}, {0, 2}, {3, 0}}, (int[][])r.readColumn(1));
+            assertArrayEquals("size", new double[]{1.5, 2, Double.NaN}, (double[])r.readColumn("Size"), 0);
+            assertArrayEquals("label", new String[]{"a", null, "b"}, (String[])r.readColumn("Label"));
+            assertArrayEquals("mixed types", new String[]{"[1.0, 2.0]", null, "c"}, (String[])r.readColumn("Profile"));
+        }
+    }
+}
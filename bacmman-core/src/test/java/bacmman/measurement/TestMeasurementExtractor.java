@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.measurement;
+
+import bacmman.configuration.experiment.ChannelImage;
+import bacmman.configuration.experiment.Experiment;
+import bacmman.configuration.experiment.Structure;
+import bacmman.data_structure.MasterDAOFactory;
+import bacmman.data_structure.Measurements;
+import bacmman.data_structure.Region;
+import bacmman.data_structure.SegmentedObject;
+import bacmman.data_structure.dao.MasterDAO;
+import bacmman.data_structure.dao.ObjectDAO;
+import bacmman.image.BlankMask;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestMeasurementExtractor {
+    final static int POSITIONS = 6, FRAMES = 2, CELLS = 2, SPOTS = 3;
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private static String position(int p) {
+        return "pos"+p;
+    }
+
+    private static int length(int p, int f, int c) {
+        return 100 * p + 10 * f + c;
+    }
+
+    private static int intensity(int p, int f, int c, int s) {
+        return 1000 * p + 100 * f + 10 * c + s;
+    }
+
+    // the last cell of the last frame has no Length measurement
+    private static boolean hasLength(int f, int c) {
+        return f!=FRAMES-1 || c!=CELLS-1;
+    }
+
+    /**
+     * Each position contains, in each frame, cells with a Length measurement, each containing spots with an Intensity measurement
+     */
+    private MasterDAO generateDB() throws IOException {
+        MasterDAO db = MasterDAOFactory.createDAO("testdb", testFolder.newFolder().getAbsolutePath(), MasterDAOFactory.DAOType.DBMap);
+        db.setConfigurationReadOnly(false);
+        Experiment xp = new Experiment("test");
+        xp.setImportImageMethod(Experiment.IMPORT_METHOD.SINGLE_FILE);
+        xp.setOutputDirectory(testFolder.newFolder().getAbsolutePath());
+        xp.getChannelImages().insert(new ChannelImage("channel"));
+        xp.getStructures().removeAllElements();
+        xp.getStructures().insert(new Structure("cells", -1, 0), new Structure("spots", 0, 0));
+        String[] positions = new String[POSITIONS];
+        for (int p = 0; p<POSITIONS; ++p) {
+            positions[p] = position(p);
+            xp.createPosition(positions[p]);
+        }
+        db.setExperiment(xp);
+        db.lockPositions(positions);
+        for (int p = 0; p<POSITIONS; ++p) {
+            ObjectDAO dao = db.getDao(positions[p]);
+            List<SegmentedObject> objects = new ArrayList<>();
+            for (int f = 0; f<FRAMES; ++f) {
+                SegmentedObject root = db.getAccess().createRoot(f, new BlankMask(10 * CELLS, 10, 1, 0, 0, 0, 1, 1), dao);
+                List<SegmentedObject> cells = new ArrayList<>();
+                for (int c = 0; c<CELLS; ++c) {
+                    SegmentedObject cell = new SegmentedObject(f, 0, c, new Region(new BlankMask(8, 8, 1, 10 * c, 0, 0, 1, 1), c+1, true), root);
+                    if (hasLength(f, c)) cell.getMeasurements().setValue("Length", length(p, f, c));
+                    List<SegmentedObject> spots = new ArrayList<>();
+                    for (int s = 0; s<SPOTS; ++s) {
+                        SegmentedObject spot = new SegmentedObject(f, 1, s, new Region(new BlankMask(2, 2, 1, 10 * c + 2 * s, 0, 0, 1, 1), s+1, true), cell);
+                        spot.getMeasurements().setValue("Intensity", intensity(p, f, c, s));
+                        spots.add(spot);
+                    }
+                    db.getAccess().setChildren(cell, spots, 1);
+                    cells.add(cell);
+                }
+                db.getAccess().setChildren(root, cells, 0);
+                objects.add(root);
+                objects.addAll(cells);
+                cells.forEach(c -> objects.addAll(c.getChildren(1).collect(Collectors.toList())));
+            }
+            dao.store(objects);
+            dao.upsertMeasurements(objects);
+        }
+        return db;
+    }
+
+    private static Map<Integer, String[]> measurements() {
+        Map<Integer, String[]> res = new HashMap<>();
+        res.put(0, new String[]{"Length"});
+        res.put(1, new String[]{"Intensity"});
+        return res;
+    }
+
+    // positions are not exported in their natural order
+    private static List<String> exportOrder() {
+        List<String> res = new ArrayList<>();
+        for (int p = POSITIONS-1; p>=0; p-=2) res.add(position(p));
+        for (int p = 0; p<POSITIONS; p+=2) res.add(position(p));
+        return res;
+    }
+
+    @Test
+    public void testCSV() throws IOException {
+        MasterDAO db = generateDB();
+        File out = new File(testFolder.newFolder(), "export.csv");
+        List<String> order = exportOrder();
+        MeasurementExtractor.extractMeasurementObjects(db, out.getAbsolutePath(), order, measurements(), MeasurementExtractor.ExportFormat.CSV);
+        List<String> lines = Files.readAllLines(out.toPath());
+        assertEquals("header", "Position;PositionIdx;Indices;Frame;Idx;Time;Length;Intensity", lines.get(0));
+        assertEquals("line count", 1 + POSITIONS * FRAMES * CELLS * SPOTS, lines.size());
+        int l = 1;
+        for (String position : order) {
+            int p = Integer.parseInt(position.substring(3));
+            for (int f = 0; f<FRAMES; ++f) for (int c = 0; c<CELLS; ++c) for (int s = 0; s<SPOTS; ++s) {
+                String[] line = lines.get(l++).split(";");
+                assertEquals("position order", position, line[0]);
+                assertEquals("indices", f+"-"+c+"-"+s, line[2]);
+                String length = hasLength(f, c) ? MeasurementExtractor.numberFormater.apply(length(p, f, c)) : Measurements.NA_STRING;
+                assertEquals("parent measurement of: "+position+" "+line[2], length, line[6]);
+                assertEquals("measurement of: "+position+" "+line[2], MeasurementExtractor.numberFormater.apply(intensity(p, f, c, s)), line[7]);
+            }
+        }
+    }
+
+    @Test
+    public void testColumnar() throws IOException {
+        MasterDAO db = generateDB();
+        File out = new File(testFolder.newFolder(), "export.bcol");
+        List<String> order = exportOrder();
+        MeasurementExtractor.extractMeasurementObjects(db, out.getAbsolutePath(), order, measurements(), MeasurementExtractor.ExportFormat.COLUMNAR);
+        try (ColumnarMeasurementReader r = new ColumnarMeasurementReader(out)) {
+            int n = POSITIONS * FRAMES * CELLS * SPOTS;
+            assertEquals("row count", n, r.getRowCount());
+            String[] positions = (String[])r.readColumn("Position");
+            double[] lengths = (double[])r.readColumn("Length");
+            double[] intensities = (double[])r.readColumn("Intensity");
+            int i = 0;
+            for (String position : order) {
+                int p = Integer.parseInt(position.substring(3));
+                for (int f = 0; f<FRAMES; ++f) for (int c = 0; c<CELLS; ++c) for (int s = 0; s<SPOTS; ++s) {
+                    assertEquals("position order", position, positions[i]);
+                    assertEquals("parent measurement", hasLength(f, c) ? length(p, f, c) : Double.NaN, lengths[i], 0);
+                    assertEquals("measurement", intensity(p, f, c, s), intensities[i], 0);
+                    ++i;
+                }
+            }
+        }
+    }
+}
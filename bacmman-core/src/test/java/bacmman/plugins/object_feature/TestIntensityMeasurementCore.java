@@ -0,0 +1,98 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.plugins.object_feature;
+
+import bacmman.data_structure.Region;
+import bacmman.image.Image;
+import bacmman.image.ImageByte;
+import bacmman.image.ImageFloat;
+import bacmman.image.ImageShort;
+import bacmman.measurement.BasicMeasurements;
+import bacmman.utils.DoubleStatistics;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestIntensityMeasurementCore {
+    static final double[] QUANTILES = new double[]{0, 0.1, 0.25, 0.5, 0.63, 0.9, 1};
+
+    private static Region createRegion(int sizeX, int sizeY, int xMin, int xMax, int yMin, int yMax) {
+        ImageByte mask = new ImageByte("mask", sizeX, sizeY, 1);
+        for (int y = yMin; y<=yMax; ++y) for (int x = xMin; x<=xMax; ++x) mask.setPixel(x, y, 0, 1);
+        return new Region(mask, 1, true);
+    }
+
+    private static void fill(Image image, double maxValue, Random random) {
+        for (int y = 0; y<image.sizeY(); ++y) for (int x = 0; x<image.sizeX(); ++x) image.setPixel(x, y, 0, image instanceof ImageFloat ? random.nextDouble() * maxValue : random.nextInt((int)maxValue + 1));
+    }
+
+    /**
+     * Compares statistics computed by the core in a single pass with the statistics computed separately for each feature
+     */
+    private static void assertSameAsPerFeature(Image image, Region... regions) {
+        IntensityMeasurementCore core = new IntensityMeasurementCore();
+        core.setUp(image, null);
+        core.storeSortedValues();
+        IntensityMeasurementCore lazyCore = new IntensityMeasurementCore(); // quantile data computed at first call
+        lazyCore.setUp(image, null);
+        String type = image.getClass().getSimpleName();
+        for (Region r : regions) {
+            DoubleStatistics stats = DoubleStatistics.getStats(image.stream(r.getMask(), r.isAbsoluteLandMark()));
+            for (IntensityMeasurementCore c : new IntensityMeasurementCore[]{core, lazyCore}) {
+                IntensityMeasurementCore.IntensityMeasurements m = c.getIntensityMeasurements(r);
+                assertEquals(type+" mean", stats.getAverage(), m.mean, 0);
+                assertEquals(type+" sd", stats.getStandardDeviation(), m.sd, 0);
+                assertEquals(type+" min", stats.getMin(), m.min, 0);
+                assertEquals(type+" max", stats.getMax(), m.max, 0);
+                assertEquals(type+" size", r.size(), m.count, 0);
+                for (double q : QUANTILES) assertEquals(type+" quantile: "+q, BasicMeasurements.getQuantileValue(r, image, q)[0], m.getQuantile(q), 1e-9);
+                assertEquals(type+" median", BasicMeasurements.getQuantileValue(r, image, 0.5)[0], m.getMedian(), 1e-9);
+                c.releaseValues(r);
+                assertNull(type+" histogram released", m.histogram);
+                assertNull(type+" values released", m.sortedValues);
+                assertEquals(type+" quantile after release", BasicMeasurements.getQuantileValue(r, image, 0.25)[0], m.getQuantile(0.25), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testSinglePassStatistics() {
+        Random random = new Random(42);
+        Region[] regions = new Region[]{createRegion(20, 15, 2, 9, 1, 6), createRegion(20, 15, 11, 11, 3, 3), createRegion(20, 15, 0, 19, 8, 14)};
+        Image[] images = new Image[]{new ImageByte("byte", 20, 15, 1), new ImageShort("short", 20, 15, 1), new ImageFloat("float", 20, 15, 1)};
+        double[] maxValues = new double[]{255, 4000, 100};
+        for (int i = 0; i<images.length; ++i) {
+            fill(images[i], maxValues[i], random);
+            assertSameAsPerFeature(images[i], regions);
+        }
+        // histogram is used for integer images, sorted values otherwise
+        IntensityMeasurementCore core = new IntensityMeasurementCore();
+        core.setUp(images[1], null);
+        core.storeSortedValues();
+        assertNotNull("histogram for 16-bit image", core.getIntensityMeasurements(regions[0]).histogram);
+        assertNull("no sorted values for 16-bit image", core.getIntensityMeasurements(regions[0]).sortedValues);
+        assertEquals("histogram range", (int)(core.getIntensityMeasurements(regions[0]).max - core.getIntensityMeasurements(regions[0]).min) + 1, core.getIntensityMeasurements(regions[0]).histogram.length);
+    }
+}
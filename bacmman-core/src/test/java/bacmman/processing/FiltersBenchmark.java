@@ -0,0 +1,78 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.processing;
+
+import bacmman.image.Image;
+import bacmman.image.ImageFloat;
+import bacmman.image.ImageShort;
+import bacmman.processing.neighborhood.EllipsoidalNeighborhood;
+import bacmman.processing.neighborhood.Neighborhood;
+import bacmman.test_utils.TestUtils;
+
+import java.util.Arrays;
+import java.util.function.BiFunction;
+
+import static bacmman.test_utils.TestUtils.logger;
+
+/**
+ * Compares sequential and parallel execution times of {@link Filters} on 2D and 3D images. Run with: java bacmman.processing.FiltersBenchmark
+ * @author Jean Ollion
+ */
+public class FiltersBenchmark {
+    static final int WARMUP = 3, RUNS = 7;
+
+    public static void main(String[] args) {
+        Image image2D = TestUtils.generateRandomImage(1024, 1024, 1, new ImageShort("", 0, 0, 0));
+        Image image3D = TestUtils.generateRandomImage(256, 256, 32, new ImageShort("", 0, 0, 0));
+        Image image2DFloat = TestUtils.generateRandomImage(1024, 1024, 1, new ImageFloat("", 0, 0, 0));
+        Image image3DFloat = TestUtils.generateRandomImage(256, 256, 32, new ImageFloat("", 0, 0, 0));
+        Neighborhood n2D = new EllipsoidalNeighborhood(3, false);
+        Neighborhood n3D = new EllipsoidalNeighborhood(3, 2, false);
+        for (Image image : new Image[]{image2D, image3D}) {
+            Neighborhood n = image.sizeZ()>1 ? n3D : n2D;
+            String dim = image.sizeZ()>1 ? "3D" : "2D";
+            benchmark("Mean "+dim, (im, p) -> Filters.mean(im, new ImageFloat("", 0, 0, 0), n, p), image);
+            benchmark("Sigma "+dim, (im, p) -> Filters.sigma(im, new ImageFloat("", 0, 0, 0), n, p), image);
+            Image imageFloat = image.sizeZ()>1 ? image3DFloat : image2DFloat; // median of integer images is computed by RankFilters, not by applyFilter
+            benchmark("Median "+dim, (im, p) -> Filters.median(im, new ImageFloat("", 0, 0, 0), n, p), imageFloat);
+            benchmark("LocalMax "+dim, (im, p) -> Filters.applyFilter(im, new ImageFloat("", 0, 0, 0), new Filters.LocalMax(null), n, p), image);
+        }
+    }
+
+    private static void benchmark(String name, BiFunction<Image, Boolean, Image> filter, Image image) {
+        double seq = time(filter, image, false);
+        double par = time(filter, image, true);
+        logger.info("{}: sequential: {}ms parallel: {}ms speed-up: {}", name, seq, par, String.format("%.2f", seq/par));
+    }
+
+    /**
+     * @return median execution time in ms
+     */
+    private static double time(BiFunction<Image, Boolean, Image> filter, Image image, boolean parallele) {
+        for (int i = 0; i<WARMUP; ++i) filter.apply(image, parallele);
+        double[] times = new double[RUNS];
+        for (int i = 0; i<RUNS; ++i) {
+            long t0 = System.nanoTime();
+            filter.apply(image, parallele);
+            times[i] = (System.nanoTime() - t0) / 1e6;
+        }
+        Arrays.sort(times);
+        return times[RUNS/2];
+    }
+}
@@ -22,6 +22,7 @@ import bacmman.test_utils.TestUtils;
 import static bacmman.test_utils.TestUtils.logger;
 import ij.ImagePlus;
 import ij.Prefs;
+import bacmman.image.BoundingBox;
 import bacmman.image.MutableBoundingBox;
 import bacmman.image.wrappers.IJImageWrapper;
 import bacmman.image.Image;
@@ -34,6 +35,10 @@ import org.junit.Test;
 import bacmman.processing.neighborhood.EllipsoidalNeighborhood;
 import bacmman.processing.neighborhood.Neighborhood;
 
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
 /**
  *
  * @author Jean Ollion
@@ -126,4 +131,45 @@ public class TestFilters {
         res = Filters.median(test, test, n, false);
         TestUtils.assertImage(resIJ, res, 0);
     }
+
+    @Test
+    public void testRankFilters() {
+        for (Neighborhood n : new Neighborhood[]{new EllipsoidalNeighborhood(4.5, false), new EllipsoidalNeighborhood(3, 2, false)}) {
+            for (Image test : new Image[]{TestUtils.generateRandomImage(30, 25, 6, new ImageByte("", 0, 0, 0)), TestUtils.generateRandomImage(30, 25, 6, new ImageShort("", 0, 0, 0)), TestUtils.generateRandomImage(30, 25, 6, new ImageFloat("", 0, 0, 0))}) {
+                ImageFloat min = new ImageFloat("min", test), max = new ImageFloat("max", test), median = new ImageFloat("median", test);
+                BoundingBox.loop(test, (x, y, z) -> {
+                    min.setPixel(x, y, z, n.getMin(x, y, z, test));
+                    max.setPixel(x, y, z, n.getMax(x, y, z, test));
+                    n.setPixels(x, y, z, test, null);
+                    float[] values = Arrays.copyOf(n.getPixelValues(), n.getValueCount());
+                    Arrays.sort(values);
+                    median.setPixel(x, y, z, values.length%2==0 ? (values[values.length/2-1]+values[values.length/2])/2f : values[values.length/2]);
+                });
+                TestUtils.assertImage("min", min, Filters.min(test, new ImageFloat("", 0, 0, 0), n, false), 0);
+                TestUtils.assertImage("max", max, Filters.max(test, new ImageFloat("", 0, 0, 0), n, true), 0);
+                TestUtils.assertImage("median", median, Filters.median(test, new ImageFloat("", 0, 0, 0), n, false), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testRankFiltersIgnoreDzOf2DNeighborhood() {
+        EllipsoidalNeighborhood n = new EllipsoidalNeighborhood(2, false);
+        assertTrue("2D neighborhood", RankFilters.isSupported(n));
+        n.dz[n.dz.length-1] = 1; // ignored by voxel-wise filters
+        assertFalse("2D neighborhood with displacement along Z", RankFilters.isSupported(n));
+    }
+
+    @Test
+    public void testParallelApplyFilter() {
+        for (Neighborhood n : new Neighborhood[]{new EllipsoidalNeighborhood(2.5, false), new EllipsoidalNeighborhood(2, 1.5, false)}) {
+            Image test = TestUtils.generateRandomImage(40, 35, 7, new ImageFloat("", 0, 0, 0));
+            for (Filters.Filter filter : new Filters.Filter[]{new Filters.Mean(), new Filters.Sigma(), new Filters.Median(), new Filters.LocalMax(null)}) {
+                String name = filter.getClass().getSimpleName();
+                ImageFloat seq = Filters.applyFilter(test, new ImageFloat("", 0, 0, 0), filter.duplicate(), n, false);
+                ImageFloat par = Filters.applyFilter(test, new ImageFloat("", 0, 0, 0), filter.duplicate(), n, true);
+                TestUtils.assertImage(name, seq, par, 0);
+            }
+        }
+    }
 }
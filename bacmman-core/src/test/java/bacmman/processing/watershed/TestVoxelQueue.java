@@ -0,0 +1,76 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.processing.watershed;
+
+import bacmman.data_structure.Voxel;
+import bacmman.image.Image;
+import bacmman.image.ImageByte;
+import bacmman.image.ImageFloat;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestVoxelQueue {
+
+    private static void assertSameOrderAsTreeSet(Image map, boolean decreasing) {
+        Random r = new Random(1);
+        VoxelQueue queue = VoxelQueue.create(decreasing, map);
+        TreeSet<Voxel> reference = new TreeSet<>(decreasing ? Voxel.getInvertedComparator() : Voxel.getComparator());
+        for (int step = 0; step<10000; ++step) {
+            if (r.nextInt(3)>0 || reference.isEmpty()) {
+                Voxel v = new Voxel(r.nextInt(map.sizeX()), r.nextInt(map.sizeY()), r.nextInt(map.sizeZ()), r.nextInt(50));
+                if (reference.add(v)) queue.push(v.x, v.y, v.z, v.value);
+            } else {
+                Voxel expected = reference.pollFirst();
+                Voxel polled = queue.poll();
+                assertEquals("voxel", expected, polled);
+                assertEquals("value", expected.value, polled.value, 0);
+            }
+            assertEquals("size", reference.size(), queue.size());
+        }
+        int count = 0;
+        for (Voxel v : queue) if (reference.contains(v)) ++count;
+        assertEquals("iterator", reference.size(), count);
+        queue.clear();
+        assertTrue("cleared", queue.isEmpty());
+    }
+
+    @Test
+    public void testBinaryHeap() {
+        Image map = new ImageFloat("", 20, 15, 4);
+        assertTrue(VoxelQueue.create(false, map) instanceof VoxelQueue.BinaryHeap);
+        assertSameOrderAsTreeSet(map, false);
+        assertSameOrderAsTreeSet(map, true);
+    }
+
+    @Test
+    public void testBucketQueue() {
+        Image map = new ImageByte("", 20, 15, 4);
+        assertTrue(VoxelQueue.create(false, map) instanceof VoxelQueue.BucketQueue);
+        assertSameOrderAsTreeSet(map, false);
+        assertSameOrderAsTreeSet(map, true);
+    }
+}
@@ -0,0 +1,90 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapdb.DB;
+import org.mapdb.HTreeMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author Jean Ollion
+ */
+public class TestDBMapUtils {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private static Map<String, Object> readAll(String path) {
+        Map<String, Object> res = new HashMap<>();
+        DB db = DBMapUtils.createFileDB(path, true);
+        for (Map.Entry<String, String> e : DBMapUtils.getEntrySet(DBMapUtils.createHTreeMap(db, "objects"))) res.put("o"+e.getKey(), e.getValue());
+        for (Map.Entry<String, byte[]> e : DBMapUtils.getEntrySet(DBMapUtils.createBinaryHTreeMap(db, "measurements"))) res.put("m"+e.getKey(), new String(e.getValue()));
+        db.close();
+        return res;
+    }
+
+    private static String value(int i, int version) {
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j<50; ++j) sb.append(i).append('-').append(version).append(';');
+        return sb.toString();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        String path = new File(testFolder.getRoot(), "objects_0.db").getAbsolutePath();
+        // fragment the file: entries are overwritten, and half of them are removed
+        DB db = DBMapUtils.createFileDB(path, false);
+        HTreeMap<String, String> objects = DBMapUtils.createHTreeMap(db, "objects");
+        HTreeMap<String, byte[]> measurements = DBMapUtils.createBinaryHTreeMap(db, "measurements");
+        for (int version = 0; version<5; ++version) {
+            for (int i = 0; i<1000; ++i) {
+                objects.put(String.valueOf(i), value(i, version));
+                measurements.put(String.valueOf(i), value(i, -version).getBytes());
+            }
+            db.commit();
+        }
+        for (int i = 0; i<1000; i+=2) objects.remove(String.valueOf(i));
+        db.commit();
+        db.close();
+        assertFalse("no write-ahead log", DBMapUtils.hasWAL(path));
+        Map<String, Object> contents = readAll(path);
+        assertEquals("number of entries", 1500, contents.size());
+        long size = new File(path).length();
+        long live = DBMapUtils.getLiveBytes(path);
+        assertTrue("live bytes", live>0 && live<size);
+
+        long reclaimed = DBMapUtils.compact(path);
+        assertTrue("reclaimed bytes", reclaimed>0);
+        assertEquals("file size", size - reclaimed, new File(path).length());
+        assertFalse("copy removed", new File(path+".compact").exists());
+        assertEquals("same contents", contents, readAll(path));
+        assertEquals("same live bytes", live, DBMapUtils.getLiveBytes(path));
+    }
+}
@@ -0,0 +1,77 @@
+/* 
+ * Copyright (C) 2018 Jean Ollion
+ *
+ * This File is part of BACMMAN
+ *
+ * BACMMAN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BACMMAN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with BACMMAN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bacmman.utils;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Extraction of entries from a serialized JSON object without parsing it, used for lazy region decoding and to build object indexes
+ * @author Jean Ollion
+ */
+public class TestJSONUtils {
+
+    private static void assertExtracted(String json, String key, String expectedRest, String expectedValue) {
+        Pair<String, String> res = JSONUtils.extractEntry(json, key);
+        assertEquals("remaining entries of: "+json, JSONUtils.parse(expectedRest), JSONUtils.parse(res.key));
+        if (expectedValue==null) assertNull("value of: "+json, res.value);
+        else {
+            assertEquals("serialized value of: "+json, expectedValue, res.value);
+            JSONObject whole = JSONUtils.parse(json);
+            assertEquals("parsed value of: "+json, whole.get(key), JSONUtils.parse("{\"v\":"+res.value+"}").get("v"));
+        }
+    }
+
+    @Test
+    public void testExtractEntry() {
+        // position of the entry
+        assertExtracted("{\"a\":1,\"object\":{\"x\":[1,2]},\"b\":2}", "object", "{\"a\":1,\"b\":2}", "{\"x\":[1,2]}");
+        assertExtracted("{\"a\":1,\"object\":{\"x\":[1,2]}}", "object", "{\"a\":1}", "{\"x\":[1,2]}");
+        assertExtracted("{\"object\":{\"x\":[1,2]},\"a\":1}", "object", "{\"a\":1}", "{\"x\":[1,2]}");
+        assertExtracted("{\"object\":[1,2]}", "object", "{}", "[1,2]");
+        // whitespaces
+        assertExtracted("{ \"a\" : 1 , \"object\" : { \"x\" : 3 } }", "object", "{\"a\":1}", "{ \"x\" : 3 }");
+        // key within nested objects and string values are ignored
+        assertExtracted("{\"a\":{\"object\":1},\"b\":\"object\",\"c\":[\"object\"],\"object\":{\"y\":\"object\"}}", "object", "{\"a\":{\"object\":1},\"b\":\"object\",\"c\":[\"object\"]}", "{\"y\":\"object\"}");
+        // brackets and escaped quotes within strings
+        assertExtracted("{\"a\":\"}{,\\\"][\",\"object\":{\"s\":\"\\\"},{\"},\"b\":2}", "object", "{\"a\":\"}{,\\\"][\",\"b\":2}", "{\"s\":\"\\\"},{\"}");
+        // missing entry
+        assertExtracted("{\"a\":1,\"objects\":[1]}", "object", "{\"a\":1,\"objects\":[1]}", null);
+    }
+
+    @Test
+    public void testExtractScalarEntries() {
+        Set<String> keys = new HashSet<>(Arrays.asList("id", "frame", "thId", "isTh"));
+        String json = "{\"attributes\":{\"id\":\"x\",\"frame\":[1]},\"id\":\"a\\\"b\", \"frame\" : 12 ,\"object\":{\"isTh\":false},\"isTh\":true}";
+        Map<String, String> res = JSONUtils.extractScalarEntries(json, keys);
+        assertEquals("number of entries", 3, res.size());
+        assertEquals("escaped string", "a\"b", res.get("id"));
+        assertEquals("number", "12", res.get("frame"));
+        assertEquals("last entry", "true", res.get("isTh"));
+        assertNull("missing entry", res.get("thId"));
+        assertEquals("nested objects are not read", "1", JSONUtils.extractScalarEntries("{\"o\":{\"frame\":2},\"frame\":1}", keys).get("frame"));
+    }
+}
@@ -62,7 +62,9 @@ import bacmman.core.PythonGateway;
 import bacmman.core.Task;
 import bacmman.data_structure.Processor.MEASUREMENT_MODE;
 import bacmman.data_structure.dao.ImageDAO;
+import bacmman.data_structure.dao.DBCompactionService;
 import bacmman.data_structure.dao.DBMapMasterDAO;
+import bacmman.data_structure.dao.DBMapObjectDAO;
 import bacmman.data_structure.dao.MasterDAO;
 import bacmman.data_structure.MasterDAOFactory;
 import bacmman.data_structure.dao.ObjectDAO;
@@ -326,18 +328,19 @@ public class GUI extends javax.swing.JFrame implements ImageObjectListener, Prog
         ButtonGroup dbGroup = new ButtonGroup();
         dbGroup.add(localFileSystemDatabaseRadioButton);
         String dbType = PropertyUtils.get(PropertyUtils.DATABASE_TYPE, MasterDAOFactory.DAOType.DBMap.toString());
-        if (dbType.equals(MasterDAOFactory.DAOType.DBMap.toString())) {
+        if (dbType.equals(MasterDAOFactory.DAOType.DBMap.toString()) || dbType.equals(MasterDAOFactory.DAOType.Binary.toString())) {
             currentDBPrefix="";
             localFileSystemDatabaseRadioButton.setSelected(true);
             String path = PropertyUtils.get(PropertyUtils.LOCAL_DATA_PATH);
             if (path!=null) workingDirectory.setText(path);
-            MasterDAOFactory.setCurrentType(MasterDAOFactory.DAOType.DBMap);
+            MasterDAOFactory.setCurrentType(MasterDAOFactory.DAOType.valueOf(dbType));
             localDBMenu.setEnabled(true);
         }
         ButtonGroup measurementMode = new ButtonGroup();
         measurementMode.add(measurementModeDeleteRadioButton);
         measurementMode.add(measurementModeOverwriteRadioButton);
         measurementMode.add(measurementModeOnlyNewRadioButton);
+        measurementMode.add(measurementModeIncrementalRadioButton);
         PropertyUtils.setPersistant(measurementMode, "measurement_mode", 0);
         
         // import / export options
@@ -939,6 +942,10 @@ public class GUI extends javax.swing.JFrame implements ImageObjectListener, Prog
             return;
         }
         if (!readOnly) { // locks all positions
+            if (db instanceof DBMapMasterDAO) {
+                if (PropertyUtils.get(PropertyUtils.WRITE_BEHIND, false)) ((DBMapMasterDAO)db).setWriteBehind(DBMapObjectDAO.DEFAULT_WRITE_BEHIND_SIZE, DBMapObjectDAO.DEFAULT_WRITE_BEHIND_INTERVAL); // batches commits of manual edition. off by default: buffered edits are lost in case of crash
+                ((DBMapMasterDAO)db).getCompactionService().start(DBCompactionService.DEFAULT_INTERVAL);
+            }
             db.lockPositions();
             for (String p : db.getExperiment().getPositionsAsString()) if (db.getDao(p).isReadOnly()) setMessage("Position: "+p+" could not be locked. it may be used by another process. All changes on segmented objects of this position won't be saved");
         }
@@ -1036,6 +1043,7 @@ public class GUI extends javax.swing.JFrame implements ImageObjectListener, Prog
         this.trackSubPanel.removeAll(); // this must be called before releasing locks because this methods somehow calls db.getExperiment() and thus re-lock(toString method)
         String xp = db!=null ? db.getDBName() : null;
         if (db!=null) {
+            if (db instanceof DBMapMasterDAO) ((DBMapMasterDAO)db).getCompactionService().stop();
             db.unlockPositions();
             db.unlockConfiguration();
             db.clearCache();
@@ -1484,6 +1492,7 @@ public class GUI extends javax.swing.JFrame implements ImageObjectListener, Prog
         measurementModeDeleteRadioButton = new javax.swing.JRadioButtonMenuItem();
         measurementModeOverwriteRadioButton = new javax.swing.JRadioButtonMenuItem();
         measurementModeOnlyNewRadioButton = new javax.swing.JRadioButtonMenuItem();
+        measurementModeIncrementalRadioButton = new javax.swing.JRadioButtonMenuItem();
         dataBaseMenu = new javax.swing.JMenu();
         localFileSystemDatabaseRadioButton = new javax.swing.JRadioButtonMenuItem();
         localDBMenu = new javax.swing.JMenu();
@@ -2429,6 +2438,11 @@ public class GUI extends javax.swing.JFrame implements ImageObjectListener, Prog
         measurementModeOnlyNewRadioButton.setText("Perform only new measurements");
         jMenu2.add(measurementModeOnlyNewRadioButton);
 
+        measurementModeIncrementalRadioButton.setSelected(true);
+        measurementModeIncrementalRadioButton.setText("Perform measurements only on modified objects");
+        measurementModeIncrementalRadioButton.setToolTipText("Measurements are performed only on objects whose segmentation, tracking, neighbors, images or measurement parameters changed since the last run, or with missing values");
+        jMenu2.add(measurementModeIncrementalRadioButton);
+
         optionMenu.add(jMenu2);
 
         dataBaseMenu.setText("Database Type");
@@ -3022,7 +3036,7 @@ public class GUI extends javax.swing.JFrame implements ImageObjectListener, Prog
         }
         else {
             String adress = null;
-            if (MasterDAOFactory.getCurrentType().equals(MasterDAOFactory.DAOType.DBMap)) { // create directory
+            if (!MasterDAOFactory.getCurrentType().equals(MasterDAOFactory.DAOType.Basic)) { // create directory
                 File dir = new File(workingDirectory.getText());
                 adress = createSubdir(dir.getAbsolutePath(), name);
                 logger.debug("new dataset dir: {}", adress);
@@ -3034,7 +3048,7 @@ public class GUI extends javax.swing.JFrame implements ImageObjectListener, Prog
                 return false;
             }
             Experiment xp2 = new Experiment(name);
-            if (MasterDAOFactory.getCurrentType().equals(MasterDAOFactory.DAOType.DBMap)) xp2.setOutputDirectory(Paths.get(adress,"Output").toString());
+            if (!MasterDAOFactory.getCurrentType().equals(MasterDAOFactory.DAOType.Basic)) xp2.setOutputDirectory(Paths.get(adress,"Output").toString());
             db2.setExperiment(xp2);
             db2.updateExperiment();
             db2.unlockConfiguration();
@@ -3069,7 +3083,7 @@ public class GUI extends javax.swing.JFrame implements ImageObjectListener, Prog
             closeExperiment();
             MasterDAO db1 = MasterDAOFactory.createDAO(getSelectedExperiment(), getCurrentHostNameOrDir());
             String adress = null;
-            if (MasterDAOFactory.getCurrentType().equals(MasterDAOFactory.DAOType.DBMap)) { // create directory
+            if (!MasterDAOFactory.getCurrentType().equals(MasterDAOFactory.DAOType.Basic)) { // create directory
                 File dir = new File(getCurrentHostNameOrDir()).getParentFile();
                 adress = createSubdir(dir.getAbsolutePath(), name);
                 logger.debug("duplicate dataset dir: {}", adress);
@@ -3396,7 +3410,7 @@ public class GUI extends javax.swing.JFrame implements ImageObjectListener, Prog
             t.getDB().clearCache(); 
         } else return null;
         t.setActions(preProcess, segmentAndTrack, segmentAndTrack || trackOnly, runMeasurements).setGenerateTrackImages(generateTrackImages);
-        t.setMeasurementMode(this.measurementModeDeleteRadioButton.isSelected() ? MEASUREMENT_MODE.ERASE_ALL : (this.measurementModeOverwriteRadioButton.isSelected() ? MEASUREMENT_MODE.OVERWRITE : MEASUREMENT_MODE.ONLY_NEW));
+        t.setMeasurementMode(this.measurementModeDeleteRadioButton.isSelected() ? MEASUREMENT_MODE.ERASE_ALL : (this.measurementModeOverwriteRadioButton.isSelected() ? MEASUREMENT_MODE.OVERWRITE : (this.measurementModeOnlyNewRadioButton.isSelected() ? MEASUREMENT_MODE.ONLY_NEW : MEASUREMENT_MODE.INCREMENTAL)));
         if (export) t.setExportData(this.exportPPImagesMenuItem.isSelected(), this.exportTrackImagesMenuItem.isSelected(), this.exportObjectsMenuItem.isSelected(), this.exportConfigMenuItem.isSelected(), this.exportSelectionsMenuItem.isSelected());
         
         return t;
@@ -4738,6 +4752,7 @@ public class GUI extends javax.swing.JFrame implements ImageObjectListener, Prog
     private javax.swing.JMenuBar mainMenu;
     private javax.swing.JButton manualSegmentButton;
     private javax.swing.JRadioButtonMenuItem measurementModeDeleteRadioButton;
+    private javax.swing.JRadioButtonMenuItem measurementModeIncrementalRadioButton;
     private javax.swing.JRadioButtonMenuItem measurementModeOnlyNewRadioButton;
     private javax.swing.JRadioButtonMenuItem measurementModeOverwriteRadioButton;
     private javax.swing.JButton mergeObjectsButton;
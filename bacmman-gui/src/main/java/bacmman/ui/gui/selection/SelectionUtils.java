@@ -41,7 +41,6 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -95,38 +94,25 @@ public class SelectionUtils {
         if (selections.isEmpty()) return new Selection();
         Selection model = selections.iterator().next();
         selections.removeIf(s->s.getStructureIdx()!=model.getStructureIdx());
-        HashMapGetCreate<String, Set<String>> elByPos = new HashMapGetCreate(new HashMapGetCreate.SetFactory());
-        for (Selection sel : selections) {
-            for (String pos : sel.getAllPositions()) elByPos.getAndCreateIfNecessary(pos).addAll(sel.getElementStrings(pos));
-        }
         Selection res = new Selection(name,model.getStructureIdx(), model.getMasterDAO()); //"union:"+Utils.toStringList(selections, s->s.getName())
-        for (Entry<String, Set<String>> e : elByPos.entrySet()) res.addElements(e.getKey(), e.getValue());
+        for (Selection sel : selections) res.addAll(sel);
         return res;
     }
     public static Selection intersection(String name, Collection<Selection> selections) {
         if (selections.isEmpty()) return new Selection();
         Selection model = selections.iterator().next();
         selections.removeIf(s->s.getStructureIdx()!=model.getStructureIdx());
-        Set<String> allPos = new HashSet<>();
-        allPos.addAll(model.getAllPositions());
-        for (Selection s : selections) allPos.retainAll(s.getAllPositions());
-        HashMapGetCreate<String, Set<String>> elByPos = new HashMapGetCreate(new HashMapGetCreate.SetFactory());
-        for (String p : allPos) elByPos.put(p, new HashSet<>(model.getElementStrings(p)));
+        Selection res = new Selection(name,model.getStructureIdx(), model.getMasterDAO()); //"intersection:"+Utils.toStringList(selections, s->s.getName())
+        res.addAll(model);
         for (Selection s : selections) {
             if (s.equals(model)) continue;
-            for (String p : allPos) elByPos.get(p).retainAll(s.getElementStrings(p));
+            res.retainAll(s);
         }
-        Selection res = new Selection(name,model.getStructureIdx(), model.getMasterDAO()); //"intersection:"+Utils.toStringList(selections, s->s.getName())
-        for (Entry<String, Set<String>> e : elByPos.entrySet()) res.addElements(e.getKey(), e.getValue());
         return res;
     }
     public static void removeAll(Selection sel, Selection... selections) {
         if (sel.getStructureIdx()==-2) return;
-        for (String pos:new ArrayList<>(sel.getAllPositions())) {
-            Arrays.stream(selections)
-                    .filter(s -> s.getStructureIdx() == sel.getStructureIdx() && s.getAllPositions().contains(pos))
-                    .forEach(s -> sel.removeAll(pos, s.getElementStrings(pos)));
-        }
+        Arrays.stream(selections).filter(s -> s.getStructureIdx() == sel.getStructureIdx()).forEach(sel::removeAll);
     }
     
     public static List<String> getElements(List<Selection> selections, String fieldName) {
@@ -208,6 +194,9 @@ public class SelectionUtils {
         map.keySet().retainAll(indices);
         return map.values();
     }
+    public static Collection<Pair<SegmentedObject, BoundingBox>> filterPairs(List<Pair<SegmentedObject, BoundingBox>> objects, Selection selection) {
+        return objects.stream().filter(o->selection.contains(o.key)).collect(Collectors.toList());
+    }
     public static Collection<SegmentedObject> filter(Stream<SegmentedObject> objects, Collection<String> indices) {
         //Map<String, StructureObject> map = new HashMap<>(objects.size());
         //for (StructureObject o : objects) map.put(Selection.indicesString(o), o);
@@ -252,7 +241,7 @@ public class SelectionUtils {
         ImageWindowManager iwm = ImageWindowManagerFactory.getImageManager();
         i = fixIOI(i, s.getStructureIdx());
         if (i!=null) {
-            Collection<Pair<SegmentedObject, BoundingBox>> objects = filterPairs(i.getObjects(), s.getElementStrings(SegmentedObjectUtils.getPositions(i.getParents())));
+            Collection<Pair<SegmentedObject, BoundingBox>> objects = filterPairs(i.getObjects(), s);
             //Set<StructureObject> objects = s.getElements(StructureObjectUtils.getPositions(i.getParents()));
             //logger.debug("disp objects: #positions: {}, #objects: {}", StructureObjectUtils.getPositions(i.getParents()).size(), objects.size() );
             if (objects!=null) {
@@ -267,7 +256,7 @@ public class SelectionUtils {
         i = fixIOI(i, s.getStructureIdx());
         if (i!=null) {
             //Set<StructureObject> objects = s.getElements(StructureObjectUtils.getPositions(i.getParents()));
-            Collection<Pair<SegmentedObject, BoundingBox>> objects = filterPairs(i.getObjects(), s.getElementStrings(SegmentedObjectUtils.getPositions(i.getParents())));
+            Collection<Pair<SegmentedObject, BoundingBox>> objects = filterPairs(i.getObjects(), s);
             if (objects!=null) {
                 iwm.hideObjects(null, objects, false);
                 //iwm.hideObjects(null, i.pairWithOffset(objects), false);
@@ -278,7 +267,7 @@ public class SelectionUtils {
         ImageWindowManager iwm = ImageWindowManagerFactory.getImageManager();
         i = fixIOI(i, s.getStructureIdx());
         if (i!=null) {
-            Collection<Pair<SegmentedObject, BoundingBox>> objects = filterPairs(i.getObjects(), s.getElementStrings(SegmentedObjectUtils.getPositions(i.getParents())));
+            Collection<Pair<SegmentedObject, BoundingBox>> objects = filterPairs(i.getObjects(), s);
             List<SegmentedObject> tracks = Pair.unpairKeys(objects);
             tracks.removeIf(o->!o.isTrackHead());
             if (tracks.isEmpty()) return;
@@ -292,7 +281,7 @@ public class SelectionUtils {
         ImageWindowManager iwm = ImageWindowManagerFactory.getImageManager();
         i = fixIOI(i, s.getStructureIdx());
         if (i!=null) {
-            Collection<Pair<SegmentedObject, BoundingBox>> objects = filterPairs(i.getObjects(), s.getElementStrings(SegmentedObjectUtils.getPositions(i.getParents())));
+            Collection<Pair<SegmentedObject, BoundingBox>> objects = filterPairs(i.getObjects(), s);
             List<SegmentedObject> tracks = Pair.unpairKeys(objects);
             tracks.removeIf(o->!o.isTrackHead());
             if (tracks.isEmpty()) return;